@@ -0,0 +1,18 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * JVM stand-in for the framework class, only what the library uses
+ */
+public abstract class Context {
+    public static final int MODE_PRIVATE = 0x0000;
+
+    public abstract SharedPreferences getSharedPreferences(String name, int mode);
+
+    public abstract boolean deleteSharedPreferences(String name);
+
+    public abstract File getFilesDir();
+
+    public abstract File getCacheDir();
+}
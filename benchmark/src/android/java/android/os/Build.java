@@ -0,0 +1,20 @@
+package android.os;
+
+/**
+ * JVM stand-in for the framework class. The SDK level isn't final, so the compat code paths can be benchmarked too.
+ * It's read when an {@link devliving.online.securedpreferencestore.EncryptionManager} is created.
+ */
+public class Build {
+    public static class VERSION {
+        public static int SDK_INT = VERSION_CODES.O;
+    }
+
+    public static class VERSION_CODES {
+        public static final int JELLY_BEAN_MR2 = 18;
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+        public static final int M = 23;
+        public static final int N = 24;
+        public static final int O = 26;
+    }
+}
@@ -0,0 +1,20 @@
+package android.os;
+
+/**
+ * JVM stand-in for the framework class, without cancellation listeners
+ */
+public final class CancellationSignal {
+    private volatile boolean mCanceled;
+
+    public boolean isCanceled() {
+        return mCanceled;
+    }
+
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    public void throwIfCanceled() {
+        if (mCanceled) throw new OperationCanceledException();
+    }
+}
@@ -0,0 +1,21 @@
+package android.os;
+
+/**
+ * JVM stand-in for the framework class. There's no main thread, so no thread is treated as one.
+ */
+public final class Looper {
+    private Looper() {
+    }
+
+    public static Looper getMainLooper() {
+        return null;
+    }
+
+    public static Looper myLooper() {
+        return null;
+    }
+
+    public Thread getThread() {
+        return null;
+    }
+}
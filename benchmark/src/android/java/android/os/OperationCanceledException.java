@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * JVM stand-in for the framework class
+ */
+public class OperationCanceledException extends RuntimeException {
+    public OperationCanceledException() {
+        this(null);
+    }
+
+    public OperationCanceledException(String message) {
+        super(message != null ? message : "The operation has been canceled.");
+    }
+}
@@ -0,0 +1,75 @@
+package android.security;
+
+import android.content.Context;
+
+import java.math.BigInteger;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * JVM stand-in for the framework class, only the alias and key size are kept
+ */
+public final class KeyPairGeneratorSpec implements AlgorithmParameterSpec {
+    private final String mKeystoreAlias;
+    private final int mKeySize;
+
+    private KeyPairGeneratorSpec(String keystoreAlias, int keySize) {
+        mKeystoreAlias = keystoreAlias;
+        mKeySize = keySize;
+    }
+
+    public String getKeystoreAlias() {
+        return mKeystoreAlias;
+    }
+
+    /**
+     * @return key size, -1 for the default
+     */
+    public int getKeySize() {
+        return mKeySize;
+    }
+
+    public static final class Builder {
+        private String mKeystoreAlias;
+        private int mKeySize = -1;
+
+        public Builder(Context context) {
+        }
+
+        public Builder setAlias(String alias) {
+            mKeystoreAlias = alias;
+            return this;
+        }
+
+        public Builder setKeySize(int keySize) {
+            mKeySize = keySize;
+            return this;
+        }
+
+        public Builder setKeyType(String keyType) {
+            return this;
+        }
+
+        public Builder setSerialNumber(BigInteger serialNumber) {
+            return this;
+        }
+
+        public Builder setSubject(X500Principal subject) {
+            return this;
+        }
+
+        public Builder setStartDate(Date startDate) {
+            return this;
+        }
+
+        public Builder setEndDate(Date endDate) {
+            return this;
+        }
+
+        public KeyPairGeneratorSpec build() {
+            return new KeyPairGeneratorSpec(mKeystoreAlias, mKeySize);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package android.security.keystore;
+
+import java.math.BigInteger;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * JVM stand-in for the framework class, only the alias and key size are kept
+ */
+public final class KeyGenParameterSpec implements AlgorithmParameterSpec {
+    private final String mKeystoreAlias;
+    private final int mKeySize;
+
+    private KeyGenParameterSpec(String keystoreAlias, int keySize) {
+        mKeystoreAlias = keystoreAlias;
+        mKeySize = keySize;
+    }
+
+    public String getKeystoreAlias() {
+        return mKeystoreAlias;
+    }
+
+    /**
+     * @return key size, -1 for the default
+     */
+    public int getKeySize() {
+        return mKeySize;
+    }
+
+    public static final class Builder {
+        private final String mKeystoreAlias;
+        private int mKeySize = -1;
+
+        public Builder(String keystoreAlias, int purposes) {
+            mKeystoreAlias = keystoreAlias;
+        }
+
+        public Builder setCertificateSubject(X500Principal subject) {
+            return this;
+        }
+
+        public Builder setCertificateSerialNumber(BigInteger serialNumber) {
+            return this;
+        }
+
+        public Builder setKeySize(int keySize) {
+            mKeySize = keySize;
+            return this;
+        }
+
+        public Builder setBlockModes(String... blockModes) {
+            return this;
+        }
+
+        public Builder setEncryptionPaddings(String... paddings) {
+            return this;
+        }
+
+        public Builder setRandomizedEncryptionRequired(boolean required) {
+            return this;
+        }
+
+        public KeyGenParameterSpec build() {
+            return new KeyGenParameterSpec(mKeystoreAlias, mKeySize);
+        }
+    }
+}
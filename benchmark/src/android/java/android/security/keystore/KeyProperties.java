@@ -0,0 +1,19 @@
+package android.security.keystore;
+
+/**
+ * JVM stand-in for the framework class, only the constants the library uses
+ */
+public abstract class KeyProperties {
+    public static final int PURPOSE_ENCRYPT = 1 << 0;
+    public static final int PURPOSE_DECRYPT = 1 << 1;
+
+    public static final String KEY_ALGORITHM_RSA = "RSA";
+    public static final String KEY_ALGORITHM_AES = "AES";
+
+    public static final String BLOCK_MODE_GCM = "GCM";
+
+    public static final String ENCRYPTION_PADDING_NONE = "NoPadding";
+
+    private KeyProperties() {
+    }
+}
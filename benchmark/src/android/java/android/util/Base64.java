@@ -0,0 +1,29 @@
+package android.util;
+
+/**
+ * JVM stand-in for the framework class. Output is never wrapped and input may contain line breaks, the flags are ignored.
+ */
+public class Base64 {
+    public static final int DEFAULT = 0;
+    public static final int NO_PADDING = 1;
+    public static final int NO_WRAP = 2;
+
+    private Base64() {
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        return java.util.Base64.getEncoder().encodeToString(input);
+    }
+
+    public static byte[] encode(byte[] input, int flags) {
+        return java.util.Base64.getEncoder().encode(input);
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getMimeDecoder().decode(str);
+    }
+
+    public static byte[] decode(byte[] input, int flags) {
+        return java.util.Base64.getMimeDecoder().decode(input);
+    }
+}
@@ -0,0 +1,47 @@
+package android.util;
+
+/**
+ * JVM stand-in for the framework class, everything goes to standard error
+ */
+public final class Log {
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        return println(tag, msg, null);
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return println(tag, msg, tr);
+    }
+
+    public static int i(String tag, String msg) {
+        return println(tag, msg, null);
+    }
+
+    public static int w(String tag, String msg) {
+        return println(tag, msg, null);
+    }
+
+    public static int w(String tag, Throwable tr) {
+        return println(tag, "", tr);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println(tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(tag, msg, tr);
+    }
+
+    private static int println(String tag, String msg, Throwable tr) {
+        System.err.println(tag + ": " + msg);
+        if (tr != null) tr.printStackTrace();
+        return 0;
+    }
+}
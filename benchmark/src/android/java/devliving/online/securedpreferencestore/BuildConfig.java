@@ -0,0 +1,10 @@
+package devliving.online.securedpreferencestore;
+
+/**
+ * Stand-in for the class the Android build generates for the library. Logging is off so it doesn't skew the numbers.
+ */
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+    //keep in sync with versionCode in the library's build.gradle
+    public static final int VERSION_CODE = 14;
+}
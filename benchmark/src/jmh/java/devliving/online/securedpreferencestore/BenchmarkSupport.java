@@ -0,0 +1,82 @@
+package devliving.online.securedpreferencestore;
+
+import android.os.Build;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+/**
+ * Sets the library up on the JVM for the benchmarks
+ */
+final class BenchmarkSupport {
+    /**
+     * AES-GCM with a keystore key, API 23 and up
+     */
+    static final String GCM = "gcm";
+    /**
+     * AES-CBC with HMAC and RSA wrapped keys, before API 23
+     */
+    static final String COMPAT = "compat";
+
+    static final byte[] SEED = "benchmark seed".getBytes();
+
+    private static JvmContext mContext;
+
+    private BenchmarkSupport() {
+    }
+
+    static synchronized JvmContext context() throws IOException {
+        SoftwareKeyStoreProvider.install();
+        if (mContext == null) mContext = new JvmContext();
+
+        return mContext;
+    }
+
+    /**
+     * Runs with the SDK level of the mode while the keys are set up, compat mode is decided then
+     */
+    static int sdkLevel(String mode) {
+        if (GCM.equals(mode)) return Build.VERSION_CODES.O;
+        if (COMPAT.equals(mode)) return Build.VERSION_CODES.KITKAT;
+
+        throw new IllegalArgumentException("Unknown mode: " + mode);
+    }
+
+    /**
+     * @return manager with keys of its own, the mode's keys are reused within a fork
+     */
+    static EncryptionManager encryptionManager(String mode) throws IOException, GeneralSecurityException {
+        int sdkLevel = Build.VERSION.SDK_INT;
+        Build.VERSION.SDK_INT = sdkLevel(mode);
+
+        try {
+            return new EncryptionManager(context(), new InMemoryBackingStore(), "benchmark_" + mode, SEED, null);
+        } finally {
+            Build.VERSION.SDK_INT = sdkLevel;
+        }
+    }
+
+    /**
+     * @return the same pseudo random bytes for the same size
+     */
+    static byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the same printable text for the same length
+     */
+    static String text(int length) {
+        Random random = new Random(length);
+        char[] text = new char[length];
+
+        for (int i = 0; i < length; i++) {
+            text[i] = (char) ('a' + random.nextInt(26));
+        }
+
+        return new String(text);
+    }
+}
@@ -0,0 +1,47 @@
+package devliving.online.securedpreferencestore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packing encrypted values into the base64 envelope that's stored, and unpacking them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EnvelopeBenchmark {
+    @Param({"16", "256", "4096"})
+    public int valueSize;
+
+    @Param({BenchmarkSupport.GCM, BenchmarkSupport.COMPAT})
+    public String mode;
+
+    private EncryptionManager mEncryptionManager;
+    private EncryptionManager.EncryptedData mEncrypted;
+    private String mEncoded;
+
+    @Setup
+    public void setUp() throws Exception {
+        mEncryptionManager = BenchmarkSupport.encryptionManager(mode);
+        mEncrypted = mEncryptionManager.encrypt(BenchmarkSupport.bytes(valueSize));
+        mEncoded = mEncryptionManager.encodeEncryptedData(mEncrypted);
+    }
+
+    @Benchmark
+    public String encodeEncryptedData() {
+        return mEncryptionManager.encodeEncryptedData(mEncrypted);
+    }
+
+    @Benchmark
+    public EncryptionManager.EncryptedData decodeEncryptedText() {
+        return mEncryptionManager.decodeEncryptedText(mEncoded);
+    }
+}
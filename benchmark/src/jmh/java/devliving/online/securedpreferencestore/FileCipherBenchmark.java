@@ -0,0 +1,55 @@
+package devliving.online.securedpreferencestore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypting and decrypting files through the stream API, in memory so the disk doesn't dominate
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileCipherBenchmark {
+    @Param({"65536", "4194304"})
+    public int fileSize;
+
+    @Param({BenchmarkSupport.GCM, BenchmarkSupport.COMPAT})
+    public String mode;
+
+    private EncryptionManager mEncryptionManager;
+    private byte[] mPlain;
+    private byte[] mEncrypted;
+
+    @Setup
+    public void setUp() throws Exception {
+        mEncryptionManager = BenchmarkSupport.encryptionManager(mode);
+        mPlain = BenchmarkSupport.bytes(fileSize);
+        mEncrypted = encrypt();
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(fileSize + fileSize / 8 + 64);
+        mEncryptionManager.encrypt(new BufferedInputStream(new ByteArrayInputStream(mPlain)), new BufferedOutputStream(out));
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(fileSize);
+        mEncryptionManager.decrypt(new BufferedInputStream(new ByteArrayInputStream(mEncrypted)), new BufferedOutputStream(out));
+        return out.toByteArray();
+    }
+}
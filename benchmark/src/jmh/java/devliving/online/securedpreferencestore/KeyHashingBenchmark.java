@@ -0,0 +1,53 @@
+package devliving.online.securedpreferencestore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing preference keys. Cycling over more keys than the memo holds shows the cost of a miss.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyHashingBenchmark {
+    @Param({"16", "4096"})
+    public int keyCount;
+
+    private String[] mKeys;
+    private int mNext = 0;
+
+    private final KeyHasher mUnmemoized = new KeyHasher(0);
+
+    @Setup
+    public void setUp() {
+        mKeys = new String[keyCount];
+
+        for (int i = 0; i < keyCount; i++) {
+            mKeys[i] = "preference_key_" + i;
+        }
+    }
+
+    private String nextKey() {
+        String key = mKeys[mNext];
+        mNext = (mNext + 1) % mKeys.length;
+        return key;
+    }
+
+    @Benchmark
+    public String getHashed() throws Exception {
+        return EncryptionManager.getHashed(nextKey());
+    }
+
+    @Benchmark
+    public String hashWithoutMemo() throws Exception {
+        return mUnmemoized.hash(nextKey());
+    }
+}
@@ -0,0 +1,84 @@
+package devliving.online.securedpreferencestore;
+
+import android.os.Build;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import devliving.online.securedpreferencestore.SoftwareKeyStoreProvider.Operation;
+
+/**
+ * Setting up the keys and decrypting values with every keystore call taking the given latency, a quarter of it
+ * jitter. The keys already exist, so setting them up only looks them up. Keystore lookups are cached process wide,
+ * the cache is emptied before every setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KeyStoreLatencyBenchmark {
+    @Param({"0", "200", "2000"})
+    public int latencyMicros;
+
+    private JvmContext mContext;
+    private BackingStore mBackingStore;
+    private EncryptionManager mEncryptionManager;
+    private EncryptionManager.EncryptedData mKeystoreEncrypted;
+    private EncryptionManager.EncryptedData mDataKeyEncrypted;
+
+    @Setup
+    public void setUp() throws Exception {
+        Build.VERSION.SDK_INT = BenchmarkSupport.sdkLevel(BenchmarkSupport.GCM);
+        mContext = BenchmarkSupport.context();
+        mBackingStore = new InMemoryBackingStore();
+        mEncryptionManager = newEncryptionManager(false);
+
+        byte[] value = BenchmarkSupport.bytes(256);
+        mKeystoreEncrypted = mEncryptionManager.encrypt(value);
+        mEncryptionManager.enableDataKey(0);
+        mDataKeyEncrypted = mEncryptionManager.encrypt(value);
+
+        for (Operation operation : Operation.values()) {
+            SoftwareKeyStoreProvider.setLatency(operation, latencyMicros, latencyMicros / 4, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        SoftwareKeyStoreProvider.reset();
+    }
+
+    private EncryptionManager newEncryptionManager(boolean lazyKeys) throws Exception {
+        return new EncryptionManager(mContext, mBackingStore, "benchmark_keystore", BenchmarkSupport.SEED, null, lazyKeys);
+    }
+
+    @Benchmark
+    public EncryptionManager setUpKeys() throws Exception {
+        KeyStoreAccess.shared().invalidateAll();
+        return newEncryptionManager(false);
+    }
+
+    @Benchmark
+    public EncryptionManager setUpKeysLazily() throws Exception {
+        KeyStoreAccess.shared().invalidateAll();
+        return newEncryptionManager(true);
+    }
+
+    @Benchmark
+    public byte[] decryptWithKeystoreKey() throws Exception {
+        return mEncryptionManager.decrypt(mKeystoreEncrypted);
+    }
+
+    @Benchmark
+    public byte[] decryptWithDataKey() throws Exception {
+        return mEncryptionManager.decrypt(mDataKeyEncrypted);
+    }
+}
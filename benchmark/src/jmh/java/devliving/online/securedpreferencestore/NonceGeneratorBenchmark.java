@@ -0,0 +1,54 @@
+package devliving.online.securedpreferencestore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IVs from each {@link NonceGenerator} strategy, against creating a new {@link SecureRandom} for every IV the way
+ * {@code EncryptionManager.getIV()} used to. The generator is shared by all the benchmark threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NonceGeneratorBenchmark {
+    private static final String NEW_SECURE_RANDOM = "NEW_SECURE_RANDOM";
+
+    @Param({NEW_SECURE_RANDOM, "SHARED", "PER_THREAD", "PREFETCHED"})
+    public String strategy;
+
+    private NonceGenerator mGenerator;
+
+    @Setup
+    public void setUp() {
+        if (!NEW_SECURE_RANDOM.equals(strategy)) {
+            mGenerator = NonceGenerator.create(NonceGenerator.Strategy.valueOf(strategy));
+        }
+    }
+
+    private byte[] next(int length) {
+        if (mGenerator != null) return mGenerator.next(length);
+
+        byte[] IV = new byte[length];
+        new SecureRandom().nextBytes(IV);
+        return IV;
+    }
+
+    @Benchmark
+    public byte[] gcmIV() {
+        return next(12);
+    }
+
+    @Benchmark
+    public byte[] cbcIV() {
+        return next(16);
+    }
+}
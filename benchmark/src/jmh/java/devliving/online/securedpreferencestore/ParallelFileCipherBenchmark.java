@@ -0,0 +1,76 @@
+package devliving.online.securedpreferencestore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypting and decrypting a file with its segments spread over the given number of threads, with a software key so
+ * only the segment ciphers are measured. The speedup depends on the cores of the machine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParallelFileCipherBenchmark {
+    private static final ParallelFileCipher.CipherFactory GCM = new ParallelFileCipher.CipherFactory() {
+        @Override
+        public SegmentedFileCipher newCipher() throws GeneralSecurityException {
+            return new SegmentedFileCipher(Cipher.getInstance("AES/GCM/NoPadding"), new SecretKeySpec(new byte[16], "AES"),
+                    null, NonceGenerator.getDefault());
+        }
+    };
+
+    @Param({"33554432"})
+    public int fileSize;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private ExecutorService mExecutor;
+    private ParallelFileCipher mCipher;
+    private byte[] mPlain;
+    private byte[] mEncrypted;
+
+    @Setup
+    public void setUp() throws Exception {
+        mExecutor = Executors.newFixedThreadPool(threads);
+        mCipher = new ParallelFileCipher(GCM, mExecutor, 2 * threads);
+        mPlain = BenchmarkSupport.bytes(fileSize);
+        mEncrypted = encrypt();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(fileSize + fileSize / 100);
+        mCipher.encrypt(new ByteArrayInputStream(mPlain), out, SegmentedFileCipher.DEFAULT_SEGMENT_SIZE);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(fileSize);
+        mCipher.decrypt(new ByteArrayInputStream(mEncrypted), out);
+        return out.toByteArray();
+    }
+}
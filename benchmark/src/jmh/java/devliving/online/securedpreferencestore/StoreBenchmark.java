@@ -0,0 +1,71 @@
+package devliving.online.securedpreferencestore;
+
+import android.os.Build;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing values through the shared store over an {@link InMemoryBackingStore}, so only hashing,
+ * encryption, locking and bookkeeping are measured. Keys are picked at random by every thread.
+ * The shared instance is created once per JVM, this relies on JMH running every trial in a fork of its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StoreBenchmark {
+    @Param({"16", "256", "4096"})
+    public int valueSize;
+
+    @Param({"16", "1024"})
+    public int keyCount;
+
+    @Param({BenchmarkSupport.GCM, BenchmarkSupport.COMPAT})
+    public String mode;
+
+    private SecuredPreferenceStore mStore;
+    private String[] mKeys;
+    private String mValue;
+
+    @Setup
+    public void setUp() throws Exception {
+        Build.VERSION.SDK_INT = BenchmarkSupport.sdkLevel(mode);
+        SecuredPreferenceStore.init(BenchmarkSupport.context(), new InMemoryBackingStore(), "benchmark_store_" + mode,
+                BenchmarkSupport.SEED, new DefaultRecoveryHandler());
+        mStore = SecuredPreferenceStore.getSharedInstance();
+
+        mValue = BenchmarkSupport.text(valueSize);
+        mKeys = new String[keyCount];
+        SecuredPreferenceStore.Editor editor = mStore.edit();
+
+        for (int i = 0; i < keyCount; i++) {
+            mKeys[i] = "preference_key_" + i;
+            editor.putString(mKeys[i], mValue);
+        }
+
+        if (!editor.commit()) throw new IllegalStateException("Unable to fill the store");
+    }
+
+    private String randomKey() {
+        return mKeys[ThreadLocalRandom.current().nextInt(mKeys.length)];
+    }
+
+    @Benchmark
+    public String getString() {
+        return mStore.getString(randomKey(), null);
+    }
+
+    @Benchmark
+    public boolean putString() {
+        return mStore.edit().putString(randomKey(), mValue).commit();
+    }
+}
@@ -0,0 +1,86 @@
+package devliving.online.securedpreferencestore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Reads of different keys while one thread keeps writing a single key, under the class wide monitor the store used
+ * to take and under {@link StripedLock}. The work done while holding a lock stands in for a keystore round trip.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StripedLockBenchmark {
+    private static final long KEYSTORE_CALL_TOKENS = 2000;
+    private static final String WRITTEN_KEY = "sync_token";
+    private static final String[] KEYS = new String[64];
+
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            KEYS[i] = "key_" + i;
+        }
+    }
+
+    private final Object mMonitor = new Object();
+    private final StripedLock mStripedLock = new StripedLock(16);
+
+    private static String nextKey() {
+        return KEYS[ThreadLocalRandom.current().nextInt(KEYS.length)];
+    }
+
+    @Benchmark
+    @Group("global")
+    @GroupThreads(3)
+    public void globalRead() {
+        synchronized (mMonitor) {
+            Blackhole.consumeCPU(KEYSTORE_CALL_TOKENS);
+        }
+    }
+
+    @Benchmark
+    @Group("global")
+    @GroupThreads(1)
+    public void globalWrite() {
+        synchronized (mMonitor) {
+            Blackhole.consumeCPU(KEYSTORE_CALL_TOKENS);
+        }
+    }
+
+    @Benchmark
+    @Group("striped")
+    @GroupThreads(3)
+    public void stripedRead() {
+        Lock lock = mStripedLock.readLock(nextKey());
+        lock.lock();
+        try {
+            Blackhole.consumeCPU(KEYSTORE_CALL_TOKENS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Benchmark
+    @Group("striped")
+    @GroupThreads(1)
+    public void stripedWrite() {
+        List<Lock> locks = mStripedLock.lockForWrite(Collections.singleton(WRITTEN_KEY), false);
+        try {
+            Blackhole.consumeCPU(KEYSTORE_CALL_TOKENS);
+        } finally {
+            mStripedLock.unlock(locks);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package devliving.online.securedpreferencestore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypting and decrypting single values, AES-GCM and the compat AES-CBC with HMAC.
+ * Each operation takes a new IV, like the store does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ValueCipherBenchmark {
+    @Param({"16", "256", "4096"})
+    public int valueSize;
+
+    private EncryptionManager mGcm;
+    private EncryptionManager mCompat;
+
+    private byte[] mValue;
+    private EncryptionManager.EncryptedData mGcmEncrypted;
+    private EncryptionManager.EncryptedData mCompatEncrypted;
+
+    @Setup
+    public void setUp() throws Exception {
+        mGcm = BenchmarkSupport.encryptionManager(BenchmarkSupport.GCM);
+        mCompat = BenchmarkSupport.encryptionManager(BenchmarkSupport.COMPAT);
+
+        mValue = BenchmarkSupport.bytes(valueSize);
+        mGcmEncrypted = mGcm.encryptAES(mValue, mGcm.getIV());
+        mCompatEncrypted = mCompat.encryptAESCompat(mValue, mCompat.getIV());
+    }
+
+    @Benchmark
+    public EncryptionManager.EncryptedData encryptAES() throws Exception {
+        return mGcm.encryptAES(mValue, mGcm.getIV());
+    }
+
+    @Benchmark
+    public byte[] decryptAES() throws Exception {
+        return mGcm.decryptAES(mGcmEncrypted);
+    }
+
+    @Benchmark
+    public EncryptionManager.EncryptedData encryptAESCompat() throws Exception {
+        return mCompat.encryptAESCompat(mValue, mCompat.getIV());
+    }
+
+    @Benchmark
+    public byte[] decryptAESCompat() throws Exception {
+        return mCompat.decryptAESCompat(mCompatEncrypted);
+    }
+}
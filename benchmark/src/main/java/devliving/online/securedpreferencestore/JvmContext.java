@@ -0,0 +1,72 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Context for running the library on a plain JVM. Preference files are kept in memory, files go to a temporary directory.
+ */
+public final class JvmContext extends Context {
+    private final HashMap<String, SharedPreferences> mPreferences = new HashMap<>();
+    private final File mFilesDir;
+    private final File mCacheDir;
+
+    public JvmContext() throws IOException {
+        File root = File.createTempFile("sps", "");
+        if (!root.delete() || !root.mkdir()) throw new IOException("Unable to create " + root);
+
+        mFilesDir = new File(root, "files");
+        mCacheDir = new File(root, "cache");
+        if (!mFilesDir.mkdir() || !mCacheDir.mkdir()) throw new IOException("Unable to create the directories in " + root);
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences prefs = mPreferences.get(name);
+
+        if (prefs == null) {
+            prefs = new BackingStorePreferences(new InMemoryBackingStore());
+            mPreferences.put(name, prefs);
+        }
+
+        return prefs;
+    }
+
+    @Override
+    public synchronized boolean deleteSharedPreferences(String name) {
+        return mPreferences.remove(name) != null;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return mFilesDir;
+    }
+
+    @Override
+    public File getCacheDir() {
+        return mCacheDir;
+    }
+
+    /**
+     * Deletes the temporary directory
+     */
+    public void delete() {
+        delete(mFilesDir.getParentFile());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,747 @@
+package devliving.online.securedpreferencestore;
+
+import android.security.KeyPairGeneratorSpec;
+import android.security.keystore.KeyGenParameterSpec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyPairGeneratorSpi;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.KeyStoreSpi;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.security.ProviderException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.KeyGeneratorSpi;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Software stand-in for the providers the library uses on Android, so it can run on a plain JVM.
+ * The "AndroidKeyStore" keystore keeps its keys in memory for the whole process, like the real one they're shared by
+ * every keystore instance. As on Android the material of its keys can't be read: AES-GCM with a keystore key runs in
+ * the keystore's own cipher, RSA decryption with a keystore private key in the "AndroidOpenSSL" cipher. The work
+ * itself is done in process by the JDK's providers.
+ *
+ * The keystore's IPC cost and its transient failures can be simulated per {@link Operation}, with
+ * {@link #setLatency(Operation, long, long, TimeUnit)}, {@link #failNext(Operation, Fault, int)} and
+ * {@link #setFailureRate(Operation, Fault, double)}. Nothing is simulated until they're called.
+ * "AndroidOpenSSL" and "BC" only provide the ciphers the library asks them for by name.
+ */
+public final class SoftwareKeyStoreProvider {
+    public static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+    static final String SSL_PROVIDER = "AndroidOpenSSL";
+    static final String BOUNCY_CASTLE_PROVIDER = "BC";
+
+    //the JDK's own providers, the operations are delegated to them
+    private static final String JDK_CIPHER_PROVIDER = "SunJCE";
+    private static final String JDK_RSA_PROVIDER = "SunRsaSign";
+
+    /**
+     * Calls into the keystore
+     */
+    public enum Operation {
+        /**
+         * loading the keystore
+         */
+        LOAD,
+        /**
+         * looking an alias, entry, key or certificate up, or deleting an entry
+         */
+        LOOKUP,
+        /**
+         * generating a key or a key pair
+         */
+        GENERATE,
+        /**
+         * a step of a cipher operation with a keystore key: init, every update and doFinal
+         */
+        CIPHER
+    }
+
+    /**
+     * Errors the keystore fails with. Where the JCA method doesn't declare the exception it's wrapped the way
+     * Android does, in an IOException when loading and in a ProviderException otherwise.
+     */
+    public enum Fault {
+        KEYSTORE_EXCEPTION,
+        UNRECOVERABLE_ENTRY
+    }
+
+    //alias -> KeystoreSecretKey or KeyPair with a KeystorePrivateKey
+    private static final ConcurrentHashMap<String, Object> ENTRIES = new ConcurrentHashMap<>();
+
+    private static final EnumMap<Operation, Behavior> BEHAVIORS = new EnumMap<>(Operation.class);
+
+    static {
+        for (Operation operation : Operation.values()) {
+            BEHAVIORS.put(operation, new Behavior());
+        }
+    }
+
+    private SoftwareKeyStoreProvider() {
+    }
+
+    /**
+     * Registers the providers, unless they already are. They're added after the JDK's own providers, so only
+     * the lookups that name them get them, as on Android. A cipher looked up without a provider gets the
+     * keystore's cipher when it's initialised with a keystore key, the JDK's ciphers can't use one.
+     */
+    @SuppressWarnings("deprecation")
+    public static synchronized void install() {
+        if (Security.getProvider(KEYSTORE_PROVIDER) != null) return;
+
+        Provider keyStore = new Provider(KEYSTORE_PROVIDER, 1.0, "Software AndroidKeyStore") {
+        };
+        keyStore.put("KeyStore." + KEYSTORE_PROVIDER, SoftwareKeyStore.class.getName());
+        keyStore.put("KeyGenerator.AES", AesKeyGenerator.class.getName());
+        keyStore.put("KeyPairGenerator.RSA", RsaKeyPairGenerator.class.getName());
+        keyStore.put("Cipher.AES/GCM/NoPadding", AesGcmCipher.class.getName());
+        keyStore.put("Cipher.AES/GCM/NoPadding SupportedKeyClasses", KeystoreSecretKey.class.getName());
+        Security.addProvider(keyStore);
+
+        if (Security.getProvider(SSL_PROVIDER) == null) {
+            Provider ssl = new Provider(SSL_PROVIDER, 1.0, "RSA on the JDK") {
+            };
+            ssl.put("Cipher.RSA/ECB/PKCS1Padding", RsaCipher.class.getName());
+            Security.addProvider(ssl);
+        }
+
+        if (Security.getProvider(BOUNCY_CASTLE_PROVIDER) == null) {
+            Provider bouncyCastle = new Provider(BOUNCY_CASTLE_PROVIDER, 1.0, "AES/CBC on the JDK") {
+            };
+            bouncyCastle.put("Cipher.AES/CBC/PKCS7Padding", AesCbcCipher.class.getName());
+            Security.addProvider(bouncyCastle);
+        }
+    }
+
+    /**
+     * Deletes every key, as if the app's keys were wiped
+     */
+    public static void clear() {
+        ENTRIES.clear();
+    }
+
+    /**
+     * Removes the latencies and faults and zeroes the counts, the keys are kept
+     */
+    public static void reset() {
+        for (Behavior behavior : BEHAVIORS.values()) {
+            behavior.reset();
+        }
+    }
+
+    /**
+     * @param latency time every call of the operation takes
+     * @param jitter the time taken varies by up to this much either way, it's never negative
+     */
+    public static void setLatency(Operation operation, long latency, long jitter, TimeUnit unit) {
+        if (latency < 0 || jitter < 0) throw new IllegalArgumentException("Negative latency or jitter");
+
+        Behavior behavior = BEHAVIORS.get(operation);
+        behavior.mLatencyNanos = unit.toNanos(latency);
+        behavior.mJitterNanos = unit.toNanos(jitter);
+    }
+
+    /**
+     * Makes the next count calls of the operation fail. Of the lookups only getEntry fails
+     */
+    public static void failNext(Operation operation, Fault fault, int count) {
+        Behavior behavior = BEHAVIORS.get(operation);
+        behavior.mNextFault = fault;
+        behavior.mFailNext.set(count);
+    }
+
+    /**
+     * @param rate probability of a call of the operation failing, 0 for none. Of the lookups only getEntry fails
+     */
+    public static void setFailureRate(Operation operation, Fault fault, double rate) {
+        if (rate < 0 || rate > 1) throw new IllegalArgumentException("Invalid rate: " + rate);
+
+        Behavior behavior = BEHAVIORS.get(operation);
+        behavior.mRandomFault = fault;
+        behavior.mFailureRate = rate;
+    }
+
+    /**
+     * @return number of calls of the operation since the last {@link #reset()}, failed ones included
+     */
+    public static long count(Operation operation) {
+        return BEHAVIORS.get(operation).mCount.sum();
+    }
+
+    /**
+     * @return number of calls of the operation that failed since the last {@link #reset()}
+     */
+    public static long faults(Operation operation) {
+        return BEHAVIORS.get(operation).mFaults.sum();
+    }
+
+    /**
+     * Counts a call of the operation and takes as long as it's set to
+     * @param canFail false if the call can't fail
+     * @return the error the call fails with, null if it doesn't
+     */
+    private static Exception simulate(Operation operation, boolean canFail) {
+        Behavior behavior = BEHAVIORS.get(operation);
+        behavior.mCount.increment();
+        behavior.delay();
+
+        Fault fault = canFail ? behavior.nextFault() : null;
+        if (fault == null) return null;
+
+        behavior.mFaults.increment();
+        String message = "Simulated " + operation + " failure";
+        return fault == Fault.KEYSTORE_EXCEPTION ? new KeyStoreException(message) : new UnrecoverableEntryException(message);
+    }
+
+    /**
+     * Simulates a call that doesn't declare the keystore's errors, they're thrown in a ProviderException
+     */
+    private static void simulateUnchecked(Operation operation, boolean canFail) {
+        Exception error = simulate(operation, canFail);
+        if (error != null) throw new ProviderException(error);
+    }
+
+    private static final class Behavior {
+        volatile long mLatencyNanos = 0;
+        volatile long mJitterNanos = 0;
+        final AtomicInteger mFailNext = new AtomicInteger();
+        volatile Fault mNextFault;
+        volatile double mFailureRate = 0;
+        volatile Fault mRandomFault;
+        final LongAdder mCount = new LongAdder();
+        final LongAdder mFaults = new LongAdder();
+
+        void reset() {
+            mLatencyNanos = 0;
+            mJitterNanos = 0;
+            mFailNext.set(0);
+            mFailureRate = 0;
+            mCount.reset();
+            mFaults.reset();
+        }
+
+        void delay() {
+            long latency = mLatencyNanos;
+            long jitter = mJitterNanos;
+            if (jitter > 0) latency = Math.max(0, latency + ThreadLocalRandom.current().nextLong(-jitter, jitter + 1));
+            if (latency == 0) return;
+
+            //parkNanos may return early
+            long deadline = System.nanoTime() + latency;
+            long remaining = latency;
+
+            while (remaining > 0 && !Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        }
+
+        Fault nextFault() {
+            while (true) {
+                int failNext = mFailNext.get();
+                if (failNext <= 0) break;
+                if (mFailNext.compareAndSet(failNext, failNext - 1)) return mNextFault;
+            }
+
+            double rate = mFailureRate;
+            return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate ? mRandomFault : null;
+        }
+    }
+
+    /**
+     * Key kept in the keystore, only the ciphers of these providers can use it
+     */
+    interface KeystoreKey extends Key {
+        Key material();
+    }
+
+    static final class KeystoreSecretKey implements SecretKey, KeystoreKey {
+        private static final long serialVersionUID = 1L;
+
+        private final SecretKey mKey;
+
+        KeystoreSecretKey(SecretKey key) {
+            mKey = key;
+        }
+
+        @Override
+        public Key material() {
+            return mKey;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return mKey.getAlgorithm();
+        }
+
+        @Override
+        public String getFormat() {
+            return null;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return null;
+        }
+    }
+
+    static final class KeystorePrivateKey implements RSAPrivateKey, KeystoreKey {
+        private static final long serialVersionUID = 1L;
+
+        private final RSAPrivateKey mKey;
+
+        KeystorePrivateKey(RSAPrivateKey key) {
+            mKey = key;
+        }
+
+        @Override
+        public Key material() {
+            return mKey;
+        }
+
+        @Override
+        public BigInteger getModulus() {
+            return mKey.getModulus();
+        }
+
+        @Override
+        public BigInteger getPrivateExponent() {
+            throw new UnsupportedOperationException("The private exponent doesn't leave the keystore");
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return mKey.getAlgorithm();
+        }
+
+        @Override
+        public String getFormat() {
+            return null;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return null;
+        }
+    }
+
+    public static final class SoftwareKeyStore extends KeyStoreSpi {
+        @Override
+        public Key engineGetKey(String alias, char[] password) {
+            simulateUnchecked(Operation.LOOKUP, false);
+
+            Object entry = ENTRIES.get(alias);
+            if (entry instanceof KeyPair) return ((KeyPair) entry).getPrivate();
+
+            return (Key) entry;
+        }
+
+        @Override
+        public Certificate[] engineGetCertificateChain(String alias) {
+            simulateUnchecked(Operation.LOOKUP, false);
+            return certificateChain(alias);
+        }
+
+        private static Certificate[] certificateChain(String alias) {
+            Object entry = ENTRIES.get(alias);
+            return entry instanceof KeyPair ? new Certificate[]{new SoftwareCertificate(((KeyPair) entry).getPublic())} : null;
+        }
+
+        @Override
+        public Certificate engineGetCertificate(String alias) {
+            simulateUnchecked(Operation.LOOKUP, false);
+
+            Certificate[] chain = certificateChain(alias);
+            return chain != null ? chain[0] : null;
+        }
+
+        @Override
+        public Date engineGetCreationDate(String alias) {
+            return ENTRIES.containsKey(alias) ? new Date() : null;
+        }
+
+        @Override
+        public KeyStore.Entry engineGetEntry(String alias, KeyStore.ProtectionParameter protParam) throws KeyStoreException, UnrecoverableEntryException {
+            Exception error = simulate(Operation.LOOKUP, true);
+            if (error instanceof KeyStoreException) throw (KeyStoreException) error;
+            if (error instanceof UnrecoverableEntryException) throw (UnrecoverableEntryException) error;
+
+            Object entry = ENTRIES.get(alias);
+
+            if (entry instanceof SecretKey) return new KeyStore.SecretKeyEntry((SecretKey) entry);
+            if (entry instanceof KeyPair) {
+                return new KeyStore.PrivateKeyEntry(((KeyPair) entry).getPrivate(), certificateChain(alias));
+            }
+
+            return null;
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain) {
+            throw new UnsupportedOperationException("Keys can only be generated in the keystore");
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) {
+            throw new UnsupportedOperationException("Keys can only be generated in the keystore");
+        }
+
+        @Override
+        public void engineSetCertificateEntry(String alias, Certificate cert) {
+            throw new UnsupportedOperationException("Certificates can't be imported");
+        }
+
+        @Override
+        public void engineDeleteEntry(String alias) {
+            simulateUnchecked(Operation.LOOKUP, false);
+            ENTRIES.remove(alias);
+        }
+
+        @Override
+        public Enumeration<String> engineAliases() {
+            simulateUnchecked(Operation.LOOKUP, false);
+            return Collections.enumeration(new ArrayList<>(ENTRIES.keySet()));
+        }
+
+        @Override
+        public boolean engineContainsAlias(String alias) {
+            simulateUnchecked(Operation.LOOKUP, false);
+            return ENTRIES.containsKey(alias);
+        }
+
+        @Override
+        public int engineSize() {
+            return ENTRIES.size();
+        }
+
+        @Override
+        public boolean engineIsKeyEntry(String alias) {
+            return ENTRIES.containsKey(alias);
+        }
+
+        @Override
+        public boolean engineIsCertificateEntry(String alias) {
+            return false;
+        }
+
+        @Override
+        public String engineGetCertificateAlias(Certificate cert) {
+            return null;
+        }
+
+        @Override
+        public void engineStore(OutputStream stream, char[] password) {
+            throw new UnsupportedOperationException("The keystore can't be exported");
+        }
+
+        @Override
+        public void engineLoad(InputStream stream, char[] password) throws IOException {
+            Exception error = simulate(Operation.LOAD, true);
+            if (error != null) throw new IOException(error);
+        }
+    }
+
+    /**
+     * Only carries the public key, like the self-signed certificate the keystore creates for a key pair
+     */
+    static final class SoftwareCertificate extends Certificate {
+        private static final long serialVersionUID = 1L;
+
+        private final PublicKey mPublicKey;
+
+        SoftwareCertificate(PublicKey publicKey) {
+            super("X.509");
+            mPublicKey = publicKey;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return new byte[0];
+        }
+
+        @Override
+        public void verify(PublicKey key) {
+        }
+
+        @Override
+        public void verify(PublicKey key, String sigProvider) {
+        }
+
+        @Override
+        public String toString() {
+            return "SoftwareCertificate[" + mPublicKey.getAlgorithm() + "]";
+        }
+
+        @Override
+        public PublicKey getPublicKey() {
+            return mPublicKey;
+        }
+    }
+
+    public static final class AesKeyGenerator extends KeyGeneratorSpi {
+        private String mAlias;
+        private int mKeySize = 256;
+        private SecureRandom mRandom;
+
+        @Override
+        protected void engineInit(SecureRandom random) {
+            throw new IllegalStateException("A KeyGenParameterSpec is required");
+        }
+
+        @Override
+        protected void engineInit(AlgorithmParameterSpec params, SecureRandom random) throws InvalidAlgorithmParameterException {
+            if (!(params instanceof KeyGenParameterSpec)) {
+                throw new InvalidAlgorithmParameterException("Unsupported params: " + params);
+            }
+
+            KeyGenParameterSpec spec = (KeyGenParameterSpec) params;
+            mAlias = spec.getKeystoreAlias();
+            if (spec.getKeySize() > 0) mKeySize = spec.getKeySize();
+            mRandom = random;
+        }
+
+        @Override
+        protected void engineInit(int keySize, SecureRandom random) {
+            throw new IllegalStateException("A KeyGenParameterSpec is required");
+        }
+
+        @Override
+        protected SecretKey engineGenerateKey() {
+            simulateUnchecked(Operation.GENERATE, true);
+
+            try {
+                KeyGenerator generator = KeyGenerator.getInstance("AES", JDK_CIPHER_PROVIDER);
+                if (mRandom != null) generator.init(mKeySize, mRandom);
+                else generator.init(mKeySize);
+
+                SecretKey key = new KeystoreSecretKey(generator.generateKey());
+                ENTRIES.put(mAlias, key);
+                return key;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            } catch (NoSuchProviderException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    public static final class RsaKeyPairGenerator extends KeyPairGeneratorSpi {
+        private String mAlias;
+        private int mKeySize = 2048;
+        private SecureRandom mRandom;
+
+        @Override
+        public void initialize(int keySize, SecureRandom random) {
+            throw new IllegalStateException("A KeyPairGeneratorSpec is required");
+        }
+
+        @Override
+        public void initialize(AlgorithmParameterSpec params, SecureRandom random) throws InvalidAlgorithmParameterException {
+            if (!(params instanceof KeyPairGeneratorSpec)) {
+                throw new InvalidAlgorithmParameterException("Unsupported params: " + params);
+            }
+
+            KeyPairGeneratorSpec spec = (KeyPairGeneratorSpec) params;
+            mAlias = spec.getKeystoreAlias();
+            if (spec.getKeySize() > 0) mKeySize = spec.getKeySize();
+            mRandom = random;
+        }
+
+        @Override
+        public KeyPair generateKeyPair() {
+            simulateUnchecked(Operation.GENERATE, true);
+
+            try {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA", JDK_RSA_PROVIDER);
+                if (mRandom != null) generator.initialize(mKeySize, mRandom);
+                else generator.initialize(mKeySize);
+
+                KeyPair generated = generator.generateKeyPair();
+                KeyPair keyPair = new KeyPair(generated.getPublic(), new KeystorePrivateKey((RSAPrivateKey) generated.getPrivate()));
+                ENTRIES.put(mAlias, keyPair);
+                return keyPair;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            } catch (NoSuchProviderException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Runs a cipher of the JDK under another provider's name. Every step of an operation with a keystore key
+     * is a keystore call
+     */
+    abstract static class DelegatingCipher extends CipherSpi {
+        private final Cipher mCipher;
+        private boolean mKeystoreOperation = false;
+
+        DelegatingCipher(String transformation) {
+            try {
+                mCipher = Cipher.getInstance(transformation, JDK_CIPHER_PROVIDER);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            } catch (NoSuchProviderException e) {
+                throw new IllegalStateException(e);
+            } catch (NoSuchPaddingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return the key to initialise the JDK's cipher with
+         */
+        private Key begin(Key key) {
+            mKeystoreOperation = key instanceof KeystoreKey;
+            if (!mKeystoreOperation) return key;
+
+            simulateUnchecked(Operation.CIPHER, true);
+            return ((KeystoreKey) key).material();
+        }
+
+        private void step() {
+            if (mKeystoreOperation) simulateUnchecked(Operation.CIPHER, true);
+        }
+
+        @Override
+        protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+            throw new NoSuchAlgorithmException("The mode is fixed");
+        }
+
+        @Override
+        protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+            throw new NoSuchPaddingException("The padding is fixed");
+        }
+
+        @Override
+        protected int engineGetBlockSize() {
+            return mCipher.getBlockSize();
+        }
+
+        @Override
+        protected int engineGetOutputSize(int inputLen) {
+            return mCipher.getOutputSize(inputLen);
+        }
+
+        @Override
+        protected byte[] engineGetIV() {
+            return mCipher.getIV();
+        }
+
+        @Override
+        protected AlgorithmParameters engineGetParameters() {
+            return mCipher.getParameters();
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException {
+            mCipher.init(opmode, begin(key), random);
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random) throws InvalidKeyException, InvalidAlgorithmParameterException {
+            mCipher.init(opmode, begin(key), params, random);
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random) throws InvalidKeyException, InvalidAlgorithmParameterException {
+            mCipher.init(opmode, begin(key), params, random);
+        }
+
+        @Override
+        protected void engineUpdateAAD(byte[] src, int offset, int len) {
+            mCipher.updateAAD(src, offset, len);
+        }
+
+        @Override
+        protected void engineUpdateAAD(ByteBuffer src) {
+            mCipher.updateAAD(src);
+        }
+
+        @Override
+        protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+            step();
+            return mCipher.update(input, inputOffset, inputLen);
+        }
+
+        @Override
+        protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) throws ShortBufferException {
+            step();
+            return mCipher.update(input, inputOffset, inputLen, output, outputOffset);
+        }
+
+        @Override
+        protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen) throws IllegalBlockSizeException, BadPaddingException {
+            step();
+            return input != null ? mCipher.doFinal(input, inputOffset, inputLen) : mCipher.doFinal();
+        }
+
+        @Override
+        protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+            step();
+            return input != null ? mCipher.doFinal(input, inputOffset, inputLen, output, outputOffset)
+                    : mCipher.doFinal(output, outputOffset);
+        }
+    }
+
+    /**
+     * The keystore's cipher, only used with keystore keys
+     */
+    public static final class AesGcmCipher extends DelegatingCipher {
+        public AesGcmCipher() {
+            super("AES/GCM/NoPadding");
+        }
+    }
+
+    public static final class RsaCipher extends DelegatingCipher {
+        public RsaCipher() {
+            super("RSA/ECB/PKCS1Padding");
+        }
+    }
+
+    /**
+     * PKCS7 and PKCS5 padding are the same for AES
+     */
+    public static final class AesCbcCipher extends DelegatingCipher {
+        public AesCbcCipher() {
+            super("AES/CBC/PKCS5Padding");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Reading several values at once through the store
+ */
+public class BatchReadTest {
+    private static final Executor REJECTING = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            throw new RejectedExecutionException("busy");
+        }
+    };
+
+    private SecuredPreferenceStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mStore = SharedTestStore.get();
+    }
+
+    @Test
+    public void onlyFoundKeysAreReturned() {
+        mStore.edit().putString("batch_a", "a").putString("batch_b", "b").remove("batch_missing").commit();
+
+        Map<String, String> values = mStore.getStrings(Arrays.asList("batch_a", "batch_missing", "batch_b", "batch_a"));
+
+        assertEquals(2, values.size());
+        assertEquals("a", values.get("batch_a"));
+        assertEquals("b", values.get("batch_b"));
+        assertFalse(values.containsKey("batch_missing"));
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void typeMismatchThrows() {
+        mStore.edit().putInt("batch_int", 1).putString("batch_text", "text").commit();
+
+        mStore.getInts(Arrays.asList("batch_int", "batch_text"));
+    }
+
+    @Test
+    public void rejectingExecutorStillCompletes() {
+        SecuredPreferenceStore.Editor editor = mStore.edit();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            editor.putLong("batch_long_" + i, i);
+            keys.add("batch_long_" + i);
+        }
+        editor.commit();
+
+        Map<String, Long> values = mStore.getLongs(keys, REJECTING);
+
+        assertEquals(keys.size(), values.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(Long.valueOf(i), values.get("batch_long_" + i));
+        }
+    }
+}
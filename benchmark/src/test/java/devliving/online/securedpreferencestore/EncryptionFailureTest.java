@@ -0,0 +1,120 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import devliving.online.securedpreferencestore.SoftwareKeyStoreProvider.Fault;
+import devliving.online.securedpreferencestore.SoftwareKeyStoreProvider.Operation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Commits of values that can't be encrypted, even after retries
+ */
+public class EncryptionFailureTest {
+    private SecuredPreferenceStore mStore;
+    private RetryPolicy mRetryPolicy;
+
+    @Before
+    public void setUp() throws Exception {
+        mStore = SharedTestStore.get();
+        mRetryPolicy = mStore.getRetryPolicy();
+        mStore.setRetryPolicy(RetryPolicy.noRetry());
+        SoftwareKeyStoreProvider.reset();
+    }
+
+    @After
+    public void tearDown() {
+        SoftwareKeyStoreProvider.reset();
+        mStore.setRetryPolicy(mRetryPolicy);
+        if (mStore.isKeyIndexEnabled()) mStore.disableKeyIndex();
+    }
+
+    @Test
+    public void keysThatFailToEncryptAreNotIndexed() {
+        mStore.enableKeyIndex(null);
+        SoftwareKeyStoreProvider.failNext(Operation.CIPHER, Fault.KEYSTORE_EXCEPTION, 1);
+
+        mStore.edit().putString("unencrypted", "value").commit();
+
+        assertTrue(SoftwareKeyStoreProvider.faults(Operation.CIPHER) > 0);
+        assertFalse(mStore.keys().contains("unencrypted"));
+        assertFalse(mStore.contains("unencrypted"));
+    }
+
+    @Test
+    public void commitFailsWhenTheKeyIndexCantBeEncrypted() {
+        mStore.enableKeyIndex(null);
+        mStore.edit().putString("indexed_existing", "value").commit();
+        SoftwareKeyStoreProvider.failNext(Operation.CIPHER, Fault.KEYSTORE_EXCEPTION, 1);
+
+        //the removal needs no encryption, only the updated index does
+        boolean committed = mStore.edit().remove("indexed_existing").commit();
+
+        assertFalse(committed);
+        assertEquals(1, SoftwareKeyStoreProvider.faults(Operation.CIPHER));
+        assertEquals("value", mStore.getString("indexed_existing", null));
+        assertTrue(mStore.keys().contains("indexed_existing"));
+    }
+
+    @Test
+    public void applyWritesNothingWhenTheKeyIndexCantBeEncrypted() {
+        mStore.enableKeyIndex(null);
+        mStore.edit().putString("indexed_applied", "value").commit();
+        SoftwareKeyStoreProvider.failNext(Operation.CIPHER, Fault.KEYSTORE_EXCEPTION, 1);
+
+        mStore.edit().remove("indexed_applied").apply();
+
+        assertEquals("value", mStore.getString("indexed_applied", null));
+        assertTrue(mStore.keys().contains("indexed_applied"));
+    }
+
+    @Test
+    public void commitFailsAndWritesNothing() {
+        mStore.edit().putString("failure_existing", "old").commit();
+        SoftwareKeyStoreProvider.failNext(Operation.CIPHER, Fault.KEYSTORE_EXCEPTION, 1);
+
+        //the removal needs no encryption, the new value fails
+        boolean committed = mStore.edit().remove("failure_existing").putString("failure_new", "value").commit();
+
+        assertFalse(committed);
+        assertEquals("old", mStore.getString("failure_existing", null));
+        assertFalse(mStore.contains("failure_new"));
+    }
+
+    @Test
+    public void applyWritesNothing() {
+        mStore.edit().putString("failure_applied", "old").commit();
+        SoftwareKeyStoreProvider.failNext(Operation.CIPHER, Fault.KEYSTORE_EXCEPTION, 1);
+
+        mStore.edit().putString("failure_applied", "new").apply();
+
+        assertEquals("old", mStore.getString("failure_applied", null));
+    }
+
+    @Test
+    public void asyncCommitReportsTheFailure() throws Exception {
+        SoftwareKeyStoreProvider.failNext(Operation.CIPHER, Fault.KEYSTORE_EXCEPTION, 1);
+
+        SecuredPreferenceStore.Editor editor = mStore.edit();
+        editor.putString("failure_async", "value");
+
+        assertFalse(editor.commitAsync().get(5, TimeUnit.SECONDS));
+        assertFalse(mStore.contains("failure_async"));
+    }
+
+    @Test
+    public void editorCanBeCommittedAgainAfterAFailure() {
+        SoftwareKeyStoreProvider.failNext(Operation.CIPHER, Fault.KEYSTORE_EXCEPTION, 1);
+        SecuredPreferenceStore.Editor editor = mStore.edit();
+
+        assertFalse(editor.putString("failure_retried", "value").commit());
+        assertTrue(editor.putString("failure_retried", "value").commit());
+        assertEquals("value", mStore.getString("failure_retried", null));
+    }
+}
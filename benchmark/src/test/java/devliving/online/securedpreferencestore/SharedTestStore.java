@@ -0,0 +1,28 @@
+package devliving.online.securedpreferencestore;
+
+import android.os.Build;
+
+/**
+ * The shared store of the tests, over an in-memory backing store. It's created by the first test that needs it
+ * and lives as long as the test JVM, like the shared instance of an app.
+ */
+final class SharedTestStore {
+    static final byte[] SEED = "test seed".getBytes();
+    static final InMemoryBackingStore BACKING_STORE = new InMemoryBackingStore();
+
+    private static JvmContext mContext;
+
+    private SharedTestStore() {
+    }
+
+    static synchronized SecuredPreferenceStore get() throws Exception {
+        if (mContext == null) {
+            SoftwareKeyStoreProvider.install();
+            mContext = new JvmContext();
+            Build.VERSION.SDK_INT = Build.VERSION_CODES.O;
+            SecuredPreferenceStore.init(mContext, BACKING_STORE, "test_store", SEED, new DefaultRecoveryHandler());
+        }
+
+        return SecuredPreferenceStore.getSharedInstance();
+    }
+}
@@ -0,0 +1,261 @@
+package devliving.online.securedpreferencestore;
+
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.UnrecoverableEntryException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.BadPaddingException;
+
+import devliving.online.securedpreferencestore.SoftwareKeyStoreProvider.Fault;
+import devliving.online.securedpreferencestore.SoftwareKeyStoreProvider.Operation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Init, retry, recovery and caching against the keystore, with its latency and failures simulated
+ */
+public class SoftwareKeyStoreProviderTest {
+    private static final byte[] SEED = "test seed".getBytes();
+    private static final byte[] VALUE = "value".getBytes();
+    //unlike the shared test store's, the keys of this prefix are deleted before every test
+    private static final String KEY_PREFIX = "provider_test";
+
+    private JvmContext mContext;
+    private BackingStore mBackingStore;
+    private final List<Exception> mRecoveryErrors = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        SoftwareKeyStoreProvider.install();
+        deleteTestKeys();
+        SoftwareKeyStoreProvider.reset();
+        KeyStoreAccess.shared().invalidateAll();
+        Build.VERSION.SDK_INT = Build.VERSION_CODES.O;
+
+        mContext = new JvmContext();
+        mBackingStore = new InMemoryBackingStore();
+    }
+
+    @After
+    public void tearDown() {
+        SoftwareKeyStoreProvider.reset();
+        Build.VERSION.SDK_INT = Build.VERSION_CODES.O;
+        mContext.delete();
+    }
+
+    /**
+     * Deletes only the keys of this test, the shared test store keeps using its own
+     */
+    private static void deleteTestKeys() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(SoftwareKeyStoreProvider.KEYSTORE_PROVIDER);
+        keyStore.load(null);
+
+        for (String alias : Collections.list(keyStore.aliases())) {
+            if (alias.startsWith(KEY_PREFIX + "_")) keyStore.deleteEntry(alias);
+        }
+    }
+
+    private EncryptionManager encryptionManager(SecuredPreferenceStore.KeyStoreRecoveryNotifier notifier) throws Exception {
+        return new EncryptionManager(mContext, mBackingStore, KEY_PREFIX, SEED, notifier);
+    }
+
+    /**
+     * @param deleteKeys true to delete the keys, like a recovery handler, false to only try again
+     */
+    private SecuredPreferenceStore.KeyStoreRecoveryNotifier recordingNotifier(final boolean deleteKeys) {
+        return new SecuredPreferenceStore.KeyStoreRecoveryNotifier() {
+            @Override
+            public boolean onRecoveryRequired(Exception e, KeyStore keyStore, List<String> keyAliases) {
+                mRecoveryErrors.add(e);
+
+                if (deleteKeys) {
+                    try {
+                        for (String alias : keyAliases) {
+                            keyStore.deleteEntry(alias);
+                        }
+                    } catch (KeyStoreException e1) {
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void keystoreKeysAreOnlyUsedInTheKeystore() throws Exception {
+        EncryptionManager manager = encryptionManager(null);
+
+        KeyStore keyStore = KeyStore.getInstance(SoftwareKeyStoreProvider.KEYSTORE_PROVIDER);
+        keyStore.load(null);
+        KeyStore.SecretKeyEntry entry = (KeyStore.SecretKeyEntry) keyStore.getEntry(manager.keyAliases().get(0), null);
+        assertNull(entry.getSecretKey().getEncoded());
+
+        SoftwareKeyStoreProvider.reset();
+        assertArrayEquals(VALUE, manager.decrypt(manager.encrypt(VALUE)));
+        //init and doFinal for each
+        assertEquals(4, SoftwareKeyStoreProvider.count(Operation.CIPHER));
+    }
+
+    @Test
+    public void compatKeysAreUnwrappedInTheKeystore() throws Exception {
+        Build.VERSION.SDK_INT = Build.VERSION_CODES.KITKAT;
+        EncryptionManager manager = encryptionManager(null);
+
+        assertEquals(1, SoftwareKeyStoreProvider.count(Operation.GENERATE));
+        //the AES and MAC keys are decrypted with the RSA private key
+        assertTrue(SoftwareKeyStoreProvider.count(Operation.CIPHER) >= 2);
+
+        SoftwareKeyStoreProvider.reset();
+        assertArrayEquals(VALUE, manager.decrypt(manager.encrypt(VALUE)));
+        assertEquals(0, SoftwareKeyStoreProvider.count(Operation.CIPHER));
+    }
+
+    @Test
+    public void compatMacIsVerified() throws Exception {
+        Build.VERSION.SDK_INT = Build.VERSION_CODES.KITKAT;
+        EncryptionManager manager = encryptionManager(null);
+
+        EncryptionManager.EncryptedData encrypted = manager.encrypt(VALUE);
+        assertTrue(manager.verifyMac(encrypted.mac, encrypted.IV, encrypted.encryptedData));
+        //the pooled Mac is reused
+        assertArrayEquals(VALUE, manager.decrypt(encrypted));
+        assertArrayEquals(VALUE, manager.decrypt(encrypted));
+
+        encrypted.encryptedData[0] ^= 1;
+        try {
+            manager.decrypt(encrypted);
+            fail("Decrypted with a wrong MAC");
+        } catch (EncryptionManager.InvalidMacException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void latencyIsAddedToEveryCall() throws Exception {
+        SoftwareKeyStoreProvider.setLatency(Operation.LOOKUP, 20, 0, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        encryptionManager(null);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        long lookups = SoftwareKeyStoreProvider.count(Operation.LOOKUP);
+        assertTrue(lookups > 0);
+        assertTrue(elapsed >= lookups * 20);
+    }
+
+    @Test
+    public void lookupsAreCachedAcrossManagers() throws Exception {
+        encryptionManager(null);
+
+        SoftwareKeyStoreProvider.reset();
+        EncryptionManager manager = encryptionManager(null);
+
+        assertEquals(0, SoftwareKeyStoreProvider.count(Operation.LOAD));
+        assertEquals(0, SoftwareKeyStoreProvider.count(Operation.LOOKUP));
+        assertArrayEquals(VALUE, manager.decrypt(manager.encrypt(VALUE)));
+    }
+
+    @Test
+    public void lazyKeysDeferTheLookups() throws Exception {
+        EncryptionManager manager = new EncryptionManager(mContext, mBackingStore, KEY_PREFIX, SEED, null, true);
+        assertEquals(0, SoftwareKeyStoreProvider.count(Operation.LOOKUP));
+
+        manager.encrypt(VALUE);
+        assertTrue(SoftwareKeyStoreProvider.count(Operation.LOOKUP) > 0);
+    }
+
+    @Test
+    public void transientLookupFailureIsTriedAgain() throws Exception {
+        EncryptionManager.EncryptedData encrypted = encryptionManager(null).encrypt(VALUE);
+        KeyStoreAccess.shared().invalidateAll();
+        SoftwareKeyStoreProvider.failNext(Operation.LOOKUP, Fault.KEYSTORE_EXCEPTION, 1);
+
+        EncryptionManager manager = encryptionManager(recordingNotifier(false));
+
+        assertEquals(1, mRecoveryErrors.size());
+        assertTrue(mRecoveryErrors.get(0) instanceof KeyStoreException);
+        assertEquals(1, SoftwareKeyStoreProvider.faults(Operation.LOOKUP));
+        //same key
+        assertArrayEquals(VALUE, manager.decrypt(encrypted));
+    }
+
+    @Test
+    public void unrecoverableEntryIsReplaced() throws Exception {
+        EncryptionManager.EncryptedData encrypted = encryptionManager(null).encrypt(VALUE);
+        KeyStoreAccess.shared().invalidateAll();
+        SoftwareKeyStoreProvider.reset();
+        SoftwareKeyStoreProvider.failNext(Operation.LOOKUP, Fault.UNRECOVERABLE_ENTRY, 1);
+
+        EncryptionManager manager = encryptionManager(recordingNotifier(true));
+
+        assertTrue(mRecoveryErrors.get(0) instanceof UnrecoverableEntryException);
+        assertEquals(1, SoftwareKeyStoreProvider.count(Operation.GENERATE));
+        assertArrayEquals(VALUE, manager.decrypt(manager.encrypt(VALUE)));
+
+        try {
+            manager.decrypt(encrypted);
+            fail("Decrypted with a replaced key");
+        } catch (BadPaddingException e) {
+            //expected
+        }
+    }
+
+    @Test(expected = UnrecoverableEntryException.class)
+    public void persistentLookupFailureFailsInit() throws Exception {
+        encryptionManager(null);
+        KeyStoreAccess.shared().invalidateAll();
+        SoftwareKeyStoreProvider.failNext(Operation.LOOKUP, Fault.UNRECOVERABLE_ENTRY, 2);
+
+        encryptionManager(recordingNotifier(false));
+    }
+
+    @Test
+    public void storeRetriesTransientCipherFailures() throws Exception {
+        SecuredPreferenceStore store = SharedTestStore.get();
+        RetryPolicy policy = new RetryPolicy.Builder().setMaxAttempts(3).setBackoff(0, 0, 1).build();
+        store.setRetryPolicy(policy);
+        store.edit().putString("retried", "value").commit();
+
+        SoftwareKeyStoreProvider.failNext(Operation.CIPHER, Fault.KEYSTORE_EXCEPTION, 2);
+
+        assertEquals("value", store.getString("retried", null));
+        assertEquals(2, policy.getRetryCount());
+        assertEquals(2, SoftwareKeyStoreProvider.faults(Operation.CIPHER));
+    }
+
+    @Test
+    public void cachedValuesSkipTheKeystore() throws Exception {
+        SecuredPreferenceStore store = SharedTestStore.get();
+        store.edit().putString("cached", "value").commit();
+        store.enableValueCache(16);
+
+        try {
+            assertEquals("value", store.getString("cached", null));
+
+            SoftwareKeyStoreProvider.reset();
+            for (int i = 0; i < 10; i++) {
+                assertEquals("value", store.getString("cached", null));
+            }
+
+            assertEquals(0, SoftwareKeyStoreProvider.count(Operation.CIPHER));
+        } finally {
+            store.disableValueCache();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Change subscriptions of the store, for its own commits and for writes made to its backing store by anyone else
+ */
+public class StoreChangeSubscriptionTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private SecuredPreferenceStore mStore;
+    private SecuredPreferenceStore.ChangeSubscription mSubscription;
+    private final List<Set<String>> mBatches = Collections.synchronizedList(new ArrayList<Set<String>>());
+    private final CountDownLatch mExternalDelivered = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        mStore = SharedTestStore.get();
+        mSubscription = mStore.subscribe(Arrays.asList("subscribed_a", "subscribed_b", "subscribed_external"), DIRECT,
+                new SecuredPreferenceStore.OnStoreChangeListener() {
+                    @Override
+                    public void onStoreChanged(Set<String> changedKeys) {
+                        mBatches.add(changedKeys);
+                        if (changedKeys.contains("subscribed_external")) mExternalDelivered.countDown();
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        mSubscription.unsubscribe();
+    }
+
+    @Test
+    public void ownCommitsAreDeliveredOnceAndExternalWritesAfterThem() throws Exception {
+        mStore.edit().putString("subscribed_a", "a").putInt("subscribed_b", 1).putString("not_subscribed", "c").commit();
+        assertEquals(1, mBatches.size());
+        assertEquals(new HashSet<>(Arrays.asList("subscribed_a", "subscribed_b")), mBatches.get(0));
+
+        //another writer of the same backing store
+        Object value = SharedTestStore.BACKING_STORE.get(EncryptionManager.getHashed("subscribed_a"));
+        SharedTestStore.BACKING_STORE.edit().put(EncryptionManager.getHashed("subscribed_external"), value).commit();
+
+        assertTrue(mExternalDelivered.await(5, TimeUnit.SECONDS));
+        //the commit isn't reported a second time
+        assertEquals(2, mBatches.size());
+        assertEquals(Collections.singleton("subscribed_external"), mBatches.get(1));
+    }
+}
@@ -0,0 +1,150 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Values are read back with the type they were stored with, only values stored before typed encoding are parsed
+ */
+public class TypedValuesTest {
+    private SecuredPreferenceStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mStore = SharedTestStore.get();
+    }
+
+    /**
+     * Writes the value in the {@code IV]data} format used before typed encoding
+     */
+    private void putLegacy(String key, String value) throws Exception {
+        EncryptionManager.EncryptedData encrypted = mStore.getEncryptionManager().encrypt(value.getBytes("UTF-8"));
+        String text = EncryptionManager.base64Encode(encrypted.IV) + EncryptedDataCodec.LEGACY_DELIMITER
+                + EncryptionManager.base64Encode(encrypted.encryptedData);
+
+        SharedTestStore.BACKING_STORE.edit().put(EncryptionManager.getHashed(key), text).commit();
+    }
+
+    @Test
+    public void typedStringsAreNotParsed() {
+        mStore.edit().putString("typed_text", "abc").putString("typed_number", "42").commit();
+
+        try {
+            mStore.getInt("typed_text", 0);
+            fail("Read a String as an int");
+        } catch (ClassCastException e) {
+            //expected
+        }
+
+        try {
+            mStore.getLong("typed_number", 0);
+            fail("Read a String as a long");
+        } catch (ClassCastException e) {
+            //expected
+        }
+
+        try {
+            mStore.getBooleans(Arrays.asList("typed_text"));
+            fail("Read a String as a boolean");
+        } catch (ClassCastException e) {
+            //expected
+        }
+
+        assertEquals("42", mStore.getString("typed_number", null));
+    }
+
+    @Test
+    public void typedValuesAreNotReadAsStrings() {
+        mStore.edit().putInt("typed_int", 7).commit();
+
+        try {
+            mStore.getString("typed_int", null);
+            fail("Read an int as a String");
+        } catch (ClassCastException e) {
+            //expected
+        }
+
+        assertEquals(7, mStore.getInt("typed_int", 0));
+    }
+
+    @Test
+    public void legacyValuesAreParsed() throws Exception {
+        putLegacy("legacy_int", "42");
+        putLegacy("legacy_float", "1.5");
+        putLegacy("legacy_boolean", "true");
+        putLegacy("legacy_text", "abc");
+
+        assertEquals(42, mStore.getInt("legacy_int", 0));
+        assertEquals(42L, mStore.getLong("legacy_int", 0));
+        assertEquals(1.5f, mStore.getFloat("legacy_float", 0), 0);
+        assertTrue(mStore.getBoolean("legacy_boolean", false));
+        assertEquals("42", mStore.getString("legacy_int", null));
+        assertEquals("abc", mStore.getString("legacy_text", null));
+
+        Map<String, Integer> ints = mStore.getInts(Arrays.asList("legacy_int"));
+        assertEquals(Integer.valueOf(42), ints.get("legacy_int"));
+    }
+
+    @Test
+    public void legacyValuesAreParsedAfterMigration() throws Exception {
+        JvmContext context = new JvmContext();
+
+        try {
+            //an older version kept its values in the default preference file, primitives as Strings
+            SharedPreferencesBackingStore legacyStore = new SharedPreferencesBackingStore(context.getSharedPreferences("SPS_file", 0));
+            EncryptionManager legacyCrypto = new EncryptionManager(context, legacyStore, null, null, null);
+            legacyStore.edit().put(EncryptionManager.getHashed("migrated_int"), legacyCrypto.encryptUntyped("42"))
+                    .put(EncryptionManager.getHashed("migrated_boolean"), legacyCrypto.encryptUntyped("true"))
+                    .commit();
+
+            new SecuredPreferenceStore.MigrationHelper(context, "test_store", null, SharedTestStore.SEED, SharedTestStore.BACKING_STORE)
+                    .migrate(9, 10);
+
+            assertEquals(42, mStore.getInt("migrated_int", 0));
+            assertEquals("42", mStore.getString("migrated_int", null));
+            assertTrue(mStore.getBoolean("migrated_boolean", false));
+            assertTrue(legacyStore.snapshot().isEmpty());
+        } finally {
+            context.delete();
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void legacyTextIsNotANumber() throws Exception {
+        putLegacy("legacy_not_a_number", "abc");
+
+        mStore.getInt("legacy_not_a_number", 0);
+    }
+
+    @Test
+    public void stringSetsAreOnlyReadFromSets() {
+        Set<String> values = new HashSet<>(Arrays.asList("a", "b"));
+        mStore.edit().putStringSet("typed_set", values).putString("typed_not_a_set", "a").commit();
+
+        assertEquals(values, mStore.getStringSet("typed_set", null));
+        assertEquals(Collections.singleton("default"), mStore.getStringSet("typed_missing_set", Collections.singleton("default")));
+
+        RetryPolicy policy = mStore.getRetryPolicy();
+        mStore.setRetryPolicy(new RetryPolicy.Builder().setMaxAttempts(3).setBackoff(0, 0, 1).build());
+
+        try {
+            mStore.getStringSet("typed_not_a_set", Collections.singleton("default"));
+            fail("Read a String as a Set");
+        } catch (ClassCastException e) {
+            //expected, without retrying
+            assertEquals(0, mStore.getRetryPolicy().getRetryCount());
+        } finally {
+            mStore.setRetryPolicy(policy);
+        }
+    }
+}
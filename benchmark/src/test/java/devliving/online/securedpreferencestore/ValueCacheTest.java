@@ -0,0 +1,85 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The decrypted value cache of the store is kept up to date by every kind of write
+ */
+public class ValueCacheTest {
+    private SecuredPreferenceStore mStore;
+    private DecryptedValueCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mStore = SharedTestStore.get();
+        mStore.enableValueCache(16);
+        mCache = mStore.getValueCache();
+    }
+
+    @After
+    public void tearDown() {
+        mStore.disableValueCache();
+    }
+
+    @Test
+    public void committedValuesAreCached() {
+        mStore.edit().putString("cache_commit", "first").commit();
+        assertEquals("first", mStore.getString("cache_commit", null));
+        assertEquals(1, mCache.hitCount());
+
+        mStore.edit().putString("cache_commit", "second").commit();
+        assertEquals("second", mStore.getString("cache_commit", null));
+        assertEquals(2, mCache.hitCount());
+        assertEquals(0, mCache.missCount());
+    }
+
+    @Test
+    public void appliedValuesAreCached() {
+        mStore.edit().putString("cache_apply", "first").apply();
+        assertEquals("first", mStore.getString("cache_apply", null));
+
+        mStore.edit().putString("cache_apply", "second").apply();
+        assertEquals("second", mStore.getString("cache_apply", null));
+        assertEquals(2, mCache.hitCount());
+    }
+
+    @Test
+    public void removedValuesAreNotReturned() {
+        mStore.edit().putString("cache_remove", "value").commit();
+        mStore.edit().remove("cache_remove").commit();
+
+        assertNull(mStore.getString("cache_remove", null));
+    }
+
+    @Test
+    public void clearEvictsEveryValue() {
+        mStore.edit().putString("cache_clear_1", "value").putString("cache_clear_2", "value").commit();
+        assertTrue(mCache.size() >= 2);
+
+        mStore.edit().clear().commit();
+
+        assertEquals(0, mCache.size());
+        assertNull(mStore.getString("cache_clear_1", null));
+        assertNull(mStore.getString("cache_clear_2", null));
+    }
+
+    @Test
+    public void directWritesToTheBackingStoreInvalidate() throws Exception {
+        mStore.edit().putString("cache_direct", "mine").putString("cache_other", "theirs").commit();
+        assertEquals("mine", mStore.getString("cache_direct", null));
+
+        //another writer of the same backing store
+        String hashedKey = EncryptionManager.getHashed("cache_direct");
+        Object theirs = SharedTestStore.BACKING_STORE.get(EncryptionManager.getHashed("cache_other"));
+        SharedTestStore.BACKING_STORE.edit().put(hashedKey, theirs).commit();
+
+        assertNull(mCache.getEncrypted(hashedKey));
+        assertEquals("theirs", mStore.getString("cache_direct", null));
+    }
+}
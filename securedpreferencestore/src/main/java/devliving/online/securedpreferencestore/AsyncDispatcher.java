@@ -0,0 +1,151 @@
+package devliving.online.securedpreferencestore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the asynchronous operations of a store on an executor.
+ * Operations on the same key run one after another in the order they were submitted, operations on different keys
+ * run in parallel. An operation touching every key (e.g a commit that clears the store) runs after everything
+ * submitted before it and before everything submitted after it.
+ * At most maxPending operations can be waiting or running, submitting more blocks the caller until one finishes.
+ */
+final class AsyncDispatcher {
+    private final Executor mExecutor;
+    private final Semaphore mPermits;
+    private final int mMaxPending;
+
+    //key -> last operation submitted for it that hasn't finished
+    private final Map<String, Operation<?>> mLastOperations = new HashMap<>();
+    private Operation<?> mBarrier;
+
+    AsyncDispatcher(Executor executor, int maxPending) {
+        if (maxPending < 1) throw new IllegalArgumentException("maxPending must be at least 1");
+
+        mExecutor = executor;
+        mMaxPending = maxPending;
+        mPermits = new Semaphore(maxPending);
+    }
+
+    int maxPending() {
+        return mMaxPending;
+    }
+
+    int pending() {
+        return mMaxPending - mPermits.availablePermits();
+    }
+
+    /**
+     * @param keys keys the operation reads or writes
+     * @param allKeys true if the operation may touch any key
+     * @param work the operation
+     * @return future of the operation, cancelled if the caller was interrupted while waiting for room in the queue
+     */
+    <T> StoreFuture<T> submit(Collection<String> keys, boolean allKeys, Callable<T> work) {
+        Operation<T> operation = new Operation<>(new StoreFuture<>(work), new ArrayList<>(new LinkedHashSet<>(keys)));
+
+        try {
+            mPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            operation.future.cancel(false);
+            return operation.future;
+        }
+
+        boolean ready;
+
+        synchronized (this) {
+            List<Operation<?>> predecessors = new ArrayList<>();
+            if (mBarrier != null) predecessors.add(mBarrier);
+
+            if (allKeys) {
+                predecessors.addAll(mLastOperations.values());
+                mLastOperations.clear();
+                mBarrier = operation;
+            } else {
+                for (String key : operation.keys) {
+                    Operation<?> last = mLastOperations.put(key, operation);
+                    if (last != null && !predecessors.contains(last)) predecessors.add(last);
+                }
+            }
+
+            for (Operation<?> predecessor : predecessors) {
+                predecessor.successors.add(operation);
+                operation.waitingFor++;
+            }
+
+            ready = operation.waitingFor == 0;
+        }
+
+        if (ready) dispatch(operation);
+        return operation.future;
+    }
+
+    private void dispatch(Operation<?> operation) {
+        try {
+            mExecutor.execute(operation);
+        } catch (RejectedExecutionException e) {
+            operation.run();
+        }
+    }
+
+    private void onFinished(Operation<?> operation) {
+        List<Operation<?>> ready = new ArrayList<>();
+
+        synchronized (this) {
+            for (String key : operation.keys) {
+                if (mLastOperations.get(key) == operation) mLastOperations.remove(key);
+            }
+
+            if (mBarrier == operation) mBarrier = null;
+
+            for (Operation<?> successor : operation.successors) {
+                if (--successor.waitingFor == 0) ready.add(successor);
+            }
+        }
+
+        mPermits.release();
+
+        for (Operation<?> successor : ready) {
+            dispatch(successor);
+        }
+    }
+
+    private class Operation<T> implements Runnable {
+        final StoreFuture<T> future;
+        final List<String> keys;
+
+        //guarded by the dispatcher
+        final List<Operation<?>> successors = new ArrayList<>();
+        int waitingFor = 0;
+
+        Operation(StoreFuture<T> future, List<String> keys) {
+            this.future = future;
+            this.keys = keys;
+        }
+
+        /**
+         * A cancelled operation still takes its turn so operations after it keep their order, it just doesn't do anything.
+         * The callbacks of the future run once the permit is released, so the ones that submit more operations
+         * from the worker thread don't wait for it
+         */
+        @Override
+        public void run() {
+            try {
+                future.runDeferringListeners();
+            } finally {
+                onFinished(this);
+            }
+
+            future.notifyListeners();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package devliving.online.securedpreferencestore;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+
+/**
+ * Storage the encrypted entries of a store are kept in. Keys are hashed and values encrypted before they get here,
+ * an engine only has to keep them. Values are Strings, String sets, or Integer, Long, Float and Boolean for the
+ * store's own bookkeeping.
+ * {@link SharedPreferencesBackingStore} is the default, {@link InMemoryBackingStore} keeps everything in memory.
+ */
+public interface BackingStore {
+    interface Listener {
+        /**
+         * @param key key that was changed or removed
+         */
+        void onChanged(@NonNull BackingStore store, @NonNull String key);
+    }
+
+    /**
+     * Changes applied together, like {@link android.content.SharedPreferences.Editor}
+     */
+    interface Batch {
+        /**
+         * @param value a String, String set, Integer, Long, Float or Boolean, null removes the key
+         */
+        Batch put(@NonNull String key, @Nullable Object value);
+
+        Batch remove(@NonNull String key);
+
+        /**
+         * Removes every entry, before the other changes of the batch are applied
+         */
+        Batch clear();
+
+        /**
+         * @return true if the changes were written to persistent storage
+         */
+        boolean commit();
+
+        /**
+         * Makes the changes visible right away and writes them in the background
+         */
+        void apply();
+    }
+
+    /**
+     * @return the value, null if there's none
+     */
+    @Nullable
+    Object get(@NonNull String key);
+
+    boolean contains(@NonNull String key);
+
+    /**
+     * @return copy of every entry
+     */
+    @NonNull
+    Map<String, ?> snapshot();
+
+    @NonNull
+    Batch edit();
+
+    /**
+     * @param listener listener notified of every changed key, held until it's unregistered
+     */
+    void registerListener(@NonNull Listener listener);
+
+    void unregisterListener(@NonNull Listener listener);
+}
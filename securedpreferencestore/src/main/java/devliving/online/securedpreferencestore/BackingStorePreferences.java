@@ -0,0 +1,181 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * {@link SharedPreferences} view of a {@link BackingStore}, for the APIs that hand the store's raw entries out as
+ * preferences, e.g. {@link RecoveryHandler#recover(Exception, java.security.KeyStore, java.util.List, SharedPreferences)}.
+ */
+final class BackingStorePreferences implements SharedPreferences {
+    private final BackingStore mStore;
+
+    //like the platform's preferences, listeners are weakly referenced
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners = new WeakHashMap<>();
+    private boolean mDispatcherRegistered = false;
+
+    private final BackingStore.Listener mDispatcher = new BackingStore.Listener() {
+        @Override
+        public void onChanged(@NonNull BackingStore store, @NonNull String key) {
+            OnSharedPreferenceChangeListener[] listeners;
+
+            synchronized (mListeners) {
+                listeners = mListeners.keySet().toArray(new OnSharedPreferenceChangeListener[0]);
+            }
+
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                listener.onSharedPreferenceChanged(BackingStorePreferences.this, key);
+            }
+        }
+    };
+
+    BackingStorePreferences(BackingStore store) {
+        mStore = store;
+    }
+
+    /**
+     * @return preferences backed by the store, the preferences themselves if it wraps them
+     */
+    static SharedPreferences of(BackingStore store) {
+        return store instanceof SharedPreferencesBackingStore ? ((SharedPreferencesBackingStore) store).getPreferences()
+                : new BackingStorePreferences(store);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return mStore.snapshot();
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        Object value = mStore.get(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    @Nullable
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        Object value = mStore.get(key);
+        return value != null ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = mStore.get(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = mStore.get(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Object value = mStore.get(key);
+        return value != null ? (Float) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = mStore.get(key);
+        return value != null ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return mStore.contains(key);
+    }
+
+    @Override
+    public Editor edit() {
+        final BackingStore.Batch batch = mStore.edit();
+
+        return new Editor() {
+            @Override
+            public Editor putString(String key, @Nullable String value) {
+                batch.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putStringSet(String key, @Nullable Set<String> values) {
+                batch.put(key, values);
+                return this;
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                batch.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                batch.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                batch.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                batch.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                batch.remove(key);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                batch.clear();
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                return batch.commit();
+            }
+
+            @Override
+            public void apply() {
+                batch.apply();
+            }
+        };
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.put(listener, Boolean.TRUE);
+
+            if (!mDispatcherRegistered) {
+                mStore.registerListener(mDispatcher);
+                mDispatcherRegistered = true;
+            }
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+}
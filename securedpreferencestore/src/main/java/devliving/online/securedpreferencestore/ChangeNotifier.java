@@ -0,0 +1,206 @@
+package devliving.online.securedpreferencestore;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import devliving.online.securedpreferencestore.SecuredPreferenceStore.ChangeSubscription;
+import devliving.online.securedpreferencestore.SecuredPreferenceStore.OnStoreChangeListener;
+
+/**
+ * Delivers changes of a store to its subscribers with plain key names.
+ * Stored keys are hashed, so only keys that were subscribed to or added to a group can be mapped back.
+ * A commit made through the store is delivered as one batch per subscriber. Changes made to the backing
+ * store by anyone else are collected as they're reported and delivered together.
+ */
+final class ChangeNotifier {
+    //marks a key removed by the store itself
+    private static final Object REMOVED = new Object();
+
+    private final BackingStore mStore;
+    private final Executor mExternalFlushExecutor;
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    //group -> plain keys
+    private final ConcurrentHashMap<String, Set<String>> mGroups = new ConcurrentHashMap<>();
+    //hashed key -> plain key, for every key subscribed to or in a group
+    private final ConcurrentHashMap<String, String> mPlainKeys = new ConcurrentHashMap<>();
+    //hashed key -> encrypted value written by the store, so its own writes aren't reported again as external changes
+    private final ConcurrentHashMap<String, Object> mOwnWrites = new ConcurrentHashMap<>();
+
+    private final Set<String> mExternalChanges = new HashSet<>();
+    private boolean mExternalFlushScheduled = false;
+
+    private final BackingStore.Listener mExternalListener = new BackingStore.Listener() {
+        @Override
+        public void onChanged(@NonNull BackingStore store, @NonNull String hashedKey) {
+            onExternalChange(hashedKey);
+        }
+    };
+
+    private final Runnable mExternalFlush = new Runnable() {
+        @Override
+        public void run() {
+            Set<String> changed;
+
+            synchronized (mExternalChanges) {
+                changed = new HashSet<>(mExternalChanges);
+                mExternalChanges.clear();
+                mExternalFlushScheduled = false;
+            }
+
+            dispatch(changed);
+        }
+    };
+
+    ChangeNotifier(BackingStore store, Executor externalFlushExecutor) {
+        mStore = store;
+        mExternalFlushExecutor = externalFlushExecutor;
+    }
+
+    boolean hasSubscribers() {
+        return !mSubscriptions.isEmpty();
+    }
+
+    void defineGroup(String group, Collection<String> keys) throws Exception {
+        registerKeys(keys);
+        mGroups.put(group, Collections.unmodifiableSet(new HashSet<>(keys)));
+    }
+
+    ChangeSubscription subscribe(Collection<String> keys, Executor executor, OnStoreChangeListener listener) throws Exception {
+        registerKeys(keys);
+        return add(new Subscription(Collections.unmodifiableSet(new HashSet<>(keys)), null, executor, listener));
+    }
+
+    ChangeSubscription subscribeToGroup(String group, Executor executor, OnStoreChangeListener listener) {
+        return add(new Subscription(null, group, executor, listener));
+    }
+
+    private ChangeSubscription add(Subscription subscription) {
+        synchronized (mSubscriptions) {
+            if (mSubscriptions.isEmpty()) mStore.registerListener(mExternalListener);
+            mSubscriptions.add(subscription);
+        }
+
+        return subscription;
+    }
+
+    private void remove(Subscription subscription) {
+        synchronized (mSubscriptions) {
+            if (mSubscriptions.remove(subscription) && mSubscriptions.isEmpty()) {
+                mStore.unregisterListener(mExternalListener);
+                mOwnWrites.clear();
+            }
+        }
+    }
+
+    private void registerKeys(Collection<String> keys) throws Exception {
+        for (String key : keys) {
+            mPlainKeys.put(EncryptionManager.getHashed(key), key);
+        }
+    }
+
+    /**
+     * Must be called before the changes are written to the backing store
+     * @param changes hashed key -> new encrypted value, null if the key is removed
+     */
+    void onBeforeCommit(Map<String, Object> changes) {
+        if (!hasSubscribers()) return;
+
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            mOwnWrites.put(change.getKey(), change.getValue() != null ? change.getValue() : REMOVED);
+        }
+    }
+
+    /**
+     * @param hashedKeys keys changed by one commit of the store
+     */
+    void onCommitted(Collection<String> hashedKeys) {
+        if (hasSubscribers()) dispatch(hashedKeys);
+    }
+
+    private void onExternalChange(String hashedKey) {
+        if (hashedKey == null || !mPlainKeys.containsKey(hashedKey) || isOwnWrite(hashedKey)) return;
+
+        synchronized (mExternalChanges) {
+            mExternalChanges.add(hashedKey);
+            if (mExternalFlushScheduled) return;
+            mExternalFlushScheduled = true;
+        }
+
+        mExternalFlushExecutor.execute(mExternalFlush);
+    }
+
+    private boolean isOwnWrite(String hashedKey) {
+        Object written = mOwnWrites.get(hashedKey);
+        if (written == null) return false;
+
+        boolean own = written == REMOVED ? !mStore.contains(hashedKey) : written.equals(mStore.get(hashedKey));
+
+        if (own) mOwnWrites.remove(hashedKey, written);
+        return own;
+    }
+
+    private void dispatch(Collection<String> hashedKeys) {
+        Set<String> changed = new HashSet<>(hashedKeys.size());
+
+        for (String hashedKey : hashedKeys) {
+            String key = mPlainKeys.get(hashedKey);
+            if (key != null) changed.add(key);
+        }
+
+        if (changed.isEmpty()) return;
+
+        for (Subscription subscription : mSubscriptions) {
+            subscription.deliver(changed);
+        }
+    }
+
+    private class Subscription implements ChangeSubscription {
+        private final Set<String> mKeys;
+        private final String mGroup;
+        private final Executor mExecutor;
+        private final OnStoreChangeListener mListener;
+
+        Subscription(Set<String> keys, String group, Executor executor, OnStoreChangeListener listener) {
+            mKeys = keys;
+            mGroup = group;
+            mExecutor = executor;
+            mListener = listener;
+        }
+
+        void deliver(Set<String> changed) {
+            Set<String> keys = mKeys != null ? mKeys : mGroups.get(mGroup);
+            if (keys == null) return;
+
+            final Set<String> matching = new HashSet<>();
+            for (String key : changed) {
+                if (keys.contains(key)) matching.add(key);
+            }
+
+            if (matching.isEmpty()) return;
+
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    //it might have been cancelled while this was queued
+                    if (mSubscriptions.contains(Subscription.this)) {
+                        mListener.onStoreChanged(Collections.unmodifiableSet(matching));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void unsubscribe() {
+            remove(this);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package devliving.online.securedpreferencestore;
+
+import android.os.CancellationSignal;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import devliving.online.securedpreferencestore.EncryptionManager.ProgressListener;
+
+/**
+ * Encrypts and decrypts files in the {@link SegmentedFileCipher} format between channels. Segments go through
+ * direct buffers allocated once per file, input from a {@link FileChannel} larger than {@link #MAP_THRESHOLD}
+ * is memory mapped instead of being read into a buffer.
+ */
+final class ChannelFileCipher {
+    static final long MAP_THRESHOLD = 4 * 1024 * 1024;
+    private static final long MAP_WINDOW = 64 * 1024 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SegmentedFileCipher mCipher;
+    private final ProgressListener mListener;
+    private final CancellationSignal mCancellationSignal;
+
+    ChannelFileCipher(SegmentedFileCipher cipher, @Nullable ProgressListener listener, @Nullable CancellationSignal cancellationSignal) {
+        mCipher = cipher;
+        mListener = listener;
+        mCancellationSignal = cancellationSignal;
+    }
+
+    /**
+     * Doesn't close the channels
+     */
+    void encrypt(ReadableByteChannel in, WritableByteChannel out, int segmentSize) throws IOException, GeneralSecurityException {
+        byte[] header = mCipher.newHeader(segmentSize);
+        writeFully(out, ByteBuffer.wrap(header));
+
+        ByteBuffer sealed = ByteBuffer.allocateDirect(SegmentedFileCipher.sealedLength(mCipher.suite(), segmentSize));
+        process(in, segmentSize, header, sealed, out, true);
+    }
+
+    /**
+     * Doesn't close the channels. Plain text is written as soon as a segment is verified,
+     * if an exception is thrown the output written so far must be discarded.
+     * @param header header of the file, already read from the channel
+     * @throws IOException if the file is invalid or a segment fails verification
+     */
+    void decrypt(byte[] header, ReadableByteChannel in, WritableByteChannel out) throws IOException, GeneralSecurityException {
+        int segmentSize = mCipher.checkHeader(header);
+        int sealedSize = SegmentedFileCipher.sealedLength(mCipher.suite(), segmentSize);
+
+        process(in, sealedSize, header, ByteBuffer.allocateDirect(sealedSize), out, false);
+    }
+
+    private void process(ReadableByteChannel in, int chunkSize, byte[] header, ByteBuffer result, WritableByteChannel out,
+                         boolean encrypt) throws IOException, GeneralSecurityException {
+        long total = -1;
+        Source source;
+
+        if (in instanceof FileChannel) {
+            FileChannel file = (FileChannel) in;
+            total = file.size() - file.position();
+            source = total >= MAP_THRESHOLD ? new MappedSource(file, total) : new ChannelSource(in, chunkSize);
+        } else {
+            source = new ChannelSource(in, chunkSize);
+        }
+
+        long processed = 0;
+        ByteBuffer current = source.next(chunkSize);
+        int segment = 0;
+
+        while (true) {
+            if (mCancellationSignal != null) mCancellationSignal.throwIfCanceled();
+
+            ByteBuffer next = current.remaining() == chunkSize ? source.next(chunkSize) : EMPTY;
+            boolean last = !next.hasRemaining();
+            int length = current.remaining();
+
+            result.clear();
+            if (encrypt) mCipher.seal(header, segment, last, current, result);
+            else mCipher.open(header, segment, last, current, result);
+            result.flip();
+            writeFully(out, result);
+
+            processed += length;
+            if (mListener != null) mListener.onProgress(processed, total);
+            if (last) break;
+
+            current = next;
+            segment = SegmentedFileCipher.nextSegment(segment);
+        }
+
+        source.finish();
+    }
+
+    static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * @return number of bytes read into the buffer, less than it has room for only at the end of the channel
+     */
+    static int readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        int total = 0;
+
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer);
+            if (read == -1) break;
+            total += read;
+        }
+
+        return total;
+    }
+
+    private interface Source {
+        /**
+         * @return the next chunk of at most length bytes, fewer only at the end of the input.
+         * A chunk stays valid until next is called twice more
+         */
+        ByteBuffer next(int length) throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    private static class ChannelSource implements Source {
+        private final ReadableByteChannel mChannel;
+        private final ByteBuffer[] mBuffers;
+        private int mCurrent = 0;
+
+        ChannelSource(ReadableByteChannel channel, int chunkSize) {
+            mChannel = channel;
+            mBuffers = new ByteBuffer[]{ByteBuffer.allocateDirect(chunkSize), ByteBuffer.allocateDirect(chunkSize)};
+        }
+
+        @Override
+        public ByteBuffer next(int length) throws IOException {
+            ByteBuffer buffer = mBuffers[mCurrent];
+            mCurrent = 1 - mCurrent;
+
+            buffer.clear();
+            buffer.limit(length);
+            readFully(mChannel, buffer);
+            buffer.flip();
+            return buffer;
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+
+    /**
+     * Maps the file a window at a time, chunks are slices of the mapped window
+     */
+    private static class MappedSource implements Source {
+        private final FileChannel mChannel;
+        private final long mStart;
+        private final long mSize;
+        private long mOffset = 0;
+
+        private ByteBuffer mWindow;
+        private long mWindowOffset;
+
+        MappedSource(FileChannel channel, long size) throws IOException {
+            mChannel = channel;
+            mStart = channel.position();
+            mSize = size;
+        }
+
+        @Override
+        public ByteBuffer next(int length) throws IOException {
+            int chunk = (int) Math.min(length, mSize - mOffset);
+            if (chunk == 0) return EMPTY;
+
+            if (mWindow == null || mOffset + chunk > mWindowOffset + mWindow.capacity()) {
+                //whole chunks per window so a chunk never spans two of them
+                long windowSize = Math.max(length, MAP_WINDOW / length * length);
+                mWindowOffset = mOffset;
+                mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, mStart + mOffset, Math.min(windowSize, mSize - mOffset));
+            }
+
+            ByteBuffer slice = mWindow.duplicate();
+            slice.position((int) (mOffset - mWindowOffset));
+            slice.limit(slice.position() + chunk);
+            mOffset += chunk;
+
+            return slice.slice();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            //mapping doesn't move the channel's position, leave it where reading would have
+            mChannel.position(mStart + mOffset);
+        }
+    }
+}
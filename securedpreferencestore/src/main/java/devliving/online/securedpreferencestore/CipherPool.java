@@ -0,0 +1,130 @@
+package devliving.online.securedpreferencestore;
+
+import android.support.annotation.Nullable;
+
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.HashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Keeps one {@link Cipher} per transformation and one {@link Mac} per algorithm for each thread, so the
+ * provider lookup of {@code getInstance} is done once per thread instead of once per value.
+ * Pooled instances are never shared between threads, callers still have to init a Cipher for every operation.
+ */
+final class CipherPool {
+    private final ThreadLocal<HashMap<String, Cipher>> mCiphers = new ThreadLocal<HashMap<String, Cipher>>() {
+        @Override
+        protected HashMap<String, Cipher> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    private final ThreadLocal<HashMap<String, PooledMac>> mMacs = new ThreadLocal<HashMap<String, PooledMac>>() {
+        @Override
+        protected HashMap<String, PooledMac> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    /**
+     * @param transformation cipher transformation
+     * @param provider provider name
+     * @param key the key the cipher is going to be used with, a cipher that picked its provider for one type of key
+     *            can't always be used with another type of key
+     * @return a cipher for the calling thread, it must be initialised before use
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchProviderException
+     */
+    Cipher getCipher(String transformation, String provider, @Nullable Key key) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException {
+        String poolKey = poolKey(transformation, provider, key);
+        HashMap<String, Cipher> ciphers = mCiphers.get();
+        Cipher cipher = ciphers.get(poolKey);
+
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation, provider);
+            ciphers.put(poolKey, cipher);
+        }
+
+        return cipher;
+    }
+
+    /**
+     * @see #getCipher(String, String, Key)
+     */
+    Cipher getCipher(String transformation, @Nullable Key key) throws NoSuchPaddingException, NoSuchAlgorithmException {
+        String poolKey = poolKey(transformation, null, key);
+        HashMap<String, Cipher> ciphers = mCiphers.get();
+        Cipher cipher = ciphers.get(poolKey);
+
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            ciphers.put(poolKey, cipher);
+        }
+
+        return cipher;
+    }
+
+    /**
+     * @param keyType class of the keys the cipher is going to be used with
+     * @see #getCipher(String, String, Key)
+     */
+    Cipher getCipher(String transformation, Class<? extends Key> keyType) throws NoSuchPaddingException, NoSuchAlgorithmException {
+        String poolKey = transformation + "/" + null + "/" + keyType.getName();
+        HashMap<String, Cipher> ciphers = mCiphers.get();
+        Cipher cipher = ciphers.get(poolKey);
+
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            ciphers.put(poolKey, cipher);
+        }
+
+        return cipher;
+    }
+
+    private static String poolKey(String transformation, @Nullable String provider, @Nullable Key key) {
+        return transformation + "/" + provider + "/" + (key != null ? key.getClass().getName() : null);
+    }
+
+    /**
+     * @param algorithm mac algorithm
+     * @param key mac key
+     * @return a mac for the calling thread initialised with the key and ready for use
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+    Mac getMac(String algorithm, Key key) throws NoSuchAlgorithmException, InvalidKeyException {
+        HashMap<String, PooledMac> macs = mMacs.get();
+        PooledMac pooled = macs.get(algorithm);
+
+        if (pooled == null) {
+            pooled = new PooledMac(Mac.getInstance(algorithm));
+            macs.put(algorithm, pooled);
+        }
+
+        if (pooled.key != key) {
+            pooled.mac.init(key);
+            pooled.key = key;
+        } else {
+            //discard anything left over from a failed operation
+            pooled.mac.reset();
+        }
+
+        return pooled.mac;
+    }
+
+    private static class PooledMac {
+        final Mac mac;
+        Key key;
+
+        PooledMac(Mac mac) {
+            this.mac = mac;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package devliving.online.securedpreferencestore;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded LRU cache of decrypted values, keyed by the hashed key.
+ * Every entry remembers the encrypted value it was decrypted from, a lookup only hits when the
+ * encrypted value currently in the backing store is still the same, so a stale entry can never be returned.
+ */
+public class DecryptedValueCache {
+    private final int mMaxSize;
+    private final LinkedHashMap<String, CachedValue> mEntries;
+
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * @param maxSize maximum number of decrypted values to keep in memory
+     */
+    public DecryptedValueCache(int maxSize) {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize must be greater than 0");
+
+        mMaxSize = maxSize;
+        mEntries = new LinkedHashMap<String, CachedValue>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+                return size() > mMaxSize;
+            }
+        };
+    }
+
+    /**
+     * @param hashedKey hashed key
+     * @param encrypted encrypted value currently stored for the key
+     * @return the decrypted value or null if there's no valid entry for the key
+     */
+    synchronized Object get(String hashedKey, Object encrypted) {
+        CachedValue entry = mEntries.get(hashedKey);
+
+        if (entry != null && entry.matches(encrypted)) {
+            mHitCount++;
+            return entry.value;
+        }
+
+        if (entry != null) mEntries.remove(hashedKey);
+        mMissCount++;
+        return null;
+    }
+
+    synchronized void put(String hashedKey, Object encrypted, Object value) {
+        if (encrypted == null || value == null) {
+            mEntries.remove(hashedKey);
+        } else {
+            mEntries.put(hashedKey, new CachedValue(encrypted, value));
+        }
+    }
+
+    synchronized void remove(String hashedKey) {
+        mEntries.remove(hashedKey);
+    }
+
+    /**
+     * @param hashedKey hashed key
+     * @return the encrypted value the cached entry was created from, null if there's no entry
+     */
+    synchronized Object getEncrypted(String hashedKey) {
+        CachedValue entry = mEntries.get(hashedKey);
+        return entry != null ? entry.encrypted : null;
+    }
+
+    /**
+     * Drops all the decrypted values, you may call it when the app goes to the background
+     */
+    public synchronized void evictAll() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized long hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long missCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DecryptedValueCache[maxSize=%d, size=%d, hits=%d, misses=%d]",
+                mMaxSize, mEntries.size(), mHitCount, mMissCount);
+    }
+
+    private static class CachedValue {
+        final Object encrypted;
+        final Object value;
+
+        CachedValue(Object encrypted, Object value) {
+            this.encrypted = encrypted;
+            this.value = value;
+        }
+
+        boolean matches(Object currentEncrypted) {
+            return encrypted == currentEncrypted || encrypted.equals(currentEncrypted);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package devliving.online.securedpreferencestore;
+
+import devliving.online.securedpreferencestore.EncryptionManager.EncryptedData;
+
+/**
+ * Binary envelope of an encrypted value, stored base64 encoded in a single piece:
+ * <pre>
+ * [header: version << 4 | suite][IV][cipher text][mac, only for {@link #SUITE_AES_CBC_HMAC}]
+ * </pre>
+ * IV and mac lengths are fixed by the suite so no separators or length fields are needed.
+ * Values written by older versions ({@code base64(IV)]base64(data)]base64(mac)}) are recognised by the delimiter,
+ * which is never part of a base64 string.
+ */
+final class EncryptedDataCodec {
+    static final int VERSION_1 = 1;
+    //plain text is tagged with its type, see TypedValueCodec
+    static final int VERSION_2 = 2;
+
+    static final int SUITE_AES_GCM = 1;
+    static final int SUITE_AES_CBC_HMAC = 2;
+    //AES-GCM with the software data key wrapped by the keystore key, see WrappedDataKey
+    static final int SUITE_AES_GCM_DATA_KEY = 3;
+
+    static final int GCM_IV_LENGTH = 12;
+    static final int CBC_IV_LENGTH = 16;
+    static final int MAC_LENGTH = 32;
+
+    static final char LEGACY_DELIMITER = ']';
+
+    private static final int HEADER_LENGTH = 1;
+
+    private EncryptedDataCodec() {
+    }
+
+    static boolean isLegacy(String text) {
+        return text.indexOf(LEGACY_DELIMITER) >= 0;
+    }
+
+    /**
+     * @param version envelope version
+     * @param suite cipher suite the data was encrypted with
+     * @param data encrypted data, the IV and mac lengths must match the suite
+     * @return the envelope
+     */
+    static byte[] pack(int version, int suite, EncryptedData data) {
+        int ivLength = ivLength(suite);
+        int macLength = macLength(suite);
+
+        if (data.IV == null || data.IV.length != ivLength) {
+            throw new IllegalArgumentException("Invalid IV for suite " + suite);
+        }
+
+        if (macLength > 0 && (data.mac == null || data.mac.length != macLength)) {
+            throw new IllegalArgumentException("Invalid mac for suite " + suite);
+        }
+
+        byte[] envelope = new byte[HEADER_LENGTH + ivLength + data.encryptedData.length + macLength];
+        envelope[0] = header(version, suite);
+
+        int offset = HEADER_LENGTH;
+        System.arraycopy(data.IV, 0, envelope, offset, ivLength);
+        offset += ivLength;
+        System.arraycopy(data.encryptedData, 0, envelope, offset, data.encryptedData.length);
+        offset += data.encryptedData.length;
+
+        if (macLength > 0) {
+            System.arraycopy(data.mac, 0, envelope, offset, macLength);
+        }
+
+        return envelope;
+    }
+
+    /**
+     * @param envelope an envelope created by {@link #pack(int, int, EncryptedData)}
+     * @return IV, cipher text and mac
+     * @throws IllegalArgumentException if the envelope is malformed or of an unknown version/suite
+     */
+    static EncryptedData unpack(byte[] envelope) {
+        if (envelope == null || envelope.length < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Empty envelope");
+        }
+
+        int version = versionOf(envelope);
+        if (version < VERSION_1 || version > EncryptionManager.ENVELOPE_VERSION) {
+            throw new IllegalArgumentException("Unsupported envelope version " + version);
+        }
+
+        int suite = suiteOf(envelope);
+        int ivLength = ivLength(suite);
+        int macLength = macLength(suite);
+        int dataLength = envelope.length - HEADER_LENGTH - ivLength - macLength;
+
+        if (dataLength <= 0) {
+            throw new IllegalArgumentException("Truncated envelope");
+        }
+
+        EncryptedData result = new EncryptedData();
+        result.suite = suite;
+        result.IV = copyOfRange(envelope, HEADER_LENGTH, ivLength);
+        result.encryptedData = copyOfRange(envelope, HEADER_LENGTH + ivLength, dataLength);
+
+        if (macLength > 0) {
+            result.mac = copyOfRange(envelope, envelope.length - macLength, macLength);
+        }
+
+        return result;
+    }
+
+    static int versionOf(byte[] envelope) {
+        return (envelope[0] >>> 4) & 0x0F;
+    }
+
+    static int suiteOf(byte[] envelope) {
+        return envelope[0] & 0x0F;
+    }
+
+    private static byte header(int version, int suite) {
+        return (byte) ((version << 4) | suite);
+    }
+
+    private static int ivLength(int suite) {
+        switch (suite) {
+            case SUITE_AES_GCM:
+            case SUITE_AES_GCM_DATA_KEY:
+                return GCM_IV_LENGTH;
+            case SUITE_AES_CBC_HMAC:
+                return CBC_IV_LENGTH;
+            default:
+                throw new IllegalArgumentException("Unsupported cipher suite " + suite);
+        }
+    }
+
+    private static int macLength(int suite) {
+        return suite == SUITE_AES_CBC_HMAC ? MAC_LENGTH : 0;
+    }
+
+    private static byte[] copyOfRange(byte[] source, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(source, offset, copy, 0, length);
+        return copy;
+    }
+}
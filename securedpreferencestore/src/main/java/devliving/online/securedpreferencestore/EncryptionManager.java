@@ -4,6 +4,7 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Build;
+import android.os.CancellationSignal;
 import android.security.KeyPairGeneratorSpec;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
@@ -13,11 +14,17 @@ import android.util.Base64;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
@@ -25,7 +32,6 @@ import java.security.InvalidKeyException;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
@@ -33,15 +39,15 @@ import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.Mac;
@@ -68,6 +74,10 @@ public class EncryptionManager {
 
     private final static String DEFAULT_CHARSET = "UTF-8";
 
+    private final static int HASHED_KEY_MEMO_SIZE = 512;
+    private final static KeyHasher KEY_HASHER = new KeyHasher(HASHED_KEY_MEMO_SIZE);
+    private final static CipherPool CIPHER_POOL = new CipherPool();
+
     private final String KEYSTORE_PROVIDER = "AndroidKeyStore";
     private final String SSL_PROVIDER = "AndroidOpenSSL";
     private final String BOUNCY_CASTLE_PROVIDER = "BC";
@@ -77,15 +87,17 @@ public class EncryptionManager {
     private final String RSA_KEY_ALIAS;
     protected final String AES_KEY_ALIAS;
     protected final String MAC_KEY_ALIAS;
+    protected final String DATA_KEY_ALIAS;
 
     private final static String RSA_KEY_ALIAS_NAME = "rsa_key";
     private final static String AES_KEY_ALIAS_NAME = "aes_key";
     private final static String MAC_KEY_ALIAS_NAME = "mac_key";
+    private final static String DATA_KEY_ALIAS_NAME = "data_key";
 
     protected static final String OVERRIDING_KEY_ALIAS_PREFIX_NAME = "OverridingAlias";
     protected final static String DEFAULT_KEY_ALIAS_PREFIX = "sps";
 
-    private final String DELIMITER = "]";
+    static final int ENVELOPE_VERSION = EncryptedDataCodec.VERSION_2;
 
     private static final String KEY_ALGORITHM_AES = "AES";
     private static final String KEY_ALGORITHM_RSA = "RSA";
@@ -113,19 +125,33 @@ public class EncryptionManager {
     protected final String IS_COMPAT_MODE_KEY_ALIAS;
     private final static String IS_COMPAT_MODE_KEY_ALIAS_NAME = "data_in_compat";
 
+    private final KeyStoreAccess mKeyStoreAccess = KeyStoreAccess.shared();
     private KeyStore mStore;
-    private SecretKey aesKey;
-    private SecretKey macKey;
+    //keys can be replaced by a recovery while other threads are using them
+    private volatile SecretKey aesKey;
+    private volatile SecretKey macKey;
+    private volatile boolean mKeysLoaded = false;
+    private volatile long mKeySetupMillis = -1;
 
-    private RSAPublicKey publicKey;
-    private RSAPrivateKey privateKey;
+    private volatile RSAPublicKey publicKey;
+    private volatile RSAPrivateKey privateKey;
 
     private String mKeyAliasPrefix;
 
     private boolean isCompatMode = false;
 
+    private volatile WrappedDataKey mDataKey;
+    private volatile boolean mDataKeyEnabled = false;
+    private volatile long mDataKeyIdleTimeout = 0;
+
+    private NonceGenerator mNonceGenerator = NonceGenerator.getDefault();
+    //enough to keep every core busy while the calling thread reads and writes
+    private static final int DEFAULT_MAX_IN_FLIGHT_SEGMENTS = 2 * StoreExecutors.PARALLELISM;
+    private volatile int mFileSegmentSize = SegmentedFileCipher.DEFAULT_SEGMENT_SIZE;
+    private volatile int mFileBufferSize = 4096;
+
     private Context mContext;
-    SharedPreferences mPrefs;
+    BackingStore mBackingStore;
 
     KeyStoreRecoveryNotifier mRecoveryHandler;
 
@@ -177,38 +203,118 @@ public class EncryptionManager {
             NoSuchProviderException, NoSuchPaddingException, CertificateException, KeyStoreException,
             UnrecoverableEntryException, InvalidKeyException, IllegalStateException {
 
+        this(context, new SharedPreferencesBackingStore(prefStore), keyAliasPrefix, bitShiftingKey, recoveryHandler);
+    }
+
+    /**
+     * @param store backing store for storing information
+     * @see #EncryptionManager(Context, SharedPreferences, String, byte[], KeyStoreRecoveryNotifier)
+     */
+    public EncryptionManager(Context context, BackingStore store, @Nullable String keyAliasPrefix,
+                             @Nullable byte[] bitShiftingKey, KeyStoreRecoveryNotifier recoveryHandler)
+            throws IOException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            NoSuchProviderException, NoSuchPaddingException, CertificateException, KeyStoreException,
+            UnrecoverableEntryException, InvalidKeyException, IllegalStateException {
+
+        this(context, store, keyAliasPrefix, bitShiftingKey, recoveryHandler, false);
+    }
+
+    /**
+     * @param lazyKeys true to generate or load the keys the first time they're needed instead of right away,
+     *                 errors are then thrown by the first operation that needs a key
+     * @see #EncryptionManager(Context, BackingStore, String, byte[], KeyStoreRecoveryNotifier)
+     */
+    EncryptionManager(Context context, BackingStore store, @Nullable String keyAliasPrefix,
+                      @Nullable byte[] bitShiftingKey, KeyStoreRecoveryNotifier recoveryHandler, boolean lazyKeys)
+            throws IOException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            NoSuchProviderException, NoSuchPaddingException, CertificateException, KeyStoreException,
+            UnrecoverableEntryException, InvalidKeyException, IllegalStateException {
+
         SHIFTING_KEY = bitShiftingKey;
 
-        keyAliasPrefix = prefStore.getString(getHashed(OVERRIDING_KEY_ALIAS_PREFIX_NAME), keyAliasPrefix);
+        String overridingPrefix = (String) store.get(getHashed(OVERRIDING_KEY_ALIAS_PREFIX_NAME));
+        if (overridingPrefix != null) keyAliasPrefix = overridingPrefix;
         mKeyAliasPrefix = keyAliasPrefix != null ? keyAliasPrefix : DEFAULT_KEY_ALIAS_PREFIX;
         IS_COMPAT_MODE_KEY_ALIAS = String.format("%s_%s", mKeyAliasPrefix, IS_COMPAT_MODE_KEY_ALIAS_NAME);
         RSA_KEY_ALIAS = String.format("%s_%s", mKeyAliasPrefix, RSA_KEY_ALIAS_NAME);
         AES_KEY_ALIAS = String.format("%s_%s", mKeyAliasPrefix, AES_KEY_ALIAS_NAME);
         MAC_KEY_ALIAS = String.format("%s_%s", mKeyAliasPrefix, MAC_KEY_ALIAS_NAME);
+        DATA_KEY_ALIAS = String.format("%s_%s", mKeyAliasPrefix, DATA_KEY_ALIAS_NAME);
 
         String isCompatKey = getHashed(IS_COMPAT_MODE_KEY_ALIAS);
-        isCompatMode = prefStore.getBoolean(isCompatKey, Build.VERSION.SDK_INT < Build.VERSION_CODES.M);
+        Boolean compat = (Boolean) store.get(isCompatKey);
+        isCompatMode = compat != null ? compat : Build.VERSION.SDK_INT < Build.VERSION_CODES.M;
         mRecoveryHandler = recoveryHandler;
 
         mContext = context;
-        mPrefs = prefStore;
+        mBackingStore = store;
+
+        if (!lazyKeys) loadKeys();
+    }
+
+    /**
+     * Generates or loads the keys, recovering once if that fails
+     */
+    private synchronized void loadKeys() throws IOException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            NoSuchProviderException, NoSuchPaddingException, CertificateException, KeyStoreException,
+            UnrecoverableEntryException, InvalidKeyException {
+        long start = System.nanoTime();
 
         loadKeyStore();
 
         boolean tryAgain = false;
 
         try {
-            setup(context, prefStore, bitShiftingKey);
+            setup(mContext, mBackingStore, SHIFTING_KEY);
         } catch (Exception ex){
             if(isRecoverableError(ex)) tryAgain = tryRecovery(ex);
             else throw ex;
         }
 
         if(tryAgain){
-            setup(context, prefStore, bitShiftingKey);
+            setup(mContext, mBackingStore, SHIFTING_KEY);
+        }
+
+        mKeySetupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Loads the keys of a manager created with lazy keys the first time they're needed
+     * @throws InvalidKeyException if the keys can't be generated or loaded
+     */
+    private void ensureKeys() throws InvalidKeyException {
+        if (mKeysLoaded) return;
+
+        synchronized (this) {
+            if (mKeysLoaded) return;
+
+            try {
+                loadKeys();
+            } catch (InvalidKeyException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new InvalidKeyException("Unable to load the keys", e);
+            }
         }
     }
 
+    private SecretKey aesKey() throws InvalidKeyException {
+        ensureKeys();
+        return aesKey;
+    }
+
+    private SecretKey macKey() throws InvalidKeyException {
+        ensureKeys();
+        return macKey;
+    }
+
+    /**
+     * @return time it took to generate or load the keys, -1 if they haven't been needed yet
+     */
+    long keySetupMillis() {
+        return mKeySetupMillis;
+    }
+
     <T extends Exception> boolean isRecoverableError(T error){
         return  (error instanceof KeyStoreException)
                 || (error instanceof UnrecoverableEntryException)
@@ -218,18 +324,29 @@ public class EncryptionManager {
                 ;
     }
 
-    void setup(Context context, SharedPreferences prefStore, @Nullable byte[] seed) throws NoSuchPaddingException, InvalidKeyException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableEntryException, NoSuchProviderException, InvalidAlgorithmParameterException, IOException {
+    synchronized void setup(Context context, BackingStore prefStore, @Nullable byte[] seed) throws NoSuchPaddingException, InvalidKeyException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableEntryException, NoSuchProviderException, InvalidAlgorithmParameterException, IOException {
         boolean keyGenerated = generateKey(context, seed, prefStore);
         if(keyGenerated) {
             //store the alias prefix
-            mPrefs.edit().putString(getHashed(OVERRIDING_KEY_ALIAS_PREFIX_NAME), mKeyAliasPrefix).commit();
+            mBackingStore.edit().put(getHashed(OVERRIDING_KEY_ALIAS_PREFIX_NAME), mKeyAliasPrefix).commit();
         }
 
         loadKey(prefStore);
+        mKeysLoaded = true;
+
+        //the keystore key may have been replaced by a recovery, the data key is loaded again when it's needed
+        WrappedDataKey dataKey = mDataKey;
+        mDataKey = null;
+        if (dataKey != null) dataKey.clear();
     }
 
-    <T extends Exception> boolean tryRecovery(T e){
-        return mRecoveryHandler != null && mRecoveryHandler.onRecoveryRequired(e, mStore, keyAliases());
+    synchronized <T extends Exception> boolean tryRecovery(T e){
+        try {
+            return mRecoveryHandler != null && mRecoveryHandler.onRecoveryRequired(e, mStore, keyAliases());
+        } finally {
+            //the handler may have deleted keystore entries
+            mKeyStoreAccess.invalidate(keyAliases());
+        }
     }
 
     List<String> keyAliases(){
@@ -261,7 +378,7 @@ public class EncryptionManager {
         }
 
         if(tryAgain){
-            setup(mContext, mPrefs, null);
+            setup(mContext, mBackingStore, null);
             result = encrypt(bytes);
         }
 
@@ -292,7 +409,7 @@ public class EncryptionManager {
         }
 
         if(tryAgain) {
-            setup(mContext, mPrefs, null);
+            setup(mContext, mBackingStore, null);
             encrypt(fileIn, fileOut);
         }
     }
@@ -321,7 +438,7 @@ public class EncryptionManager {
         }
 
         if(tryAgain) {
-            setup(mContext, mPrefs, null);
+            setup(mContext, mBackingStore, null);
             decrypt(fileIn, fileOut);
         }
     }
@@ -355,7 +472,7 @@ public class EncryptionManager {
         }
 
         if(tryAgain){
-            setup(mContext, mPrefs, null);
+            setup(mContext, mBackingStore, null);
             result = decrypt(data);
         }
 
@@ -379,6 +496,8 @@ public class EncryptionManager {
             byte[] IV = getIV();
             if (isCompatMode)
                 return encryptAESCompat(bytes, IV);
+            else if (mDataKeyEnabled)
+                return encryptWithDataKey(bytes, IV);
             else return encryptAES(bytes, IV);
         }
 
@@ -401,7 +520,9 @@ public class EncryptionManager {
      */
     public byte[] decrypt(EncryptedData data) throws IOException, NoSuchPaddingException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, InvalidMacException, NoSuchProviderException, InvalidKeyException {
         if (data != null && data.encryptedData != null) {
-            if (isCompatMode)
+            if (data.suite == EncryptedDataCodec.SUITE_AES_GCM_DATA_KEY)
+                return decryptWithDataKey(data);
+            else if (isCompatMode)
                 return decryptAESCompat(data);
             else return decryptAES(data);
         }
@@ -423,12 +544,7 @@ public class EncryptionManager {
      * @throws BadPaddingException
      */
     String encrypt(String text) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IOException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchProviderException, BadPaddingException, KeyStoreException, UnrecoverableEntryException {
-        if (text != null && text.length() > 0) {
-            EncryptedData encrypted = tryEncrypt(text.getBytes(DEFAULT_CHARSET));
-            return encodeEncryptedData(encrypted);
-        }
-
-        return null;
+        return encryptValue(text);
     }
 
     /**
@@ -443,13 +559,77 @@ public class EncryptionManager {
      * @throws InvalidAlgorithmParameterException
      * @throws NoSuchProviderException
      * @throws BadPaddingException
+     * @throws ClassCastException if the stored value is not a String
      */
     String decrypt(String text) throws IOException, NoSuchPaddingException, InvalidKeyException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, InvalidMacException, NoSuchProviderException, InvalidAlgorithmParameterException, KeyStoreException, UnrecoverableEntryException {
+        return (String) decryptValue(text);
+    }
+
+    /**
+     * @param value a String, Integer, Long, Float, Boolean or byte[]
+     * @return base64 encoded envelope holding the typed value, null if value is null
+     * @throws InvalidKeyException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws IOException
+     * @throws IllegalBlockSizeException
+     * @throws InvalidAlgorithmParameterException
+     * @throws NoSuchProviderException
+     * @throws BadPaddingException
+     */
+    String encryptValue(Object value) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IOException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchProviderException, BadPaddingException, KeyStoreException, UnrecoverableEntryException {
+        if (value != null) {
+            EncryptedData encrypted = tryEncrypt(TypedValueCodec.encode(value));
+            return encodeEncryptedData(encrypted);
+        }
+
+        return null;
+    }
+
+    /**
+     * Encrypts a value stored before typed encoding without tagging its type, so it's still read as one, e.g. when
+     * it's moved to another store
+     * @param text decrypted text of the value
+     * @return base64 encoded envelope of version {@link EncryptedDataCodec#VERSION_1}, null if text is null
+     */
+    String encryptUntyped(String text) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, IOException, IllegalBlockSizeException, InvalidAlgorithmParameterException, NoSuchProviderException, BadPaddingException, KeyStoreException, UnrecoverableEntryException {
+        if (text != null) {
+            EncryptedData encrypted = tryEncrypt(text.getBytes(DEFAULT_CHARSET));
+            return encodeEncryptedData(encrypted, EncryptedDataCodec.VERSION_1);
+        }
+
+        return null;
+    }
+
+    /**
+     * @param text base64 encoded encrypted data
+     * @return the value with the type it was stored with, values stored before typed encoding are returned as String
+     * @throws IOException
+     * @throws NoSuchPaddingException
+     * @throws InvalidKeyException
+     * @throws NoSuchAlgorithmException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws InvalidMacException
+     * @throws NoSuchProviderException
+     * @throws InvalidAlgorithmParameterException
+     */
+    Object decryptValue(String text) throws IOException, NoSuchPaddingException, InvalidKeyException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, InvalidMacException, NoSuchProviderException, InvalidAlgorithmParameterException, KeyStoreException, UnrecoverableEntryException {
         if (text != null && text.length() > 0) {
-            EncryptedData encryptedData = decodeEncryptedText(text);
+            EncryptedData encryptedData;
+            boolean typed = false;
+
+            if (EncryptedDataCodec.isLegacy(text)) {
+                encryptedData = decodeLegacyEncryptedText(text);
+            } else {
+                byte[] envelope = base64Decode(text);
+                encryptedData = EncryptedDataCodec.unpack(envelope);
+                typed = EncryptedDataCodec.versionOf(envelope) >= EncryptedDataCodec.VERSION_2;
+            }
+
             byte[] decrypted = tryDecrypt(encryptedData);
 
-            return new String(decrypted, 0, decrypted.length, DEFAULT_CHARSET);
+            return typed ? TypedValueCodec.decode(decrypted) : new String(decrypted, 0, decrypted.length, DEFAULT_CHARSET);
         }
 
         return null;
@@ -467,25 +647,31 @@ public class EncryptionManager {
      * @throws NoSuchPaddingException
      */
     public void encrypt(BufferedInputStream fileIn, BufferedOutputStream fileOut) throws IOException, NoSuchProviderException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException {
-        byte[] IV = getIV();
-        Cipher cipher = isCompatMode ? getCipherAESCompat(IV, true) : getCipherAES(IV, true);
-        CipherOutputStream cipherOut = new CipherOutputStream(fileOut, cipher);
-
-        //store IV
-        fileOut.write(IV);
-
-        byte[] buffer = new byte[4096];
-        int read;
+        encrypt(fileIn, fileOut, StoreExecutors.decryption(), DEFAULT_MAX_IN_FLIGHT_SEGMENTS);
+    }
 
-        while ((read = fileIn.read(buffer)) != -1) {
-            cipherOut.write(buffer, 0, read);
+    /**
+     * Encrypts the segments of the file in parallel, they're written in order
+     * @param fileIn file to encrypt
+     * @param fileOut file to store encrypted data
+     * @param executor executor to encrypt the segments on
+     * @param maxInFlightSegments maximum number of segments being encrypted or waiting to be written, 1 encrypts on the calling thread
+     * @throws IOException
+     * @throws NoSuchProviderException
+     * @throws InvalidAlgorithmParameterException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     * @throws NoSuchPaddingException
+     */
+    public void encrypt(BufferedInputStream fileIn, BufferedOutputStream fileOut, Executor executor, int maxInFlightSegments) throws IOException, NoSuchProviderException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException {
+        try {
+            if (maxInFlightSegments == 1) newFileCipher().encrypt(fileIn, fileOut, mFileSegmentSize);
+            else newParallelFileCipher(executor, maxInFlightSegments).encrypt(fileIn, fileOut, mFileSegmentSize);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to encrypt the file", e);
         }
 
-        //TODO: find a way to compute MAC iteratively without loading the whole file in memory
-
-        cipherOut.flush();
-        cipherOut.close();
-
+        fileOut.close();
         fileIn.close();
     }
 
@@ -501,6 +687,294 @@ public class EncryptionManager {
      * @throws NoSuchPaddingException
      */
     public void decrypt(BufferedInputStream fileIn, BufferedOutputStream fileOut) throws IOException, NoSuchProviderException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException {
+        decrypt(fileIn, fileOut, StoreExecutors.decryption(), DEFAULT_MAX_IN_FLIGHT_SEGMENTS);
+    }
+
+    /**
+     * Decrypts the segments of the file in parallel, they're written in order. Files encrypted before
+     * the segmented format are decrypted on the calling thread.
+     * @param fileIn encrypted file
+     * @param fileOut file to store decrypted data
+     * @param executor executor to decrypt the segments on
+     * @param maxInFlightSegments maximum number of segments being decrypted or waiting to be written, 1 decrypts on the calling thread
+     * @throws IOException
+     * @throws NoSuchProviderException
+     * @throws InvalidAlgorithmParameterException
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     * @throws NoSuchPaddingException
+     */
+    public void decrypt(BufferedInputStream fileIn, BufferedOutputStream fileOut, Executor executor, int maxInFlightSegments) throws IOException, NoSuchProviderException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException {
+        byte[] start = new byte[SegmentedFileCipher.MAGIC.length];
+        fileIn.mark(start.length);
+        int startLength = SegmentedFileCipher.readFully(fileIn, start, start.length);
+        fileIn.reset();
+
+        if (startLength == start.length && SegmentedFileCipher.isSegmented(start)) {
+            try {
+                if (maxInFlightSegments == 1) newFileCipher().decrypt(fileIn, fileOut);
+                else newParallelFileCipher(executor, maxInFlightSegments).decrypt(fileIn, fileOut);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to decrypt the file", e);
+            }
+
+            fileOut.close();
+            fileIn.close();
+            return;
+        }
+
+        decryptLegacyFile(fileIn, fileOut);
+    }
+
+    /**
+     * Encrypts from one channel to another through direct buffers, a {@link FileChannel} input larger than a few MB is
+     * memory mapped. The channels are not closed.
+     * @param in channel to read the plain text from
+     * @param out channel to write the encrypted file to
+     * @param listener notified after every segment
+     * @param cancellationSignal checked before every segment
+     * @throws android.os.OperationCanceledException if the operation was cancelled
+     * @throws IOException
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchProviderException
+     * @throws InvalidKeyException
+     */
+    public void encrypt(ReadableByteChannel in, WritableByteChannel out, @Nullable ProgressListener listener,
+                        @Nullable CancellationSignal cancellationSignal) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        try {
+            new ChannelFileCipher(newFileCipher(), listener, cancellationSignal).encrypt(in, out, mFileSegmentSize);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to encrypt the file", e);
+        }
+    }
+
+    /**
+     * Decrypts from one channel to another through direct buffers, a {@link FileChannel} input larger than a few MB is
+     * memory mapped. The channels are not closed. If an exception is thrown the output written so far must be discarded.
+     * @param in channel to read the encrypted file from
+     * @param out channel to write the plain text to
+     * @param listener notified after every segment with the encrypted bytes read
+     * @param cancellationSignal checked before every segment
+     * @throws android.os.OperationCanceledException if the operation was cancelled
+     * @throws IOException if the file is invalid or fails verification
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchProviderException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public void decrypt(ReadableByteChannel in, WritableByteChannel out, @Nullable ProgressListener listener,
+                        @Nullable CancellationSignal cancellationSignal) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, InvalidAlgorithmParameterException {
+        ByteBuffer start = ByteBuffer.allocate(SegmentedFileCipher.HEADER_LENGTH);
+        ChannelFileCipher.readFully(in, start);
+        start.flip();
+
+        try {
+            if (start.remaining() == SegmentedFileCipher.HEADER_LENGTH && SegmentedFileCipher.isSegmented(start.array())) {
+                new ChannelFileCipher(newFileCipher(), listener, cancellationSignal).decrypt(start.array(), in, out);
+            } else {
+                decryptLegacyFile(start, in, out, cancellationSignal);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt the file", e);
+        }
+    }
+
+    /**
+     * @see #encrypt(ReadableByteChannel, WritableByteChannel, ProgressListener, CancellationSignal)
+     */
+    public void encrypt(File in, File out, @Nullable ProgressListener listener, @Nullable CancellationSignal cancellationSignal) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        FileInputStream input = new FileInputStream(in);
+
+        try {
+            FileOutputStream output = new FileOutputStream(out);
+
+            try {
+                encrypt(input.getChannel(), output.getChannel(), listener, cancellationSignal);
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @see #decrypt(ReadableByteChannel, WritableByteChannel, ProgressListener, CancellationSignal)
+     */
+    public void decrypt(File in, File out, @Nullable ProgressListener listener, @Nullable CancellationSignal cancellationSignal) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, InvalidAlgorithmParameterException {
+        FileInputStream input = new FileInputStream(in);
+
+        try {
+            FileOutputStream output = new FileOutputStream(out);
+
+            try {
+                decrypt(input.getChannel(), output.getChannel(), listener, cancellationSignal);
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @see #encrypt(ReadableByteChannel, WritableByteChannel, ProgressListener, CancellationSignal)
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    public void encrypt(Path in, Path out, @Nullable ProgressListener listener, @Nullable CancellationSignal cancellationSignal) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        FileChannel input = FileChannel.open(in, StandardOpenOption.READ);
+
+        try {
+            FileChannel output = FileChannel.open(out, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            try {
+                encrypt(input, output, listener, cancellationSignal);
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @see #decrypt(ReadableByteChannel, WritableByteChannel, ProgressListener, CancellationSignal)
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    public void decrypt(Path in, Path out, @Nullable ProgressListener listener, @Nullable CancellationSignal cancellationSignal) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, InvalidAlgorithmParameterException {
+        FileChannel input = FileChannel.open(in, StandardOpenOption.READ);
+
+        try {
+            FileChannel output = FileChannel.open(out, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            try {
+                decrypt(input, output, listener, cancellationSignal);
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Authenticates a whole encrypted file without writing any plain text, in constant memory. Decryption already
+     * verifies each segment before writing it, verify first when none of the file may be used unless all of it is intact.
+     * In compat mode only the MACs are checked, nothing is decrypted.
+     * @param file encrypted file
+     * @throws IOException if the file fails verification, can't be read or was encrypted before the segmented format
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchProviderException
+     * @throws InvalidKeyException
+     */
+    public void verify(File file) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        BufferedInputStream input = new BufferedInputStream(new FileInputStream(file));
+
+        try {
+            newFileCipher().verify(input);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to verify the file", e);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Opens an encrypted file for random access, only the segments a read touches are decrypted.
+     * Closing the stream closes the file. Files written before the segmented format can't be opened this way.
+     * @param file file written by {@link #encrypt(File, File, ProgressListener, CancellationSignal)} or any other
+     *             encrypt method of this version
+     * @throws IOException if the file is not in the segmented format or can't be read
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchProviderException
+     * @throws InvalidKeyException
+     */
+    public SeekableDecryptingStream openSeekableStream(File file) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        return openSeekableStream(file, SeekableDecryptingStream.DEFAULT_CACHED_SEGMENTS);
+    }
+
+    /**
+     * @param cachedSegments number of decrypted segments kept in memory, each up to {@link #getFileSegmentSize()} bytes
+     * @see #openSeekableStream(File)
+     */
+    public SeekableDecryptingStream openSeekableStream(File file, int cachedSegments) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        FileInputStream input = new FileInputStream(file);
+        SeekableDecryptingStream stream = null;
+
+        try {
+            stream = new SeekableDecryptingStream(input.getChannel(), true, newFileCipher(), cachedSegments);
+            return stream;
+        } finally {
+            if (stream == null) input.close();
+        }
+    }
+
+    /**
+     * Like {@link #openSeekableStream(File, int)} but reads from a channel the caller keeps open and closes itself.
+     * The channel is read at absolute positions, its own position is left alone.
+     */
+    public SeekableDecryptingStream openSeekableStream(FileChannel channel, int cachedSegments) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        return new SeekableDecryptingStream(channel, false, newFileCipher(), cachedSegments);
+    }
+
+    /**
+     * Channel version of {@link #decryptLegacyFile(BufferedInputStream, BufferedOutputStream)}
+     * @param start the first bytes of the file, already read from the channel
+     */
+    private void decryptLegacyFile(ByteBuffer start, ReadableByteChannel in, WritableByteChannel out, @Nullable CancellationSignal cancellationSignal) throws IOException, GeneralSecurityException {
+        int IVLength = isCompatMode ? COMPAT_IV_LENGTH : IV_LENGTH;
+        if (start.remaining() < IVLength) throw new IllegalArgumentException("Unexpected encryption state");
+
+        byte[] IV = new byte[IVLength];
+        start.get(IV);
+
+        Cipher cipher = getStreamCipher(IV, false);
+        ByteBuffer input = ByteBuffer.allocateDirect(mFileBufferSize);
+        ByteBuffer output = ByteBuffer.allocateDirect(cipher.getOutputSize(mFileBufferSize));
+        input.put(start);
+
+        while (true) {
+            if (cancellationSignal != null) cancellationSignal.throwIfCanceled();
+
+            boolean end = ChannelFileCipher.readFully(in, input) == 0 && input.position() == 0;
+            input.flip();
+
+            //GCM holds back the plain text until the tag is checked, doFinal may return all of it at once
+            int outputSize = cipher.getOutputSize(input.remaining());
+            if (output.capacity() < outputSize) output = ByteBuffer.allocateDirect(outputSize);
+
+            output.clear();
+            if (end) cipher.doFinal(input, output);
+            else cipher.update(input, output);
+            output.flip();
+            ChannelFileCipher.writeFully(out, output);
+
+            if (end) break;
+            input.clear();
+        }
+    }
+
+    /**
+     * @param bufferSize size of the buffer used to decrypt files written before the segmented format, defaults to 4 KiB
+     */
+    public void setFileBufferSize(int bufferSize) {
+        if (bufferSize < 1) throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+
+        mFileBufferSize = bufferSize;
+    }
+
+    public int getFileBufferSize() {
+        return mFileBufferSize;
+    }
+
+    /**
+     * Files written before the segmented format: the IV followed by one cipher stream, CBC files have no MAC
+     */
+    private void decryptLegacyFile(BufferedInputStream fileIn, BufferedOutputStream fileOut) throws IOException, NoSuchProviderException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException {
         int IVLength = isCompatMode ? COMPAT_IV_LENGTH : IV_LENGTH;
         byte[] IV = new byte[IVLength];
 
@@ -508,12 +982,10 @@ public class EncryptionManager {
 
         if(read == -1 || read != IVLength) throw new IllegalArgumentException("Unexpected encryption state");
 
-        //TODO: find a way to validate MAC iteratively without loading the whole file in memory
-
-        Cipher cipher = isCompatMode ? getCipherAESCompat(IV, false) : getCipherAES(IV, false);
+        Cipher cipher = getStreamCipher(IV, false);
         CipherInputStream cipherIn = new CipherInputStream(fileIn, cipher);
 
-        byte[] buffer = new byte[4096];
+        byte[] buffer = new byte[mFileBufferSize];
 
         while ((read = cipherIn.read(buffer)) != -1) {
             fileOut.write(buffer, 0, read);
@@ -525,21 +997,11 @@ public class EncryptionManager {
     }
 
     public static String getHashed(String text) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
-
-        byte[] result = digest.digest(text.getBytes(DEFAULT_CHARSET));
-
-        return toHex(result);
+        return KEY_HASHER.hash(text);
     }
 
     static String toHex(byte[] data) {
-        StringBuilder sb = new StringBuilder();
-
-        for (byte b : data) {
-            sb.append(String.format("%02X", b));
-        }
-
-        return sb.toString();
+        return KeyHasher.toHex(data);
     }
 
     public static String base64Encode(byte[] data) {
@@ -550,42 +1012,82 @@ public class EncryptionManager {
         return Base64.decode(text, Base64.NO_WRAP);
     }
 
+    /**
+     * @param text encrypted text of a value
+     * @return true if the value was stored with its type, values stored before typed encoding are all Strings
+     */
+    static boolean isTypedValue(String text) {
+        if (EncryptedDataCodec.isLegacy(text)) return false;
+
+        //the header is the first byte, the first 4 characters are enough to decode it
+        byte[] header = base64Decode(text.length() > 4 ? text.substring(0, 4) : text);
+        return header.length > 0 && EncryptedDataCodec.versionOf(header) >= EncryptedDataCodec.VERSION_2;
+    }
+
+    /**
+     * Values are always written in the current envelope format, entries in the legacy format are upgraded
+     * the next time they are written
+     * @param data encrypted data
+     * @return base64 encoded envelope
+     */
     String encodeEncryptedData(EncryptedData data) {
-        if (data.mac != null) {
-            return base64Encode(data.IV) + DELIMITER + base64Encode(data.encryptedData) + DELIMITER + base64Encode(data.mac);
-        } else {
-            return base64Encode(data.IV) + DELIMITER + base64Encode(data.encryptedData);
-        }
+        return encodeEncryptedData(data, ENVELOPE_VERSION);
     }
 
+    private String encodeEncryptedData(EncryptedData data, int version) {
+        int suite = data.suite != 0 ? data.suite
+                : isCompatMode ? EncryptedDataCodec.SUITE_AES_CBC_HMAC : EncryptedDataCodec.SUITE_AES_GCM;
+        return base64Encode(EncryptedDataCodec.pack(version, suite, data));
+    }
+
+    /**
+     * @param text base64 encoded envelope or a value in the legacy {@code IV]data]mac} format
+     * @return decoded data
+     * @throws IllegalArgumentException if the text is malformed
+     */
     EncryptedData decodeEncryptedText(String text) {
+        if (EncryptedDataCodec.isLegacy(text)) {
+            return decodeLegacyEncryptedText(text);
+        }
+
+        return EncryptedDataCodec.unpack(base64Decode(text));
+    }
+
+    private EncryptedData decodeLegacyEncryptedText(String text) {
+        int first = text.indexOf(EncryptedDataCodec.LEGACY_DELIMITER);
+        int second = text.indexOf(EncryptedDataCodec.LEGACY_DELIMITER, first + 1);
+
         EncryptedData result = new EncryptedData();
-        String[] parts = text.split(DELIMITER);
-        result.IV = base64Decode(parts[0]);
-        result.encryptedData = base64Decode(parts[1]);
+        result.IV = base64Decode(text.substring(0, first));
 
-        if (parts.length > 2) {
-            result.mac = base64Decode(parts[2]);
+        if (second < 0) {
+            result.encryptedData = base64Decode(text.substring(first + 1));
+        } else {
+            result.encryptedData = base64Decode(text.substring(first + 1, second));
+            result.mac = base64Decode(text.substring(second + 1));
         }
 
         return result;
     }
 
     void loadKeyStore() throws KeyStoreException, CertificateException, NoSuchAlgorithmException, IOException {
-        mStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
-        mStore.load(null);
+        mStore = mKeyStoreAccess.keyStore();
     }
 
     byte[] getIV() throws UnsupportedEncodingException {
-        byte[] iv;
-        if (!isCompatMode) {
-            iv = new byte[IV_LENGTH];
-        } else {
-            iv = new byte[COMPAT_IV_LENGTH];
-        }
-        SecureRandom rng = new SecureRandom();
-        rng.nextBytes(iv);
-        return iv;
+        return mNonceGenerator.next(isCompatMode ? COMPAT_IV_LENGTH : IV_LENGTH);
+    }
+
+    /**
+     * @param nonceGenerator source of IVs, see {@link NonceGenerator.Strategy}
+     */
+    public void setNonceGenerator(NonceGenerator nonceGenerator) {
+        if (nonceGenerator == null) throw new IllegalArgumentException("nonceGenerator can not be null");
+        mNonceGenerator = nonceGenerator;
+    }
+
+    public NonceGenerator getNonceGenerator() {
+        return mNonceGenerator;
     }
 
     /**
@@ -600,8 +1102,9 @@ public class EncryptionManager {
      */
     @TargetApi(Build.VERSION_CODES.KITKAT)
     Cipher getCipherAES(byte[] IV, boolean modeEncrypt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException {
-        Cipher cipher = Cipher.getInstance(AES_CIPHER);
-        cipher.init(modeEncrypt? Cipher.ENCRYPT_MODE:Cipher.DECRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_LENGTH, IV));
+        SecretKey key = aesKey();
+        Cipher cipher = CIPHER_POOL.getCipher(AES_CIPHER, key);
+        cipher.init(modeEncrypt? Cipher.ENCRYPT_MODE:Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, IV));
 
         return cipher;
     }
@@ -647,9 +1150,191 @@ public class EncryptionManager {
         return cipher.doFinal(encryptedData.encryptedData);
     }
 
+    /**
+     * Encrypts new values with a software AES key instead of the keystore key. The data key is generated once,
+     * stored wrapped by the keystore key and unwrapped once per process, so reading and writing values doesn't
+     * need a keystore round trip each. Values already stored stay readable either way.
+     * Compat mode keys are already held in memory, so this only changes anything when the keystore holds the AES key.
+     * @param idleTimeoutMillis time without use after which the data key is zeroed in memory, it's unwrapped again
+     *                          on the next use. 0 keeps it until {@link #clearDataKey()}
+     * @throws IOException if the data key can't be stored
+     * @throws GeneralSecurityException if the data key can't be generated or wrapped
+     */
+    public void enableDataKey(long idleTimeoutMillis) throws IOException, GeneralSecurityException {
+        if (idleTimeoutMillis < 0) throw new IllegalArgumentException("Negative timeout: " + idleTimeoutMillis);
+
+        if (isCompatMode) {
+            Logger.w("Data key is not used in compat mode");
+            return;
+        }
+
+        mDataKeyIdleTimeout = idleTimeoutMillis;
+        dataKey(true).setIdleTimeout(idleTimeoutMillis);
+        mDataKeyEnabled = true;
+    }
+
+    /**
+     * New values are encrypted with the keystore key again, values written with the data key stay readable
+     */
+    public void disableDataKey() {
+        mDataKeyEnabled = false;
+    }
+
+    public boolean isDataKeyEnabled() {
+        return mDataKeyEnabled;
+    }
+
+    /**
+     * Zeroes the data key in memory now, e.g. when the app goes to the background. It's unwrapped again on the next use
+     */
+    public void clearDataKey() {
+        WrappedDataKey dataKey = mDataKey;
+        if (dataKey != null) dataKey.clear();
+    }
+
+    /**
+     * @param create true to generate the data key if there isn't one yet
+     * @return the data key, loaded from the preferences the first time
+     * @throws InvalidKeyException if there's no data key and create is false
+     */
+    synchronized WrappedDataKey dataKey(boolean create) throws IOException, GeneralSecurityException {
+        if (mDataKey != null) return mDataKey;
+
+        final String prefKey = getHashed(DATA_KEY_ALIAS);
+        byte[] key = null;
+
+        if (!mBackingStore.contains(prefKey)) {
+            if (!create) throw new InvalidKeyException("Value was encrypted with a data key that doesn't exist");
+
+            KeyGenerator keyGen = KeyGenerator.getInstance(KEY_ALGORITHM_AES);
+            keyGen.init(AES_BIT_LENGTH);
+            key = keyGen.generateKey().getEncoded();
+
+            EncryptedData wrapped = encryptAES(key, getIV());
+            String encoded = base64Encode(EncryptedDataCodec.pack(EncryptedDataCodec.VERSION_1, EncryptedDataCodec.SUITE_AES_GCM, wrapped));
+            if (!mBackingStore.edit().put(prefKey, encoded).commit()) {
+                Arrays.fill(key, (byte) 0);
+                throw new IOException("Unable to store the data key");
+            }
+        }
+
+        WrappedDataKey dataKey = new WrappedDataKey(key, new WrappedDataKey.Unwrapper() {
+            @Override
+            public byte[] unwrap() throws GeneralSecurityException, IOException {
+                String encoded = (String) mBackingStore.get(prefKey);
+                if (encoded == null) throw new InvalidKeyException("Data key was removed");
+
+                try {
+                    return decryptAES(EncryptedDataCodec.unpack(base64Decode(encoded)));
+                } catch (BadPaddingException e) {
+                    //the keystore key changed, recoverable like any other value that fails to decrypt
+                    throw new IOException("Unable to unwrap the data key", e);
+                }
+            }
+        }, StoreExecutors.scheduler());
+        dataKey.setIdleTimeout(mDataKeyIdleTimeout);
+
+        mDataKey = dataKey;
+        return dataKey;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    EncryptedData encryptWithDataKey(byte[] bytes, byte[] IV) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        Cipher cipher = initDataKeyCipher(IV, true);
+        EncryptedData result = new EncryptedData();
+        result.suite = EncryptedDataCodec.SUITE_AES_GCM_DATA_KEY;
+        result.IV = IV;
+        result.encryptedData = cipher.doFinal(bytes);
+
+        return result;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    byte[] decryptWithDataKey(EncryptedData encryptedData) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return initDataKeyCipher(encryptedData.IV, false).doFinal(encryptedData.encryptedData);
+    }
+
+    /**
+     * @throws InvalidKeyException if the data key can't be loaded or unwrapped, a recoverable error
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private Cipher initDataKeyCipher(byte[] IV, boolean modeEncrypt) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+        Cipher cipher = CIPHER_POOL.getCipher(AES_CIPHER, WrappedDataKey.RawKey.class);
+
+        try {
+            //a recovery may have removed the data key, it's generated again for new values only
+            dataKey(modeEncrypt).init(cipher, modeEncrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, new GCMParameterSpec(GCM_TAG_LENGTH, IV));
+        } catch (InvalidKeyException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            throw new InvalidKeyException("Unable to use the data key", e);
+        }
+
+        return cipher;
+    }
+
+    /**
+     * @param segmentSize size of the plain text segments files are encrypted in, larger segments use more memory
+     *                    and smaller ones add more overhead. Defaults to 64 KiB
+     */
+    public void setFileSegmentSize(int segmentSize) {
+        if (segmentSize < 1 || segmentSize > SegmentedFileCipher.MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+
+        mFileSegmentSize = segmentSize;
+    }
+
+    public int getFileSegmentSize() {
+        return mFileSegmentSize;
+    }
+
+    /**
+     * @return a cipher for files, with its own Cipher and Mac instances
+     */
+    SegmentedFileCipher newFileCipher() throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException {
+        if (isCompatMode) {
+            Mac mac = Mac.getInstance(MAC_CIPHER);
+            mac.init(macKey());
+            return new SegmentedFileCipher(Cipher.getInstance(AES_CIPHER_COMPAT, BOUNCY_CASTLE_PROVIDER), aesKey(), mac, mNonceGenerator);
+        }
+
+        return new SegmentedFileCipher(Cipher.getInstance(AES_CIPHER), aesKey(), null, mNonceGenerator);
+    }
+
+    ParallelFileCipher newParallelFileCipher(Executor executor, int maxInFlightSegments) {
+        return new ParallelFileCipher(new ParallelFileCipher.CipherFactory() {
+            @Override
+            public SegmentedFileCipher newCipher() throws GeneralSecurityException {
+                return newFileCipher();
+            }
+        }, executor, maxInFlightSegments);
+    }
+
+    /**
+     * Streams keep using their cipher while the caller's streams are read/written, so they don't use pooled instances
+     * @param IV Initialisation Vector
+     * @param modeEncrypt if true then cipher is for encryption, decryption otherwise
+     * @return a new Cipher
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    Cipher getStreamCipher(byte[] IV, boolean modeEncrypt) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException {
+        Cipher cipher;
+        if (isCompatMode) {
+            cipher = Cipher.getInstance(AES_CIPHER_COMPAT, BOUNCY_CASTLE_PROVIDER);
+            cipher.init(modeEncrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, aesKey(), new IvParameterSpec(IV));
+        } else {
+            cipher = Cipher.getInstance(AES_CIPHER);
+            cipher.init(modeEncrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, aesKey(), new GCMParameterSpec(GCM_TAG_LENGTH, IV));
+        }
+
+        return cipher;
+    }
+
     Cipher getCipherAESCompat(byte[] IV, boolean modeEncrypt) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException {
-        Cipher c = Cipher.getInstance(AES_CIPHER_COMPAT, BOUNCY_CASTLE_PROVIDER);
-        c.init(modeEncrypt? Cipher.ENCRYPT_MODE:Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec(IV));
+        SecretKey key = aesKey();
+        Cipher c = CIPHER_POOL.getCipher(AES_CIPHER_COMPAT, BOUNCY_CASTLE_PROVIDER, key);
+        c.init(modeEncrypt? Cipher.ENCRYPT_MODE:Cipher.DECRYPT_MODE, key, new IvParameterSpec(IV));
 
         return c;
     }
@@ -673,22 +1358,22 @@ public class EncryptionManager {
         EncryptedData result = new EncryptedData();
         result.IV = c.getIV();
         result.encryptedData = c.doFinal(bytes);
-        result.mac = computeMac(result.getDataForMacComputation());
+        result.mac = computeMac(result.IV, result.encryptedData);
 
         return result;
     }
 
     byte[] decryptAESCompat(EncryptedData encryptedData) throws UnsupportedEncodingException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, NoSuchPaddingException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, InvalidMacException {
-        if (verifyMac(encryptedData.mac, encryptedData.getDataForMacComputation())) {
+        if (verifyMac(encryptedData.mac, encryptedData.IV, encryptedData.encryptedData)) {
             Cipher c = getCipherAESCompat(encryptedData.IV, false);
             return c.doFinal(encryptedData.encryptedData);
         } else throw new InvalidMacException();
     }
 
-    void loadKey(SharedPreferences prefStore) throws KeyStoreException, UnrecoverableEntryException, NoSuchAlgorithmException, NoSuchPaddingException, NoSuchProviderException, InvalidKeyException, IOException {
+    void loadKey(BackingStore prefStore) throws KeyStoreException, UnrecoverableEntryException, NoSuchAlgorithmException, NoSuchPaddingException, NoSuchProviderException, InvalidKeyException, IOException {
         if (!isCompatMode) {
-            if (mStore.containsAlias(AES_KEY_ALIAS) && mStore.entryInstanceOf(AES_KEY_ALIAS, KeyStore.SecretKeyEntry.class)) {
-                KeyStore.SecretKeyEntry entry = (KeyStore.SecretKeyEntry) mStore.getEntry(AES_KEY_ALIAS, null);
+            KeyStore.SecretKeyEntry entry = mKeyStoreAccess.getEntry(AES_KEY_ALIAS, KeyStore.SecretKeyEntry.class);
+            if (entry != null) {
                 aesKey = entry.getSecretKey();
             }
         } else {
@@ -697,7 +1382,7 @@ public class EncryptionManager {
         }
     }
 
-    boolean generateKey(Context context, @Nullable byte[] seed, SharedPreferences prefStore) throws KeyStoreException, NoSuchProviderException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException, IOException {
+    boolean generateKey(Context context, @Nullable byte[] seed, BackingStore prefStore) throws KeyStoreException, NoSuchProviderException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException, IOException {
         boolean keyGenerated = false;
 
         if (!isCompatMode) {
@@ -714,7 +1399,7 @@ public class EncryptionManager {
 
     @TargetApi(Build.VERSION_CODES.M)
     boolean generateAESKey(@Nullable byte[] seed) throws KeyStoreException, NoSuchProviderException, NoSuchAlgorithmException, InvalidAlgorithmParameterException {
-        if (!mStore.containsAlias(AES_KEY_ALIAS)) {
+        if (!mKeyStoreAccess.containsAlias(AES_KEY_ALIAS)) {
             KeyGenerator keyGen = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_PROVIDER);
 
             KeyGenParameterSpec spec = new KeyGenParameterSpec.Builder(AES_KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
@@ -733,6 +1418,8 @@ public class EncryptionManager {
             }
 
             keyGen.generateKey();
+            mKeyStoreAccess.countRoundTrip();
+            mKeyStoreAccess.invalidate(AES_KEY_ALIAS);
 
             return true;
         }
@@ -740,7 +1427,7 @@ public class EncryptionManager {
         return false;
     }
 
-    boolean generateFallbackAESKey(SharedPreferences prefStore, @Nullable byte[] seed) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, KeyStoreException, NoSuchProviderException, UnrecoverableEntryException {
+    boolean generateFallbackAESKey(BackingStore prefStore, @Nullable byte[] seed) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, KeyStoreException, NoSuchProviderException, UnrecoverableEntryException {
         String key = getHashed(AES_KEY_ALIAS);
 
         if (!prefStore.contains(key)) {
@@ -759,16 +1446,16 @@ public class EncryptionManager {
             byte[] encryptedData = RSAEncrypt(shiftedEncodedKey);
 
             String AESKey = base64Encode(encryptedData);
-            boolean result = prefStore.edit().putString(key, AESKey).commit();
+            boolean result = prefStore.edit().put(key, AESKey).commit();
             String isCompatKey = getHashed(IS_COMPAT_MODE_KEY_ALIAS);
-            prefStore.edit().putBoolean(isCompatKey, true).apply();
+            prefStore.edit().put(isCompatKey, true).apply();
             return result;
         }
 
         return false;
     }
 
-    boolean generateMacKey(SharedPreferences prefStore, @Nullable byte[] seed) throws NoSuchPaddingException, InvalidKeyException, NoSuchAlgorithmException, KeyStoreException, NoSuchProviderException, UnrecoverableEntryException, IOException {
+    boolean generateMacKey(BackingStore prefStore, @Nullable byte[] seed) throws NoSuchPaddingException, InvalidKeyException, NoSuchAlgorithmException, KeyStoreException, NoSuchProviderException, UnrecoverableEntryException, IOException {
         String key = getHashed(MAC_KEY_ALIAS);
 
         if (!prefStore.contains(key)) {
@@ -784,7 +1471,7 @@ public class EncryptionManager {
 
             byte[] encryptedKey = RSAEncrypt(randomBytes);
             String macKey = base64Encode(encryptedKey);
-            return prefStore.edit().putString(key, macKey).commit();
+            return prefStore.edit().put(key, macKey).commit();
         }
 
         return false;
@@ -800,10 +1487,10 @@ public class EncryptionManager {
         return out;
     }
 
-    SecretKey getFallbackAESKey(SharedPreferences prefStore) throws IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, NoSuchPaddingException {
+    SecretKey getFallbackAESKey(BackingStore prefStore) throws IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, NoSuchPaddingException {
         String key = getHashed(AES_KEY_ALIAS);
 
-        String base64Value = prefStore.getString(key, null);
+        String base64Value = (String) prefStore.get(key);
         if (base64Value != null) {
             byte[] encryptedData = base64Decode(base64Value);
             byte[] shiftedEncodedKey = RSADecrypt(encryptedData);
@@ -815,10 +1502,10 @@ public class EncryptionManager {
         return null;
     }
 
-    SecretKey getMacKey(SharedPreferences prefStore) throws IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, NoSuchPaddingException {
+    SecretKey getMacKey(BackingStore prefStore) throws IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, NoSuchPaddingException {
         String key = getHashed(MAC_KEY_ALIAS);
 
-        String base64 = prefStore.getString(key, null);
+        String base64 = (String) prefStore.get(key);
         if (base64 != null) {
             byte[] encryptedKey = base64Decode(base64);
             byte[] keyData = RSADecrypt(encryptedKey);
@@ -830,8 +1517,8 @@ public class EncryptionManager {
     }
 
     void loadRSAKeys() throws KeyStoreException, UnrecoverableEntryException, NoSuchAlgorithmException {
-        if (mStore.containsAlias(RSA_KEY_ALIAS) && mStore.entryInstanceOf(RSA_KEY_ALIAS, KeyStore.PrivateKeyEntry.class)) {
-            KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) mStore.getEntry(RSA_KEY_ALIAS, null);
+        KeyStore.PrivateKeyEntry entry = mKeyStoreAccess.getEntry(RSA_KEY_ALIAS, KeyStore.PrivateKeyEntry.class);
+        if (entry != null) {
             publicKey = (RSAPublicKey) entry.getCertificate().getPublicKey();
             privateKey = (RSAPrivateKey) entry.getPrivateKey();
         }
@@ -839,7 +1526,7 @@ public class EncryptionManager {
 
     @SuppressWarnings("WrongConstant")
     boolean generateRSAKeys(Context context, @Nullable byte[] seed) throws NoSuchProviderException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, KeyStoreException {
-        if (!mStore.containsAlias(RSA_KEY_ALIAS)) {
+        if (!mKeyStoreAccess.containsAlias(RSA_KEY_ALIAS)) {
             KeyPairGenerator keyGen = KeyPairGenerator.getInstance(KEY_ALGORITHM_RSA, KEYSTORE_PROVIDER);
 
             KeyPairGeneratorSpec spec;
@@ -877,6 +1564,8 @@ public class EncryptionManager {
                 keyGen.initialize(spec);
             }
             keyGen.generateKeyPair();
+            mKeyStoreAccess.countRoundTrip();
+            mKeyStoreAccess.invalidate(RSA_KEY_ALIAS);
 
             return true;
         }
@@ -884,15 +1573,22 @@ public class EncryptionManager {
         return false;
     }
 
-    byte[] computeMac(byte[] data) throws NoSuchAlgorithmException, InvalidKeyException {
-        Mac HmacSha256 = Mac.getInstance(MAC_CIPHER);
-        HmacSha256.init(macKey);
-        return HmacSha256.doFinal(data);
+    /**
+     * @param IV Initialisation Vector
+     * @param encryptedData cipher text
+     * @return mac of IV + cipher text
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+    byte[] computeMac(byte[] IV, byte[] encryptedData) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac HmacSha256 = CIPHER_POOL.getMac(MAC_CIPHER, macKey());
+        HmacSha256.update(IV);
+        return HmacSha256.doFinal(encryptedData);
     }
 
-    boolean verifyMac(byte[] mac, byte[] data) throws InvalidKeyException, NoSuchAlgorithmException {
-        if (mac != null && data != null) {
-            byte[] actualMac = computeMac(data);
+    boolean verifyMac(byte[] mac, byte[] IV, byte[] encryptedData) throws InvalidKeyException, NoSuchAlgorithmException {
+        if (mac != null && IV != null && encryptedData != null) {
+            byte[] actualMac = computeMac(IV, encryptedData);
 
             if (actualMac.length != mac.length) {
                 return false;
@@ -908,42 +1604,41 @@ public class EncryptionManager {
     }
 
     byte[] RSAEncrypt(byte[] bytes) throws KeyStoreException, UnrecoverableEntryException, NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, InvalidKeyException, IOException {
-        Cipher cipher = Cipher.getInstance(RSA_CIPHER, SSL_PROVIDER);
+        Cipher cipher = CIPHER_POOL.getCipher(RSA_CIPHER, SSL_PROVIDER, publicKey);
         cipher.init(Cipher.ENCRYPT_MODE, publicKey);
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        CipherOutputStream cipherOutputStream = new CipherOutputStream(outputStream, cipher);
-        cipherOutputStream.write(bytes);
-        cipherOutputStream.close();
-
-        return outputStream.toByteArray();
+        try {
+            return cipher.doFinal(bytes);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
     }
 
     byte[] RSADecrypt(byte[] bytes) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, IOException {
-        Cipher cipher = Cipher.getInstance(RSA_CIPHER, SSL_PROVIDER);
+        Cipher cipher = CIPHER_POOL.getCipher(RSA_CIPHER, SSL_PROVIDER, privateKey);
         cipher.init(Cipher.DECRYPT_MODE, privateKey);
 
-        CipherInputStream cipherInputStream = new CipherInputStream(new ByteArrayInputStream(bytes), cipher);
-
-        ArrayList<Byte> values = new ArrayList<>();
-        int nextByte;
-        while ((nextByte = cipherInputStream.read()) != -1) {
-            values.add((byte) nextByte);
-        }
-
-        byte[] dbytes = new byte[values.size()];
-        for (int i = 0; i < dbytes.length; i++) {
-            dbytes[i] = values.get(i);
+        try {
+            return cipher.doFinal(bytes);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
         }
+    }
 
-        cipherInputStream.close();
-        return dbytes;
+    public interface ProgressListener {
+        /**
+         * @param processedBytes bytes of the input processed so far
+         * @param totalBytes size of the input, -1 if it isn't known
+         */
+        void onProgress(long processedBytes, long totalBytes);
     }
 
     public static class EncryptedData {
         byte[] IV;
         byte[] encryptedData;
         byte[] mac;
+        //suite of the envelope the data came from, 0 if it isn't known
+        int suite;
 
         public EncryptedData() {
             IV = null;
@@ -980,17 +1675,6 @@ public class EncryptionManager {
         public void setMac(byte[] mac) {
             this.mac = mac;
         }
-
-        /**
-         * @return IV + CIPHER
-         */
-        byte[] getDataForMacComputation() {
-            byte[] combinedData = new byte[IV.length + encryptedData.length];
-            System.arraycopy(IV, 0, combinedData, 0, IV.length);
-            System.arraycopy(encryptedData, 0, combinedData, IV.length, encryptedData.length);
-
-            return combinedData;
-        }
     }
 
     public class InvalidMacException extends GeneralSecurityException {
@@ -0,0 +1,155 @@
+package devliving.online.securedpreferencestore;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the entries in memory only, they're gone with the process. Useful for tests, benchmarks and
+ * values that shouldn't outlive the process.
+ */
+public final class InMemoryBackingStore implements BackingStore {
+    //marks a key removed in a batch
+    private static final Object REMOVED = new Object();
+
+    private final HashMap<String, Object> mValues = new HashMap<>();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    @Nullable
+    @Override
+    public synchronized Object get(@NonNull String key) {
+        Object value = mValues.get(key);
+        return value instanceof Set ? copy(value) : value;
+    }
+
+    @Override
+    public synchronized boolean contains(@NonNull String key) {
+        return mValues.containsKey(key);
+    }
+
+    @NonNull
+    @Override
+    public synchronized Map<String, ?> snapshot() {
+        Map<String, Object> snapshot = new HashMap<>(mValues.size());
+
+        for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+            snapshot.put(entry.getKey(), copy(entry.getValue()));
+        }
+
+        return snapshot;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copy(Object value) {
+        return value instanceof Set ? Collections.unmodifiableSet(new HashSet<>((Set<String>) value)) : value;
+    }
+
+    /**
+     * @return keys that were changed
+     */
+    private Set<String> write(Map<String, Object> changes, boolean clear) {
+        Set<String> changed = new LinkedHashSet<>();
+
+        synchronized (this) {
+            if (clear) {
+                changed.addAll(mValues.keySet());
+                mValues.clear();
+            }
+
+            for (Map.Entry<String, Object> change : changes.entrySet()) {
+                if (change.getValue() == REMOVED) {
+                    if (mValues.remove(change.getKey()) != null) changed.add(change.getKey());
+                } else {
+                    mValues.put(change.getKey(), change.getValue());
+                    changed.add(change.getKey());
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    private void notifyListeners(Set<String> keys) {
+        for (String key : keys) {
+            for (Listener listener : mListeners) {
+                listener.onChanged(this, key);
+            }
+        }
+    }
+
+    @NonNull
+    @Override
+    public Batch edit() {
+        return new Batch() {
+            private final Map<String, Object> mChanges = new LinkedHashMap<>();
+            private boolean mClear = false;
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public synchronized Batch put(@NonNull String key, @Nullable Object value) {
+                if (value == null) return remove(key);
+
+                if (value instanceof Set) {
+                    value = new HashSet<>((Set<String>) value);
+                } else if (!(value instanceof String || value instanceof Integer || value instanceof Long
+                        || value instanceof Float || value instanceof Boolean)) {
+                    throw new IllegalArgumentException("Unsupported value type: " + value.getClass());
+                }
+
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public synchronized Batch remove(@NonNull String key) {
+                mChanges.put(key, REMOVED);
+                return this;
+            }
+
+            @Override
+            public synchronized Batch clear() {
+                mClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                Map<String, Object> changes;
+                boolean clear;
+
+                synchronized (this) {
+                    changes = new LinkedHashMap<>(mChanges);
+                    clear = mClear;
+                    mChanges.clear();
+                    mClear = false;
+                }
+
+                notifyListeners(write(changes, clear));
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        };
+    }
+
+    @Override
+    public void registerListener(@NonNull Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public void unregisterListener(@NonNull Listener listener) {
+        mListeners.remove(listener);
+    }
+}
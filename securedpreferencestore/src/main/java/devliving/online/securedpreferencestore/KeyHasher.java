@@ -0,0 +1,71 @@
+package devliving.online.securedpreferencestore;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hashes preference keys into the upper case hex SHA-256 names used in the backing store.
+ * Digests are reused per thread and the most recently hashed keys are memoized.
+ */
+final class KeyHasher {
+    private static final String ALGORITHM = "SHA-256";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final int mMaxMemoSize;
+    private final ConcurrentHashMap<String, String> mMemo;
+
+    private final ThreadLocal<MessageDigest> mDigest = new ThreadLocal<>();
+
+    /**
+     * @param maxMemoSize maximum number of hashed keys to remember, 0 to disable memoization
+     */
+    KeyHasher(int maxMemoSize) {
+        mMaxMemoSize = maxMemoSize;
+        mMemo = maxMemoSize > 0 ? new ConcurrentHashMap<String, String>() : null;
+    }
+
+    String hash(String text) throws NoSuchAlgorithmException {
+        if (mMemo != null) {
+            String hashed = mMemo.get(text);
+            if (hashed != null) return hashed;
+        }
+
+        String hashed = toHex(digest().digest(text.getBytes(CHARSET)));
+
+        if (mMemo != null) {
+            //keys are usually a small fixed set, starting over is cheaper than tracking usage
+            if (mMemo.size() >= mMaxMemoSize) mMemo.clear();
+            mMemo.put(text, hashed);
+        }
+
+        return hashed;
+    }
+
+    private MessageDigest digest() throws NoSuchAlgorithmException {
+        MessageDigest digest = mDigest.get();
+
+        if (digest == null) {
+            digest = MessageDigest.getInstance(ALGORITHM);
+            mDigest.set(digest);
+        } else {
+            digest.reset();
+        }
+
+        return digest;
+    }
+
+    static String toHex(byte[] data) {
+        char[] hex = new char[data.length * 2];
+
+        for (int i = 0; i < data.length; i++) {
+            int b = data[i] & 0xFF;
+            hex[i * 2] = HEX_DIGITS[b >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+        }
+
+        return new String(hex);
+    }
+}
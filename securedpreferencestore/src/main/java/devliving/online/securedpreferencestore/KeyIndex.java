@@ -0,0 +1,154 @@
+package devliving.online.securedpreferencestore;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Plain keys of a store in sorted order with their hashed keys, so keys can be listed and looked up by prefix
+ * without hashing or decrypting anything. Instances are immutable, an update creates a new index.
+ * The serialized form is a count followed by the length prefixed UTF-8 plain and hashed key of each entry.
+ */
+final class KeyIndex {
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    static final KeyIndex EMPTY = new KeyIndex(new TreeMap<String, String>());
+
+    //plain key -> hashed key
+    private final TreeMap<String, String> mKeys;
+
+    private KeyIndex(TreeMap<String, String> keys) {
+        mKeys = keys;
+    }
+
+    int size() {
+        return mKeys.size();
+    }
+
+    SortedSet<String> keys() {
+        return Collections.unmodifiableSortedSet(new TreeSet<>(mKeys.keySet()));
+    }
+
+    SortedSet<String> keysWithPrefix(String prefix) {
+        return Collections.unmodifiableSortedSet(new TreeSet<>(withPrefix(prefix).keySet()));
+    }
+
+    /**
+     * @return plain key -> hashed key of the keys starting with the prefix
+     */
+    SortedMap<String, String> withPrefix(String prefix) {
+        if (prefix.isEmpty()) return Collections.unmodifiableSortedMap(mKeys);
+
+        //every key with the prefix sorts before the prefix with its last char incremented
+        char last = prefix.charAt(prefix.length() - 1);
+        if (last == Character.MAX_VALUE) {
+            SortedMap<String, String> tail = new TreeMap<>();
+            for (Map.Entry<String, String> entry : mKeys.tailMap(prefix).entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) break;
+                tail.put(entry.getKey(), entry.getValue());
+            }
+
+            return Collections.unmodifiableSortedMap(tail);
+        }
+
+        String end = prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+        return Collections.unmodifiableSortedMap(mKeys.subMap(prefix, end));
+    }
+
+    /**
+     * @param changes plain key -> hashed key of each key written by a commit, null for removed keys
+     * @param cleared true if the commit cleared the store first
+     * @return the index after the commit, this index if the commit didn't add or remove any key
+     */
+    KeyIndex update(Map<String, String> changes, boolean cleared) {
+        TreeMap<String, String> keys = null;
+
+        if (cleared && !mKeys.isEmpty()) keys = new TreeMap<>();
+
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String key = change.getKey();
+            String hashedKey = change.getValue();
+            boolean indexed = keys != null ? keys.containsKey(key) : mKeys.containsKey(key);
+
+            if (hashedKey != null && !indexed) {
+                if (keys == null) keys = new TreeMap<>(mKeys);
+                keys.put(key, hashedKey);
+            } else if (hashedKey == null && indexed) {
+                if (keys == null) keys = new TreeMap<>(mKeys);
+                keys.remove(key);
+            }
+        }
+
+        return keys != null ? new KeyIndex(keys) : this;
+    }
+
+    /**
+     * @param keys plain key -> hashed key
+     */
+    static KeyIndex of(Map<String, String> keys) {
+        return new KeyIndex(new TreeMap<>(keys));
+    }
+
+    byte[] serialize() {
+        List<byte[]> parts = new ArrayList<>(mKeys.size() * 2);
+        int length = 4;
+
+        for (Map.Entry<String, String> entry : mKeys.entrySet()) {
+            byte[] key = entry.getKey().getBytes(CHARSET);
+            byte[] hashedKey = entry.getValue().getBytes(CHARSET);
+            parts.add(key);
+            parts.add(hashedKey);
+            length += 8 + key.length + hashedKey.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(mKeys.size());
+        for (byte[] part : parts) {
+            buffer.putInt(part.length);
+            buffer.put(part);
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a serialized index
+     */
+    static KeyIndex deserialize(byte[] data) {
+        TreeMap<String, String> keys = new TreeMap<>();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        try {
+            int count = buffer.getInt();
+            if (count < 0) throw new IllegalArgumentException("Invalid key count: " + count);
+
+            for (int i = 0; i < count; i++) {
+                String key = readString(buffer);
+                keys.put(key, readString(buffer));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated key index", e);
+        }
+
+        if (buffer.hasRemaining()) throw new IllegalArgumentException("Trailing bytes after the key index");
+
+        return new KeyIndex(keys);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) throw new IllegalArgumentException("Invalid length: " + length);
+
+        String value = new String(buffer.array(), buffer.position(), length, CHARSET);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
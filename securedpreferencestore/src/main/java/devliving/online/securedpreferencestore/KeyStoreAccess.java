@@ -0,0 +1,155 @@
+package devliving.online.securedpreferencestore;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateException;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Process wide access to the keystore. It's loaded once and shared by every {@link EncryptionManager}, and the entry
+ * looked up for an alias is kept, so each key costs a keystore round trip only the first time it's used.
+ * Cached lookups must be invalidated when entries are added or deleted behind its back, e.g. by a {@link RecoveryHandler}.
+ * Round trips are counted for {@link StartupMetrics}.
+ */
+final class KeyStoreAccess {
+    private static final String ANDROID_KEYSTORE = "AndroidKeyStore";
+
+    private static KeyStoreAccess mShared;
+
+    private final String mType;
+    private final Provider mProvider;
+
+    private KeyStore mKeyStore;
+    private final HashMap<String, Boolean> mContains = new HashMap<>();
+    //alias -> entry, null values for aliases without an entry
+    private final HashMap<String, KeyStore.Entry> mEntries = new HashMap<>();
+
+    private int mLoads = 0;
+    private int mRoundTrips = 0;
+    private int mCacheHits = 0;
+
+    /**
+     * @param type keystore type
+     * @param provider provider of the keystore, null for the default one of the type
+     */
+    KeyStoreAccess(String type, @Nullable Provider provider) {
+        mType = type;
+        mProvider = provider;
+    }
+
+    static synchronized KeyStoreAccess shared() {
+        if (mShared == null) mShared = new KeyStoreAccess(ANDROID_KEYSTORE, null);
+        return mShared;
+    }
+
+    /**
+     * @return the keystore, loaded on first use
+     */
+    synchronized KeyStore keyStore() throws KeyStoreException, CertificateException, NoSuchAlgorithmException, IOException {
+        if (mKeyStore == null) {
+            KeyStore keyStore = mProvider != null ? KeyStore.getInstance(mType, mProvider) : KeyStore.getInstance(mType);
+            mRoundTrips++;
+            keyStore.load(null);
+            mLoads++;
+            mKeyStore = keyStore;
+        }
+
+        return mKeyStore;
+    }
+
+    /**
+     * @throws KeyStoreException if the keystore can't be loaded
+     */
+    private KeyStore loadedKeyStore() throws KeyStoreException, NoSuchAlgorithmException {
+        try {
+            return keyStore();
+        } catch (CertificateException e) {
+            throw new KeyStoreException("Unable to load the keystore", e);
+        } catch (IOException e) {
+            throw new KeyStoreException("Unable to load the keystore", e);
+        }
+    }
+
+    synchronized boolean containsAlias(String alias) throws KeyStoreException, NoSuchAlgorithmException {
+        Boolean contains = mContains.get(alias);
+
+        if (contains == null) {
+            KeyStore keyStore = loadedKeyStore();
+            mRoundTrips++;
+            contains = keyStore.containsAlias(alias);
+            mContains.put(alias, contains);
+        } else {
+            mCacheHits++;
+        }
+
+        return contains;
+    }
+
+    /**
+     * @return the entry of the alias, null if there's none or it's of another type
+     */
+    synchronized <T extends KeyStore.Entry> T getEntry(String alias, Class<T> type) throws KeyStoreException, UnrecoverableEntryException, NoSuchAlgorithmException {
+        KeyStore.Entry entry;
+
+        if (mEntries.containsKey(alias)) {
+            entry = mEntries.get(alias);
+            mCacheHits++;
+        } else {
+            entry = containsAlias(alias) ? load(alias) : null;
+            mEntries.put(alias, entry);
+        }
+
+        return type.isInstance(entry) ? type.cast(entry) : null;
+    }
+
+    /**
+     * Forgets what was looked up for the alias, call it after generating or deleting its entry
+     */
+    synchronized void invalidate(String alias) {
+        mContains.remove(alias);
+        mEntries.remove(alias);
+    }
+
+    synchronized void invalidate(Collection<String> aliases) {
+        for (String alias : aliases) {
+            invalidate(alias);
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mContains.clear();
+        mEntries.clear();
+    }
+
+    /**
+     * Counts an operation done with the keystore outside of this class, e.g. generating a key
+     */
+    synchronized void countRoundTrip() {
+        mRoundTrips++;
+    }
+
+    synchronized int loads() {
+        return mLoads;
+    }
+
+    synchronized int roundTrips() {
+        return mRoundTrips;
+    }
+
+    synchronized int cacheHits() {
+        return mCacheHits;
+    }
+
+    private KeyStore.Entry load(String alias) throws KeyStoreException, UnrecoverableEntryException, NoSuchAlgorithmException {
+        KeyStore keyStore = loadedKeyStore();
+        mRoundTrips++;
+        return keyStore.getEntry(alias, null);
+    }
+}
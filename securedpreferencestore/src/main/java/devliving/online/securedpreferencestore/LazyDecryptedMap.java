@@ -0,0 +1,163 @@
+package devliving.online.securedpreferencestore;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import devliving.online.securedpreferencestore.SecuredPreferenceStore.Function;
+
+/**
+ * Immutable map over a snapshot of encrypted entries, a value is decrypted the first time it's accessed and
+ * remembered afterwards. {@link #size()}, {@link #keySet()} and {@link #containsKey(Object)} never decrypt anything.
+ * An entry that fails to decrypt stays in the key set and maps to null.
+ */
+final class LazyDecryptedMap extends AbstractMap<String, Object> {
+    //ConcurrentHashMap doesn't take null values
+    private static final Object FAILED = new Object();
+
+    private final Map<String, ?> mEncrypted;
+    private final Function<Entry<String, ?>, Object> mDecrypter;
+    private final ConcurrentHashMap<String, Object> mDecrypted = new ConcurrentHashMap<>();
+
+    private Set<Entry<String, Object>> mEntrySet;
+
+    /**
+     * @param encrypted entries to expose, must not change afterwards
+     * @param decrypter decrypts the value of an entry, returns null if it can't be decrypted
+     */
+    LazyDecryptedMap(Map<String, ?> encrypted, Function<Entry<String, ?>, Object> decrypter) {
+        mEncrypted = encrypted;
+        mDecrypter = decrypter;
+    }
+
+    @Override
+    public int size() {
+        return mEncrypted.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return mEncrypted.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String) || !mEncrypted.containsKey(key)) return null;
+        return decrypted((String) key);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(mEncrypted.keySet());
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    final Iterator<String> keys = mEncrypted.keySet().iterator();
+
+                    return new Iterator<Entry<String, Object>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return keys.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            return new LazyEntry(keys.next());
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return mEncrypted.size();
+                }
+            };
+        }
+
+        return mEntrySet;
+    }
+
+    /**
+     * @return number of values decrypted so far
+     */
+    int decryptedCount() {
+        return mDecrypted.size();
+    }
+
+    private Object decrypted(String key) {
+        Object value = mDecrypted.get(key);
+
+        if (value == null) {
+            Object decrypted;
+            try {
+                decrypted = mDecrypter.apply(new SimpleImmutableEntry<String, Object>(key, mEncrypted.get(key)));
+            } catch (Exception e) {
+                Logger.e(e);
+                decrypted = null;
+            }
+
+            //another thread may have decrypted it meanwhile, both results are the same
+            value = decrypted != null ? decrypted : FAILED;
+            mDecrypted.put(key, value);
+        }
+
+        return value != FAILED ? value : null;
+    }
+
+    private class LazyEntry implements Entry<String, Object> {
+        private final String mKey;
+
+        LazyEntry(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public Object getValue() {
+            return decrypted(mKey);
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) return false;
+
+            Entry<?, ?> other = (Entry<?, ?>) o;
+            Object value = getValue();
+            return mKey.equals(other.getKey()) && (value == null ? other.getValue() == null : value.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object value = getValue();
+            return mKey.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return mKey + "=" + getValue();
+        }
+    }
+}
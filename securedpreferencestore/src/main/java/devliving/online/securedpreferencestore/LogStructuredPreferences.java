@@ -0,0 +1,992 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Preferences kept in an append-only log instead of an XML file. A commit appends its changes as one checksummed batch,
+ * so it costs the size of the change rather than the size of the store, and a batch is either applied whole or not at all.
+ * An in-memory index maps each key to the offset of its latest record, values are read from the file when asked for.
+ * Values are stored as the store hands them over, i.e. already encrypted, under hashed keys.
+ * <p>
+ * {@link Editor#commit()} syncs the file before returning, {@link Editor#apply()} only writes and syncs in the background,
+ * applies made in the meantime share one sync. A torn batch at the end of the file, e.g. after a crash, is truncated on open.
+ * Once the records that were overwritten or removed take up more than a threshold of the file it's compacted in the background:
+ * the live records are copied to a new file that replaces the log.
+ */
+final class LogStructuredPreferences implements SharedPreferences, Closeable {
+    static final String FILE_SUFFIX = ".spslog";
+    private static final String COMPACTION_SUFFIX = ".compact";
+
+    //"SPSL"
+    private static final int MAGIC = 0x5350534C;
+    private static final int FORMAT_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    //payload length and checksum
+    private static final int BATCH_HEADER_SIZE = 8;
+    private static final int MAX_BATCH_SIZE = 64 * 1024 * 1024;
+    //batch size compaction aims for
+    private static final int COMPACTION_BATCH_SIZE = 64 * 1024;
+
+    static final long DEFAULT_MIN_COMPACTION_BYTES = 64 * 1024;
+    static final float DEFAULT_COMPACTION_THRESHOLD = 0.5f;
+
+    private static final byte OP_STRING = 1;
+    private static final byte OP_STRING_SET = 2;
+    private static final byte OP_INT = 3;
+    private static final byte OP_LONG = 4;
+    private static final byte OP_FLOAT = 5;
+    private static final byte OP_BOOLEAN = 6;
+    private static final byte OP_REMOVE = 7;
+    private static final byte OP_CLEAR = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //marks a key removed in an editor
+    private static final Object REMOVED = new Object();
+
+    /**
+     * Where the latest record of a key is in the file
+     */
+    static final class Record {
+        final long offset;
+        final int length;
+
+        Record(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File mFile;
+    private final Executor mExecutor;
+    private final long mMinCompactionBytes;
+    private final float mCompactionThreshold;
+
+    //readers share the channel, writers and compaction take it exclusively
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private FileChannel mChannel;
+    private HashMap<String, Record> mIndex = new HashMap<>();
+    private long mEnd;
+    private long mLiveBytes;
+    private boolean mClosed = false;
+
+    private final Object mSyncLock = new Object();
+    private boolean mSyncScheduled = false;
+    private boolean mCompacting = false;
+    private int mCompactions = 0;
+
+    //like the platform's preferences, listeners are weakly referenced
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners = new WeakHashMap<>();
+
+    private final Runnable mSync = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mSyncLock) {
+                mSyncScheduled = false;
+            }
+
+            try {
+                sync();
+            } catch (IOException e) {
+                Logger.e(e);
+            }
+        }
+    };
+
+    private final Runnable mCompaction = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                compact();
+            } catch (IOException e) {
+                Logger.e(e);
+            } finally {
+                synchronized (mSyncLock) {
+                    mCompacting = false;
+                }
+            }
+        }
+    };
+
+    /**
+     * @param file log file, created if it doesn't exist
+     * @param executor runs background syncs and compactions
+     * @param minCompactionBytes size below which the log isn't compacted
+     * @param compactionThreshold fraction of the log taken by overwritten and removed records that triggers a compaction
+     * @throws IOException if the file can't be opened or isn't a log
+     */
+    LogStructuredPreferences(File file, Executor executor, long minCompactionBytes, float compactionThreshold) throws IOException {
+        if (compactionThreshold <= 0 || compactionThreshold > 1) {
+            throw new IllegalArgumentException("Compaction threshold must be in (0, 1], got " + compactionThreshold);
+        }
+
+        mFile = file;
+        mExecutor = executor;
+        mMinCompactionBytes = minCompactionBytes;
+        mCompactionThreshold = compactionThreshold;
+
+        //a compaction that didn't finish left the log as it was
+        new File(file.getPath() + COMPACTION_SUFFIX).delete();
+        mChannel = openLog(file);
+        boolean loaded = false;
+
+        try {
+            long size = mChannel.size();
+            mEnd = replay(mChannel, FILE_HEADER_SIZE, size, mIndex);
+
+            if (mEnd < size) {
+                Logger.w("Truncating " + (size - mEnd) + " bytes of an incomplete write from " + file.getName());
+                mChannel.truncate(mEnd);
+                mChannel.force(false);
+            }
+
+            mLiveBytes = liveBytes(mIndex);
+            loaded = true;
+        } finally {
+            if (!loaded) mChannel.close();
+        }
+    }
+
+    /**
+     * @return file the log of the named store is kept in
+     */
+    static File logFile(Context context, String name) {
+        return new File(context.getFilesDir(), name + FILE_SUFFIX);
+    }
+
+    static boolean exists(Context context, String name) {
+        return logFile(context, name).exists();
+    }
+
+    /**
+     * Opens the log of the named store. When there's none yet the entries of its preference files are moved into
+     * a new log, which replaces them once it's complete.
+     * @throws IOException if the log can't be opened or created
+     */
+    static LogStructuredPreferences open(Context context, String name) throws IOException {
+        File file = logFile(context, name);
+
+        if (!file.exists()) {
+            SharedPreferences source = ShardedSharedPreferences.open(context, name, ShardedSharedPreferences.KEEP_LAYOUT);
+            Map<String, ?> entries = new HashMap<>(source.getAll());
+            entries.remove(ShardedSharedPreferences.SHARD_COUNT_KEY);
+
+            File importFile = new File(file.getPath() + COMPACTION_SUFFIX);
+            importFile.delete();
+            File parent = file.getParentFile();
+            if (parent != null) parent.mkdirs();
+
+            LogStructuredPreferences imported = new LogStructuredPreferences(importFile, StoreExecutors.async(),
+                    DEFAULT_MIN_COMPACTION_BYTES, DEFAULT_COMPACTION_THRESHOLD);
+
+            try {
+                imported.importAll(entries);
+            } catch (IOException e) {
+                throw new IOException("Unable to write the entries of " + name + " to a log", e);
+            } finally {
+                imported.close();
+            }
+
+            if (!importFile.renameTo(file)) throw new IOException("Unable to create " + file);
+
+            if (!entries.isEmpty()) Logger.d("Moved " + entries.size() + " entries of " + name + " to a log");
+            source.edit().clear().commit();
+            context.getSharedPreferences(name, Context.MODE_PRIVATE).edit().clear().commit();
+        }
+
+        return new LogStructuredPreferences(file, StoreExecutors.async(), DEFAULT_MIN_COMPACTION_BYTES, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    private static FileChannel openLog(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        boolean opened = false;
+
+        try {
+            if (channel.size() < FILE_HEADER_SIZE) {
+                //new, or created by a write that didn't finish
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+                channel.truncate(0);
+                writeFully(channel, header, 0);
+                channel.force(true);
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                readFully(channel, header, 0);
+                header.flip();
+
+                if (header.getInt() != MAGIC) throw new IOException(file + " isn't a store log");
+                int version = header.getInt();
+                if (version != FORMAT_VERSION) throw new IOException("Unsupported log format: " + version);
+            }
+
+            opened = true;
+            return channel;
+        } finally {
+            if (!opened) channel.close();
+        }
+    }
+
+    /**
+     * Applies the batches between the offsets to the index
+     * @return offset after the last complete batch
+     */
+    private static long replay(FileChannel channel, long from, long to, Map<String, Record> index) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        long position = from;
+
+        while (position + BATCH_HEADER_SIZE <= to) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+
+            if (length <= 0 || length > MAX_BATCH_SIZE || position + BATCH_HEADER_SIZE + length > to) break;
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, position + BATCH_HEADER_SIZE);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) break;
+
+            payload.flip();
+            long payloadOffset = position + BATCH_HEADER_SIZE;
+
+            try {
+                while (payload.hasRemaining()) {
+                    int start = payload.position();
+                    byte op = payload.get();
+                    String key = readString(payload);
+                    skipValue(op, payload);
+
+                    if (op == OP_CLEAR) index.clear();
+                    else if (op == OP_REMOVE) index.remove(key);
+                    else index.put(key, new Record(payloadOffset + start, payload.position() - start));
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Malformed batch at " + position, e);
+            }
+
+            position += BATCH_HEADER_SIZE + length;
+        }
+
+        return position;
+    }
+
+    private static long liveBytes(Map<String, Record> index) {
+        long live = 0;
+
+        for (Record record : index.values()) {
+            live += record.length;
+        }
+
+        return live;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException();
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length > 0) buffer.position(buffer.position() + length);
+    }
+
+    private static void skipValue(byte op, ByteBuffer buffer) throws IOException {
+        switch (op) {
+            case OP_STRING:
+                skipString(buffer);
+                break;
+            case OP_STRING_SET:
+                int count = buffer.getInt();
+                for (int i = 0; i < count; i++) {
+                    skipString(buffer);
+                }
+                break;
+            case OP_INT:
+            case OP_FLOAT:
+                buffer.position(buffer.position() + 4);
+                break;
+            case OP_LONG:
+                buffer.position(buffer.position() + 8);
+                break;
+            case OP_BOOLEAN:
+                buffer.position(buffer.position() + 1);
+                break;
+            case OP_REMOVE:
+            case OP_CLEAR:
+                break;
+            default:
+                throw new IOException("Unknown record type: " + op);
+        }
+    }
+
+    private static Object readValue(ByteBuffer buffer) throws IOException {
+        byte op = buffer.get();
+        skipString(buffer);
+
+        switch (op) {
+            case OP_STRING:
+                return readString(buffer);
+            case OP_STRING_SET:
+                int count = buffer.getInt();
+                Set<String> values = new HashSet<>(count);
+                for (int i = 0; i < count; i++) {
+                    values.add(readString(buffer));
+                }
+                return values;
+            case OP_INT:
+                return buffer.getInt();
+            case OP_LONG:
+                return buffer.getLong();
+            case OP_FLOAT:
+                return buffer.getFloat();
+            case OP_BOOLEAN:
+                return buffer.get() != 0;
+            default:
+                throw new IOException("Unknown record type: " + op);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeOp(DataOutputStream out, String key, Object value) throws IOException {
+        if (value == REMOVED) {
+            out.writeByte(OP_REMOVE);
+            writeString(out, key);
+        } else if (value instanceof String) {
+            out.writeByte(OP_STRING);
+            writeString(out, key);
+            writeString(out, (String) value);
+        } else if (value instanceof Set) {
+            Set<String> values = (Set<String>) value;
+            out.writeByte(OP_STRING_SET);
+            writeString(out, key);
+            out.writeInt(values.size());
+            for (String item : values) {
+                writeString(out, item);
+            }
+        } else if (value instanceof Integer) {
+            out.writeByte(OP_INT);
+            writeString(out, key);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(OP_LONG);
+            writeString(out, key);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(OP_FLOAT);
+            writeString(out, key);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(OP_BOOLEAN);
+            writeString(out, key);
+            out.writeBoolean((Boolean) value);
+        } else {
+            throw new IllegalArgumentException("Unsupported value type: " + value.getClass());
+        }
+    }
+
+    /**
+     * @return payload with its header in front, ready to be appended
+     */
+    private static ByteBuffer toBatch(byte[] payload, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+
+        ByteBuffer batch = ByteBuffer.allocate(BATCH_HEADER_SIZE + length);
+        batch.putInt(length).putInt((int) crc.getValue()).put(payload, 0, length).flip();
+        return batch;
+    }
+
+    private Object read(String key) {
+        mLock.readLock().lock();
+
+        try {
+            Record record = mIndex.get(key);
+            if (record == null) return null;
+
+            return readRecord(mChannel, record);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read from " + mFile.getName(), e);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    private static Object readRecord(FileChannel channel, Record record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(record.length);
+        readFully(channel, buffer, record.offset);
+        buffer.flip();
+        return readValue(buffer);
+    }
+
+    /**
+     * Appends the changes as one batch and updates the index
+     * @return keys that were changed, including the ones a clear removed
+     */
+    private List<String> append(Map<String, Object> changes, boolean clear) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        List<String> keys = new ArrayList<>(changes.size());
+        List<Integer> ends = new ArrayList<>(changes.size());
+
+        if (clear) {
+            out.writeByte(OP_CLEAR);
+            writeString(out, "");
+        }
+        int start = out.size();
+
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            writeOp(out, change.getKey(), change.getValue());
+            keys.add(change.getKey());
+            ends.add(out.size());
+        }
+        out.flush();
+
+        if (out.size() == 0) return Collections.emptyList();
+        //a longer batch would be taken for a torn one and truncated when the log is opened again
+        if (out.size() > MAX_BATCH_SIZE) {
+            throw new IOException("Batch of " + out.size() + " bytes is over the limit of " + MAX_BATCH_SIZE);
+        }
+
+        Set<String> changed = new LinkedHashSet<>();
+        mLock.writeLock().lock();
+
+        try {
+            if (mClosed) throw new IOException(mFile.getName() + " is closed");
+
+            long payloadOffset = mEnd + BATCH_HEADER_SIZE;
+            writeFully(mChannel, toBatch(bytes.toByteArray(), bytes.size()), mEnd);
+            mEnd = payloadOffset + bytes.size();
+
+            if (clear) {
+                changed.addAll(mIndex.keySet());
+                mIndex.clear();
+                mLiveBytes = 0;
+            }
+
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                int end = ends.get(i);
+                Record previous = changes.get(key) == REMOVED ? mIndex.remove(key)
+                        : mIndex.put(key, new Record(payloadOffset + start, end - start));
+
+                if (previous != null) mLiveBytes -= previous.length;
+                if (changes.get(key) != REMOVED) mLiveBytes += end - start;
+                changed.add(key);
+                start = end;
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+
+        return new ArrayList<>(changed);
+    }
+
+    /**
+     * Appends the entries in batches of about {@link #COMPACTION_BATCH_SIZE} bytes and syncs them.
+     * Unlike a commit they aren't written all at once, use it to fill a log that isn't in use yet.
+     * @throws IOException if any of them can't be written
+     */
+    void importAll(Map<String, ?> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(COMPACTION_BATCH_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<String, Object> batch = new LinkedHashMap<>();
+
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            //encoded only to measure the batch, append encodes it again
+            writeOp(out, entry.getKey(), entry.getValue());
+            batch.put(entry.getKey(), entry.getValue());
+
+            if (bytes.size() >= COMPACTION_BATCH_SIZE) {
+                append(batch, false);
+                batch.clear();
+                bytes.reset();
+            }
+        }
+
+        if (!batch.isEmpty()) append(batch, false);
+        sync();
+    }
+
+    /**
+     * Forces everything written so far to the disk
+     */
+    void sync() throws IOException {
+        while (true) {
+            FileChannel channel;
+
+            mLock.readLock().lock();
+            try {
+                if (mClosed) throw new IOException(mFile.getName() + " is closed");
+                channel = mChannel;
+            } finally {
+                mLock.readLock().unlock();
+            }
+
+            try {
+                //outside the lock, so writers don't wait for the disk
+                channel.force(false);
+                return;
+            } catch (ClosedChannelException e) {
+                //replaced by a compaction, which synced what was written before. Sync the new file in case of later writes
+            }
+        }
+    }
+
+    private void scheduleSync() {
+        synchronized (mSyncLock) {
+            if (mSyncScheduled) return;
+            mSyncScheduled = true;
+        }
+
+        try {
+            mExecutor.execute(mSync);
+        } catch (RejectedExecutionException e) {
+            mSync.run();
+        }
+    }
+
+    private void maybeCompact() {
+        mLock.readLock().lock();
+
+        try {
+            long size = mEnd - FILE_HEADER_SIZE;
+            if (mClosed || size < mMinCompactionBytes || size - mLiveBytes <= size * mCompactionThreshold) return;
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        synchronized (mSyncLock) {
+            if (mCompacting) return;
+            mCompacting = true;
+        }
+
+        try {
+            mExecutor.execute(mCompaction);
+        } catch (RejectedExecutionException e) {
+            mCompaction.run();
+        }
+    }
+
+    /**
+     * Copies the live records to a new file that replaces the log. Writes made while copying are appended to the
+     * new file before it takes over, so they only wait for that last part
+     */
+    void compact() throws IOException {
+        Map<String, Record> snapshot;
+        long snapshotEnd;
+
+        mLock.readLock().lock();
+        try {
+            if (mClosed) return;
+            snapshot = new HashMap<>(mIndex);
+            snapshotEnd = mEnd;
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        File compactFile = new File(mFile.getPath() + COMPACTION_SUFFIX);
+        compactFile.delete();
+        FileChannel compacted = openLog(compactFile);
+        boolean replaced = false;
+
+        try {
+            HashMap<String, Record> index = new HashMap<>(snapshot.size());
+            long end = copyLive(snapshot, compacted, index);
+
+            mLock.writeLock().lock();
+            try {
+                if (mClosed) return;
+
+                //writes made while copying
+                long tail = mEnd - snapshotEnd;
+                if (tail > 0) {
+                    long copied = 0;
+                    while (copied < tail) {
+                        copied += compacted.transferFrom(mChannel.position(snapshotEnd + copied), end + copied, tail - copied);
+                    }
+
+                    long replayed = replay(compacted, end, end + tail, index);
+                    if (replayed != end + tail) throw new IOException("Unable to copy the latest writes of " + mFile.getName());
+                    end += tail;
+                }
+
+                compacted.force(true);
+                if (!compactFile.renameTo(mFile)) throw new IOException("Unable to replace " + mFile.getName());
+
+                Logger.d("Compacted " + mFile.getName() + " from " + mEnd + " to " + end + " bytes");
+                mChannel.close();
+                mChannel = compacted;
+                mIndex = index;
+                mEnd = end;
+                mLiveBytes = liveBytes(index);
+                mCompactions++;
+                replaced = true;
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        } finally {
+            if (!replaced) {
+                compacted.close();
+                compactFile.delete();
+            }
+        }
+    }
+
+    /**
+     * @return end of the copied records in the new file
+     */
+    private long copyLive(Map<String, Record> snapshot, FileChannel target, Map<String, Record> index) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(COMPACTION_BATCH_SIZE);
+        List<Map.Entry<String, Record>> pending = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        long end = FILE_HEADER_SIZE;
+
+        for (Map.Entry<String, Record> entry : snapshot.entrySet()) {
+            Record record = entry.getValue();
+            ByteBuffer bytes = ByteBuffer.allocate(record.length);
+
+            mLock.readLock().lock();
+            try {
+                if (mClosed) throw new IOException(mFile.getName() + " is closed");
+                readFully(mChannel, bytes, record.offset);
+            } finally {
+                mLock.readLock().unlock();
+            }
+
+            offsets.add(payload.size());
+            pending.add(entry);
+            payload.write(bytes.array(), 0, record.length);
+
+            if (payload.size() >= COMPACTION_BATCH_SIZE) {
+                end = writeCopied(target, end, payload, pending, offsets, index);
+            }
+        }
+
+        if (payload.size() > 0) end = writeCopied(target, end, payload, pending, offsets, index);
+
+        return end;
+    }
+
+    private static long writeCopied(FileChannel target, long end, ByteArrayOutputStream payload, List<Map.Entry<String, Record>> pending,
+                                    List<Integer> offsets, Map<String, Record> index) throws IOException {
+        writeFully(target, toBatch(payload.toByteArray(), payload.size()), end);
+        long payloadOffset = end + BATCH_HEADER_SIZE;
+
+        for (int i = 0; i < pending.size(); i++) {
+            index.put(pending.get(i).getKey(), new Record(payloadOffset + offsets.get(i), pending.get(i).getValue().length));
+        }
+
+        end = payloadOffset + payload.size();
+        payload.reset();
+        pending.clear();
+        offsets.clear();
+        return end;
+    }
+
+    /**
+     * @return size of the log file
+     */
+    long size() {
+        mLock.readLock().lock();
+
+        try {
+            return mEnd;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes taken by records that were overwritten or removed
+     */
+    long deadBytes() {
+        mLock.readLock().lock();
+
+        try {
+            return mEnd - FILE_HEADER_SIZE - mLiveBytes;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    int compactionCount() {
+        synchronized (mSyncLock) {
+            return mCompactions;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mLock.writeLock().lock();
+
+        try {
+            if (mClosed) return;
+            mClosed = true;
+            mChannel.close();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        mLock.readLock().lock();
+
+        try {
+            Map<String, Object> all = new HashMap<>(mIndex.size());
+
+            for (Map.Entry<String, Record> entry : mIndex.entrySet()) {
+                all.put(entry.getKey(), readRecord(mChannel, entry.getValue()));
+            }
+
+            return all;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read from " + mFile.getName(), e);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        Object value = read(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    @Nullable
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        Object value = read(key);
+        return value != null ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = read(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = read(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Object value = read(key);
+        return value != null ? (Float) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = read(key);
+        return value != null ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        mLock.readLock().lock();
+
+        try {
+            return mIndex.containsKey(key);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Editor edit() {
+        return new LogEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.put(listener, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    private void notifyListeners(List<String> keys) {
+        OnSharedPreferenceChangeListener[] listeners;
+
+        synchronized (mListeners) {
+            if (mListeners.isEmpty()) return;
+            listeners = mListeners.keySet().toArray(new OnSharedPreferenceChangeListener[0]);
+        }
+
+        for (String key : keys) {
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+    }
+
+    private final class LogEditor implements Editor {
+        private final Map<String, Object> mChanges = new LinkedHashMap<>();
+        private boolean mClear = false;
+
+        private Editor put(String key, @Nullable Object value) {
+            synchronized (this) {
+                mChanges.put(key, value != null ? value : REMOVED);
+            }
+
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, @Nullable String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, @Nullable Set<String> values) {
+            return put(key, values != null ? new HashSet<>(values) : null);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        private List<String> write() throws IOException {
+            Map<String, Object> changes;
+            boolean clear;
+
+            synchronized (this) {
+                changes = new LinkedHashMap<>(mChanges);
+                clear = mClear;
+                mChanges.clear();
+                mClear = false;
+            }
+
+            return append(changes, clear);
+        }
+
+        @Override
+        public boolean commit() {
+            try {
+                List<String> changed = write();
+                if (changed.isEmpty()) return true;
+
+                sync();
+                notifyListeners(changed);
+                maybeCompact();
+                return true;
+            } catch (IOException e) {
+                Logger.e(e);
+                return false;
+            }
+        }
+
+        @Override
+        public void apply() {
+            try {
+                List<String> changed = write();
+                if (changed.isEmpty()) return;
+
+                scheduleSync();
+                notifyListeners(changed);
+                maybeCompact();
+            } catch (IOException e) {
+                Logger.e(e);
+            }
+        }
+    }
+}
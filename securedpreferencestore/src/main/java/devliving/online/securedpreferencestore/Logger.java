@@ -10,6 +10,11 @@ public class Logger {
         enabled = true;
     }
 
+    //android.util.Log can't be used in JVM unit tests
+    static void setEnabled(boolean enabled) {
+        Logger.enabled = enabled;
+    }
+
     public static void i(String message) {
         if(enabled) {
             Log.i(TAG, message);
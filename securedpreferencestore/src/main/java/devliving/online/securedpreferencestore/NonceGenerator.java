@@ -0,0 +1,191 @@
+package devliving.online.securedpreferencestore;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Source of random IVs/nonces for {@link EncryptionManager}.
+ * Creating a new {@link SecureRandom} for every IV means seeding it every time, a generator keeps the
+ * random number generators around instead.
+ */
+public abstract class NonceGenerator {
+    public enum Strategy {
+        /**
+         * one thread safe {@link SecureRandom} shared by all threads
+         */
+        SHARED,
+        /**
+         * one {@link SecureRandom} per thread
+         */
+        PER_THREAD,
+        /**
+         * random bytes are generated ahead of time in a background thread, nonces are sliced out of them.
+         * Falls back to generating in the calling thread if the buffer runs dry
+         */
+        PREFETCHED
+    }
+
+    private static final int PREFETCH_CHUNK_SIZE = 4096;
+    private static final int PREFETCH_CHUNK_COUNT = 4;
+
+    private static NonceGenerator mDefault;
+
+    public static NonceGenerator create(Strategy strategy) {
+        switch (strategy) {
+            case PER_THREAD:
+                return new PerThreadNonceGenerator();
+            case PREFETCHED:
+                return new PrefetchedNonceGenerator(PREFETCH_CHUNK_SIZE, PREFETCH_CHUNK_COUNT);
+            case SHARED:
+            default:
+                return new SharedNonceGenerator();
+        }
+    }
+
+    /**
+     * @return the generator used by an {@link EncryptionManager} unless another one is set
+     */
+    public static synchronized NonceGenerator getDefault() {
+        if (mDefault == null) mDefault = create(Strategy.SHARED);
+        return mDefault;
+    }
+
+    public static synchronized void setDefault(NonceGenerator generator) {
+        mDefault = generator;
+    }
+
+    /**
+     * @param length nonce length in bytes, 12 for AES-GCM and 16 for AES-CBC
+     * @return a new random nonce
+     */
+    public byte[] next(int length) {
+        if (length <= 0) throw new IllegalArgumentException("Invalid nonce length: " + length);
+
+        byte[] nonce = new byte[length];
+        nextBytes(nonce);
+        return nonce;
+    }
+
+    public abstract Strategy getStrategy();
+
+    protected abstract void nextBytes(byte[] nonce);
+
+    static class SharedNonceGenerator extends NonceGenerator {
+        private final SecureRandom mRandom = new SecureRandom();
+
+        @Override
+        public Strategy getStrategy() {
+            return Strategy.SHARED;
+        }
+
+        @Override
+        protected void nextBytes(byte[] nonce) {
+            mRandom.nextBytes(nonce);
+        }
+    }
+
+    static class PerThreadNonceGenerator extends NonceGenerator {
+        private final ThreadLocal<SecureRandom> mRandom = new ThreadLocal<SecureRandom>() {
+            @Override
+            protected SecureRandom initialValue() {
+                return new SecureRandom();
+            }
+        };
+
+        @Override
+        public Strategy getStrategy() {
+            return Strategy.PER_THREAD;
+        }
+
+        @Override
+        protected void nextBytes(byte[] nonce) {
+            mRandom.get().nextBytes(nonce);
+        }
+    }
+
+    static class PrefetchedNonceGenerator extends NonceGenerator {
+        private final int mChunkSize;
+        private final BlockingQueue<byte[]> mChunks;
+        private final SecureRandom mRandom = new SecureRandom();
+        private final AtomicBoolean mRefilling = new AtomicBoolean(false);
+        private final Executor mRefillExecutor;
+
+        private byte[] mCurrent;
+        private int mPosition;
+
+        private final Runnable mRefill = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (mChunks.remainingCapacity() > 0) {
+                        byte[] chunk = new byte[mChunkSize];
+                        mRandom.nextBytes(chunk);
+                        if (!mChunks.offer(chunk)) break;
+                    }
+                } finally {
+                    mRefilling.set(false);
+                }
+            }
+        };
+
+        PrefetchedNonceGenerator(int chunkSize, int chunkCount) {
+            mChunkSize = chunkSize;
+            mChunks = new ArrayBlockingQueue<>(chunkCount);
+
+            mRefillExecutor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SPS-NonceGenerator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            scheduleRefill();
+        }
+
+        @Override
+        public Strategy getStrategy() {
+            return Strategy.PREFETCHED;
+        }
+
+        @Override
+        protected void nextBytes(byte[] nonce) {
+            if (nonce.length > mChunkSize) {
+                mRandom.nextBytes(nonce);
+                return;
+            }
+
+            synchronized (this) {
+                if (mCurrent == null || mCurrent.length - mPosition < nonce.length) {
+                    mCurrent = mChunks.poll();
+                    mPosition = 0;
+                    scheduleRefill();
+                }
+
+                if (mCurrent != null) {
+                    System.arraycopy(mCurrent, mPosition, nonce, 0, nonce.length);
+                    mPosition += nonce.length;
+                    return;
+                }
+            }
+
+            //buffer ran dry, don't wait for the background thread
+            mRandom.nextBytes(nonce);
+        }
+
+        private void scheduleRefill() {
+            if (mChunks.remainingCapacity() > 0 && mRefilling.compareAndSet(false, true)) {
+                mRefillExecutor.execute(mRefill);
+            }
+        }
+    }
+}
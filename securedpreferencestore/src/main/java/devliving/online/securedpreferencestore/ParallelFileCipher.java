@@ -0,0 +1,198 @@
+package devliving.online.securedpreferencestore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Encrypts and decrypts files in the {@link SegmentedFileCipher} format with the segments spread over an executor.
+ * The calling thread reads the segments, hands them to the executor and writes the results in order.
+ * At most maxInFlight segments are being processed or waiting to be written, which bounds the memory used
+ * to about 2 * maxInFlight segments.
+ */
+final class ParallelFileCipher {
+    interface CipherFactory {
+        /**
+         * @return a cipher with its own Cipher and Mac instances
+         */
+        SegmentedFileCipher newCipher() throws GeneralSecurityException;
+    }
+
+    private final CipherFactory mFactory;
+    private final Executor mExecutor;
+    private final int mMaxInFlight;
+
+    //ciphers aren't thread safe, each segment borrows one and returns it when done
+    private final LinkedBlockingQueue<SegmentedFileCipher> mCiphers = new LinkedBlockingQueue<>();
+
+    ParallelFileCipher(CipherFactory factory, Executor executor, int maxInFlight) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be at least 1");
+
+        mFactory = factory;
+        mExecutor = executor;
+        mMaxInFlight = maxInFlight;
+    }
+
+    /**
+     * Doesn't close the streams
+     */
+    void encrypt(InputStream in, OutputStream out, int segmentSize) throws IOException, GeneralSecurityException {
+        SegmentedFileCipher headerCipher = borrowCipher();
+        byte[] header = headerCipher.newHeader(segmentSize);
+        mCiphers.offer(headerCipher);
+        out.write(header);
+
+        ArrayDeque<FutureTask<byte[]>> inFlight = new ArrayDeque<>(mMaxInFlight);
+
+        try {
+            byte[] current = new byte[segmentSize];
+            int currentLength = SegmentedFileCipher.readFully(in, current, segmentSize);
+            int segment = 0;
+
+            while (true) {
+                byte[] next = new byte[segmentSize];
+                int nextLength = currentLength == segmentSize ? SegmentedFileCipher.readFully(in, next, segmentSize) : 0;
+                boolean last = nextLength == 0;
+
+                submit(inFlight, out, new SegmentTask(true, header, segment, last, current, currentLength));
+                if (last) break;
+
+                current = next;
+                currentLength = nextLength;
+                segment = SegmentedFileCipher.nextSegment(segment);
+            }
+
+            while (!inFlight.isEmpty()) {
+                out.write(await(inFlight.poll()));
+            }
+        } finally {
+            cancel(inFlight);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Doesn't close the streams. Segments are written in order as soon as they're verified,
+     * if an exception is thrown the output written so far must be discarded.
+     */
+    void decrypt(InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        byte[] header = new byte[SegmentedFileCipher.HEADER_LENGTH];
+        if (SegmentedFileCipher.readFully(in, header, header.length) != header.length) throw new IOException("Truncated header");
+
+        SegmentedFileCipher headerCipher = borrowCipher();
+        int segmentSize = headerCipher.checkHeader(header);
+        int sealedSize = SegmentedFileCipher.sealedLength(headerCipher.suite(), segmentSize);
+        mCiphers.offer(headerCipher);
+
+        ArrayDeque<FutureTask<byte[]>> inFlight = new ArrayDeque<>(mMaxInFlight);
+
+        try {
+            byte[] current = new byte[sealedSize];
+            int currentLength = SegmentedFileCipher.readFully(in, current, sealedSize);
+            int segment = 0;
+
+            while (true) {
+                byte[] next = new byte[sealedSize];
+                int nextLength = currentLength == sealedSize ? SegmentedFileCipher.readFully(in, next, sealedSize) : 0;
+                boolean last = nextLength == 0;
+
+                submit(inFlight, out, new SegmentTask(false, header, segment, last, current, currentLength));
+                if (last) break;
+
+                current = next;
+                currentLength = nextLength;
+                segment = SegmentedFileCipher.nextSegment(segment);
+            }
+
+            while (!inFlight.isEmpty()) {
+                out.write(await(inFlight.poll()));
+            }
+        } finally {
+            cancel(inFlight);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Waits for the oldest segment and writes it first if there are already maxInFlight of them
+     */
+    private void submit(ArrayDeque<FutureTask<byte[]>> inFlight, OutputStream out, Callable<byte[]> work) throws IOException, GeneralSecurityException {
+        if (inFlight.size() == mMaxInFlight) out.write(await(inFlight.poll()));
+
+        FutureTask<byte[]> task = new FutureTask<>(work);
+        inFlight.add(task);
+
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private static byte[] await(FutureTask<byte[]> task) throws IOException, GeneralSecurityException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a segment", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+
+            throw new IOException(cause);
+        }
+    }
+
+    private static void cancel(ArrayDeque<FutureTask<byte[]>> inFlight) {
+        for (FutureTask<byte[]> task : inFlight) {
+            task.cancel(false);
+        }
+    }
+
+    private SegmentedFileCipher borrowCipher() throws GeneralSecurityException {
+        SegmentedFileCipher cipher = mCiphers.poll();
+        return cipher != null ? cipher : mFactory.newCipher();
+    }
+
+    private class SegmentTask implements Callable<byte[]> {
+        final boolean encrypt;
+        final byte[] header;
+        final int segment;
+        final boolean last;
+        final byte[] data;
+        final int length;
+
+        SegmentTask(boolean encrypt, byte[] header, int segment, boolean last, byte[] data, int length) {
+            this.encrypt = encrypt;
+            this.header = header;
+            this.segment = segment;
+            this.last = last;
+            this.data = data;
+            this.length = length;
+        }
+
+        @Override
+        public byte[] call() throws Exception {
+            SegmentedFileCipher cipher = borrowCipher();
+
+            try {
+                return encrypt ? cipher.seal(header, segment, last, data, length) : cipher.open(header, segment, last, data, length);
+            } finally {
+                mCiphers.offer(cipher);
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ public abstract class RecoveryHandler {
         if(keyStore != null && aliases != null){
             for(String alias:aliases){
                 if(keyStore.containsAlias(alias)) keyStore.deleteEntry(alias);
+                KeyStoreAccess.shared().invalidate(alias);
             }
         }
     }
@@ -28,6 +29,7 @@ public abstract class RecoveryHandler {
             for(String alias:aliases){
                 if(keyStore.containsAlias(alias)) keyStore.deleteEntry(alias);
             }
+            KeyStoreAccess.shared().invalidateAll();
         }
     }
 
@@ -0,0 +1,318 @@
+package devliving.online.securedpreferencestore;
+
+import android.os.Looper;
+
+import java.io.IOException;
+import java.security.KeyStoreException;
+import java.security.ProviderException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.IllegalBlockSizeException;
+
+/**
+ * Decides whether and when a failed keystore access of {@link SecuredPreferenceStore} is retried.
+ * Only transient errors are retried, with exponential backoff and jitter, within a per operation deadline.
+ * Retries are also limited by a budget shared by all the operations using the policy, it's refilled by
+ * successful operations so a keystore that keeps failing doesn't multiply the work.
+ * Calls made on the main thread use shorter delays and deadline.
+ *
+ * Override {@link #isTransient(Exception)} to change which errors are retried.
+ */
+public class RetryPolicy {
+    private static final int TOKEN_COST = 10;
+
+    private final int mMaxAttempts;
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final long mDeadlineMillis;
+    private final long mMainThreadMaxDelayMillis;
+    private final long mMainThreadDeadlineMillis;
+    private final int mMaxTokens;
+
+    private final AtomicInteger mTokens;
+    private final Random mRandom = new Random();
+
+    private final AtomicLong mOperationCount = new AtomicLong();
+    private final AtomicLong mAttemptCount = new AtomicLong();
+    private final AtomicLong mFailedOperationCount = new AtomicLong();
+    private final AtomicLong mBudgetExhaustedCount = new AtomicLong();
+
+    protected RetryPolicy(Builder builder) {
+        mMaxAttempts = builder.maxAttempts;
+        mInitialDelayMillis = builder.initialDelayMillis;
+        mMaxDelayMillis = builder.maxDelayMillis;
+        mMultiplier = builder.multiplier;
+        mJitter = builder.jitter;
+        mDeadlineMillis = builder.deadlineMillis;
+        mMainThreadMaxDelayMillis = builder.mainThreadMaxDelayMillis;
+        mMainThreadDeadlineMillis = builder.mainThreadDeadlineMillis;
+        mMaxTokens = builder.retryBudget * TOKEN_COST;
+        mTokens = new AtomicInteger(mMaxTokens);
+    }
+
+    /**
+     * @return policy used by the store unless another one is set
+     */
+    public static RetryPolicy defaultPolicy() {
+        return new Builder().build();
+    }
+
+    /**
+     * @return a policy that never retries
+     */
+    public static RetryPolicy noRetry() {
+        return new Builder().setMaxAttempts(1).build();
+    }
+
+    /**
+     * @param e error thrown by an attempt
+     * @return true if the same operation may succeed when tried again
+     */
+    protected boolean isTransient(Exception e) {
+        Throwable error = e;
+
+        while (error != null) {
+            if (error instanceof KeyStoreException
+                    || error instanceof ProviderException
+                    || error instanceof IllegalBlockSizeException
+                    || error instanceof IllegalStateException
+                    || error instanceof IOException) {
+                return true;
+            }
+
+            error = error.getCause() != error ? error.getCause() : null;
+        }
+
+        return false;
+    }
+
+    /**
+     * Called once per operation with the number of attempts it took, for monitoring
+     * @param attempts number of attempts
+     * @param lastError the error that made the operation fail, null if it succeeded
+     */
+    protected void onOperationFinished(int attempts, Exception lastError) {
+    }
+
+    Attempt begin() {
+        mOperationCount.incrementAndGet();
+        return new Attempt(isMainThread());
+    }
+
+    /**
+     * Overridden by unit tests, the Looper of the stubbed android.jar can't be used
+     * @return true if called on the main thread
+     */
+    boolean isMainThread() {
+        Looper mainLooper = Looper.getMainLooper();
+        return mainLooper != null && mainLooper.getThread() == Thread.currentThread();
+    }
+
+    private boolean acquireRetryToken() {
+        while (true) {
+            int tokens = mTokens.get();
+            if (tokens < TOKEN_COST) return false;
+            if (mTokens.compareAndSet(tokens, tokens - TOKEN_COST)) return true;
+        }
+    }
+
+    private void refillRetryToken() {
+        while (true) {
+            int tokens = mTokens.get();
+            if (tokens >= mMaxTokens) return;
+            if (mTokens.compareAndSet(tokens, tokens + 1)) return;
+        }
+    }
+
+    long computeDelayMillis(int retry, boolean mainThread) {
+        double delay = mInitialDelayMillis * Math.pow(mMultiplier, retry - 1);
+        delay = Math.min(delay, mMaxDelayMillis);
+        if (mainThread) delay = Math.min(delay, mMainThreadMaxDelayMillis);
+
+        double jitter;
+        synchronized (mRandom) {
+            jitter = mRandom.nextDouble();
+        }
+
+        return Math.round(delay * (1 - mJitter * jitter));
+    }
+
+    public long getOperationCount() {
+        return mOperationCount.get();
+    }
+
+    public long getAttemptCount() {
+        return mAttemptCount.get();
+    }
+
+    /**
+     * @return number of attempts made after the first one of each operation
+     */
+    public long getRetryCount() {
+        return mAttemptCount.get() - mOperationCount.get();
+    }
+
+    public long getFailedOperationCount() {
+        return mFailedOperationCount.get();
+    }
+
+    /**
+     * @return number of times a retry was skipped because the retry budget was used up
+     */
+    public long getBudgetExhaustedCount() {
+        return mBudgetExhaustedCount.get();
+    }
+
+    /**
+     * @return number of retries left in the shared budget
+     */
+    public int getRemainingRetryBudget() {
+        return mTokens.get() / TOKEN_COST;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RetryPolicy[operations=%d, retries=%d, failed=%d, budgetExhausted=%d]",
+                getOperationCount(), getRetryCount(), getFailedOperationCount(), getBudgetExhaustedCount());
+    }
+
+    /**
+     * State of a single operation
+     */
+    class Attempt {
+        private final long mStartNanos = System.nanoTime();
+        private final boolean mMainThread;
+        private int mAttempts = 1;
+
+        Attempt(boolean mainThread) {
+            mMainThread = mainThread;
+            mAttemptCount.incrementAndGet();
+        }
+
+        int attempts() {
+            return mAttempts;
+        }
+
+        void succeeded() {
+            refillRetryToken();
+            onOperationFinished(mAttempts, null);
+        }
+
+        /**
+         * @param e error thrown by the last attempt
+         * @return milliseconds to wait before the next attempt, -1 to give up
+         */
+        long failed(Exception e) {
+            long delay = nextDelay(e);
+
+            if (delay < 0) {
+                mFailedOperationCount.incrementAndGet();
+                onOperationFinished(mAttempts, e);
+            } else {
+                mAttempts++;
+                mAttemptCount.incrementAndGet();
+            }
+
+            return delay;
+        }
+
+        private long nextDelay(Exception e) {
+            if (mAttempts >= mMaxAttempts || !isTransient(e)) return -1;
+
+            long delay = computeDelayMillis(mAttempts, mMainThread);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos);
+            long deadline = mMainThread ? Math.min(mDeadlineMillis, mMainThreadDeadlineMillis) : mDeadlineMillis;
+            if (elapsed + delay > deadline) return -1;
+
+            if (!acquireRetryToken()) {
+                mBudgetExhaustedCount.incrementAndGet();
+                return -1;
+            }
+
+            return delay;
+        }
+    }
+
+    public static class Builder {
+        int maxAttempts = 3;
+        long initialDelayMillis = 10;
+        long maxDelayMillis = 200;
+        double multiplier = 2;
+        double jitter = 0.5;
+        long deadlineMillis = 1000;
+        long mainThreadMaxDelayMillis = 5;
+        long mainThreadDeadlineMillis = 50;
+        int retryBudget = 20;
+
+        /**
+         * @param maxAttempts total number of attempts including the first one
+         */
+        public Builder setMaxAttempts(int maxAttempts) {
+            if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be at least 1");
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * @param initialDelayMillis delay before the first retry, later delays are multiplied by the multiplier
+         * @param maxDelayMillis upper limit of a delay
+         * @param multiplier growth of the delay between attempts
+         */
+        public Builder setBackoff(long initialDelayMillis, long maxDelayMillis, double multiplier) {
+            if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis || multiplier < 1) {
+                throw new IllegalArgumentException("Invalid backoff");
+            }
+
+            this.initialDelayMillis = initialDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * @param jitter portion of a delay that is randomized, between 0 (no jitter) and 1
+         */
+        public Builder setJitter(double jitter) {
+            if (jitter < 0 || jitter > 1) throw new IllegalArgumentException("jitter must be between 0 and 1");
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * @param deadlineMillis an operation isn't retried if the next attempt would start after this time
+         */
+        public Builder setDeadline(long deadlineMillis) {
+            this.deadlineMillis = deadlineMillis;
+            return this;
+        }
+
+        /**
+         * @param maxDelayMillis upper limit of a delay on the main thread
+         * @param deadlineMillis deadline of an operation on the main thread
+         */
+        public Builder setMainThreadLimits(long maxDelayMillis, long deadlineMillis) {
+            this.mainThreadMaxDelayMillis = maxDelayMillis;
+            this.mainThreadDeadlineMillis = deadlineMillis;
+            return this;
+        }
+
+        /**
+         * @param retryBudget maximum number of retries that can be made in a burst by all the operations,
+         *                    every 10 successful operations earn back one retry
+         */
+        public Builder setRetryBudget(int retryBudget) {
+            if (retryBudget < 0) throw new IllegalArgumentException("retryBudget can not be negative");
+            this.retryBudget = retryBudget;
+            return this;
+        }
+
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+}
@@ -5,7 +5,6 @@ import android.content.SharedPreferences;
 import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
@@ -18,12 +17,30 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -33,21 +50,58 @@ import javax.crypto.NoSuchPaddingException;
  * Created by Mehedi on 8/21/16.
  */
 public class SecuredPreferenceStore implements SharedPreferences {
-    static final int DELAY = 100;                     // in nano seconds
-    static final int MAX_RETRY_COUNT = 3;
-
     private final static int[] VERSIONS_WITH_BREAKING_CHANGES = new int[]{10}; //version code in ascending order
     final static String VERSION_KEY = "VERSION";
+    final static String KEY_INDEX_KEY = "KeyIndex";
     private final static String DEFAULT_PREF_FILE_NAME = "SPS_file";
+    private final static int LOCK_STRIPES = 16;
+    private final static int DEFAULT_MAX_PENDING_OPERATIONS = 256;
+    private final static Object REMOVED_VALUE = new Object();
 
-    private final String[] RESERVED_KEYS;
+    private final Set<String> RESERVED_KEYS;
+    private final Set<String> RESERVED_HASHED_KEYS;
 
-    private SharedPreferences mPrefs;
+    private final BackingStore mBackingStore;
+    //the backing store as preferences, for the listeners and the recovery handler
+    private final SharedPreferences mPreferencesView;
     private EncryptionManager mEncryptionManager;
 
+    //guards values by their hashed key, reads of different keys don't block each other
+    private final StripedLock mLocks = new StripedLock(LOCK_STRIPES);
+
+    private volatile RetryPolicy mRetryPolicy = RetryPolicy.defaultPolicy();
+
+    private AsyncDispatcher mAsyncDispatcher;
+    private final ChangeNotifier mChangeNotifier;
+
+    private final Object mKeyIndexLock = new Object();
+    //commits that skip the key index hold the read lock, enabling the index waits for them and holds off new ones
+    private final ReadWriteLock mKeyIndexModeLock = new ReentrantReadWriteLock();
+    private volatile boolean mKeyIndexEnabled;
+    //loaded on first use, only replaced while holding mKeyIndexLock
+    private volatile KeyIndex mKeyIndex;
+
+    private volatile DecryptedValueCache mValueCache;
+    private final BackingStore.Listener mCacheInvalidator = new BackingStore.Listener() {
+        @Override
+        public void onChanged(@NonNull BackingStore store, @NonNull String hashedKey) {
+            invalidateCachedValue(hashedKey);
+        }
+    };
+
     private static RecoveryHandler mRecoveryHandler;
 
     private static SecuredPreferenceStore mInstance;
+    //pending or failed initAsync, null once the instance is set
+    private static StoreFuture<SecuredPreferenceStore> mInitFuture;
+
+    /**
+     * How long {@link #getSharedInstance()} waits for an initialisation started by
+     * {@link #initAsync(Context, String, String, byte[], RecoveryHandler, Executor)}
+     */
+    public static final long DEFAULT_INIT_TIMEOUT_MILLIS = 5000;
+
+    private long mInitMillis;
 
 
     /**
@@ -56,6 +110,10 @@ public class SecuredPreferenceStore implements SharedPreferences {
      * @param storeName optional name of the preference file
      * @param keyPrefix optional prefix for encryption key aliases
      * @param bitShiftingKey seed for randomization and bit shifting, enhances security on older OS versions
+     * @param backingStore store to keep the entries in, null for the store's preference file
+     * @param shardCount number of files to spread the entries over, see {@link ShardedSharedPreferences#open(Context, String, int)}
+     * @param logStructured true to move the entries to a {@link LogStructuredPreferences} log, a store that already has one keeps it
+     * @param lazyKeys true to generate or load the encryption keys on first use instead of right away
      * @throws IOException
      * @throws CertificateException
      * @throws NoSuchAlgorithmException
@@ -68,43 +126,106 @@ public class SecuredPreferenceStore implements SharedPreferences {
      * @throws MigrationFailedException
      */
     private SecuredPreferenceStore(@NonNull Context appContext, @Nullable String storeName, @Nullable String keyPrefix,
-                                   @Nullable byte[] bitShiftingKey) throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableEntryException, InvalidAlgorithmParameterException, NoSuchPaddingException, InvalidKeyException, NoSuchProviderException, MigrationFailedException {
+                                   @Nullable byte[] bitShiftingKey, @Nullable BackingStore backingStore, int shardCount,
+                                   boolean logStructured, boolean lazyKeys) throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableEntryException, InvalidAlgorithmParameterException, NoSuchPaddingException, InvalidKeyException, NoSuchProviderException, MigrationFailedException {
         Logger.d("Creating store instance");
-        // handle migration
-        String fileName = storeName != null ? storeName : DEFAULT_PREF_FILE_NAME;
-        mPrefs = appContext.getSharedPreferences(fileName, Context.MODE_PRIVATE);
+        long start = System.nanoTime();
+        //a custom backing store has nothing written by older versions, only the preference file is migrated
+        if (backingStore == null) {
+            // handle migration
+            String fileName = storeName != null ? storeName : DEFAULT_PREF_FILE_NAME;
+            SharedPreferences prefs = appContext.getSharedPreferences(fileName, Context.MODE_PRIVATE);
 
-        int mRunningVersion = mPrefs.getInt(VERSION_KEY, 9);
+            logStructured |= LogStructuredPreferences.exists(appContext, fileName);
 
-        if(mRunningVersion < BuildConfig.VERSION_CODE) {
-            new MigrationHelper(appContext, storeName, keyPrefix, bitShiftingKey)
-                    .migrate(mRunningVersion, BuildConfig.VERSION_CODE);
+            //shards and logs are only created by this version, only stores that are still in a single file can be older
+            boolean singleFile = !ShardedSharedPreferences.isSharded(prefs) && !LogStructuredPreferences.exists(appContext, fileName);
+
+            prefs = logStructured ? LogStructuredPreferences.open(appContext, fileName)
+                    : ShardedSharedPreferences.open(appContext, fileName, shardCount);
+            backingStore = new SharedPreferencesBackingStore(prefs);
+
+            if (singleFile) {
+                Object runningVersion = backingStore.get(VERSION_KEY);
+                int mRunningVersion = runningVersion instanceof Integer ? (Integer) runningVersion : 9;
+
+                if(mRunningVersion < BuildConfig.VERSION_CODE) {
+                    new MigrationHelper(appContext, storeName, keyPrefix, bitShiftingKey, backingStore)
+                            .migrate(mRunningVersion, BuildConfig.VERSION_CODE);
+                }
+            }
         }
 
-        mEncryptionManager = new EncryptionManager(appContext, mPrefs, keyPrefix, bitShiftingKey, new KeyStoreRecoveryNotifier() {
+        mBackingStore = backingStore;
+        mPreferencesView = BackingStorePreferences.of(backingStore);
+
+        mEncryptionManager = new EncryptionManager(appContext, mBackingStore, keyPrefix, bitShiftingKey, new KeyStoreRecoveryNotifier() {
             @Override
             public boolean onRecoveryRequired(Exception e, KeyStore keyStore, List<String> keyAliases) {
                 if (mRecoveryHandler != null)
-                    return mRecoveryHandler.recover(e, keyStore, keyAliases, mPrefs);
+                    return mRecoveryHandler.recover(e, keyStore, keyAliases, mPreferencesView);
                 else throw new RuntimeException(e);
             }
-        });
+        }, lazyKeys);
 
-        RESERVED_KEYS = new String[]{VERSION_KEY, EncryptionManager.OVERRIDING_KEY_ALIAS_PREFIX_NAME,
+        RESERVED_KEYS = new HashSet<>(Arrays.asList(VERSION_KEY, EncryptionManager.OVERRIDING_KEY_ALIAS_PREFIX_NAME,
                 mEncryptionManager.IS_COMPAT_MODE_KEY_ALIAS, mEncryptionManager.MAC_KEY_ALIAS,
-                mEncryptionManager.AES_KEY_ALIAS};
+                mEncryptionManager.AES_KEY_ALIAS, mEncryptionManager.DATA_KEY_ALIAS, KEY_INDEX_KEY));
+
+        RESERVED_HASHED_KEYS = new HashSet<>(RESERVED_KEYS.size());
+        for (String key : RESERVED_KEYS) {
+            RESERVED_HASHED_KEYS.add(EncryptionManager.getHashed(key));
+        }
+
+        mChangeNotifier = new ChangeNotifier(mBackingStore, StoreExecutors.async());
+        mKeyIndexEnabled = mBackingStore.contains(EncryptionManager.getHashed(KEY_INDEX_KEY));
+        mInitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
     }
 
     public static void setRecoveryHandler(RecoveryHandler recoveryHandler) {
         SecuredPreferenceStore.mRecoveryHandler = recoveryHandler;
     }
 
-    synchronized public static SecuredPreferenceStore getSharedInstance() {
-        if ( mInstance == null ) {
+    /**
+     * Waits up to {@link #DEFAULT_INIT_TIMEOUT_MILLIS} if the store is being initialised asynchronously
+     * @see #getSharedInstance(long)
+     */
+    public static SecuredPreferenceStore getSharedInstance() {
+        return getSharedInstance(DEFAULT_INIT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param timeoutMillis how long to wait for an initialisation started by
+     *                      {@link #initAsync(Context, String, String, byte[], RecoveryHandler, Executor)}
+     * @return the shared instance
+     * @throws IllegalStateException if the store isn't initialised, its initialisation failed or didn't finish in time
+     */
+    public static SecuredPreferenceStore getSharedInstance(long timeoutMillis) {
+        StoreFuture<SecuredPreferenceStore> initFuture;
+
+        synchronized (SecuredPreferenceStore.class) {
+            if (mInstance != null) return mInstance;
+
+            initFuture = mInitFuture;
+        }
+
+        if (initFuture == null) {
             throw new IllegalStateException("Must call init() before using the store");
         }
 
-        return mInstance;
+        //wait outside the lock, the initialisation needs it to publish the instance
+        try {
+            return initFuture.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Store initialisation didn't finish within " + timeoutMillis + " ms");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Store initialisation failed", e.getCause());
+        } catch (CancellationException e) {
+            throw new IllegalStateException("Store initialisation was cancelled", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the store initialisation", e);
+        }
     }
 
     /**
@@ -129,14 +250,137 @@ public class SecuredPreferenceStore implements SharedPreferences {
      */
     public static void init(Context appContext, @Nullable String storeName, @Nullable String keyPrefix, @Nullable byte[] bitShiftingKey,
                             RecoveryHandler recoveryHandler ) throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableEntryException, InvalidAlgorithmParameterException, NoSuchPaddingException, InvalidKeyException, NoSuchProviderException, MigrationFailedException {
+        init(appContext, storeName, keyPrefix, bitShiftingKey, null, ShardedSharedPreferences.KEEP_LAYOUT, false, recoveryHandler);
+    }
+
+    private static synchronized void init(Context appContext, @Nullable String storeName, @Nullable String keyPrefix, @Nullable byte[] bitShiftingKey,
+                                          @Nullable BackingStore backingStore, int shardCount, boolean logStructured, RecoveryHandler recoveryHandler) throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableEntryException, InvalidAlgorithmParameterException, NoSuchPaddingException, InvalidKeyException, NoSuchProviderException, MigrationFailedException {
 
         if(mInstance != null){
             Logger.w("init called when there already is a non-null instance of the class");
             return;
         }
 
+        if(mInitFuture != null && !mInitFuture.isDone()){
+            Logger.w("init called while the store is being initialised asynchronously");
+            return;
+        }
+
+        setRecoveryHandler(recoveryHandler);
+        mInstance = new SecuredPreferenceStore(appContext, storeName, keyPrefix, bitShiftingKey, backingStore, shardCount, logStructured, false);
+        mInitFuture = null;
+    }
+
+    /**
+     * Like {@link #init(Context, String, String, byte[], RecoveryHandler)}, but spreads the entries over several
+     * preference files by key hash. A commit rewrites only the files of the keys it changed, which keeps writes
+     * small for large stores. The store remembers its shard count, the other init methods keep it.
+     * Entries are moved once when the count changes, pass 1 to move them back to a single file.
+     *
+     * @param shardCount number of files, 1 to 64
+     * @see #init(Context, String, String, byte[], RecoveryHandler)
+     */
+    public static void initSharded(Context appContext, @Nullable String storeName, @Nullable String keyPrefix, @Nullable byte[] bitShiftingKey,
+                                   int shardCount, RecoveryHandler recoveryHandler) throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableEntryException, InvalidAlgorithmParameterException, NoSuchPaddingException, InvalidKeyException, NoSuchProviderException, MigrationFailedException {
+        if (shardCount < 1) throw new IllegalArgumentException("Shard count must be at least 1, got " + shardCount);
+
+        init(appContext, storeName, keyPrefix, bitShiftingKey, null, shardCount, false, recoveryHandler);
+    }
+
+    /**
+     * Like {@link #init(Context, String, String, byte[], RecoveryHandler)}, but keeps the entries in an append-only log
+     * file instead of a preference file. A commit appends only what it changed instead of rewriting the whole file,
+     * and the log is compacted in the background once enough of it is overwritten entries.
+     * Existing entries are moved to the log the first time, the other init methods keep using it after that.
+     *
+     * @see #init(Context, String, String, byte[], RecoveryHandler)
+     */
+    public static void initLogStructured(Context appContext, @Nullable String storeName, @Nullable String keyPrefix, @Nullable byte[] bitShiftingKey,
+                                         RecoveryHandler recoveryHandler) throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableEntryException, InvalidAlgorithmParameterException, NoSuchPaddingException, InvalidKeyException, NoSuchProviderException, MigrationFailedException {
+        init(appContext, storeName, keyPrefix, bitShiftingKey, null, ShardedSharedPreferences.KEEP_LAYOUT, true, recoveryHandler);
+    }
+
+    /**
+     * Like {@link #init(Context, String, String, byte[], RecoveryHandler)}, but keeps the encrypted entries in the given
+     * backing store instead of a preference file, e.g. an {@link InMemoryBackingStore} or an engine of your own.
+     * Keys are hashed and values encrypted before they reach the backing store. Nothing is migrated from older versions.
+     *
+     * @param backingStore store to keep the entries in
+     * @see #init(Context, String, String, byte[], RecoveryHandler)
+     */
+    public static void init(Context appContext, @NonNull BackingStore backingStore, @Nullable String keyPrefix, @Nullable byte[] bitShiftingKey,
+                            RecoveryHandler recoveryHandler) throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableEntryException, InvalidAlgorithmParameterException, NoSuchPaddingException, InvalidKeyException, NoSuchProviderException, MigrationFailedException {
+        if (backingStore == null) throw new IllegalArgumentException("backingStore can not be null");
+
+        init(appContext, null, keyPrefix, bitShiftingKey, backingStore, ShardedSharedPreferences.KEEP_LAYOUT, false, recoveryHandler);
+    }
+
+    /**
+     * Initialises the shared instance in the background and returns right away. Migration and opening the preference
+     * file run on the executor, the encryption keys are generated or loaded the first time a value is encrypted or decrypted.
+     * {@link #getSharedInstance()} waits for the initialisation to finish, up to a deadline.
+     * Calling it again while the initialisation is pending returns the same future, after it failed starts a new one.
+     *
+     * @param executor executor to initialise on, null for the store's background threads
+     * @return future completed with the shared instance, or with the error that kept it from being created
+     * @see #init(Context, String, String, byte[], RecoveryHandler)
+     */
+    public static synchronized StoreFuture<SecuredPreferenceStore> initAsync(final Context appContext, @Nullable final String storeName,
+                                                                             @Nullable final String keyPrefix, @Nullable final byte[] bitShiftingKey,
+                                                                             RecoveryHandler recoveryHandler, @Nullable Executor executor) {
+        if (mInstance != null) {
+            Logger.w("initAsync called when there already is a non-null instance of the class");
+            StoreFuture<SecuredPreferenceStore> done = new StoreFuture<>(new Callable<SecuredPreferenceStore>() {
+                @Override
+                public SecuredPreferenceStore call() {
+                    return mInstance;
+                }
+            });
+            done.run();
+            return done;
+        }
+
+        if (mInitFuture != null && !mInitFuture.isDone()) return mInitFuture;
+
         setRecoveryHandler(recoveryHandler);
-        mInstance = new SecuredPreferenceStore(appContext, storeName, keyPrefix, bitShiftingKey);
+        final StoreFuture<SecuredPreferenceStore> initFuture = new StoreFuture<>(new Callable<SecuredPreferenceStore>() {
+            @Override
+            public SecuredPreferenceStore call() throws Exception {
+                SecuredPreferenceStore store = new SecuredPreferenceStore(appContext, storeName, keyPrefix, bitShiftingKey,
+                        null, ShardedSharedPreferences.KEEP_LAYOUT, false, true);
+
+                synchronized (SecuredPreferenceStore.class) {
+                    if (mInstance == null) mInstance = store;
+                    return mInstance;
+                }
+            }
+        });
+        mInitFuture = initFuture;
+
+        try {
+            (executor != null ? executor : StoreExecutors.async()).execute(initFuture);
+        } catch (RejectedExecutionException e) {
+            Logger.w("Initialisation rejected by the executor, initialising on the calling thread");
+            initFuture.run();
+        }
+
+        return initFuture;
+    }
+
+    /**
+     * @return what initialising the shared instance cost so far, keystore counts are for the whole process
+     */
+    public static StartupMetrics getStartupMetrics() {
+        SecuredPreferenceStore instance;
+
+        synchronized (SecuredPreferenceStore.class) {
+            instance = mInstance;
+        }
+
+        KeyStoreAccess keyStoreAccess = KeyStoreAccess.shared();
+        return new StartupMetrics(keyStoreAccess.loads(), keyStoreAccess.roundTrips(), keyStoreAccess.cacheHits(),
+                instance != null ? instance.mInitMillis : -1,
+                instance != null ? instance.mEncryptionManager.keySetupMillis() : -1);
     }
 
     /**
@@ -151,87 +395,227 @@ public class SecuredPreferenceStore implements SharedPreferences {
         return mEncryptionManager;
     }
 
-    private boolean isReservedKey(String key){
-        return Arrays.asList(RESERVED_KEYS).contains(key);
+    /**
+     * @param retryPolicy decides how failed keystore accesses are retried, {@link RetryPolicy#noRetry()} to disable retries
+     */
+    public void setRetryPolicy(@NonNull RetryPolicy retryPolicy) {
+        if (retryPolicy == null) throw new IllegalArgumentException("retryPolicy can not be null");
+        mRetryPolicy = retryPolicy;
     }
 
-    private boolean isReservedHashedKey(String hashedKey) {
-        for(String key : RESERVED_KEYS) {
-            try {
-                if(hashedKey.equals(EncryptionManager.getHashed(key))) {
-                    return true;
-                }
-            } catch (NoSuchAlgorithmException e) {
-                Logger.e(e);
-            } catch (UnsupportedEncodingException e) {
-                Logger.e(e);
-            }
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * Enables an in-memory LRU cache of decrypted values, repeated reads of a key won't decrypt the value again
+     * as long as the encrypted value in the backing store stays the same.
+     * @param maxEntries maximum number of decrypted values to keep in memory
+     */
+    public void enableValueCache(int maxEntries) {
+        DecryptedValueCache cache = new DecryptedValueCache(maxEntries);
+        if (mValueCache == null) {
+            mBackingStore.registerListener(mCacheInvalidator);
         }
 
-        return false;
+        mValueCache = cache;
+    }
+
+    public void disableValueCache() {
+        if (mValueCache != null) {
+            mBackingStore.unregisterListener(mCacheInvalidator);
+            mValueCache = null;
+        }
+    }
+
+    /**
+     * @return the decrypted value cache or null if it's not enabled
+     */
+    @Nullable
+    public DecryptedValueCache getValueCache() {
+        return mValueCache;
+    }
+
+    private void invalidateCachedValue(@Nullable String hashedKey) {
+        DecryptedValueCache cache = mValueCache;
+        if (cache == null) return;
+
+        if (hashedKey == null) {
+            cache.evictAll();
+            return;
+        }
+
+        Object cachedEncrypted = cache.getEncrypted(hashedKey);
+        if (cachedEncrypted == null) return;
+
+        if (!cachedEncrypted.equals(mBackingStore.get(hashedKey))) cache.remove(hashedKey);
+    }
+
+    private boolean isReservedKey(String key){
+        return RESERVED_KEYS.contains(key);
+    }
+
+    private boolean isReservedHashedKey(String hashedKey) {
+        return RESERVED_HASHED_KEYS.contains(hashedKey);
     }
 
+    /**
+     * @return an immutable view, values are decrypted when they're accessed
+     * @see #entriesView()
+     */
     @Override
     public Map<String, Object> getAll() {
-        Map<String, ?> all = mPrefs.getAll();
-        Map<String, Object> dAll = new HashMap<>(all.size());
+        return entriesView();
+    }
+
+    /**
+     * Immutable view of all the entries keyed by their hashed keys. Values are decrypted the first time
+     * they're accessed and remembered by the view, {@code size()} and {@code keySet()} don't decrypt anything.
+     * The view doesn't reflect changes made after it's created, an entry that can't be decrypted maps to null.
+     * @return entries of the store
+     */
+    public Map<String, Object> entriesView() {
+        Map<String, ?> all = mBackingStore.snapshot();
+        Map<String, Object> encrypted = new HashMap<>(all.size());
+
+        for (Map.Entry<String, ?> entry : all.entrySet()) {
+            String key = entry.getKey();
+            if (entry.getValue() == null || key.equals(VERSION_KEY) || isReservedHashedKey(key)) continue;
+
+            encrypted.put(key, entry.getValue());
+        }
+
+        return new LazyDecryptedMap(encrypted, mEntryDecrypter);
+    }
+
+    private final Function<Map.Entry<String, ?>, Object> mEntryDecrypter = new Function<Map.Entry<String, ?>, Object>() {
+        @Override
+        public Object apply(final Map.Entry<String, ?> entry) {
+            return retryFunction(new Function<Void, Object>() {
+                @Override
+                public Object apply(Void t) throws Exception {
+                    String hashedKey = entry.getKey();
+                    Object encrypted = entry.getValue();
+
+                    DecryptedValueCache cache = mValueCache;
+                    Object cached = cache != null ? cache.get(hashedKey, encrypted) : null;
+                    if (cached instanceof Set) return Collections.unmodifiableSet((Set<?>) cached);
+                    if (cached instanceof byte[]) return ((byte[]) cached).clone();
+                    if (cached != null) return cached;
+
+                    Object decrypted;
+                    if (encrypted instanceof Set) {
+                        Set<String> dSet = new HashSet<>();
+                        for (Object value : (Set<?>) encrypted) {
+                            dSet.add(mEncryptionManager.decrypt((String) value));
+                        }
+
+                        decrypted = Collections.unmodifiableSet(dSet);
+                    } else if (encrypted instanceof String) {
+                        decrypted = mEncryptionManager.decryptValue((String) encrypted);
+                    } else {
+                        Logger.e("Found a value that is not String or Set, key: " + hashedKey);
+                        return null;
+                    }
+
+                    return decrypted;
+                }
+            }, null, null);
+        }
+    };
+
+    /**
+     * @param key key of the value
+     * @return the decrypted value with the type it was stored with, a {@link LegacyValue} if it was stored without one,
+     * null if there isn't any or it couldn't be decrypted
+     */
+    @Nullable
+    private Object getValue(final String key) {
+        if (isReservedKey(key)) return null;
+
+        return retryFunction(new Function<Void, Object>() {
+            @Override
+            public Object apply(Void t) throws Exception {
+                String hashedKey = EncryptionManager.getHashed(key);
+                Lock lock = mLocks.readLock(hashedKey);
+                lock.lock();
 
-        if (all.size() > 0) {
-            for (String key : all.keySet()) {
-                if(key.equals(VERSION_KEY) || isReservedHashedKey(key)) continue;
                 try {
-                    Object value = all.get(key);
-                    dAll.put(key, mEncryptionManager.decrypt((String) value));
-                } catch (Exception e) {
-                    Logger.e(e);
+                    String value = (String) mBackingStore.get(hashedKey);
+                    if (value == null) return null;
+
+                    DecryptedValueCache cache = mValueCache;
+                    Object cached = cache != null ? cache.get(hashedKey, value) : null;
+                    if (cached != null) return markLegacy(value, cached);
+
+                    Object decrypted = mEncryptionManager.decryptValue(value);
+                    if (cache != null) cache.put(hashedKey, value, decrypted);
+                    return markLegacy(value, decrypted);
+                } finally {
+                    lock.unlock();
                 }
             }
-        }
-        return dAll;
+        }, null, null);
     }
 
+    /**
+     * @throws ClassCastException if the value was stored with another type
+     */
     @Override
-    public String getString(final String key, final String defValue) {
-        if(!isReservedKey(key)) {
-            synchronized (SecuredPreferenceStore.class) {
-                return retryFunction(new Function<Void, String>() {
-                    @Override
-                    public String apply(Void t) throws Exception {
-                        String hashedKey = EncryptionManager.getHashed(key);
-                        String value = mPrefs.getString(hashedKey, null);
-                        return value == null ? defValue : mEncryptionManager.decrypt(value);
-                    }
-                }, null, defValue);
-            }
-        } else {
-            return defValue;
-        }
+    public String getString(String key, String defValue) {
+        Object value = getValue(key);
+        return value != null ? toString(key, value) : defValue;
     }
 
+    /**
+     * @throws ClassCastException if the value was stored with another type
+     */
     @Override
     public Set<String> getStringSet(final String key, final Set<String> defValues) {
         if(!isReservedKey(key)) {
-            synchronized (SecuredPreferenceStore.class) {
-                return retryFunction(new Function<Void, Set<String>>() {
-                    @Override
-                    public Set<String> apply(Void t) throws Exception {
-                        String hashedKey = EncryptionManager.getHashed(key);
-                        Set<String> eSet = mPrefs.getStringSet(hashedKey, null);
+            //a value of another type isn't retried, it's reported once the function returns
+            final Object[] mismatched = new Object[1];
+
+            Set<String> values = retryFunction(new Function<Void, Set<String>>() {
+                @Override
+                public Set<String> apply(Void t) throws Exception {
+                    String hashedKey = EncryptionManager.getHashed(key);
+                    Lock lock = mLocks.readLock(hashedKey);
+                    lock.lock();
+
+                    try {
+                        Object stored = mBackingStore.get(hashedKey);
+
+                        if (stored instanceof Set) {
+                            Set<?> eSet = (Set<?>) stored;
+                            DecryptedValueCache cache = mValueCache;
+                            Object cached = cache != null ? cache.get(hashedKey, eSet) : null;
+                            if (cached instanceof Set) {
+                                //the cached value of a Set is always the Set of decrypted Strings
+                                @SuppressWarnings("unchecked") Set<String> cachedSet = (Set<String>) cached;
+                                return new HashSet<>(cachedSet);
+                            }
 
-                        if (eSet != null) {
                             Set<String> dSet = new HashSet<>(eSet.size());
 
-                            for (String val : eSet) {
-                                dSet.add(mEncryptionManager.decrypt(val));
+                            for (Object val : eSet) {
+                                dSet.add(mEncryptionManager.decrypt((String) val));
                             }
 
+                            if (cache != null) cache.put(hashedKey, new HashSet<>(eSet), new HashSet<>(dSet));
                             return dSet;
                         } else {
+                            mismatched[0] = stored;
                             return defValues;
                         }
+                    } finally {
+                        lock.unlock();
                     }
-                }, null, defValues);
-            }
+                }
+            }, null, defValues);
+
+            if (mismatched[0] != null) throw typeMismatch(key, mismatched[0], "Set");
+            return values;
         } else {
             return defValues;
         }
@@ -277,273 +661,1043 @@ public class SecuredPreferenceStore implements SharedPreferences {
 //        return defValues;
 //    }
 
+    /**
+     * @throws ClassCastException if the value was stored with another type
+     */
     @Override
     public int getInt(String key, int defValue) {
-        String value = getString(key, null);
-        if (value != null) {
-            return Integer.parseInt(value);
-        }
-        return defValue;
+        Object value = getValue(key);
+        return value != null ? toInt(key, value) : defValue;
     }
 
+    /**
+     * @throws ClassCastException if the value was stored with another type
+     */
     @Override
     public long getLong(String key, long defValue) {
-        String value = getString(key, null);
-        if (value != null) {
-            return Long.parseLong(value);
-        }
-        return defValue;
+        Object value = getValue(key);
+        return value != null ? toLong(key, value) : defValue;
     }
 
+    /**
+     * @throws ClassCastException if the value was stored with another type
+     */
     @Override
     public float getFloat(String key, float defValue) {
-        String value = getString(key, null);
-        if (value != null) {
-            return Float.parseFloat(value);
-        }
-        return defValue;
+        Object value = getValue(key);
+        return value != null ? toFloat(key, value) : defValue;
     }
 
+    /**
+     * @throws ClassCastException if the value was stored with another type
+     */
     @Override
     public boolean getBoolean(String key, boolean defValue) {
-        String value = getString(key, null);
-        if (value != null) {
-            return Boolean.parseBoolean(value);
-        }
-        return defValue;
+        Object value = getValue(key);
+        return value != null ? toBoolean(key, value) : defValue;
     }
 
+    /**
+     * @throws ClassCastException if the value was stored with another type
+     */
     public byte[] getBytes(String key) {
-        String val = getString(key, null);
-        if (val != null) {
-            return EncryptionManager.base64Decode(val);
-        }
+        Object value = getValue(key);
+        return value != null ? toBytes(key, value) : null;
+    }
+
+    /**
+     * A value stored before typed encoding, every type was stored as its String form
+     */
+    private static final class LegacyValue {
+        final String text;
 
-        return null;
+        LegacyValue(String text) {
+            this.text = text;
+        }
     }
 
-    @Override
-    public boolean contains(String key) {
-        try {
-            String hashedKey = EncryptionManager.getHashed(key);
-            return mPrefs.contains(hashedKey);
-        } catch (Exception e) {
-            Logger.e(e);
+    /**
+     * @param encrypted encrypted text the value was decrypted from
+     * @param decrypted the decrypted value
+     * @return the value, wrapped in a {@link LegacyValue} if it was stored before typed encoding
+     */
+    private static Object markLegacy(String encrypted, Object decrypted) {
+        if (decrypted instanceof String && !EncryptionManager.isTypedValue(encrypted)) {
+            return new LegacyValue((String) decrypted);
         }
 
-        return false;
+        return decrypted;
     }
 
-    @Override
-    public Editor edit() {
-        return new Editor();
+    private static ClassCastException typeMismatch(String key, Object value, String expectedType) {
+        return new ClassCastException("Value of " + key + " is a " + value.getClass().getSimpleName() + ", not " + expectedType);
     }
 
-    @Override
-    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener onSharedPreferenceChangeListener) {
-        if (mPrefs != null)
-            mPrefs.registerOnSharedPreferenceChangeListener(onSharedPreferenceChangeListener);
+    private static String toString(String key, Object value) {
+        if (value instanceof String) return (String) value;
+        if (value instanceof LegacyValue) return ((LegacyValue) value).text;
+
+        throw typeMismatch(key, value, "String");
     }
 
-    @Override
-    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener onSharedPreferenceChangeListener) {
-        if (mPrefs != null)
-            mPrefs.unregisterOnSharedPreferenceChangeListener(onSharedPreferenceChangeListener);
+    /**
+     * @throws NumberFormatException if the value was stored before typed encoding and isn't a number
+     */
+    private static int toInt(String key, Object value) {
+        if (value instanceof Integer) return (Integer) value;
+        if (value instanceof LegacyValue) return Integer.parseInt(((LegacyValue) value).text);
+
+        throw typeMismatch(key, value, "Integer");
     }
 
-    protected <T, R> R retryFunction(Function<T, R> function, T t, R r) {
-        int retryCount = 0;
-        do {
-            try {
-                return function.apply(t);
-            } catch (Exception e) {
-//                e.printStackTrace();
-                retryCount++;
-                try {
-                    Log.d("queen", Thread.currentThread().getName() + ", retryCount " + retryCount);
-                    Thread.sleep(0,DELAY * retryCount);
-                } catch (Exception ee) {
-                    ee.printStackTrace();
-                }
+    private static long toLong(String key, Object value) {
+        if (value instanceof Long) return (Long) value;
+        if (value instanceof LegacyValue) return Long.parseLong(((LegacyValue) value).text);
 
-                if(retryCount == MAX_RETRY_COUNT) {   // let's give up. no more retry.
-                    Log.e(SecuredPreferenceStore.class.getName(), "cannot access keystore");
-                }
-            }
-        } while (retryCount >= MAX_RETRY_COUNT);
+        throw typeMismatch(key, value, "Long");
+    }
+
+    private static float toFloat(String key, Object value) {
+        if (value instanceof Float) return (Float) value;
+        if (value instanceof LegacyValue) return Float.parseFloat(((LegacyValue) value).text);
 
-        return r;
+        throw typeMismatch(key, value, "Float");
     }
 
-    public class Editor implements SharedPreferences.Editor {
-        SharedPreferences.Editor mEditor;
+    private static boolean toBoolean(String key, Object value) {
+        if (value instanceof Boolean) return (Boolean) value;
+        if (value instanceof LegacyValue) return Boolean.parseBoolean(((LegacyValue) value).text);
 
-        public Editor() {
-            mEditor = mPrefs.edit();
-        }
+        throw typeMismatch(key, value, "Boolean");
+    }
 
-//        @Override
-//        public SharedPreferences.Editor putString(String key, String value) {
-//            if(isReservedKey(key)) {
-//                Logger.e("Trying to store value for a reserved key, value: " + value);
-//                return this;
-//            }
-//
-//            try {
-//                String hashedKey = EncryptionManager.getHashed(key);
-//                String evalue = mEncryptionManager.encrypt(value);
-//                mEditor.putString(hashedKey, evalue);
-//            } catch (Exception e) {
-//                Logger.e(e);
-//            }
-//
-//            return this;
-//        }
-//
-//        @Override
-//        public SharedPreferences.Editor putStringSet(String key, Set<String> values) {
-//            if(isReservedKey(key)) {
-//                Logger.e("Trying to store value for a reserved key, value: " + values);
-//                return this;
-//            }
-//
-//            try {
-//                String hashedKey = EncryptionManager.getHashed(key);
-//                Set<String> eSet = new HashSet<String>(values.size());
-//
-//                for (String val : values) {
-//                    eSet.add(mEncryptionManager.encrypt(val));
-//                }
-//
-//                mEditor.putStringSet(hashedKey, eSet);
-//            } catch (Exception e) {
-//                Logger.e(e);
-//            }
-//
-//            return this;
-//        }
+    private static byte[] toBytes(String key, Object value) {
+        //the cached array must not be modified by the caller
+        if (value instanceof byte[]) return ((byte[]) value).clone();
+        if (value instanceof LegacyValue) return EncryptionManager.base64Decode(((LegacyValue) value).text);
 
-        @Override
-        public SharedPreferences.Editor putString(final String key, final String value) {
-            if(isReservedKey(key)) {
-                Logger.e("Trying to store value for a reserved key, value: " + value);
-                return this;
-            }
+        throw typeMismatch(key, value, "byte[]");
+    }
 
-            synchronized (SecuredPreferenceStore.class) {
-                retryFunction(new Function<Void, Void>() {
-                    @Override
-                    public Void apply(Void t) throws Exception {
-                        String hashedKey = EncryptionManager.getHashed(key);
-                        String evalue = mEncryptionManager.encrypt(value);
-                        mEditor.putString(hashedKey, evalue);
-                        return null;
-                    }
-                }, null, null);
+    //region Asynchronous operations
+    /**
+     * Sets the executor of the asynchronous operations, must be called before any of them is used
+     * @param executor executor to run the operations on
+     * @param maxPendingOperations maximum number of operations waiting or running, submitting more blocks the caller
+     */
+    public synchronized void setAsyncExecutor(@NonNull Executor executor, int maxPendingOperations) {
+        if (executor == null) throw new IllegalArgumentException("executor can not be null");
+        mAsyncDispatcher = new AsyncDispatcher(executor, maxPendingOperations);
+    }
 
-                return this;
-            }
+    synchronized AsyncDispatcher getAsyncDispatcher() {
+        if (mAsyncDispatcher == null) {
+            mAsyncDispatcher = new AsyncDispatcher(StoreExecutors.async(), DEFAULT_MAX_PENDING_OPERATIONS);
         }
 
-        @Override
-        public SharedPreferences.Editor putStringSet(final String key,
-                                                                  final Set<String> values) {
-            if(isReservedKey(key)) {
-                Logger.e("Trying to store value for a reserved key, value: " + values);
-                return this;
+        return mAsyncDispatcher;
+    }
+
+    private <T> StoreFuture<T> submitRead(String key, Callable<T> read) {
+        return getAsyncDispatcher().submit(Collections.singletonList(key), false, read);
+    }
+
+    /**
+     * Reads in the background, after any pending asynchronous commit of the same key.
+     * Cancelling the future before the read starts skips the read.
+     * @see #getString(String, String)
+     */
+    public StoreFuture<String> getStringAsync(final String key, final String defValue) {
+        return submitRead(key, new Callable<String>() {
+            @Override
+            public String call() {
+                return getString(key, defValue);
             }
+        });
+    }
 
-            synchronized (SecuredPreferenceStore.class) {
-                retryFunction(new Function<Void, Void>() {
-                    @Override
-                    public Void apply(Void t) throws Exception {
-                        String hashedKey = EncryptionManager.getHashed(key);
-                        Set<String> eSet = new HashSet<String>(values.size());
+    /**
+     * @see #getStringAsync(String, String)
+     */
+    public StoreFuture<Set<String>> getStringSetAsync(final String key, final Set<String> defValues) {
+        return submitRead(key, new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() {
+                return getStringSet(key, defValues);
+            }
+        });
+    }
 
-                        for (String val : values) {
-                            eSet.add(mEncryptionManager.encrypt(val));
+    /**
+     * @see #getStringAsync(String, String)
+     */
+    public StoreFuture<Integer> getIntAsync(final String key, final int defValue) {
+        return submitRead(key, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return getInt(key, defValue);
+            }
+        });
+    }
+
+    /**
+     * @see #getStringAsync(String, String)
+     */
+    public StoreFuture<Long> getLongAsync(final String key, final long defValue) {
+        return submitRead(key, new Callable<Long>() {
+            @Override
+            public Long call() {
+                return getLong(key, defValue);
+            }
+        });
+    }
+
+    /**
+     * @see #getStringAsync(String, String)
+     */
+    public StoreFuture<Float> getFloatAsync(final String key, final float defValue) {
+        return submitRead(key, new Callable<Float>() {
+            @Override
+            public Float call() {
+                return getFloat(key, defValue);
+            }
+        });
+    }
+
+    /**
+     * @see #getStringAsync(String, String)
+     */
+    public StoreFuture<Boolean> getBooleanAsync(final String key, final boolean defValue) {
+        return submitRead(key, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return getBoolean(key, defValue);
+            }
+        });
+    }
+
+    /**
+     * @see #getStringAsync(String, String)
+     */
+    public StoreFuture<byte[]> getBytesAsync(final String key) {
+        return submitRead(key, new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return getBytes(key);
+            }
+        });
+    }
+    //endregion
+
+    //region Batch reads
+    /**
+     * @see #getStrings(Collection, Executor)
+     */
+    public Map<String, String> getStrings(Collection<String> keys) {
+        return getStrings(keys, null);
+    }
+
+    /**
+     * Reads many values at once, all the keys are hashed up front and read from the backing store in one go,
+     * then the values are decrypted in parallel.
+     * @param keys keys to read
+     * @param executor executor to decrypt on, the store's shared background threads if null
+     * @return the values of the keys that were found
+     * @throws ClassCastException if a value was stored with another type
+     */
+    public Map<String, String> getStrings(Collection<String> keys, @Nullable Executor executor) {
+        Map<String, Object> values = getValues(keys, executor);
+        Map<String, String> result = new HashMap<>(values.size());
+
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            result.put(entry.getKey(), toString(entry.getKey(), entry.getValue()));
+        }
+
+        return result;
+    }
+
+    /**
+     * @see #getInts(Collection, Executor)
+     */
+    public Map<String, Integer> getInts(Collection<String> keys) {
+        return getInts(keys, null);
+    }
+
+    /**
+     * @see #getStrings(Collection, Executor)
+     */
+    public Map<String, Integer> getInts(Collection<String> keys, @Nullable Executor executor) {
+        Map<String, Object> values = getValues(keys, executor);
+        Map<String, Integer> result = new HashMap<>(values.size());
+
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            result.put(entry.getKey(), toInt(entry.getKey(), entry.getValue()));
+        }
+
+        return result;
+    }
+
+    /**
+     * @see #getLongs(Collection, Executor)
+     */
+    public Map<String, Long> getLongs(Collection<String> keys) {
+        return getLongs(keys, null);
+    }
+
+    /**
+     * @see #getStrings(Collection, Executor)
+     */
+    public Map<String, Long> getLongs(Collection<String> keys, @Nullable Executor executor) {
+        Map<String, Object> values = getValues(keys, executor);
+        Map<String, Long> result = new HashMap<>(values.size());
+
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            result.put(entry.getKey(), toLong(entry.getKey(), entry.getValue()));
+        }
+
+        return result;
+    }
+
+    /**
+     * @see #getFloats(Collection, Executor)
+     */
+    public Map<String, Float> getFloats(Collection<String> keys) {
+        return getFloats(keys, null);
+    }
+
+    /**
+     * @see #getStrings(Collection, Executor)
+     */
+    public Map<String, Float> getFloats(Collection<String> keys, @Nullable Executor executor) {
+        Map<String, Object> values = getValues(keys, executor);
+        Map<String, Float> result = new HashMap<>(values.size());
+
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            result.put(entry.getKey(), toFloat(entry.getKey(), entry.getValue()));
+        }
+
+        return result;
+    }
+
+    /**
+     * @see #getBooleans(Collection, Executor)
+     */
+    public Map<String, Boolean> getBooleans(Collection<String> keys) {
+        return getBooleans(keys, null);
+    }
+
+    /**
+     * @see #getStrings(Collection, Executor)
+     */
+    public Map<String, Boolean> getBooleans(Collection<String> keys, @Nullable Executor executor) {
+        Map<String, Object> values = getValues(keys, executor);
+        Map<String, Boolean> result = new HashMap<>(values.size());
+
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            result.put(entry.getKey(), toBoolean(entry.getKey(), entry.getValue()));
+        }
+
+        return result;
+    }
+
+    /**
+     * @param keys keys to read
+     * @param executor executor to decrypt on, null for the shared one
+     * @return decrypted values of the keys that were found, as returned by {@link #getValue(String)}
+     */
+    Map<String, Object> getValues(Collection<String> keys, @Nullable Executor executor) {
+        final Map<String, Object> result = new HashMap<>(keys.size());
+
+        List<String> plainKeys = new ArrayList<>(keys.size());
+        final List<String> hashedKeys = new ArrayList<>(keys.size());
+
+        try {
+            for (String key : new LinkedHashSet<>(keys)) {
+                if (isReservedKey(key)) continue;
+
+                plainKeys.add(key);
+                hashedKeys.add(EncryptionManager.getHashed(key));
+            }
+        } catch (Exception e) {
+            Logger.e(e);
+            return result;
+        }
+
+        //read the whole batch from one consistent state of the backing store
+        final String[] encrypted = new String[hashedKeys.size()];
+        List<Lock> locks = mLocks.lockForRead(hashedKeys);
+
+        try {
+            for (int i = 0; i < encrypted.length; i++) {
+                try {
+                    encrypted[i] = (String) mBackingStore.get(hashedKeys.get(i));
+                } catch (ClassCastException e) {
+                    //a string set
+                    Logger.e(e);
+                }
+            }
+        } finally {
+            mLocks.unlock(locks);
+        }
+
+        final DecryptedValueCache cache = mValueCache;
+        final Object[] decrypted = new Object[encrypted.length];
+        final List<Integer> pending = new ArrayList<>(encrypted.length);
+
+        for (int i = 0; i < encrypted.length; i++) {
+            if (encrypted[i] == null) continue;
+
+            decrypted[i] = cache != null ? cache.get(hashedKeys.get(i), encrypted[i]) : null;
+            if (decrypted[i] == null) pending.add(i);
+        }
+
+        decryptAll(pending, encrypted, decrypted, executor != null ? executor : StoreExecutors.decryption());
+
+        for (int i = 0; i < decrypted.length; i++) {
+            if (decrypted[i] == null) continue;
+
+            result.put(plainKeys.get(i), markLegacy(encrypted[i], decrypted[i]));
+            if (cache != null) cache.put(hashedKeys.get(i), encrypted[i], decrypted[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Splits the pending values into one task per core. The calling thread runs any task the executor
+     * hasn't started yet, so the batch completes even if the executor is busy or rejects the tasks.
+     */
+    private void decryptAll(final List<Integer> pending, final String[] encrypted, final Object[] decrypted, Executor executor) {
+        if (pending.isEmpty()) return;
+
+        int taskCount = Math.min(pending.size(), StoreExecutors.PARALLELISM);
+        List<FutureTask<Void>> tasks = new ArrayList<>(taskCount);
+
+        for (int t = 0; t < taskCount; t++) {
+            final int task = t;
+            final int stride = taskCount;
+
+            tasks.add(new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    for (int p = task; p < pending.size(); p += stride) {
+                        final int i = pending.get(p);
+                        decrypted[i] = retryFunction(new Function<Void, Object>() {
+                            @Override
+                            public Object apply(Void t) throws Exception {
+                                return mEncryptionManager.decryptValue(encrypted[i]);
+                            }
+                        }, null, null);
+                    }
+                }
+            }, null));
+        }
+
+        //the first task always runs here
+        for (int t = 1; t < tasks.size(); t++) {
+            try {
+                executor.execute(tasks.get(t));
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+
+        for (FutureTask<Void> task : tasks) {
+            task.run();
+        }
+
+        for (FutureTask<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Logger.w("Interrupted while decrypting a batch, returning a partial result");
+                return;
+            } catch (ExecutionException e) {
+                Logger.e(e);
+            }
+        }
+    }
+    //endregion
+
+    @Override
+    public boolean contains(String key) {
+        try {
+            String hashedKey = EncryptionManager.getHashed(key);
+            return mBackingStore.contains(hashedKey);
+        } catch (Exception e) {
+            Logger.e(e);
+        }
+
+        return false;
+    }
+
+    @Override
+    public Editor edit() {
+        return new Editor();
+    }
+
+    //region Key index
+    /**
+     * Keeps an encrypted index of the plain keys in the store so they can be listed with {@link #keys()}, looked up by prefix
+     * and removed by prefix. The index is kept by the store's {@link Editor}, the setting is persisted with it.
+     * Only hashes of the keys written before the index is enabled are stored, pass the ones you know about to index them too.
+     * @param existingKeys keys that may already be in the store, the ones that aren't are ignored
+     */
+    public void enableKeyIndex(@Nullable Collection<String> existingKeys) {
+        synchronized (mKeyIndexLock) {
+            //commits that are already writing without the index finish first, new ones wait for the index
+            Lock modeLock = mKeyIndexModeLock.writeLock();
+            modeLock.lock();
+
+            try {
+                KeyIndex index = mKeyIndexEnabled ? keyIndex() : KeyIndex.EMPTY;
+                Map<String, String> found = new HashMap<>();
+
+                if (existingKeys != null) {
+                    for (String key : existingKeys) {
+                        if (isReservedKey(key)) continue;
+
+                        try {
+                            String hashedKey = EncryptionManager.getHashed(key);
+                            if (mBackingStore.contains(hashedKey)) found.put(key, hashedKey);
+                        } catch (Exception e) {
+                            Logger.e(e);
                         }
+                    }
+                }
 
-                        mEditor.putStringSet(hashedKey, eSet);
-                        return null;
+                index = index.update(found, false);
+                BackingStore.Batch batch = mBackingStore.edit();
+
+                if (writeKeyIndex(batch, index) && batch.commit()) {
+                    mKeyIndex = index;
+                    mKeyIndexEnabled = true;
+                } else {
+                    throw new IllegalStateException("Unable to store the key index");
+                }
+            } finally {
+                modeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes the key index, the entries stay in the store
+     */
+    public void disableKeyIndex() {
+        synchronized (mKeyIndexLock) {
+            try {
+                mBackingStore.edit().remove(EncryptionManager.getHashed(KEY_INDEX_KEY)).commit();
+            } catch (Exception e) {
+                Logger.e(e);
+            }
+
+            mKeyIndexEnabled = false;
+            mKeyIndex = null;
+        }
+    }
+
+    public boolean isKeyIndexEnabled() {
+        return mKeyIndexEnabled;
+    }
+
+    /**
+     * @return plain keys of the entries in the store in ascending order
+     * @throws IllegalStateException if the key index is not enabled
+     */
+    public SortedSet<String> keys() {
+        return requireKeyIndex().keys();
+    }
+
+    /**
+     * @return plain keys starting with the prefix in ascending order
+     * @throws IllegalStateException if the key index is not enabled
+     */
+    public SortedSet<String> keysWithPrefix(@NonNull String prefix) {
+        return requireKeyIndex().keysWithPrefix(prefix);
+    }
+
+    private KeyIndex requireKeyIndex() {
+        if (!mKeyIndexEnabled) throw new IllegalStateException("Key index is not enabled");
+
+        KeyIndex index = mKeyIndex;
+        return index != null ? index : keyIndex();
+    }
+
+    /**
+     * Loads the index the first time it's needed
+     */
+    private KeyIndex keyIndex() {
+        synchronized (mKeyIndexLock) {
+            if (mKeyIndex == null) {
+                KeyIndex index = retryFunction(new Function<Void, KeyIndex>() {
+                    @Override
+                    public KeyIndex apply(Void t) throws Exception {
+                        String encrypted = (String) mBackingStore.get(EncryptionManager.getHashed(KEY_INDEX_KEY));
+                        if (encrypted == null) return KeyIndex.EMPTY;
+
+                        return KeyIndex.deserialize((byte[]) mEncryptionManager.decryptValue(encrypted));
                     }
                 }, null, null);
 
+                if (index == null) {
+                    Logger.e("Unable to read the key index, starting over with an empty one");
+                    index = KeyIndex.EMPTY;
+                }
+
+                mKeyIndex = index;
+            }
+
+            return mKeyIndex;
+        }
+    }
+
+    private boolean writeKeyIndex(final BackingStore.Batch batch, final KeyIndex index) {
+        Boolean written = retryFunction(new Function<Void, Boolean>() {
+            @Override
+            public Boolean apply(Void t) throws Exception {
+                batch.put(EncryptionManager.getHashed(KEY_INDEX_KEY), mEncryptionManager.encryptValue(index.serialize()));
+                return true;
+            }
+        }, null, false);
+
+        return written;
+    }
+    //endregion
+
+    //region Change subscriptions
+    /**
+     * Names a set of keys so listeners can subscribe to all of them with {@link #subscribeToGroup(String, Executor, OnStoreChangeListener)}.
+     * Redefining a group changes the keys its existing subscribers are notified about.
+     * @param group name of the group
+     * @param keys keys in the group
+     */
+    public void defineKeyGroup(@NonNull String group, @NonNull Collection<String> keys) {
+        try {
+            mChangeNotifier.defineGroup(group, keys);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to hash the keys of group " + group, e);
+        }
+    }
+
+    /**
+     * Unlike {@link #registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener)} the listener gets the plain
+     * key names, once per commit with all the keys it changed.
+     * @param keys keys to get notified about
+     * @param executor executor to notify the listener on
+     * @param listener listener
+     * @return subscription, call {@link ChangeSubscription#unsubscribe()} to stop the notifications
+     */
+    public ChangeSubscription subscribe(@NonNull Collection<String> keys, @NonNull Executor executor, @NonNull OnStoreChangeListener listener) {
+        try {
+            return mChangeNotifier.subscribe(keys, executor, listener);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to hash the subscribed keys", e);
+        }
+    }
+
+    /**
+     * @param group a group defined with {@link #defineKeyGroup(String, Collection)}
+     * @see #subscribe(Collection, Executor, OnStoreChangeListener)
+     */
+    public ChangeSubscription subscribeToGroup(@NonNull String group, @NonNull Executor executor, @NonNull OnStoreChangeListener listener) {
+        return mChangeNotifier.subscribeToGroup(group, executor, listener);
+    }
+    //endregion
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener onSharedPreferenceChangeListener) {
+        mPreferencesView.registerOnSharedPreferenceChangeListener(onSharedPreferenceChangeListener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener onSharedPreferenceChangeListener) {
+        mPreferencesView.unregisterOnSharedPreferenceChangeListener(onSharedPreferenceChangeListener);
+    }
+
+    /**
+     * Runs the function, retrying it as the retry policy allows
+     * @param function function to run
+     * @param t argument of the function
+     * @param r value to return if the function fails
+     * @return result of the function or r if it failed
+     */
+    protected <T, R> R retryFunction(Function<T, R> function, T t, R r) {
+        RetryPolicy.Attempt attempt = mRetryPolicy.begin();
+
+        while (true) {
+            try {
+                R result = function.apply(t);
+                attempt.succeeded();
+                return result;
+            } catch (Exception e) {
+                long delay = attempt.failed(e);
+
+                if (delay < 0) {
+                    Logger.e("Giving up after " + attempt.attempts() + " attempt(s)", e);
+                    return r;
+                }
+
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return r;
+                    }
+                }
+            }
+        }
+    }
+
+    public class Editor implements SharedPreferences.Editor {
+        BackingStore.Batch mEditor;
+        //plain key -> value to write or REMOVED_VALUE, values are encrypted when the editor is committed
+        final Map<String, Object> mPendingValues = new LinkedHashMap<>();
+        //hashed key -> pending change, used to keep the value cache up to date
+        final Map<String, PendingChange> mChanges = new HashMap<>();
+        //plain key -> hashed key of the written keys, null if removed. Used to keep the key index up to date
+        final Map<String, String> mKeyChanges = new HashMap<>();
+        //plain key -> hashed key taken from the key index, so they aren't hashed again
+        final Map<String, String> mKnownHashedKeys = new HashMap<>();
+        boolean mCleared = false;
+
+        public Editor() {
+            mEditor = mBackingStore.edit();
+        }
+
+        /**
+         * @param value a String, Integer, Long, Float, Boolean, byte[] or Set of Strings, null removes the key
+         */
+        private SharedPreferences.Editor putValue(String key, Object value) {
+            if(isReservedKey(key)) {
+                Logger.e("Trying to store value for a reserved key, value: " + value);
                 return this;
             }
+
+            mPendingValues.put(key, value != null ? value : REMOVED_VALUE);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putString(String key, String value) {
+            return putValue(key, value);
+        }
+
+        @Override
+        public SharedPreferences.Editor putStringSet(String key, Set<String> values) {
+            return putValue(key, values != null ? new HashSet<>(values) : null);
         }
 
         @Override
         public SharedPreferences.Editor putInt(String key, int value) {
-            String val = Integer.toString(value);
-            return putString(key, val);
+            return putValue(key, value);
         }
 
         @Override
         public SharedPreferences.Editor putLong(String key, long value) {
-            String val = Long.toString(value);
-            return putString(key, val);
+            return putValue(key, value);
         }
 
         @Override
         public SharedPreferences.Editor putFloat(String key, float value) {
-            String val = Float.toString(value);
-            return putString(key, val);
+            return putValue(key, value);
         }
 
         @Override
         public SharedPreferences.Editor putBoolean(String key, boolean value) {
-            String val = Boolean.toString(value);
-            return putString(key, val);
+            return putValue(key, value);
         }
 
         public SharedPreferences.Editor putBytes(String key, byte[] bytes) {
             if (bytes != null) {
-                String val = EncryptionManager.base64Encode(bytes);
-                return putString(key, val);
+                return putValue(key, bytes.clone());
             } else return remove(key);
         }
 
         @Override
-        public SharedPreferences.Editor remove(final String key) {
+        public SharedPreferences.Editor remove(String key) {
             if(isReservedKey(key)) {
                 Logger.e("Trying to remove value for a reserved key");
                 return this;
             }
 
-            synchronized (SecuredPreferenceStore.class) {
-                retryFunction(new Function<Void, Void>() {
-                    @Override
-                    public Void apply(Void t) throws Exception {
-                        String hashedKey = EncryptionManager.getHashed(key);
-                        mEditor.remove(hashedKey);
-                        return null;
-                    }
-                }, null, null);
+            mPendingValues.put(key, REMOVED_VALUE);
+            return this;
+        }
 
-                return this;
+        /**
+         * Removes the keys starting with the prefix, as they are when this is called
+         * @throws IllegalStateException if the key index is not enabled
+         */
+        public SharedPreferences.Editor removeKeysWithPrefix(@NonNull String prefix) {
+            for (Map.Entry<String, String> entry : requireKeyIndex().withPrefix(prefix).entrySet()) {
+                mPendingValues.put(entry.getKey(), REMOVED_VALUE);
+                mKnownHashedKeys.put(entry.getKey(), entry.getValue());
             }
+
+            return this;
         }
 
+        /**
+         * Like any SharedPreferences editor, the store is cleared before the other changes of this editor are applied
+         */
         @Override
         public SharedPreferences.Editor clear() {
-            for(String key : mPrefs.getAll().keySet()) {
-                if (key.equals(VERSION_KEY) || isReservedHashedKey(key)) continue;
+            mCleared = true;
+            return this;
+        }
 
-                mEditor.remove(key);
+        /**
+         * Encrypts the pending values into the backing editor, outside of any lock.
+         * If any of them can't be encrypted none of the changes are kept, a commit writes all of them or nothing.
+         * @return true if every pending value was encrypted
+         */
+        boolean encryptPendingValues() {
+            boolean encrypted = true;
+
+            if (mCleared) {
+                for(String key : mBackingStore.snapshot().keySet()) {
+                    if (key.equals(VERSION_KEY) || isReservedHashedKey(key)) continue;
+
+                    mEditor.remove(key);
+                    mChanges.put(key, new PendingChange(null, null));
+                }
             }
 
-            return this;
+            for (final Map.Entry<String, Object> pending : mPendingValues.entrySet()) {
+                String hashedKey = retryFunction(new Function<Void, String>() {
+                    @Override
+                    public String apply(Void t) throws Exception {
+                        String hashedKey = mKnownHashedKeys.get(pending.getKey());
+                        if (hashedKey == null) hashedKey = EncryptionManager.getHashed(pending.getKey());
+                        Object value = pending.getValue();
+
+                        if (value == REMOVED_VALUE) {
+                            mEditor.remove(hashedKey);
+                            mChanges.put(hashedKey, new PendingChange(null, null));
+                        } else if (value instanceof Set) {
+                            Set<?> values = (Set<?>) value;
+                            Set<String> eSet = new HashSet<String>(values.size());
+
+                            for (Object val : values) {
+                                eSet.add(mEncryptionManager.encrypt((String) val));
+                            }
+
+                            mEditor.put(hashedKey, eSet);
+                            mChanges.put(hashedKey, new PendingChange(eSet, values));
+                        } else {
+                            String evalue = mEncryptionManager.encryptValue(value);
+                            mEditor.put(hashedKey, evalue);
+                            mChanges.put(hashedKey, new PendingChange(evalue, value));
+                        }
+
+                        return hashedKey;
+                    }
+                }, null, null);
+
+                //only keys whose change was staged go into the key index
+                if (hashedKey != null) {
+                    mKeyChanges.put(pending.getKey(), pending.getValue() != REMOVED_VALUE ? hashedKey : null);
+                } else {
+                    Logger.e("Unable to encrypt the value of " + pending.getKey() + ", the changes are discarded");
+                    encrypted = false;
+                    break;
+                }
+            }
+
+            mPendingValues.clear();
+            mKnownHashedKeys.clear();
+
+            if (!encrypted) discardStagedChanges();
+            return encrypted;
+        }
+
+        private void discardStagedChanges() {
+            mEditor = mBackingStore.edit();
+            mChanges.clear();
+            mKeyChanges.clear();
+            mCleared = false;
         }
 
+        /**
+         * Only blocks reads and writes of the keys changed by this editor.
+         * Commits that add or remove keys while the key index is enabled are serialized to keep the index consistent.
+         * @return false if the changes couldn't be written, or any of the values or the key index couldn't be encrypted.
+         * Nothing is written in that case
+         */
         @Override
         public boolean commit() {
-            return mEditor.commit();
+            if (!encryptPendingValues()) return false;
+
+            Lock unindexed = mKeyIndexModeLock.readLock();
+            unindexed.lock();
+
+            try {
+                if (!mKeyIndexEnabled) return write();
+            } finally {
+                unindexed.unlock();
+            }
+
+            synchronized (mKeyIndexLock) {
+                //the index may have been disabled in the meantime
+                if (!mKeyIndexEnabled) return write();
+
+                KeyIndex index = updateKeyIndex();
+                if (index == null) return false;
+
+                boolean result = write();
+                if (result) mKeyIndex = index;
+
+                return result;
+            }
         }
 
+        /**
+         * Like {@link #commit()} nothing is written if any of the values or the key index can't be encrypted
+         */
         @Override
         public void apply() {
-            mEditor.apply();
+            if (!encryptPendingValues()) return;
+
+            Lock unindexed = mKeyIndexModeLock.readLock();
+            unindexed.lock();
+
+            try {
+                if (!mKeyIndexEnabled) {
+                    writeAsync();
+                    return;
+                }
+            } finally {
+                unindexed.unlock();
+            }
+
+            synchronized (mKeyIndexLock) {
+                if (!mKeyIndexEnabled) {
+                    writeAsync();
+                    return;
+                }
+
+                KeyIndex index = updateKeyIndex();
+                if (index == null) return;
+
+                mKeyIndex = index;
+                writeAsync();
+            }
+        }
+
+        /**
+         * Adds the key index to the backing editor if this editor adds or removes keys.
+         * The index is written with the changes or none of them are, like the values
+         * @return the index after the changes are written, null if it couldn't be encrypted and the changes are discarded
+         */
+        private KeyIndex updateKeyIndex() {
+            KeyIndex current = keyIndex();
+            KeyIndex updated = current.update(mKeyChanges, mCleared);
+            mKeyChanges.clear();
+
+            if (updated != current && !writeKeyIndex(mEditor, updated)) {
+                Logger.e("Unable to update the key index, the changes are discarded");
+                discardStagedChanges();
+                return null;
+            }
+
+            return updated;
+        }
+
+        private boolean write() {
+            List<String> changedKeys = onBeforeWrite();
+            List<Lock> locks = mLocks.lockForWrite(mChanges.keySet(), mCleared);
+            boolean result;
+
+            try {
+                result = mEditor.commit();
+                if (result) onChangesWritten();
+            } finally {
+                mLocks.unlock(locks);
+            }
+
+            if (result) mChangeNotifier.onCommitted(changedKeys);
+            return result;
+        }
+
+        private void writeAsync() {
+            List<String> changedKeys = onBeforeWrite();
+            List<Lock> locks = mLocks.lockForWrite(mChanges.keySet(), mCleared);
+
+            try {
+                mEditor.apply();
+                onChangesWritten();
+            } finally {
+                mLocks.unlock(locks);
+            }
+
+            mChangeNotifier.onCommitted(changedKeys);
+        }
+
+        /**
+         * Encrypts and commits the changes in the background, after any pending asynchronous operation on the same keys.
+         * The editor can be reused right away, later changes aren't part of this commit.
+         * @return result of the commit, false if it failed or any of the values couldn't be encrypted
+         */
+        public StoreFuture<Boolean> commitAsync() {
+            final Editor changes = new Editor();
+            changes.mPendingValues.putAll(mPendingValues);
+            changes.mKnownHashedKeys.putAll(mKnownHashedKeys);
+            changes.mCleared = mCleared;
+
+            mPendingValues.clear();
+            mKnownHashedKeys.clear();
+            mCleared = false;
+
+            return getAsyncDispatcher().submit(changes.mPendingValues.keySet(), changes.mCleared, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return changes.commit();
+                }
+            });
+        }
+
+        /**
+         * @return hashed keys about to be written, to notify the subscribers with once they are
+         */
+        List<String> onBeforeWrite() {
+            if (!mChangeNotifier.hasSubscribers()) return Collections.emptyList();
+
+            Map<String, Object> written = new HashMap<>(mChanges.size());
+            for (Map.Entry<String, PendingChange> change : mChanges.entrySet()) {
+                written.put(change.getKey(), change.getValue().encrypted);
+            }
+
+            mChangeNotifier.onBeforeCommit(written);
+            return new ArrayList<>(mChanges.keySet());
+        }
+
+        void onChangesWritten() {
+            DecryptedValueCache cache = mValueCache;
+
+            if (cache != null) {
+                if (mCleared) cache.evictAll();
+
+                for (Map.Entry<String, PendingChange> change : mChanges.entrySet()) {
+                    cache.put(change.getKey(), change.getValue().encrypted, change.getValue().value);
+                }
+            }
+
+            mChanges.clear();
+            mKeyChanges.clear();
+            mCleared = false;
+        }
+    }
+
+    static class PendingChange {
+        final Object encrypted;
+        final Object value;
+
+        PendingChange(Object encrypted, Object value) {
+            this.encrypted = encrypted;
+            this.value = value;
         }
     }
 
@@ -558,25 +1712,42 @@ public class SecuredPreferenceStore implements SharedPreferences {
         boolean onRecoveryRequired(Exception e, KeyStore keyStore, List<String> keyAliases);
     }
 
+    public interface OnStoreChangeListener {
+        /**
+         * @param changedKeys keys changed by one commit, only the ones the listener subscribed to
+         */
+        void onStoreChanged(Set<String> changedKeys);
+    }
+
+    public interface ChangeSubscription {
+        void unsubscribe();
+    }
+
     public interface Function<T, R> {
         R apply(T t) throws Exception;
     }
 
     //region Migration
-    private class MigrationHelper {
+    /**
+     * Moves the entries written by older versions into the store's backing store
+     */
+    static class MigrationHelper {
         String storeName, keyPrefix;
         byte[] bitShiftKey;
         Context mContext;
+        //store the entries are migrated to
+        BackingStore mStore;
 
-        public MigrationHelper(Context context, String storeName, String keyPrefix, byte[] bitShiftKey) {
+        MigrationHelper(Context context, String storeName, String keyPrefix, byte[] bitShiftKey, BackingStore store) {
             this.storeName = storeName;
             this.keyPrefix = keyPrefix;
             this.bitShiftKey = bitShiftKey;
             mContext = context;
+            mStore = store;
         }
 
         /**
-         * if storeName has changed from the default and there's data in the default file then those will be moved to the new file
+         * if storeName has changed from the default and there's data in the default file then those will be moved to the store
          * if keyPrefix has changed from the default and there aren't any other prefix stored in the file, then new keys will be stored
          * with the new prefix and existing data will be migrated
          * @throws MigrationFailedException
@@ -588,20 +1759,19 @@ public class SecuredPreferenceStore implements SharedPreferences {
                 return;
             }
 
-            SharedPreferences prefToRead, prefToWrite;
-
-            prefToRead = prefToWrite = mContext.getSharedPreferences(DEFAULT_PREF_FILE_NAME, Context.MODE_PRIVATE);
+            //older versions only wrote to the default preference file, unless it's the store's own file its entries are moved
+            BackingStore storeToRead = mStore;
             boolean filenameChanged = false, prefixChanged = false;
 
             if(storeName != null && !storeName.equals(DEFAULT_PREF_FILE_NAME)) {
-                prefToWrite = mContext.getSharedPreferences(storeName, Context.MODE_PRIVATE);
+                storeToRead = new SharedPreferencesBackingStore(mContext.getSharedPreferences(DEFAULT_PREF_FILE_NAME, Context.MODE_PRIVATE));
                 filenameChanged = true;
             }
 
-            String storedPrefix = null;
+            Object storedPrefix = null;
 
             try {
-                storedPrefix = prefToWrite.getString(EncryptionManager.getHashed(EncryptionManager.OVERRIDING_KEY_ALIAS_PREFIX_NAME), null);
+                storedPrefix = mStore.get(EncryptionManager.getHashed(EncryptionManager.OVERRIDING_KEY_ALIAS_PREFIX_NAME));
             } catch (NoSuchAlgorithmException e) {
                 throw new MigrationFailedException("Migration to Version: 0.7.0: Failed to hash a key", e);
             } catch (UnsupportedEncodingException e) {
@@ -610,45 +1780,61 @@ public class SecuredPreferenceStore implements SharedPreferences {
 
             prefixChanged = storedPrefix == null && keyPrefix != null && !keyPrefix.equals(EncryptionManager.DEFAULT_KEY_ALIAS_PREFIX);
 
-            if((filenameChanged || prefixChanged) && prefToRead.getAll().size() > 0) {
+            if((filenameChanged || prefixChanged) && storeToRead.snapshot().size() > 0) {
                 try {
-                    EncryptionManager readCrypto = new EncryptionManager(mContext, prefToRead, null);
-                    EncryptionManager writeCrypto = new EncryptionManager(mContext, prefToWrite, keyPrefix, bitShiftKey, null);
-
-                    Map<String, ?> allData = prefToRead.getAll();
-
-                    SharedPreferences.Editor editor = prefToWrite.edit();
+                    EncryptionManager readCrypto = new EncryptionManager(mContext, storeToRead, null, null, null);
+                    EncryptionManager writeCrypto = new EncryptionManager(mContext, mStore, keyPrefix, bitShiftKey, null);
+
+                    Map<String, ?> allData = storeToRead.snapshot();
+
+                    BackingStore.Batch batch = mStore.edit();
+
+                    //the keys of both, they're in the same store when only the prefix changed
+                    Set<String> skippedKeys = new HashSet<>();
+                    skippedKeys.add(VERSION_KEY);
+                    skippedKeys.add(EncryptionManager.getHashed(EncryptionManager.OVERRIDING_KEY_ALIAS_PREFIX_NAME));
+                    for (EncryptionManager crypto : Arrays.asList(readCrypto, writeCrypto)) {
+                        skippedKeys.addAll(Arrays.asList(EncryptionManager.getHashed(crypto.AES_KEY_ALIAS),
+                                EncryptionManager.getHashed(crypto.IS_COMPAT_MODE_KEY_ALIAS),
+                                EncryptionManager.getHashed(crypto.MAC_KEY_ALIAS),
+                                EncryptionManager.getHashed(crypto.DATA_KEY_ALIAS)));
+                    }
 
                     for (Map.Entry<String, ?> entry : allData.entrySet()) {
                         String hashedKey = entry.getKey();
 
-                        if (hashedKey.equals(EncryptionManager.getHashed(readCrypto.AES_KEY_ALIAS)) ||
-                                hashedKey.equals(EncryptionManager.getHashed(readCrypto.IS_COMPAT_MODE_KEY_ALIAS)) ||
-                                hashedKey.equals(EncryptionManager.getHashed(readCrypto.MAC_KEY_ALIAS))) {
+                        if (skippedKeys.contains(hashedKey)) {
                             continue;
                         }
 
                         if (entry.getValue() == null) continue;
 
                         if (entry.getValue() instanceof Set) { //string set
-                            Set<String> values = (Set<String>) entry.getValue();
-                            Set<String> eValues = new HashSet<>();
+                            Set<?> values = (Set<?>) entry.getValue();
+                            Set<String> eValues = new HashSet<>(values.size());
 
-                            for (String value : values) {
-                                String dValue = readCrypto.decrypt(value);
+                            for (Object value : values) {
+                                String dValue = readCrypto.decrypt((String) value);
                                 eValues.add(writeCrypto.encrypt(dValue));
                             }
-                            editor.putStringSet(hashedKey, eValues);
-                        } else if(entry.getValue() instanceof String) { //string
-                            String dValue = readCrypto.decrypt((String) entry.getValue());
-                            editor.putString(hashedKey, writeCrypto.encrypt(dValue));
+                            batch.put(hashedKey, eValues);
+                        } else if(entry.getValue() instanceof String) { //string or typed value
+                            String value = (String) entry.getValue();
+
+                            //values stored before typed encoding are all Strings, they stay untyped to still be parsed
+                            if (EncryptionManager.isTypedValue(value)) {
+                                batch.put(hashedKey, writeCrypto.encryptValue(readCrypto.decryptValue(value)));
+                            } else {
+                                batch.put(hashedKey, writeCrypto.encryptUntyped(readCrypto.decrypt(value)));
+                            }
                         } else {
                             Logger.e("Found a value that is not String or Set, key: " + hashedKey + ", value: " + entry.getValue());
                         }
                     }
 
-                    if (editor.commit()) {
-                        editor.putInt(VERSION_KEY, 10).apply();
+                    batch.put(VERSION_KEY, 10);
+
+                    if (batch.commit() && filenameChanged) {
                         cleanupPref(DEFAULT_PREF_FILE_NAME);
                     }
                 } catch (InvalidKeyException e) {
@@ -693,7 +1879,7 @@ public class SecuredPreferenceStore implements SharedPreferences {
                 }
             }
 
-            mPrefs.edit().putInt(VERSION_KEY, toVersion).apply();
+            mStore.edit().put(VERSION_KEY, toVersion).apply();
         }
 
         void migrate(int toVersion) throws MigrationFailedException {
@@ -719,7 +1905,7 @@ public class SecuredPreferenceStore implements SharedPreferences {
         }
     }
 
-    public class MigrationFailedException extends Exception {
+    public static class MigrationFailedException extends Exception {
         public MigrationFailedException(String message, Throwable cause) {
             super(message, cause);
         }
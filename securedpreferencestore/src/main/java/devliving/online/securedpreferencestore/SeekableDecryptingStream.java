@@ -0,0 +1,210 @@
+package devliving.online.securedpreferencestore;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the plain text of a file encrypted by {@link EncryptionManager} at any position. Only the segments a read
+ * touches are read and decrypted, the most recently used ones are kept in memory.
+ * Every segment is verified before any of its bytes are returned. Instances are not thread safe.
+ * Get one with {@link EncryptionManager#openSeekableStream(java.io.File)}.
+ */
+public class SeekableDecryptingStream extends InputStream {
+    static final int DEFAULT_CACHED_SEGMENTS = 4;
+
+    private final FileChannel mChannel;
+    private final boolean mOwnsChannel;
+    private final SegmentedFileCipher mCipher;
+    private final byte[] mHeader;
+    private final int mSegmentSize;
+    private final int mSealedSize;
+    private final long mSealedLength;
+    private final long mSegmentCount;
+
+    private final LinkedHashMap<Long, byte[]> mCache;
+
+    private long mPosition = 0;
+    private long mMark = 0;
+    private long mSize = -1;
+    private boolean mClosed = false;
+
+    /**
+     * @param channel channel of the encrypted file, read at absolute positions so its own position isn't used
+     * @param ownsChannel true to close the channel when the stream is closed
+     * @param cachedSegments number of decrypted segments to keep in memory
+     * @throws IOException if the file is not in the segmented format
+     */
+    SeekableDecryptingStream(FileChannel channel, boolean ownsChannel, SegmentedFileCipher cipher, final int cachedSegments) throws IOException {
+        if (cachedSegments < 1) throw new IllegalArgumentException("cachedSegments must be at least 1");
+
+        mChannel = channel;
+        mOwnsChannel = ownsChannel;
+        mCipher = cipher;
+
+        mHeader = new byte[SegmentedFileCipher.HEADER_LENGTH];
+        if (readAt(0, ByteBuffer.wrap(mHeader)) != mHeader.length) throw new IOException("Not a segmented file");
+
+        mSegmentSize = cipher.checkHeader(mHeader);
+        mSealedSize = SegmentedFileCipher.sealedLength(cipher.suite(), mSegmentSize);
+        mSealedLength = channel.size() - SegmentedFileCipher.HEADER_LENGTH;
+        if (mSealedLength <= 0) throw new IOException("Truncated file");
+
+        mSegmentCount = (mSealedLength + mSealedSize - 1) / mSealedSize;
+
+        mCache = new LinkedHashMap<Long, byte[]>(cachedSegments + 1, 1f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > cachedSegments;
+            }
+        };
+    }
+
+    /**
+     * @return size of the plain text, the last segment may have to be decrypted to find it
+     */
+    public long size() throws IOException {
+        if (mSize < 0) {
+            long last = mSegmentCount - 1;
+            mSize = last * mSegmentSize + segment(last).length;
+        }
+
+        return mSize;
+    }
+
+    public long position() {
+        return mPosition;
+    }
+
+    /**
+     * @param position position in the plain text, reads past the end return -1
+     */
+    public void seek(long position) throws IOException {
+        ensureOpen();
+        if (position < 0) throw new IllegalArgumentException("Negative position: " + position);
+
+        mPosition = position;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
+
+        int total = 0;
+
+        while (total < len) {
+            long index = mPosition / mSegmentSize;
+            if (index >= mSegmentCount) break;
+
+            byte[] plain = segment(index);
+            int offset = (int) (mPosition % mSegmentSize);
+            if (offset >= plain.length) break;
+
+            int count = Math.min(len - total, plain.length - offset);
+            System.arraycopy(plain, offset, b, off + total, count);
+            total += count;
+            mPosition += count;
+        }
+
+        return total == 0 ? -1 : total;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        if (n <= 0) return 0;
+
+        long skipped = Math.min(n, Math.max(0, size() - mPosition));
+        mPosition += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+
+        //only what's already decrypted can be read without blocking
+        long index = mPosition / mSegmentSize;
+        byte[] plain = mCache.get(index);
+        return plain != null ? Math.max(0, plain.length - (int) (mPosition % mSegmentSize)) : 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mMark = mPosition;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        ensureOpen();
+        mPosition = mMark;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+
+        mClosed = true;
+        mCache.clear();
+        if (mOwnsChannel) mChannel.close();
+    }
+
+    /**
+     * @return plain text of the segment, verified
+     */
+    private byte[] segment(long index) throws IOException {
+        byte[] plain = mCache.get(index);
+        if (plain != null) return plain;
+
+        long offset = index * mSealedSize;
+        int length = (int) Math.min(mSealedSize, mSealedLength - offset);
+        byte[] sealed = new byte[length];
+        if (readAt(SegmentedFileCipher.HEADER_LENGTH + offset, ByteBuffer.wrap(sealed)) != length) {
+            throw new IOException("File changed while reading");
+        }
+
+        try {
+            plain = mCipher.open(mHeader, (int) index, index == mSegmentCount - 1, sealed, length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt segment " + index, e);
+        }
+
+        mCache.put(index, plain);
+        return plain;
+    }
+
+    private int readAt(long position, ByteBuffer buffer) throws IOException {
+        int total = 0;
+
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position + total);
+            if (read == -1) break;
+            total += read;
+        }
+
+        return total;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed) throw new IOException("Stream closed");
+    }
+}
@@ -0,0 +1,370 @@
+package devliving.online.securedpreferencestore;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Encrypts files as a sequence of fixed size segments, each authenticated on its own, so a file of any size is
+ * encrypted and verified in constant memory.
+ * <pre>
+ * header:  "SPSF" | version (1) | suite (1) | segment size (4) | nonce prefix (7)
+ * GCM:     ciphertext | tag (16)                  nonce = nonce prefix | segment index (4) | last segment flag (1)
+ * CBC:     IV (16) | ciphertext | HMAC-SHA256 (32) over header | segment index | last segment flag | IV | ciphertext
+ * </pre>
+ * Every segment but the last holds segment size bytes of plain text. The header is authenticated with every segment
+ * and the last segment is marked, so reordered, dropped or truncated segments fail verification.
+ * Files written before this format start with the IV right away, see {@link #isSegmented(byte[])}.
+ */
+final class SegmentedFileCipher {
+    static final byte[] MAGIC = {'S', 'P', 'S', 'F'};
+    static final int VERSION_1 = 1;
+    static final int NONCE_PREFIX_LENGTH = 7;
+    static final int HEADER_LENGTH = MAGIC.length + 1 + 1 + 4 + NONCE_PREFIX_LENGTH;
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int GCM_TAG_LENGTH = 16;
+    private static final int CBC_BLOCK_SIZE = 16;
+    private static final int MAC_LENGTH = EncryptedDataCodec.MAC_LENGTH;
+
+    private final Cipher mCipher;
+    private final Key mKey;
+    private final Mac mMac;
+    private final int mSuite;
+    private final NonceGenerator mNonceGenerator;
+
+    /**
+     * @param cipher AES/GCM/NoPadding or, together with a mac, AES/CBC/PKCS7Padding cipher used only by this instance
+     * @param key AES key
+     * @param mac HmacSHA256 initialised with the mac key for CBC, null for GCM
+     * @param nonceGenerator source of nonce prefixes and CBC IVs
+     */
+    SegmentedFileCipher(Cipher cipher, Key key, @Nullable Mac mac, NonceGenerator nonceGenerator) {
+        mCipher = cipher;
+        mKey = key;
+        mMac = mac;
+        mSuite = mac != null ? EncryptedDataCodec.SUITE_AES_CBC_HMAC : EncryptedDataCodec.SUITE_AES_GCM;
+        mNonceGenerator = nonceGenerator;
+    }
+
+    int suite() {
+        return mSuite;
+    }
+
+    /**
+     * @param start the first bytes of a file
+     * @return true if the file is in the segmented format, false if it's an older single stream file
+     */
+    static boolean isSegmented(byte[] start) {
+        if (start.length < MAGIC.length) return false;
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (start[i] != MAGIC[i]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return size of a segment on disk holding the given number of plain text bytes
+     */
+    static int sealedLength(int suite, int plainLength) {
+        if (suite == EncryptedDataCodec.SUITE_AES_GCM) return plainLength + GCM_TAG_LENGTH;
+
+        return CBC_BLOCK_SIZE + (plainLength / CBC_BLOCK_SIZE + 1) * CBC_BLOCK_SIZE + MAC_LENGTH;
+    }
+
+    byte[] newHeader(int segmentSize) {
+        if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(MAGIC);
+        header.put((byte) VERSION_1);
+        header.put((byte) mSuite);
+        header.putInt(segmentSize);
+        header.put(mNonceGenerator.next(NONCE_PREFIX_LENGTH));
+
+        return header.array();
+    }
+
+    /**
+     * @return segment size of the file
+     * @throws IOException if the header is invalid or the file was encrypted with another suite
+     */
+    int checkHeader(byte[] header) throws IOException {
+        if (header.length != HEADER_LENGTH || !isSegmented(header)) throw new IOException("Not a segmented file");
+
+        ByteBuffer buffer = ByteBuffer.wrap(header, MAGIC.length, HEADER_LENGTH - MAGIC.length);
+        int version = buffer.get() & 0xFF;
+        int suite = buffer.get() & 0xFF;
+        int segmentSize = buffer.getInt();
+
+        if (version != VERSION_1) throw new IOException("Unsupported file version: " + version);
+        if (suite != mSuite) throw new IOException("File was encrypted with suite " + suite + ", expected " + mSuite);
+        if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE) throw new IOException("Invalid segment size: " + segmentSize);
+
+        return segmentSize;
+    }
+
+    /**
+     * Doesn't close the streams
+     */
+    void encrypt(InputStream in, OutputStream out, int segmentSize) throws IOException, GeneralSecurityException {
+        byte[] header = newHeader(segmentSize);
+        out.write(header);
+
+        byte[] current = new byte[segmentSize];
+        byte[] next = new byte[segmentSize];
+        int currentLength = readFully(in, current, segmentSize);
+        int segment = 0;
+
+        while (true) {
+            //the segment is the last one if the input ends in it or right after it
+            int nextLength = currentLength == segmentSize ? readFully(in, next, segmentSize) : 0;
+            boolean last = nextLength == 0;
+
+            out.write(seal(header, segment, last, current, currentLength));
+            if (last) break;
+
+            byte[] swap = current;
+            current = next;
+            next = swap;
+            currentLength = nextLength;
+            segment = nextSegment(segment);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Doesn't close the streams. Plain text is written as soon as a segment is verified,
+     * if an exception is thrown the output written so far must be discarded.
+     * @throws IOException if the file is invalid or a segment fails verification
+     */
+    void decrypt(InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        byte[] header = new byte[HEADER_LENGTH];
+        if (readFully(in, header, HEADER_LENGTH) != HEADER_LENGTH) throw new IOException("Truncated header");
+
+        int segmentSize = checkHeader(header);
+        int sealedSize = sealedLength(mSuite, segmentSize);
+        byte[] current = new byte[sealedSize];
+        byte[] next = new byte[sealedSize];
+        int currentLength = readFully(in, current, sealedSize);
+        int segment = 0;
+
+        while (true) {
+            int nextLength = currentLength == sealedSize ? readFully(in, next, sealedSize) : 0;
+            boolean last = nextLength == 0;
+
+            out.write(open(header, segment, last, current, currentLength));
+            if (last) break;
+
+            byte[] swap = current;
+            current = next;
+            next = swap;
+            currentLength = nextLength;
+            segment = nextSegment(segment);
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Authenticates every segment of a file without writing any plain text, so a file can be checked as a whole
+     * before any of it is used. Doesn't close the stream.
+     * @throws IOException if the file is invalid or a segment fails verification
+     */
+    void verify(InputStream in) throws IOException, GeneralSecurityException {
+        byte[] header = new byte[HEADER_LENGTH];
+        if (readFully(in, header, HEADER_LENGTH) != HEADER_LENGTH) throw new IOException("Truncated header");
+
+        int segmentSize = checkHeader(header);
+        int sealedSize = sealedLength(mSuite, segmentSize);
+        byte[] current = new byte[sealedSize];
+        byte[] next = new byte[sealedSize];
+        ByteBuffer scratch = ByteBuffer.allocate(sealedSize);
+        int currentLength = readFully(in, current, sealedSize);
+        int segment = 0;
+
+        while (true) {
+            int nextLength = currentLength == sealedSize ? readFully(in, next, sealedSize) : 0;
+            boolean last = nextLength == 0;
+
+            verify(header, segment, last, ByteBuffer.wrap(current, 0, currentLength), scratch);
+            if (last) break;
+
+            byte[] swap = current;
+            current = next;
+            next = swap;
+            currentLength = nextLength;
+            segment = nextSegment(segment);
+        }
+    }
+
+    byte[] seal(byte[] header, int segment, boolean last, byte[] data, int length) throws GeneralSecurityException {
+        ByteBuffer sealed = ByteBuffer.allocate(sealedLength(mSuite, length));
+        seal(header, segment, last, ByteBuffer.wrap(data, 0, length), sealed);
+        return sealed.array();
+    }
+
+    /**
+     * @throws IOException if the segment fails verification
+     */
+    byte[] open(byte[] header, int segment, boolean last, byte[] sealed, int length) throws IOException, GeneralSecurityException {
+        ByteBuffer plain = ByteBuffer.allocate(length);
+        open(header, segment, last, ByteBuffer.wrap(sealed, 0, length), plain);
+        return Arrays.copyOf(plain.array(), plain.position());
+    }
+
+    /**
+     * @param plain plain text of the segment, consumed
+     * @param out receives the sealed segment, needs room for {@link #sealedLength(int, int)} bytes
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    void seal(byte[] header, int segment, boolean last, ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+        if (mMac == null) {
+            mCipher.init(Cipher.ENCRYPT_MODE, mKey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, gcmNonce(header, segment, last)));
+            mCipher.updateAAD(header);
+            mCipher.doFinal(plain, out);
+            return;
+        }
+
+        byte[] IV = mNonceGenerator.next(CBC_BLOCK_SIZE);
+        mCipher.init(Cipher.ENCRYPT_MODE, mKey, new IvParameterSpec(IV));
+        out.put(IV);
+
+        ByteBuffer encrypted = out.duplicate();
+        mCipher.doFinal(plain, out);
+        encrypted.limit(out.position());
+
+        out.put(cbcMac(header, segment, last, IV, encrypted));
+    }
+
+    /**
+     * @param sealed the sealed segment, consumed
+     * @param out receives the plain text, needs room for as many bytes as the sealed segment has
+     * @throws IOException if the segment fails verification
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    void open(byte[] header, int segment, boolean last, ByteBuffer sealed, ByteBuffer out) throws IOException, GeneralSecurityException {
+        int length = sealed.remaining();
+
+        if (mMac == null) {
+            if (length < GCM_TAG_LENGTH) throw new IOException("Truncated segment " + segment);
+
+            mCipher.init(Cipher.DECRYPT_MODE, mKey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, gcmNonce(header, segment, last)));
+            mCipher.updateAAD(header);
+
+            try {
+                mCipher.doFinal(sealed, out);
+            } catch (BadPaddingException e) {
+                throw new IOException("Segment " + segment + " failed verification", e);
+            }
+
+            return;
+        }
+
+        byte[] IV = new byte[CBC_BLOCK_SIZE];
+        ByteBuffer encrypted = checkCbcMac(header, segment, last, sealed, IV);
+
+        mCipher.init(Cipher.DECRYPT_MODE, mKey, new IvParameterSpec(IV));
+        mCipher.doFinal(encrypted, out);
+    }
+
+    /**
+     * Authenticates a segment without keeping its plain text, CBC segments are only checked against their MAC
+     * @param sealed the sealed segment, consumed
+     * @param scratch room for as many bytes as the sealed segment has, only used for GCM
+     * @throws IOException if the segment fails verification
+     */
+    void verify(byte[] header, int segment, boolean last, ByteBuffer sealed, ByteBuffer scratch) throws IOException, GeneralSecurityException {
+        if (mMac == null) {
+            scratch.clear();
+            open(header, segment, last, sealed, scratch);
+            return;
+        }
+
+        checkCbcMac(header, segment, last, sealed, new byte[CBC_BLOCK_SIZE]);
+    }
+
+    /**
+     * @param IV receives the IV of the segment
+     * @return the encrypted part of the segment
+     * @throws IOException if the segment is truncated or its MAC doesn't match
+     */
+    private ByteBuffer checkCbcMac(byte[] header, int segment, boolean last, ByteBuffer sealed, byte[] IV) throws IOException {
+        int encryptedLength = sealed.remaining() - CBC_BLOCK_SIZE - MAC_LENGTH;
+        if (encryptedLength < CBC_BLOCK_SIZE) throw new IOException("Truncated segment " + segment);
+
+        sealed.get(IV);
+        ByteBuffer encrypted = sealed.slice();
+        encrypted.limit(encryptedLength);
+        byte[] mac = new byte[MAC_LENGTH];
+        sealed.position(sealed.position() + encryptedLength);
+        sealed.get(mac);
+
+        if (!MessageDigest.isEqual(mac, cbcMac(header, segment, last, IV, encrypted.duplicate()))) {
+            throw new IOException("Segment " + segment + " failed verification");
+        }
+
+        return encrypted;
+    }
+
+    private byte[] cbcMac(byte[] header, int segment, boolean last, byte[] IV, ByteBuffer encrypted) {
+        mMac.reset();
+        mMac.update(header);
+        mMac.update(ByteBuffer.allocate(5).putInt(segment).put((byte) (last ? 1 : 0)).array());
+        mMac.update(IV);
+        mMac.update(encrypted);
+        return mMac.doFinal();
+    }
+
+    private static byte[] gcmNonce(byte[] header, int segment, boolean last) {
+        ByteBuffer nonce = ByteBuffer.allocate(NONCE_PREFIX_LENGTH + 5);
+        nonce.put(header, HEADER_LENGTH - NONCE_PREFIX_LENGTH, NONCE_PREFIX_LENGTH);
+        nonce.putInt(segment);
+        nonce.put((byte) (last ? 1 : 0));
+        return nonce.array();
+    }
+
+    static int nextSegment(int segment) throws IOException {
+        if (segment == -1) throw new IOException("Too many segments");
+
+        //the index is treated as unsigned
+        return segment + 1;
+    }
+
+    /**
+     * @return number of bytes read, less than length only at the end of the stream
+     */
+    static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+
+        while (total < length) {
+            int read = in.read(buffer, total, length - total);
+            if (read == -1) break;
+            total += read;
+        }
+
+        return total;
+    }
+}
@@ -0,0 +1,350 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Spreads the entries of one store over several preference files, so a commit rewrites only the files of the keys it
+ * changed instead of the whole store. Keys are routed by their hash prefix, stored keys are already hex hashes.
+ * Reads, {@link #getAll()} and clearing go over all the shards. A commit that touches several shards isn't atomic
+ * across them.
+ * The shard count is recorded in the store's own file, each layout writes to files of its own so changing the count
+ * can't leave a store half moved.
+ */
+final class ShardedSharedPreferences implements SharedPreferences {
+    /**
+     * Opens the store with the layout it already has
+     */
+    static final int KEEP_LAYOUT = 0;
+    static final int MAX_SHARDS = 64;
+
+    static final String SHARD_COUNT_KEY = "sps_shard_count";
+
+    private final SharedPreferences[] mShards;
+
+    //the shards keep a weak reference to their listeners, so do we
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners = new WeakHashMap<>();
+    private boolean mDispatcherRegistered = false;
+
+    private final OnSharedPreferenceChangeListener mDispatcher = new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            OnSharedPreferenceChangeListener[] listeners;
+
+            synchronized (mListeners) {
+                listeners = mListeners.keySet().toArray(new OnSharedPreferenceChangeListener[0]);
+            }
+
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                listener.onSharedPreferenceChanged(ShardedSharedPreferences.this, key);
+            }
+        }
+    };
+
+    ShardedSharedPreferences(SharedPreferences[] shards) {
+        if (shards.length < 2) throw new IllegalArgumentException("At least 2 shards are needed, got " + shards.length);
+        mShards = shards;
+    }
+
+    /**
+     * @param name name of the store's preference file
+     * @param shardCount number of files to spread the entries over, 1 for a single file or {@link #KEEP_LAYOUT}.
+     *                   Entries are moved when it differs from what the store was created with
+     * @return the store's preferences
+     */
+    static SharedPreferences open(Context context, String name, int shardCount) {
+        if (shardCount < 0 || shardCount > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard count must be between 1 and " + MAX_SHARDS + ", got " + shardCount);
+        }
+
+        SharedPreferences base = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+        int current = shardCount(base);
+        SharedPreferences layout = layout(context, name, base, current);
+
+        if (shardCount == KEEP_LAYOUT || shardCount == current) return layout;
+
+        return reshard(context, name, base, layout, current, shardCount);
+    }
+
+    /**
+     * @return true if the entries of the store the file belongs to are in shards
+     */
+    static boolean isSharded(SharedPreferences base) {
+        return shardCount(base) > 1;
+    }
+
+    static int shardCount(SharedPreferences base) {
+        return base.getInt(SHARD_COUNT_KEY, 1);
+    }
+
+    /**
+     * @return index of the shard the key belongs to
+     */
+    static int shardOf(String key, int shardCount) {
+        int prefix = 0;
+
+        if (key.length() >= 4) {
+            for (int i = 0; i < 4 && prefix >= 0; i++) {
+                int digit = Character.digit(key.charAt(i), 16);
+                prefix = digit >= 0 ? prefix << 4 | digit : -1;
+            }
+        } else {
+            prefix = -1;
+        }
+
+        //keys that aren't hashes, e.g. the version
+        if (prefix < 0) prefix = key.hashCode() & Integer.MAX_VALUE;
+
+        return prefix % shardCount;
+    }
+
+    int getShardCount() {
+        return mShards.length;
+    }
+
+    private SharedPreferences shardFor(String key) {
+        return mShards[shardOf(key, mShards.length)];
+    }
+
+    private static SharedPreferences layout(Context context, String name, SharedPreferences base, int shardCount) {
+        if (shardCount <= 1) return base;
+
+        SharedPreferences[] shards = new SharedPreferences[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = context.getSharedPreferences(shardName(name, shardCount, i), Context.MODE_PRIVATE);
+        }
+
+        return new ShardedSharedPreferences(shards);
+    }
+
+    private static String shardName(String name, int shardCount, int index) {
+        return name + "_shard_" + shardCount + "_" + index;
+    }
+
+    /**
+     * Copies the entries to the new layout, switches the recorded shard count and then clears the old layout.
+     * Until the count is switched the old layout stays intact, so a failure keeps the store as it was
+     */
+    private static SharedPreferences reshard(Context context, String name, SharedPreferences base, SharedPreferences from,
+                                             int current, int shardCount) {
+        Logger.d("Moving store " + name + " from " + current + " to " + shardCount + " shards");
+
+        Map<String, ?> entries = new HashMap<>(from.getAll());
+        entries.remove(SHARD_COUNT_KEY);
+
+        if (shardCount > 1) {
+            SharedPreferences to = layout(context, name, base, shardCount);
+            SharedPreferences.Editor editor = to.edit().clear();
+            putAll(editor, entries);
+
+            if (!editor.commit() || !base.edit().clear().putInt(SHARD_COUNT_KEY, shardCount).commit()) {
+                Logger.e("Unable to move the store to " + shardCount + " shards, keeping " + current);
+                return from;
+            }
+
+            if (current > 1) from.edit().clear().commit();
+            return to;
+        } else {
+            SharedPreferences.Editor editor = base.edit().clear();
+            putAll(editor, entries);
+
+            if (!editor.commit()) {
+                Logger.e("Unable to move the store back to a single file, keeping " + current + " shards");
+                return from;
+            }
+
+            from.edit().clear().commit();
+            return base;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static void putAll(SharedPreferences.Editor editor, Map<String, ?> entries) {
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            Object value = entry.getValue();
+
+            if (value instanceof String) editor.putString(entry.getKey(), (String) value);
+            else if (value instanceof Set) editor.putStringSet(entry.getKey(), (Set<String>) value);
+            else if (value instanceof Integer) editor.putInt(entry.getKey(), (Integer) value);
+            else if (value instanceof Long) editor.putLong(entry.getKey(), (Long) value);
+            else if (value instanceof Float) editor.putFloat(entry.getKey(), (Float) value);
+            else if (value instanceof Boolean) editor.putBoolean(entry.getKey(), (Boolean) value);
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        Map<String, Object> all = new HashMap<>();
+
+        for (SharedPreferences shard : mShards) {
+            all.putAll(shard.getAll());
+        }
+
+        return all;
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        return shardFor(key).getString(key, defValue);
+    }
+
+    @Nullable
+    @Override
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        return shardFor(key).getStringSet(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return shardFor(key).getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return shardFor(key).getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return shardFor(key).getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return shardFor(key).getBoolean(key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return shardFor(key).contains(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new ShardedEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.put(listener, Boolean.TRUE);
+
+            if (!mDispatcherRegistered) {
+                for (SharedPreferences shard : mShards) {
+                    shard.registerOnSharedPreferenceChangeListener(mDispatcher);
+                }
+                mDispatcherRegistered = true;
+            }
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+
+            if (mListeners.isEmpty() && mDispatcherRegistered) {
+                for (SharedPreferences shard : mShards) {
+                    shard.unregisterOnSharedPreferenceChangeListener(mDispatcher);
+                }
+                mDispatcherRegistered = false;
+            }
+        }
+    }
+
+    /**
+     * Routes each change to the editor of its shard, only the shards that were changed are written
+     */
+    private final class ShardedEditor implements Editor {
+        private final Editor[] mEditors = new Editor[mShards.length];
+
+        private Editor editorFor(String key) {
+            return editorAt(shardOf(key, mShards.length));
+        }
+
+        private Editor editorAt(int index) {
+            if (mEditors[index] == null) mEditors[index] = mShards[index].edit();
+            return mEditors[index];
+        }
+
+        @Override
+        public Editor putString(String key, @Nullable String value) {
+            editorFor(key).putString(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, @Nullable Set<String> values) {
+            editorFor(key).putStringSet(key, values);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            editorFor(key).putInt(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            editorFor(key).putLong(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            editorFor(key).putFloat(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            editorFor(key).putBoolean(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            editorFor(key).remove(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            //like a single file, clearing applies before the other changes of the editor
+            for (int i = 0; i < mEditors.length; i++) {
+                editorAt(i).clear();
+            }
+
+            return this;
+        }
+
+        /**
+         * @return true if every changed shard was written
+         */
+        @Override
+        public boolean commit() {
+            boolean committed = true;
+
+            for (Editor editor : mEditors) {
+                if (editor != null) committed &= editor.commit();
+            }
+
+            return committed;
+        }
+
+        @Override
+        public void apply() {
+            for (Editor editor : mEditors) {
+                if (editor != null) editor.apply();
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the entries in {@link SharedPreferences}, a single preference file or one of the engines built on the same
+ * interface, e.g. {@link ShardedSharedPreferences} and {@link LogStructuredPreferences}.
+ */
+public final class SharedPreferencesBackingStore implements BackingStore {
+    private final SharedPreferences mPrefs;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    //the preferences keep a weak reference to their listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener mDispatcher = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            //a clear is reported with a null key from API 30
+            if (key == null) return;
+
+            for (Listener listener : mListeners) {
+                listener.onChanged(SharedPreferencesBackingStore.this, key);
+            }
+        }
+    };
+    private boolean mDispatcherRegistered = false;
+
+    public SharedPreferencesBackingStore(@NonNull SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    @NonNull
+    public SharedPreferences getPreferences() {
+        return mPrefs;
+    }
+
+    @Nullable
+    @Override
+    public Object get(@NonNull String key) {
+        //almost every value is an encrypted String, the other types are only looked for when it isn't one
+        try {
+            return mPrefs.getString(key, null);
+        } catch (ClassCastException e) {
+            //not a String
+        }
+
+        try {
+            return mPrefs.getStringSet(key, null);
+        } catch (ClassCastException e) {
+            //not a String set
+        }
+
+        return mPrefs.getAll().get(key);
+    }
+
+    @Override
+    public boolean contains(@NonNull String key) {
+        return mPrefs.contains(key);
+    }
+
+    @NonNull
+    @Override
+    public Map<String, ?> snapshot() {
+        return mPrefs.getAll();
+    }
+
+    @NonNull
+    @Override
+    public Batch edit() {
+        final SharedPreferences.Editor editor = mPrefs.edit();
+
+        return new Batch() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Batch put(@NonNull String key, @Nullable Object value) {
+                if (value == null) editor.remove(key);
+                else if (value instanceof String) editor.putString(key, (String) value);
+                else if (value instanceof Set) editor.putStringSet(key, (Set<String>) value);
+                else if (value instanceof Integer) editor.putInt(key, (Integer) value);
+                else if (value instanceof Long) editor.putLong(key, (Long) value);
+                else if (value instanceof Float) editor.putFloat(key, (Float) value);
+                else if (value instanceof Boolean) editor.putBoolean(key, (Boolean) value);
+                else throw new IllegalArgumentException("Unsupported value type: " + value.getClass());
+
+                return this;
+            }
+
+            @Override
+            public Batch remove(@NonNull String key) {
+                editor.remove(key);
+                return this;
+            }
+
+            @Override
+            public Batch clear() {
+                editor.clear();
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                return editor.commit();
+            }
+
+            @Override
+            public void apply() {
+                editor.apply();
+            }
+        };
+    }
+
+    @Override
+    public synchronized void registerListener(@NonNull Listener listener) {
+        mListeners.addIfAbsent(listener);
+
+        if (!mDispatcherRegistered) {
+            mPrefs.registerOnSharedPreferenceChangeListener(mDispatcher);
+            mDispatcherRegistered = true;
+        }
+    }
+
+    @Override
+    public synchronized void unregisterListener(@NonNull Listener listener) {
+        mListeners.remove(listener);
+
+        if (mListeners.isEmpty() && mDispatcherRegistered) {
+            mPrefs.unregisterOnSharedPreferenceChangeListener(mDispatcher);
+            mDispatcherRegistered = false;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package devliving.online.securedpreferencestore;
+
+/**
+ * Snapshot of what initialising the store cost, see {@link SecuredPreferenceStore#getStartupMetrics()}.
+ * Keystore counts are for the whole process, every store and {@link EncryptionManager} shares one keystore.
+ */
+public final class StartupMetrics {
+    private final int mKeyStoreLoads;
+    private final int mKeyStoreRoundTrips;
+    private final int mKeyCacheHits;
+    private final long mInitMillis;
+    private final long mKeySetupMillis;
+
+    StartupMetrics(int keyStoreLoads, int keyStoreRoundTrips, int keyCacheHits, long initMillis, long keySetupMillis) {
+        mKeyStoreLoads = keyStoreLoads;
+        mKeyStoreRoundTrips = keyStoreRoundTrips;
+        mKeyCacheHits = keyCacheHits;
+        mInitMillis = initMillis;
+        mKeySetupMillis = keySetupMillis;
+    }
+
+    /**
+     * @return times the keystore was loaded, 1 once any key was used
+     */
+    public int getKeyStoreLoads() {
+        return mKeyStoreLoads;
+    }
+
+    /**
+     * @return calls made to the keystore: loading it, looking up and generating keys
+     */
+    public int getKeyStoreRoundTrips() {
+        return mKeyStoreRoundTrips;
+    }
+
+    /**
+     * @return key lookups answered without a keystore round trip
+     */
+    public int getKeyCacheHits() {
+        return mKeyCacheHits;
+    }
+
+    /**
+     * @return time it took to create the shared store, -1 if it isn't initialised yet
+     */
+    public long getInitMillis() {
+        return mInitMillis;
+    }
+
+    /**
+     * @return time it took to generate or load the shared store's keys, -1 if they haven't been needed yet
+     */
+    public long getKeySetupMillis() {
+        return mKeySetupMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "StartupMetrics{keyStoreLoads=" + mKeyStoreLoads + ", keyStoreRoundTrips=" + mKeyStoreRoundTrips
+                + ", keyCacheHits=" + mKeyCacheHits + ", initMillis=" + mInitMillis + ", keySetupMillis=" + mKeySetupMillis + "}";
+    }
+}
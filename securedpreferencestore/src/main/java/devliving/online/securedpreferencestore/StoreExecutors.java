@@ -0,0 +1,80 @@
+package devliving.online.securedpreferencestore;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background threads shared by all the stores. Threads are daemons and time out when idle,
+ * so an app that never uses the batch or asynchronous APIs doesn't keep any of them around.
+ */
+final class StoreExecutors {
+    static final int PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor mDecryptionExecutor;
+    private static ThreadPoolExecutor mAsyncExecutor;
+    private static ScheduledThreadPoolExecutor mScheduler;
+
+    private StoreExecutors() {
+    }
+
+    /**
+     * @return executor for spreading decryption of many values and file segments over the available cores
+     */
+    static synchronized Executor decryption() {
+        if (mDecryptionExecutor == null) {
+            mDecryptionExecutor = new ThreadPoolExecutor(PARALLELISM, PARALLELISM, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), newThreadFactory("SPS-Decrypt"));
+            mDecryptionExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        return mDecryptionExecutor;
+    }
+
+    /**
+     * @return default executor of the asynchronous store operations, callers are throttled by {@link AsyncDispatcher}
+     * so the queue doesn't need a bound of its own
+     */
+    static synchronized Executor async() {
+        if (mAsyncExecutor == null) {
+            mAsyncExecutor = new ThreadPoolExecutor(PARALLELISM, PARALLELISM, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), newThreadFactory("SPS-Async"));
+            mAsyncExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        return mAsyncExecutor;
+    }
+
+    /**
+     * @return single thread for delayed housekeeping, e.g. zeroing keys that haven't been used for a while
+     */
+    static synchronized ScheduledExecutorService scheduler() {
+        if (mScheduler == null) {
+            mScheduler = new ScheduledThreadPoolExecutor(1, newThreadFactory("SPS-Timer"));
+            mScheduler.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            mScheduler.allowCoreThreadTimeOut(true);
+        }
+
+        return mScheduler;
+    }
+
+    static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
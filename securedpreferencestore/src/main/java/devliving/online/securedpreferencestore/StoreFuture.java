@@ -0,0 +1,156 @@
+package devliving.online.securedpreferencestore;
+
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Result of an asynchronous store operation. Cancelling an operation that hasn't started yet keeps it from running,
+ * callbacks can be added to get notified on an executor of choice when it completes.
+ * Use {@link #toCompletableFuture()} on API 24 and above.
+ */
+public class StoreFuture<T> extends FutureTask<T> {
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        /**
+         * @param error error thrown by the operation, a {@link CancellationException} if it was cancelled
+         */
+        void onFailure(Throwable error);
+    }
+
+    private List<Runnable> mListeners = new ArrayList<>();
+    //thread running the operation with runDeferringListeners(), the listeners aren't notified on it when it completes
+    private volatile Thread mDeferringThread;
+
+    StoreFuture(Callable<T> callable) {
+        super(callable);
+    }
+
+    /**
+     * @param callback callback to notify when the operation completes, right away if it already has
+     * @param executor executor to notify on
+     * @return this future
+     */
+    public StoreFuture<T> addCallback(@NonNull final Callback<? super T> callback, @NonNull final Executor executor) {
+        Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        T result;
+
+                        try {
+                            result = get();
+                        } catch (ExecutionException e) {
+                            callback.onFailure(e.getCause());
+                            return;
+                        } catch (CancellationException e) {
+                            callback.onFailure(e);
+                            return;
+                        } catch (InterruptedException e) {
+                            //the future is already done, get() doesn't wait
+                            Thread.currentThread().interrupt();
+                            callback.onFailure(e);
+                            return;
+                        }
+
+                        callback.onSuccess(result);
+                    }
+                });
+            }
+        };
+
+        synchronized (this) {
+            if (mListeners != null) {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+
+        listener.run();
+        return this;
+    }
+
+    /**
+     * @return a CompletableFuture completed with the result of this operation, cancelling it cancels this operation
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public CompletableFuture<T> toCompletableFuture() {
+        final CompletableFuture<T> future = new CompletableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                StoreFuture.this.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                future.completeExceptionally(error);
+            }
+        }, DIRECT_EXECUTOR);
+
+        return future;
+    }
+
+    /**
+     * Runs the operation, leaving the listeners to {@link #notifyListeners()} if it completes on this thread.
+     * Lets the caller release what it holds for the operation before callbacks that may wait for it run.
+     */
+    void runDeferringListeners() {
+        mDeferringThread = Thread.currentThread();
+
+        try {
+            run();
+        } finally {
+            mDeferringThread = null;
+        }
+    }
+
+    @Override
+    protected void done() {
+        if (Thread.currentThread() != mDeferringThread) notifyListeners();
+    }
+
+    /**
+     * Notifies the listeners once the operation is done, later calls don't do anything
+     */
+    void notifyListeners() {
+        List<Runnable> listeners;
+
+        synchronized (this) {
+            listeners = mListeners;
+            mListeners = null;
+        }
+
+        if (listeners == null) return;
+
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+}
@@ -0,0 +1,111 @@
+package devliving.online.securedpreferencestore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed number of read/write locks, keys are mapped to one of them by their hash.
+ * Reads of any keys can run in parallel, writes only wait for reads and writes of keys sharing the same stripe.
+ */
+final class StripedLock {
+    private final ReadWriteLock[] mStripes;
+    private final int mMask;
+
+    /**
+     * @param stripes number of locks, rounded up to a power of two
+     */
+    StripedLock(int stripes) {
+        int size = 1;
+        while (size < stripes) size <<= 1;
+
+        mStripes = new ReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            mStripes[i] = new ReentrantReadWriteLock();
+        }
+
+        mMask = size - 1;
+    }
+
+    int stripeCount() {
+        return mStripes.length;
+    }
+
+    int stripeOf(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & mMask;
+    }
+
+    Lock readLock(String key) {
+        return mStripes[stripeOf(key)].readLock();
+    }
+
+    Lock writeLock(String key) {
+        return mStripes[stripeOf(key)].writeLock();
+    }
+
+    /**
+     * Acquires the read locks of all the stripes the keys belong to, in the same order as {@link #lockForWrite(Collection, boolean)}
+     * @param keys keys to lock
+     * @return acquired locks, must be passed to {@link #unlock(List)}
+     */
+    List<Lock> lockForRead(Collection<String> keys) {
+        boolean[] stripes = new boolean[mStripes.length];
+
+        for (String key : keys) {
+            stripes[stripeOf(key)] = true;
+        }
+
+        List<Lock> locks = new ArrayList<>();
+        for (int i = 0; i < stripes.length; i++) {
+            if (stripes[i]) {
+                Lock lock = mStripes[i].readLock();
+                lock.lock();
+                locks.add(lock);
+            }
+        }
+
+        return locks;
+    }
+
+    /**
+     * Acquires the write locks of all the stripes the keys belong to, always in the same order to avoid deadlocks
+     * @param keys keys to lock
+     * @param allStripes lock every stripe regardless of the keys, e.g when all the values are going to change
+     * @return acquired locks, must be passed to {@link #unlock(List)}
+     */
+    List<Lock> lockForWrite(Collection<String> keys, boolean allStripes) {
+        boolean[] stripes = new boolean[mStripes.length];
+
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = allStripes;
+        }
+
+        if (!allStripes) {
+            for (String key : keys) {
+                stripes[stripeOf(key)] = true;
+            }
+        }
+
+        List<Lock> locks = new ArrayList<>();
+        for (int i = 0; i < stripes.length; i++) {
+            if (stripes[i]) {
+                Lock lock = mStripes[i].writeLock();
+                lock.lock();
+                locks.add(lock);
+            }
+        }
+
+        return locks;
+    }
+
+    void unlock(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package devliving.online.securedpreferencestore;
+
+import java.nio.charset.Charset;
+
+/**
+ * Plain text encoding of values stored in envelope version {@link EncryptedDataCodec#VERSION_2} and later:
+ * a type tag followed by the value, primitives are fixed width and big-endian, strings are UTF-8.
+ * Older envelopes hold the value's string form instead.
+ */
+final class TypedValueCodec {
+    static final byte TAG_STRING = 1;
+    static final byte TAG_INT = 2;
+    static final byte TAG_LONG = 3;
+    static final byte TAG_FLOAT = 4;
+    static final byte TAG_BOOLEAN = 5;
+    static final byte TAG_BYTES = 6;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private TypedValueCodec() {
+    }
+
+    /**
+     * @param value a String, Integer, Long, Float, Boolean or byte[]
+     * @return tagged bytes
+     * @throws IllegalArgumentException if the type is not supported
+     */
+    static byte[] encode(Object value) {
+        if (value instanceof String) {
+            byte[] text = ((String) value).getBytes(CHARSET);
+            byte[] out = new byte[1 + text.length];
+            out[0] = TAG_STRING;
+            System.arraycopy(text, 0, out, 1, text.length);
+            return out;
+        } else if (value instanceof Integer) {
+            byte[] out = new byte[5];
+            out[0] = TAG_INT;
+            putInt(out, 1, (Integer) value);
+            return out;
+        } else if (value instanceof Long) {
+            byte[] out = new byte[9];
+            out[0] = TAG_LONG;
+            putLong(out, 1, (Long) value);
+            return out;
+        } else if (value instanceof Float) {
+            byte[] out = new byte[5];
+            out[0] = TAG_FLOAT;
+            putInt(out, 1, Float.floatToIntBits((Float) value));
+            return out;
+        } else if (value instanceof Boolean) {
+            return new byte[]{TAG_BOOLEAN, (byte) ((Boolean) value ? 1 : 0)};
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            byte[] out = new byte[1 + bytes.length];
+            out[0] = TAG_BYTES;
+            System.arraycopy(bytes, 0, out, 1, bytes.length);
+            return out;
+        }
+
+        throw new IllegalArgumentException("Unsupported value type: " + (value != null ? value.getClass().getName() : null));
+    }
+
+    /**
+     * @param data bytes created by {@link #encode(Object)}
+     * @return the value as String, Integer, Long, Float, Boolean or byte[]
+     * @throws IllegalArgumentException if the data is malformed
+     */
+    static Object decode(byte[] data) {
+        if (data == null || data.length == 0) throw new IllegalArgumentException("Missing type tag");
+
+        switch (data[0]) {
+            case TAG_STRING:
+                return new String(data, 1, data.length - 1, CHARSET);
+            case TAG_INT:
+                checkLength(data, 4);
+                return getInt(data, 1);
+            case TAG_LONG:
+                checkLength(data, 8);
+                return getLong(data, 1);
+            case TAG_FLOAT:
+                checkLength(data, 4);
+                return Float.intBitsToFloat(getInt(data, 1));
+            case TAG_BOOLEAN:
+                checkLength(data, 1);
+                return data[1] != 0;
+            case TAG_BYTES:
+                byte[] bytes = new byte[data.length - 1];
+                System.arraycopy(data, 1, bytes, 0, bytes.length);
+                return bytes;
+            default:
+                throw new IllegalArgumentException("Unknown type tag " + data[0]);
+        }
+    }
+
+    private static void checkLength(byte[] data, int valueLength) {
+        if (data.length != 1 + valueLength) {
+            throw new IllegalArgumentException("Invalid length " + data.length + " for type tag " + data[0]);
+        }
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] out, int offset, long value) {
+        putInt(out, offset, (int) (value >>> 32));
+        putInt(out, offset + 4, (int) value);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24
+                | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8
+                | (data[offset + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return ((long) getInt(data, offset) << 32) | (getInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,185 @@
+package devliving.online.securedpreferencestore;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Software AES key that encrypts values in place of the keystore key. It's stored wrapped (encrypted) by the keystore
+ * key and unwrapped once, after that values are encrypted in process without a keystore round trip each.
+ * With an idle timeout the key is zeroed once it hasn't been used for that long, and unwrapped again on the next use.
+ */
+final class WrappedDataKey {
+    interface Unwrapper {
+        /**
+         * @return the raw key, owned by the caller from then on
+         */
+        byte[] unwrap() throws GeneralSecurityException, IOException;
+    }
+
+    private final Unwrapper mUnwrapper;
+    private final ScheduledExecutorService mScheduler;
+
+    //readers use the key, the writer zeroes it, so a key is never zeroed while a cipher is being initialised with it
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private RawKey mKey;
+
+    private volatile long mIdleTimeoutNanos = 0;
+    private volatile long mLastUse;
+    private boolean mClearScheduled = false;
+    private volatile int mUnwrapCount = 0;
+
+    private final Runnable mIdleCheck = new Runnable() {
+        @Override
+        public void run() {
+            long remaining = mIdleTimeoutNanos - (System.nanoTime() - mLastUse);
+
+            synchronized (WrappedDataKey.this) {
+                if (remaining > 0 && mIdleTimeoutNanos > 0) {
+                    mScheduler.schedule(this, remaining, TimeUnit.NANOSECONDS);
+                    return;
+                }
+
+                mClearScheduled = false;
+            }
+
+            if (mIdleTimeoutNanos > 0) clear();
+        }
+    };
+
+    /**
+     * @param key the raw key if it was just generated, null to unwrap it on first use. Owned by this instance
+     * @param scheduler runs the idle checks
+     */
+    WrappedDataKey(byte[] key, Unwrapper unwrapper, ScheduledExecutorService scheduler) {
+        mKey = key != null ? new RawKey(key) : null;
+        mUnwrapper = unwrapper;
+        mScheduler = scheduler;
+        mLastUse = System.nanoTime();
+    }
+
+    /**
+     * @param idleTimeoutMillis time without use after which the key is zeroed, 0 to keep it until {@link #clear()}
+     */
+    void setIdleTimeout(long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 0) throw new IllegalArgumentException("Negative timeout: " + idleTimeoutMillis);
+
+        mIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        scheduleIdleCheck();
+    }
+
+    /**
+     * Initialises the cipher with the key, unwrapping it first if it isn't in memory
+     */
+    void init(Cipher cipher, int mode, AlgorithmParameterSpec spec) throws GeneralSecurityException, IOException {
+        ReentrantReadWriteLock.ReadLock readLock = mLock.readLock();
+        readLock.lock();
+
+        try {
+            if (mKey == null) {
+                //a read lock can't be upgraded
+                readLock.unlock();
+                mLock.writeLock().lock();
+
+                try {
+                    //downgraded before the unwrap can throw, the finally below must always have a read lock to release
+                    readLock.lock();
+
+                    if (mKey == null) {
+                        mKey = new RawKey(mUnwrapper.unwrap());
+                        mUnwrapCount++;
+                    }
+                } finally {
+                    mLock.writeLock().unlock();
+                }
+            }
+
+            mLastUse = System.nanoTime();
+            cipher.init(mode, mKey, spec);
+        } finally {
+            readLock.unlock();
+        }
+
+        scheduleIdleCheck();
+    }
+
+    /**
+     * Zeroes the key, it's unwrapped again on the next use
+     */
+    void clear() {
+        mLock.writeLock().lock();
+
+        try {
+            if (mKey != null) {
+                mKey.zero();
+                mKey = null;
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    boolean isUnwrapped() {
+        mLock.readLock().lock();
+
+        try {
+            return mKey != null;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of times the key was unwrapped
+     */
+    int unwrapCount() {
+        return mUnwrapCount;
+    }
+
+    private synchronized void scheduleIdleCheck() {
+        if (mIdleTimeoutNanos > 0 && !mClearScheduled) {
+            mClearScheduled = true;
+            mScheduler.schedule(mIdleCheck, mIdleTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Holds the key bytes without copying them, unlike {@link javax.crypto.spec.SecretKeySpec}, so they can be zeroed.
+     * Ciphers copy the key when they're initialised
+     */
+    static final class RawKey implements SecretKey {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] mEncoded;
+
+        RawKey(byte[] encoded) {
+            mEncoded = encoded;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "AES";
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return mEncoded.clone();
+        }
+
+        void zero() {
+            Arrays.fill(mEncoded, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncDispatcherTest {
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    private static Callable<Integer> record(final List<Integer> log, final int id) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                //give later operations a chance to overtake if ordering is broken
+                Thread.sleep(2);
+                synchronized (log) {
+                    log.add(id);
+                }
+                return id;
+            }
+        };
+    }
+
+    @Test
+    public void operationsOnTheSameKeyRunInOrder() throws Exception {
+        AsyncDispatcher dispatcher = new AsyncDispatcher(mExecutor, 64);
+        List<Integer> log = new ArrayList<>();
+        List<StoreFuture<Integer>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 20; i++) {
+            futures.add(dispatcher.submit(Collections.singletonList("key"), false, record(log, i)));
+        }
+
+        for (StoreFuture<Integer> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, (int) log.get(i));
+        }
+    }
+
+    @Test
+    public void barrierWaitsForEarlierAndBlocksLaterOperations() throws Exception {
+        AsyncDispatcher dispatcher = new AsyncDispatcher(mExecutor, 64);
+        List<Integer> log = new ArrayList<>();
+
+        dispatcher.submit(Collections.singletonList("a"), false, record(log, 1));
+        dispatcher.submit(Collections.singletonList("b"), false, record(log, 2));
+        dispatcher.submit(Collections.<String>emptyList(), true, record(log, 3));
+        dispatcher.submit(Arrays.asList("c", "d"), false, record(log, 4)).get(5, TimeUnit.SECONDS);
+
+        assertEquals(4, log.size());
+        assertEquals(3, (int) log.get(2));
+        assertEquals(4, (int) log.get(3));
+    }
+
+    @Test
+    public void cancelledOperationDoesNotRunButKeepsOrder() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        AsyncDispatcher dispatcher = new AsyncDispatcher(mExecutor, 64);
+        final AtomicInteger runs = new AtomicInteger();
+
+        dispatcher.submit(Collections.singletonList("key"), false, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                gate.await();
+                return null;
+            }
+        });
+
+        StoreFuture<Integer> cancelled = dispatcher.submit(Collections.singletonList("key"), false, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return runs.incrementAndGet();
+            }
+        });
+
+        assertTrue(cancelled.cancel(false));
+        gate.countDown();
+
+        StoreFuture<Integer> last = dispatcher.submit(Collections.singletonList("key"), false, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return runs.get();
+            }
+        });
+
+        assertEquals(0, (int) last.get(5, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void submitBlocksWhenFull() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AsyncDispatcher dispatcher = new AsyncDispatcher(mExecutor, 2);
+        Callable<Void> blocked = new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                gate.await();
+                return null;
+            }
+        };
+
+        dispatcher.submit(Collections.singletonList("a"), false, blocked);
+        dispatcher.submit(Collections.singletonList("b"), false, blocked);
+        assertEquals(2, dispatcher.pending());
+
+        final AtomicBoolean submitted = new AtomicBoolean();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.submit(Collections.singletonList("c"), false, new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        return null;
+                    }
+                });
+                submitted.set(true);
+            }
+        });
+        thread.start();
+
+        Thread.sleep(100);
+        assertFalse(submitted.get());
+
+        gate.countDown();
+        thread.join(5000);
+        assertTrue(submitted.get());
+    }
+
+    @Test
+    public void callbackCanSubmitWhenFull() throws Exception {
+        final AsyncDispatcher dispatcher = new AsyncDispatcher(mExecutor, 1);
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        StoreFuture<Integer> first = dispatcher.submit(Collections.singletonList("a"), false, new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                gate.await();
+                return 1;
+            }
+        });
+
+        //the callback runs on the worker thread, the next operation needs the permit of the one that completed
+        CompletableFuture<Integer> chained = first.toCompletableFuture()
+                .thenCompose(new Function<Integer, CompletionStage<Integer>>() {
+                    @Override
+                    public CompletionStage<Integer> apply(final Integer result) {
+                        return dispatcher.submit(Collections.singletonList("a"), false, new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                return result + 1;
+                            }
+                        }).toCompletableFuture();
+                    }
+                });
+        gate.countDown();
+
+        assertEquals(2, (int) chained.get(5, TimeUnit.SECONDS));
+    }
+}
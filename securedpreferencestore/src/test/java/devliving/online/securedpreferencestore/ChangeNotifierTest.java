@@ -0,0 +1,160 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeNotifierTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private InMemoryBackingStore mStore;
+    private ChangeNotifier mNotifier;
+    //external flushes wait here until the test runs them
+    private final List<Runnable> mQueuedFlushes = new ArrayList<>();
+    private final List<Set<String>> mBatches = new ArrayList<>();
+
+    private final SecuredPreferenceStore.OnStoreChangeListener mListener = new SecuredPreferenceStore.OnStoreChangeListener() {
+        @Override
+        public void onStoreChanged(Set<String> changedKeys) {
+            mBatches.add(changedKeys);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mStore = new InMemoryBackingStore();
+        mNotifier = new ChangeNotifier(mStore, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mQueuedFlushes.add(command);
+            }
+        });
+    }
+
+    /**
+     * Writes the values the way a commit of the store does
+     */
+    private void commitThroughStore(String... keysAndValues) throws Exception {
+        Map<String, Object> written = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            written.put(EncryptionManager.getHashed(keysAndValues[i]), keysAndValues[i + 1]);
+        }
+
+        mNotifier.onBeforeCommit(written);
+
+        BackingStore.Batch batch = mStore.edit();
+        for (Map.Entry<String, Object> entry : written.entrySet()) {
+            batch.put(entry.getKey(), entry.getValue());
+        }
+        batch.commit();
+
+        mNotifier.onCommitted(written.keySet());
+    }
+
+    private void writeExternally(String key, String value) throws Exception {
+        mStore.edit().put(EncryptionManager.getHashed(key), value).commit();
+    }
+
+    private void runQueuedFlushes() {
+        List<Runnable> flushes = new ArrayList<>(mQueuedFlushes);
+        mQueuedFlushes.clear();
+
+        for (Runnable flush : flushes) {
+            flush.run();
+        }
+    }
+
+    private static Set<String> keys(String... keys) {
+        return new HashSet<>(Arrays.asList(keys));
+    }
+
+    @Test
+    public void commitIsDeliveredAsOneBatchOfPlainKeys() throws Exception {
+        mNotifier.subscribe(Arrays.asList("a", "b", "c"), DIRECT, mListener);
+
+        commitThroughStore("a", "1", "b", "2", "unsubscribed", "3");
+
+        assertEquals(Collections.singletonList(keys("a", "b")), mBatches);
+    }
+
+    @Test
+    public void groupSubscribersOnlyGetTheKeysOfTheGroup() throws Exception {
+        mNotifier.defineGroup("profile", Arrays.asList("name", "email"));
+        mNotifier.subscribeToGroup("profile", DIRECT, mListener);
+        mNotifier.subscribe(Collections.singleton("token"), DIRECT, new SecuredPreferenceStore.OnStoreChangeListener() {
+            @Override
+            public void onStoreChanged(Set<String> changedKeys) {
+            }
+        });
+
+        commitThroughStore("name", "n", "token", "t");
+        commitThroughStore("token", "t2");
+
+        assertEquals(Collections.singletonList(keys("name")), mBatches);
+    }
+
+    @Test
+    public void ownWritesAreNotReportedAgain() throws Exception {
+        mNotifier.subscribe(Arrays.asList("a", "b"), DIRECT, mListener);
+
+        commitThroughStore("a", "1", "b", "2");
+
+        assertTrue(mQueuedFlushes.isEmpty());
+        assertEquals(1, mBatches.size());
+    }
+
+    @Test
+    public void externalWritesAreDeliveredOnce() throws Exception {
+        mNotifier.subscribe(Arrays.asList("a", "b"), DIRECT, mListener);
+
+        writeExternally("a", "1");
+        writeExternally("b", "2");
+        writeExternally("a", "3");
+        assertEquals(1, mQueuedFlushes.size());
+
+        runQueuedFlushes();
+        runQueuedFlushes();
+
+        assertEquals(Collections.singletonList(keys("a", "b")), mBatches);
+    }
+
+    @Test
+    public void externalOverwriteOfAnOwnWriteIsReported() throws Exception {
+        mNotifier.subscribe(Collections.singleton("a"), DIRECT, mListener);
+
+        commitThroughStore("a", "mine");
+        writeExternally("a", "theirs");
+        runQueuedFlushes();
+
+        assertEquals(Arrays.asList(keys("a"), keys("a")), mBatches);
+    }
+
+    @Test
+    public void cancelledSubscriptionsGetNothing() throws Exception {
+        SecuredPreferenceStore.ChangeSubscription subscription = mNotifier.subscribe(Collections.singleton("a"), DIRECT, mListener);
+        subscription.unsubscribe();
+
+        commitThroughStore("a", "1");
+        writeExternally("a", "2");
+
+        assertTrue(mQueuedFlushes.isEmpty());
+        assertTrue(mBatches.isEmpty());
+    }
+}
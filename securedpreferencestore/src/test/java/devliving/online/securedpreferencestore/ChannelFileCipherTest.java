@@ -0,0 +1,91 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ChannelFileCipherTest {
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    private static SegmentedFileCipher gcm() throws Exception {
+        return new SegmentedFileCipher(Cipher.getInstance("AES/GCM/NoPadding"), new SecretKeySpec(new byte[16], "AES"),
+                null, NonceGenerator.getDefault());
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] decrypt(byte[] encrypted) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        gcm().decrypt(new ByteArrayInputStream(encrypted), out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void channelOutputMatchesTheStreamFormat() throws Exception {
+        for (int length : new int[]{0, 1, SEGMENT_SIZE, 3 * SEGMENT_SIZE + 5}) {
+            byte[] data = randomBytes(length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            new ChannelFileCipher(gcm(), null, null).encrypt(Channels.newChannel(new ByteArrayInputStream(data)),
+                    Channels.newChannel(out), SEGMENT_SIZE);
+
+            assertArrayEquals(data, decrypt(out.toByteArray()));
+        }
+    }
+
+    @Test
+    public void largeFileIsMappedAndReportsProgress() throws Exception {
+        byte[] data = randomBytes((int) ChannelFileCipher.MAP_THRESHOLD + SEGMENT_SIZE / 2);
+        final File file = File.createTempFile("plain", ".bin");
+        final List<Long> progress = new ArrayList<>();
+
+        try {
+            FileOutputStream output = new FileOutputStream(file);
+            output.write(data);
+            output.close();
+
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            try {
+                FileChannel channel = input.getChannel();
+                new ChannelFileCipher(gcm(), new EncryptionManager.ProgressListener() {
+                    @Override
+                    public void onProgress(long processedBytes, long totalBytes) {
+                        progress.add(processedBytes);
+                        assertEquals(file.length(), totalBytes);
+                    }
+                }, null).encrypt(channel, Channels.newChannel(out), SEGMENT_SIZE);
+
+                assertEquals(data.length, channel.position());
+            } finally {
+                input.close();
+            }
+
+            assertArrayEquals(data, decrypt(out.toByteArray()));
+            assertEquals(data.length / SEGMENT_SIZE + 1, progress.size());
+            assertEquals(data.length, (long) progress.get(progress.size() - 1));
+        } finally {
+            file.delete();
+        }
+    }
+}
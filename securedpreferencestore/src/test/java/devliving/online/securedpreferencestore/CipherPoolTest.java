@@ -0,0 +1,95 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class CipherPoolTest {
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private CipherPool mPool;
+    private SecretKeySpec mKey;
+    private SecretKeySpec mMacKey;
+
+    @Before
+    public void setUp() {
+        mPool = new CipherPool();
+        mKey = new SecretKeySpec(new byte[16], "AES");
+        mMacKey = new SecretKeySpec(new byte[32], MAC_ALGORITHM);
+    }
+
+    @Test
+    public void instancesAreReusedOnTheSameThread() throws Exception {
+        Cipher cipher = mPool.getCipher(TRANSFORMATION, mKey);
+        Mac mac = mPool.getMac(MAC_ALGORITHM, mMacKey);
+
+        assertSame(cipher, mPool.getCipher(TRANSFORMATION, mKey));
+        assertSame(mac, mPool.getMac(MAC_ALGORITHM, mMacKey));
+    }
+
+    @Test
+    public void instancesAreNotSharedAcrossThreads() throws Exception {
+        final AtomicReference<Cipher> otherCipher = new AtomicReference<>();
+        final AtomicReference<Mac> otherMac = new AtomicReference<>();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    otherCipher.set(mPool.getCipher(TRANSFORMATION, mKey));
+                    otherMac.set(mPool.getMac(MAC_ALGORITHM, mMacKey));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertNotNull(otherCipher.get());
+        assertNotNull(otherMac.get());
+        assertNotSame(otherCipher.get(), mPool.getCipher(TRANSFORMATION, mKey));
+        assertNotSame(otherMac.get(), mPool.getMac(MAC_ALGORITHM, mMacKey));
+    }
+
+    @Test
+    public void incrementalMacMatchesTheMacOfTheCombinedData() throws Exception {
+        byte[] IV = "initial vector..".getBytes();
+        byte[] encryptedData = "some encrypted data".getBytes();
+
+        //IV + CIPHER, the way compat MACs used to be computed
+        byte[] combinedData = new byte[IV.length + encryptedData.length];
+        System.arraycopy(IV, 0, combinedData, 0, IV.length);
+        System.arraycopy(encryptedData, 0, combinedData, IV.length, encryptedData.length);
+        Mac reference = Mac.getInstance(MAC_ALGORITHM);
+        reference.init(mMacKey);
+        byte[] expected = reference.doFinal(combinedData);
+
+        Mac mac = mPool.getMac(MAC_ALGORITHM, mMacKey);
+        mac.update(IV);
+        assertArrayEquals(expected, mac.doFinal(encryptedData));
+    }
+
+    @Test
+    public void leftoverInputIsDiscarded() throws Exception {
+        byte[] data = "data".getBytes();
+        Mac mac = mPool.getMac(MAC_ALGORITHM, mMacKey);
+        byte[] expected = mac.doFinal(data);
+
+        //an operation that failed half way
+        mPool.getMac(MAC_ALGORITHM, mMacKey).update("partial".getBytes());
+
+        assertArrayEquals(expected, mPool.getMac(MAC_ALGORITHM, mMacKey).doFinal(data));
+    }
+}
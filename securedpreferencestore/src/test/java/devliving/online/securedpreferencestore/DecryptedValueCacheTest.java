@@ -0,0 +1,80 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DecryptedValueCacheTest {
+    private DecryptedValueCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new DecryptedValueCache(2);
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() {
+        mCache.put("a", "ea", "va");
+        mCache.put("b", "eb", "vb");
+        //a is now the most recently used
+        assertEquals("va", mCache.get("a", "ea"));
+
+        mCache.put("c", "ec", "vc");
+
+        assertEquals(2, mCache.size());
+        assertNull(mCache.get("b", "eb"));
+        assertEquals("va", mCache.get("a", "ea"));
+        assertEquals("vc", mCache.get("c", "ec"));
+    }
+
+    @Test
+    public void hitsAndMissesAreCounted() {
+        mCache.put("a", "ea", "va");
+
+        mCache.get("a", "ea");
+        mCache.get("a", "ea");
+        mCache.get("missing", "em");
+
+        assertEquals(2, mCache.hitCount());
+        assertEquals(1, mCache.missCount());
+    }
+
+    @Test
+    public void onlyTheSameCiphertextHits() {
+        mCache.put("a", "ea", "va");
+
+        //equal, not the same instance
+        assertEquals("va", mCache.get("a", new String("ea")));
+        assertNull(mCache.get("a", "changed"));
+        //the stale entry was dropped
+        assertEquals(0, mCache.size());
+        assertNull(mCache.get("a", "ea"));
+    }
+
+    @Test
+    public void nullValueRemovesTheEntry() {
+        mCache.put("a", "ea", "va");
+        mCache.put("a", null, null);
+
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void evictAllDropsEveryEntry() {
+        mCache.put("a", "ea", "va");
+        mCache.put("b", "eb", "vb");
+
+        mCache.evictAll();
+
+        assertEquals(0, mCache.size());
+        assertNull(mCache.get("a", "ea"));
+        assertNull(mCache.get("b", "eb"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizeMustBePositive() {
+        new DecryptedValueCache(0);
+    }
+}
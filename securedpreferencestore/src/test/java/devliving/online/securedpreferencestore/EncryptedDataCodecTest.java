@@ -0,0 +1,93 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Test;
+
+import devliving.online.securedpreferencestore.EncryptionManager.EncryptedData;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EncryptedDataCodecTest {
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+
+        return data;
+    }
+
+    @Test
+    public void gcmRoundTrip() {
+        EncryptedData data = new EncryptedData(bytes(12, 1), bytes(40, 50), null);
+        byte[] envelope = EncryptedDataCodec.pack(EncryptedDataCodec.VERSION_1, EncryptedDataCodec.SUITE_AES_GCM, data);
+
+        assertEquals(1 + 12 + 40, envelope.length);
+        assertEquals(EncryptedDataCodec.VERSION_1, EncryptedDataCodec.versionOf(envelope));
+        assertEquals(EncryptedDataCodec.SUITE_AES_GCM, EncryptedDataCodec.suiteOf(envelope));
+
+        EncryptedData decoded = EncryptedDataCodec.unpack(envelope);
+        assertArrayEquals(data.IV, decoded.IV);
+        assertArrayEquals(data.encryptedData, decoded.encryptedData);
+        assertNull(decoded.mac);
+    }
+
+    @Test
+    public void dataKeySuiteIsKeptWithTheData() {
+        EncryptedData data = new EncryptedData(bytes(12, 1), bytes(40, 50), null);
+        byte[] envelope = EncryptedDataCodec.pack(EncryptedDataCodec.VERSION_2, EncryptedDataCodec.SUITE_AES_GCM_DATA_KEY, data);
+
+        assertEquals(1 + 12 + 40, envelope.length);
+        assertEquals(EncryptedDataCodec.SUITE_AES_GCM_DATA_KEY, EncryptedDataCodec.unpack(envelope).suite);
+        assertEquals(EncryptedDataCodec.SUITE_AES_GCM, EncryptedDataCodec.unpack(
+                EncryptedDataCodec.pack(EncryptedDataCodec.VERSION_1, EncryptedDataCodec.SUITE_AES_GCM, data)).suite);
+    }
+
+    @Test
+    public void cbcRoundTripKeepsMac() {
+        EncryptedData data = new EncryptedData(bytes(16, 1), bytes(32, 50), bytes(32, 100));
+        byte[] envelope = EncryptedDataCodec.pack(EncryptedDataCodec.VERSION_1, EncryptedDataCodec.SUITE_AES_CBC_HMAC, data);
+
+        assertEquals(1 + 16 + 32 + 32, envelope.length);
+
+        EncryptedData decoded = EncryptedDataCodec.unpack(envelope);
+        assertArrayEquals(data.IV, decoded.IV);
+        assertArrayEquals(data.encryptedData, decoded.encryptedData);
+        assertArrayEquals(data.mac, decoded.mac);
+    }
+
+    @Test
+    public void legacyFormatIsRecognised() {
+        assertTrue(EncryptedDataCodec.isLegacy("AAAA]BBBB"));
+        assertTrue(EncryptedDataCodec.isLegacy("AAAA]BBBB]CCCC"));
+        assertFalse(EncryptedDataCodec.isLegacy("EQECAwQFBgcICQoLDA+/="));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedEnvelopeIsRejected() {
+        EncryptedData data = new EncryptedData(bytes(16, 1), bytes(32, 50), bytes(32, 100));
+        byte[] envelope = EncryptedDataCodec.pack(EncryptedDataCodec.VERSION_1, EncryptedDataCodec.SUITE_AES_CBC_HMAC, data);
+        byte[] truncated = new byte[1 + 16 + 32];
+        System.arraycopy(envelope, 0, truncated, 0, truncated.length);
+
+        EncryptedDataCodec.unpack(truncated);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVersionIsRejected() {
+        byte[] envelope = bytes(30, 0);
+        envelope[0] = (byte) ((0x0F << 4) | EncryptedDataCodec.SUITE_AES_GCM);
+
+        EncryptedDataCodec.unpack(envelope);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ivMustMatchSuite() {
+        EncryptedData data = new EncryptedData(bytes(16, 1), bytes(40, 50), null);
+        EncryptedDataCodec.pack(EncryptedDataCodec.VERSION_1, EncryptedDataCodec.SUITE_AES_GCM, data);
+    }
+}
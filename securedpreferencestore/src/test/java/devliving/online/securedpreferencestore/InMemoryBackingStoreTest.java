@@ -0,0 +1,90 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryBackingStoreTest {
+    private InMemoryBackingStore mStore;
+
+    @Before
+    public void setUp() {
+        mStore = new InMemoryBackingStore();
+    }
+
+    @Test
+    public void valuesAreKeptWithTheirType() {
+        Set<String> set = new HashSet<>(Arrays.asList("x", "y"));
+        assertTrue(mStore.edit().put("s", "text").put("set", set).put("i", 7).put("l", 8L).put("f", 1.5f)
+                .put("b", true).commit());
+
+        assertEquals("text", mStore.get("s"));
+        assertEquals(set, mStore.get("set"));
+        assertEquals(7, mStore.get("i"));
+        assertEquals(8L, mStore.get("l"));
+        assertEquals(1.5f, mStore.get("f"));
+        assertEquals(true, mStore.get("b"));
+        assertEquals(6, mStore.snapshot().size());
+
+        //the stored set is a copy
+        set.add("z");
+        assertEquals(2, ((Set<?>) mStore.get("set")).size());
+    }
+
+    @Test
+    public void changesAreVisibleOnlyOnceCommitted() {
+        BackingStore.Batch batch = mStore.edit().put("a", "1");
+        assertFalse(mStore.contains("a"));
+
+        batch.commit();
+        mStore.edit().put("a", null).put("b", "2").commit();
+
+        assertFalse(mStore.contains("a"));
+        assertNull(mStore.get("a"));
+        assertEquals("2", mStore.get("b"));
+    }
+
+    @Test
+    public void clearAppliesBeforeTheOtherChanges() {
+        mStore.edit().put("a", "1").put("b", "2").commit();
+        mStore.edit().put("c", "3").clear().apply();
+
+        assertEquals(1, mStore.snapshot().size());
+        assertEquals("3", mStore.get("c"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedValuesAreRejected() {
+        mStore.edit().put("a", new byte[1]);
+    }
+
+    @Test
+    public void listenersAreNotifiedOfChangedKeys() {
+        final List<String> changed = new ArrayList<>();
+        BackingStore.Listener listener = new BackingStore.Listener() {
+            @Override
+            public void onChanged(BackingStore store, String key) {
+                changed.add(key);
+            }
+        };
+
+        mStore.registerListener(listener);
+        mStore.edit().put("a", "1").put("b", "2").commit();
+        //removing a missing key changes nothing
+        mStore.edit().remove("a").remove("missing").commit();
+        mStore.unregisterListener(listener);
+        mStore.edit().put("c", "3").commit();
+
+        assertEquals(Arrays.asList("a", "b", "a"), changed);
+    }
+}
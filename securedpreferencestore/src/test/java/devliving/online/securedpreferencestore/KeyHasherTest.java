@@ -0,0 +1,56 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class KeyHasherTest {
+
+    /**
+     * the way keys were hashed before {@link KeyHasher}, stored key names must not change
+     */
+    private static String referenceHash(String text) throws Exception {
+        byte[] result = MessageDigest.getInstance("SHA-256").digest(text.getBytes("UTF-8"));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : result) {
+            sb.append(String.format("%02X", b));
+        }
+
+        return sb.toString();
+    }
+
+    @Test
+    public void hashMatchesStoredKeyNames() throws Exception {
+        KeyHasher hasher = new KeyHasher(4);
+        String[] keys = new String[]{"", "VERSION", "sps_aes_key", "\u043a\u043b\u044e\u0447", "emoji \ud83d\udd11", "a long key name used by the app"};
+
+        for (String key : keys) {
+            assertEquals(referenceHash(key), hasher.hash(key));
+            //second time comes from the memo
+            assertEquals(referenceHash(key), hasher.hash(key));
+        }
+    }
+
+    @Test
+    public void memoizedHashIsReused() throws Exception {
+        KeyHasher hasher = new KeyHasher(16);
+        String first = hasher.hash("key");
+        assertSame(first, hasher.hash("key"));
+    }
+
+    @Test
+    public void hashWithoutMemo() throws Exception {
+        KeyHasher hasher = new KeyHasher(0);
+        assertEquals(referenceHash("key"), hasher.hash("key"));
+        assertEquals(referenceHash("other"), hasher.hash("other"));
+    }
+
+    @Test
+    public void hexEncoding() {
+        assertEquals("00FF7F80A5", KeyHasher.toHex(new byte[]{0, (byte) 0xFF, 0x7F, (byte) 0x80, (byte) 0xA5}));
+        assertEquals("", KeyHasher.toHex(new byte[0]));
+    }
+}
@@ -0,0 +1,93 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyIndexTest {
+
+    private static KeyIndex index(String... keys) {
+        Map<String, String> entries = new HashMap<>();
+        for (String key : keys) {
+            entries.put(key, "#" + key);
+        }
+
+        return KeyIndex.of(entries);
+    }
+
+    @Test
+    public void keysAreSorted() {
+        assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList(index("c", "a", "b").keys().toArray()));
+    }
+
+    @Test
+    public void prefixLookupIncludesOnlyMatchingKeys() {
+        KeyIndex index = index("session", "session.id", "session.token", "sessionx", "user", "sessiom");
+
+        assertEquals(Arrays.asList("session.id", "session.token"), Arrays.asList(index.keysWithPrefix("session.").toArray()));
+        assertEquals(Arrays.asList("session", "session.id", "session.token", "sessionx"),
+                Arrays.asList(index.keysWithPrefix("session").toArray()));
+        assertEquals(6, index.keysWithPrefix("").size());
+        assertEquals("#user", index.withPrefix("us").get("user"));
+    }
+
+    @Test
+    public void prefixEndingWithTheLastCharIsMatched() {
+        String prefix = "a\uffff";
+        KeyIndex index = index(prefix, prefix + "b", "b");
+
+        assertEquals(Arrays.asList(prefix, prefix + "b"), Arrays.asList(index.keysWithPrefix(prefix).toArray()));
+    }
+
+    @Test
+    public void updateAddsAndRemovesKeys() {
+        KeyIndex index = index("a", "b");
+        Map<String, String> changes = new HashMap<>();
+        changes.put("a", null);
+        changes.put("c", "#c");
+
+        KeyIndex updated = index.update(changes, false);
+        assertEquals(Arrays.asList("b", "c"), Arrays.asList(updated.keys().toArray()));
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(index.keys().toArray()));
+    }
+
+    @Test
+    public void updateWithoutNewOrRemovedKeysKeepsTheIndex() {
+        KeyIndex index = index("a", "b");
+        Map<String, String> changes = new HashMap<>();
+        changes.put("a", "#a");
+        changes.put("missing", null);
+
+        assertSame(index, index.update(changes, false));
+    }
+
+    @Test
+    public void clearKeepsOnlyTheKeysWrittenAfterIt() {
+        Map<String, String> changes = new HashMap<>();
+        changes.put("b", "#b");
+
+        assertEquals(Arrays.asList("b"), Arrays.asList(index("a", "b").update(changes, true).keys().toArray()));
+    }
+
+    @Test
+    public void serializedIndexRoundTrips() {
+        KeyIndex index = index("a", "\u043a\u043b\u044e\u0447", "");
+        KeyIndex restored = KeyIndex.deserialize(index.serialize());
+
+        assertEquals(index.keys(), restored.keys());
+        assertEquals("#\u043a\u043b\u044e\u0447", restored.withPrefix("\u043a").get("\u043a\u043b\u044e\u0447"));
+        assertTrue(KeyIndex.deserialize(KeyIndex.EMPTY.serialize()).keys().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedIndexIsRejected() {
+        byte[] data = index("a", "b").serialize();
+        KeyIndex.deserialize(Arrays.copyOf(data, data.length - 1));
+    }
+}
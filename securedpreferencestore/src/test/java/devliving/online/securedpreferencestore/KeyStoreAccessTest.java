@@ -0,0 +1,185 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreSpi;
+import java.security.Provider;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyStoreAccessTest {
+    //shared with the keystore instances the provider creates
+    static final Map<String, Key> KEYS = new HashMap<>();
+    static int engineCalls = 0;
+
+    public static final class MemoryKeyStore extends KeyStoreSpi {
+        @Override
+        public Key engineGetKey(String alias, char[] password) {
+            engineCalls++;
+            return KEYS.get(alias);
+        }
+
+        @Override
+        public Certificate[] engineGetCertificateChain(String alias) {
+            return null;
+        }
+
+        @Override
+        public Certificate engineGetCertificate(String alias) {
+            return null;
+        }
+
+        @Override
+        public Date engineGetCreationDate(String alias) {
+            return null;
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain) {
+            KEYS.put(alias, key);
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void engineSetCertificateEntry(String alias, Certificate cert) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void engineDeleteEntry(String alias) {
+            KEYS.remove(alias);
+        }
+
+        @Override
+        public Enumeration<String> engineAliases() {
+            return Collections.enumeration(KEYS.keySet());
+        }
+
+        @Override
+        public boolean engineContainsAlias(String alias) {
+            engineCalls++;
+            return KEYS.containsKey(alias);
+        }
+
+        @Override
+        public int engineSize() {
+            return KEYS.size();
+        }
+
+        @Override
+        public boolean engineIsKeyEntry(String alias) {
+            return KEYS.containsKey(alias);
+        }
+
+        @Override
+        public boolean engineIsCertificateEntry(String alias) {
+            return false;
+        }
+
+        @Override
+        public String engineGetCertificateAlias(Certificate cert) {
+            return null;
+        }
+
+        @Override
+        public void engineStore(OutputStream stream, char[] password) {
+        }
+
+        @Override
+        public void engineLoad(InputStream stream, char[] password) {
+            engineCalls++;
+        }
+
+        @Override
+        public KeyStore.Entry engineGetEntry(String alias, KeyStore.ProtectionParameter protParam) {
+            engineCalls++;
+            Key key = KEYS.get(alias);
+            return key != null ? new KeyStore.SecretKeyEntry((SecretKey) key) : null;
+        }
+    }
+
+    private static final Provider PROVIDER = new Provider("MemoryKeyStore", 1.0, "In memory keystore for tests") {
+        {
+            put("KeyStore.Memory", MemoryKeyStore.class.getName());
+        }
+    };
+
+    private KeyStoreAccess mAccess;
+
+    @Before
+    public void setUp() {
+        KEYS.clear();
+        KEYS.put("aes", new SecretKeySpec(new byte[16], "AES"));
+        engineCalls = 0;
+        mAccess = new KeyStoreAccess("Memory", PROVIDER);
+    }
+
+    @Test
+    public void keystoreIsLoadedOnce() throws Exception {
+        KeyStore keyStore = mAccess.keyStore();
+
+        assertSame(keyStore, mAccess.keyStore());
+        assertTrue(mAccess.containsAlias("aes"));
+        assertEquals(1, mAccess.loads());
+    }
+
+    @Test
+    public void entriesAreLookedUpOnce() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(mAccess.getEntry("aes", KeyStore.SecretKeyEntry.class));
+            assertNull(mAccess.getEntry("missing", KeyStore.SecretKeyEntry.class));
+        }
+
+        //load, then containsAlias and getEntry for "aes", containsAlias for "missing"
+        assertEquals(4, engineCalls);
+        assertEquals(4, mAccess.roundTrips());
+        assertEquals(8, mAccess.cacheHits());
+    }
+
+    @Test
+    public void entryOfAnotherTypeIsNotReturned() throws Exception {
+        assertNull(mAccess.getEntry("aes", KeyStore.PrivateKeyEntry.class));
+        assertNotNull(mAccess.getEntry("aes", KeyStore.SecretKeyEntry.class));
+    }
+
+    @Test
+    public void invalidatedAliasesAreLookedUpAgain() throws Exception {
+        assertNotNull(mAccess.getEntry("aes", KeyStore.SecretKeyEntry.class));
+        mAccess.keyStore().deleteEntry("aes");
+        //still cached
+        assertNotNull(mAccess.getEntry("aes", KeyStore.SecretKeyEntry.class));
+
+        mAccess.invalidate(Arrays.asList("aes", "mac"));
+        assertNull(mAccess.getEntry("aes", KeyStore.SecretKeyEntry.class));
+
+        KEYS.put("aes", new SecretKeySpec(new byte[16], "AES"));
+        assertFalse(mAccess.containsAlias("aes"));
+        mAccess.invalidateAll();
+        assertTrue(mAccess.containsAlias("aes"));
+        assertEquals(1, mAccess.loads());
+    }
+}
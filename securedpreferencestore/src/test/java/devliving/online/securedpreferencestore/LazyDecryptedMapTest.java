@@ -0,0 +1,94 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import devliving.online.securedpreferencestore.SecuredPreferenceStore.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LazyDecryptedMapTest {
+    private final AtomicInteger mDecryptions = new AtomicInteger();
+
+    private final Function<Map.Entry<String, ?>, Object> mDecrypter = new Function<Map.Entry<String, ?>, Object>() {
+        @Override
+        public Object apply(Map.Entry<String, ?> entry) {
+            mDecryptions.incrementAndGet();
+            String value = (String) entry.getValue();
+            return value.equals("broken") ? null : "plain-" + value;
+        }
+    };
+
+    private LazyDecryptedMap createMap(int size) {
+        Map<String, Object> encrypted = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            encrypted.put("key" + i, "value" + i);
+        }
+
+        return new LazyDecryptedMap(encrypted, mDecrypter);
+    }
+
+    @Test
+    public void sizeAndKeysDoNotDecrypt() {
+        LazyDecryptedMap map = createMap(100);
+
+        assertEquals(100, map.size());
+        assertEquals(100, map.keySet().size());
+        assertTrue(map.containsKey("key42"));
+        assertFalse(map.containsKey("other"));
+        assertEquals(0, mDecryptions.get());
+    }
+
+    @Test
+    public void valuesAreDecryptedOnceOnAccess() {
+        LazyDecryptedMap map = createMap(100);
+
+        assertEquals("plain-value7", map.get("key7"));
+        assertEquals("plain-value7", map.get("key7"));
+        assertNull(map.get("missing"));
+        assertEquals(1, mDecryptions.get());
+        assertEquals(1, map.decryptedCount());
+
+        int count = 0;
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            assertEquals("plain-" + entry.getKey().replace("key", "value"), entry.getValue());
+            count++;
+        }
+
+        assertEquals(100, count);
+        assertEquals(100, mDecryptions.get());
+    }
+
+    @Test
+    public void failedValuesMapToNullAndAreNotRetried() {
+        Map<String, Object> encrypted = new HashMap<>();
+        encrypted.put("bad", "broken");
+        LazyDecryptedMap map = new LazyDecryptedMap(encrypted, mDecrypter);
+
+        assertTrue(map.containsKey("bad"));
+        assertNull(map.get("bad"));
+        assertNull(map.get("bad"));
+        assertEquals(1, mDecryptions.get());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void viewIsImmutable() {
+        createMap(1).put("key", "value");
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void keySetIsImmutable() {
+        createMap(1).keySet().remove("key0");
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void entriesAreImmutable() {
+        createMap(1).entrySet().iterator().next().setValue("value");
+    }
+}
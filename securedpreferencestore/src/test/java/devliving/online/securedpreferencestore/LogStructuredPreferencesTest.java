@@ -0,0 +1,241 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LogStructuredPreferencesTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File mFile;
+    private LogStructuredPreferences mPrefs;
+
+    @Before
+    public void setUp() throws IOException {
+        Logger.setEnabled(false);
+        mFile = File.createTempFile("store", LogStructuredPreferences.FILE_SUFFIX);
+        mFile.delete();
+        mPrefs = open(1024);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mPrefs.close();
+        mFile.delete();
+        Logger.setEnabled(BuildConfig.DEBUG);
+    }
+
+    private LogStructuredPreferences open(long minCompactionBytes) throws IOException {
+        return new LogStructuredPreferences(mFile, DIRECT, minCompactionBytes, 0.5f);
+    }
+
+    private LogStructuredPreferences reopen() throws IOException {
+        mPrefs.close();
+        mPrefs = open(1024);
+        return mPrefs;
+    }
+
+    @Test
+    public void valuesSurviveReopening() throws IOException {
+        assertTrue(mPrefs.edit().putString("s", "text").putInt("i", 7).putLong("l", 1L << 40).putFloat("f", 2.5f)
+                .putBoolean("b", true).putStringSet("set", new HashSet<>(Arrays.asList("x", "y"))).commit());
+        mPrefs.edit().putString("s", "replaced").remove("i").commit();
+
+        LogStructuredPreferences prefs = reopen();
+
+        assertEquals("replaced", prefs.getString("s", null));
+        assertFalse(prefs.contains("i"));
+        assertEquals(1L << 40, prefs.getLong("l", 0));
+        assertEquals(2.5f, prefs.getFloat("f", 0), 0);
+        assertTrue(prefs.getBoolean("b", false));
+        assertEquals(new HashSet<>(Arrays.asList("x", "y")), prefs.getStringSet("set", null));
+        assertEquals(5, prefs.getAll().size());
+    }
+
+    @Test
+    public void clearAppliesBeforeTheOtherChanges() throws IOException {
+        mPrefs.edit().putString("a", "1").putString("b", "2").commit();
+        mPrefs.edit().putString("c", "3").clear().commit();
+
+        assertEquals(1, reopen().getAll().size());
+        assertEquals("3", mPrefs.getString("c", null));
+    }
+
+    @Test
+    public void tornWriteIsTruncated() throws IOException {
+        mPrefs.edit().putString("a", "1").commit();
+        long goodSize = mPrefs.size();
+        mPrefs.edit().putString("a", "2").putString("b", "2").commit();
+        mPrefs.close();
+
+        //the second batch was only partly written
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        LogStructuredPreferences prefs = reopen();
+        assertEquals("1", prefs.getString("a", null));
+        assertNull(prefs.getString("b", null));
+        assertEquals(goodSize, mFile.length());
+
+        //appends continue after the last good batch
+        prefs.edit().putString("b", "3").commit();
+        assertEquals("3", reopen().getString("b", null));
+    }
+
+    @Test
+    public void corruptBatchIsDroppedWhole() throws IOException {
+        mPrefs.edit().putString("a", "1").commit();
+        long goodSize = mPrefs.size();
+        mPrefs.edit().putString("a", "2").putString("b", "2").commit();
+        mPrefs.close();
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(file.length() - 1);
+        int last = file.read();
+        file.seek(file.length() - 1);
+        file.write(last ^ 1);
+        file.close();
+
+        LogStructuredPreferences prefs = reopen();
+        assertEquals("1", prefs.getString("a", null));
+        assertFalse(prefs.contains("b"));
+        assertEquals(goodSize, prefs.size());
+    }
+
+    private static String megabyte() {
+        char[] chars = new char[1024 * 1024];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    @Test
+    public void batchOverTheLimitIsRejected() throws IOException {
+        mPrefs.edit().putString("a", "1").commit();
+        long goodSize = mPrefs.size();
+        String value = megabyte();
+        SharedPreferences.Editor editor = mPrefs.edit();
+
+        //just over the 64 MiB a batch can take
+        for (int i = 0; i < 64; i++) {
+            editor.putString("large" + i, value);
+        }
+
+        assertFalse(editor.commit());
+        assertEquals(goodSize, mPrefs.size());
+        assertFalse(mPrefs.contains("large0"));
+
+        LogStructuredPreferences prefs = reopen();
+        assertEquals("1", prefs.getString("a", null));
+        assertEquals(1, prefs.getAll().size());
+    }
+
+    @Test
+    public void importIsSplitIntoBatches() throws IOException {
+        String value = megabyte();
+        Map<String, Object> entries = new HashMap<>();
+
+        for (int i = 0; i < 64; i++) {
+            entries.put("large" + i, value);
+        }
+        entries.put("i", 7);
+
+        mPrefs.importAll(entries);
+
+        LogStructuredPreferences prefs = reopen();
+        assertEquals(65, prefs.getAll().size());
+        assertEquals(7, prefs.getInt("i", 0));
+        assertEquals(value, prefs.getString("large63", null));
+    }
+
+    @Test
+    public void overwrittenRecordsAreCompacted() throws IOException {
+        for (int i = 0; i < 200; i++) {
+            mPrefs.edit().putString("token", "value " + i).putInt("counter", i).apply();
+        }
+
+        assertTrue(mPrefs.compactionCount() > 0);
+        assertTrue("size: " + mPrefs.size(), mPrefs.size() < 2048);
+
+        LogStructuredPreferences prefs = reopen();
+        assertEquals("value 199", prefs.getString("token", null));
+        assertEquals(199, prefs.getInt("counter", 0));
+        assertEquals(2, prefs.getAll().size());
+    }
+
+    @Test
+    public void writesDuringCompactionAreKept() throws Exception {
+        mPrefs.close();
+        mPrefs = open(Long.MAX_VALUE);
+        final LogStructuredPreferences prefs = mPrefs;
+        final IOException[] error = new IOException[1];
+
+        Thread compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        prefs.compact();
+                    }
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        compactor.start();
+
+        for (int i = 0; i < 500; i++) {
+            assertTrue(prefs.edit().putString("key" + (i % 5), "value " + i).remove("key" + ((i + 1) % 5)).commit());
+        }
+        prefs.edit().putString("late", "value").commit();
+        compactor.join();
+
+        assertNull(error[0]);
+        assertEquals(50, prefs.compactionCount());
+        LogStructuredPreferences reopened = reopen();
+        assertEquals("value", reopened.getString("late", null));
+        assertEquals("value 499", reopened.getString("key4", null));
+        assertFalse(reopened.contains("key0"));
+        assertEquals("value 498", reopened.getString("key3", null));
+    }
+
+    @Test
+    public void listenersAreNotifiedOfChangedKeys() throws IOException {
+        final List<String> changed = new ArrayList<>();
+        SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                changed.add(key);
+            }
+        };
+
+        mPrefs.registerOnSharedPreferenceChangeListener(listener);
+        mPrefs.edit().putString("a", "1").putString("b", "2").commit();
+        mPrefs.edit().clear().apply();
+
+        assertEquals(Arrays.asList("a", "b", "a", "b"), changed);
+    }
+}
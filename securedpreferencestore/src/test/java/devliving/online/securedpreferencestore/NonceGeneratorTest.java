@@ -0,0 +1,55 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NonceGeneratorTest {
+
+    @Test
+    public void noncesHaveTheRequestedLength() {
+        for (NonceGenerator.Strategy strategy : NonceGenerator.Strategy.values()) {
+            NonceGenerator generator = NonceGenerator.create(strategy);
+            assertEquals(strategy, generator.getStrategy());
+            assertEquals(12, generator.next(12).length);
+            assertEquals(16, generator.next(16).length);
+        }
+    }
+
+    @Test
+    public void noncesAreNotRepeated() {
+        for (NonceGenerator.Strategy strategy : NonceGenerator.Strategy.values()) {
+            NonceGenerator generator = NonceGenerator.create(strategy);
+            Set<String> seen = new HashSet<>();
+
+            for (int i = 0; i < 5000; i++) {
+                assertTrue(strategy.name(), seen.add(Arrays.toString(generator.next(12))));
+            }
+        }
+    }
+
+    @Test
+    public void prefetchedGeneratorFallsBackWhenBufferIsEmpty() {
+        //a tiny buffer runs out all the time
+        NonceGenerator generator = new NonceGenerator.PrefetchedNonceGenerator(16, 1);
+        byte[] empty = new byte[16];
+
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(Arrays.equals(empty, generator.next(16)));
+        }
+
+        //larger than the prefetched chunks
+        assertEquals(64, generator.next(64).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidLength() {
+        NonceGenerator.create(NonceGenerator.Strategy.SHARED).next(0);
+    }
+}
@@ -0,0 +1,135 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ParallelFileCipherTest {
+    private static final int SEGMENT_SIZE = 512;
+    private static final SecretKeySpec AES_KEY = new SecretKeySpec(new byte[16], "AES");
+    private static final SecretKeySpec MAC_KEY = new SecretKeySpec(new byte[32], "HmacSHA256");
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    private static final ParallelFileCipher.CipherFactory GCM = new ParallelFileCipher.CipherFactory() {
+        @Override
+        public SegmentedFileCipher newCipher() throws GeneralSecurityException {
+            return new SegmentedFileCipher(Cipher.getInstance("AES/GCM/NoPadding"), AES_KEY, null, NonceGenerator.getDefault());
+        }
+    };
+
+    private static final ParallelFileCipher.CipherFactory CBC = new ParallelFileCipher.CipherFactory() {
+        @Override
+        public SegmentedFileCipher newCipher() throws GeneralSecurityException {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(MAC_KEY);
+            return new SegmentedFileCipher(Cipher.getInstance("AES/CBC/PKCS5Padding"), AES_KEY, mac, NonceGenerator.getDefault());
+        }
+    };
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] encrypt(ParallelFileCipher cipher, byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cipher.encrypt(new ByteArrayInputStream(data), out, SEGMENT_SIZE);
+        return out.toByteArray();
+    }
+
+    private static byte[] decrypt(ParallelFileCipher cipher, byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cipher.decrypt(new ByteArrayInputStream(data), out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void parallelAndSequentialFilesAreInterchangeable() throws Exception {
+        for (ParallelFileCipher.CipherFactory factory : new ParallelFileCipher.CipherFactory[]{GCM, CBC}) {
+            ParallelFileCipher parallel = new ParallelFileCipher(factory, mExecutor, 3);
+            SegmentedFileCipher sequential = factory.newCipher();
+
+            for (int length : new int[]{0, 1, SEGMENT_SIZE, 10 * SEGMENT_SIZE, 10 * SEGMENT_SIZE + 7}) {
+                byte[] data = randomBytes(length);
+                assertArrayEquals(data, decrypt(parallel, encrypt(parallel, data)));
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                sequential.decrypt(new ByteArrayInputStream(encrypt(parallel, data)), out);
+                assertArrayEquals(data, out.toByteArray());
+
+                out = new ByteArrayOutputStream();
+                sequential.encrypt(new ByteArrayInputStream(data), out, SEGMENT_SIZE);
+                assertArrayEquals(data, decrypt(parallel, out.toByteArray()));
+            }
+        }
+    }
+
+    @Test
+    public void segmentsInFlightAreBounded() throws Exception {
+        final AtomicInteger submitted = new AtomicInteger();
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        Executor counting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                //the header is written before any segment
+                int inFlight = submitted.incrementAndGet() - (written.get() - 1);
+                maxInFlight.set(Math.max(maxInFlight.get(), inFlight));
+                mExecutor.execute(command);
+            }
+        };
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                written.incrementAndGet();
+                super.write(b, off, len);
+            }
+        };
+
+        ParallelFileCipher cipher = new ParallelFileCipher(GCM, counting, 2);
+        byte[] data = randomBytes(50 * SEGMENT_SIZE);
+        cipher.encrypt(new ByteArrayInputStream(data), out, SEGMENT_SIZE);
+
+        assertArrayEquals(data, decrypt(new ParallelFileCipher(GCM, mExecutor, 2), out.toByteArray()));
+        assertEquals(2, maxInFlight.get());
+    }
+
+    @Test
+    public void failedSegmentIsReported() throws Exception {
+        ParallelFileCipher cipher = new ParallelFileCipher(CBC, mExecutor, 4);
+        byte[] encrypted = encrypt(cipher, randomBytes(20 * SEGMENT_SIZE));
+        encrypted[encrypted.length / 2] ^= 1;
+
+        try {
+            decrypt(cipher, encrypted);
+            fail("Tampered file was decrypted");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Test;
+
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    private static RetryPolicy policy(RetryPolicy.Builder builder, final boolean mainThread) {
+        return new RetryPolicy(builder) {
+            @Override
+            boolean isMainThread() {
+                return mainThread;
+            }
+        };
+    }
+
+    @Test
+    public void transientErrorsAreRetried() {
+        RetryPolicy policy = policy(new RetryPolicy.Builder().setMaxAttempts(3).setBackoff(0, 0, 1), false);
+        RetryPolicy.Attempt attempt = policy.begin();
+
+        assertEquals(0, attempt.failed(new KeyStoreException("busy")));
+        assertEquals(0, attempt.failed(new RuntimeException(new ProviderException("keymaster"))));
+        //out of attempts
+        assertEquals(-1, attempt.failed(new KeyStoreException("busy")));
+
+        assertEquals(3, attempt.attempts());
+        assertEquals(2, policy.getRetryCount());
+        assertEquals(1, policy.getFailedOperationCount());
+    }
+
+    @Test
+    public void permanentErrorsAreNotRetried() {
+        RetryPolicy policy = policy(new RetryPolicy.Builder(), false);
+
+        assertEquals(-1, policy.begin().failed(new NoSuchAlgorithmException()));
+        assertEquals(-1, policy.begin().failed(new NumberFormatException()));
+        assertEquals(0, policy.getRetryCount());
+    }
+
+    @Test
+    public void backoffGrowsAndIsCapped() {
+        RetryPolicy policy = new RetryPolicy.Builder().setBackoff(10, 50, 2).setJitter(0).build();
+
+        assertEquals(10, policy.computeDelayMillis(1, false));
+        assertEquals(20, policy.computeDelayMillis(2, false));
+        assertEquals(40, policy.computeDelayMillis(3, false));
+        assertEquals(50, policy.computeDelayMillis(4, false));
+    }
+
+    @Test
+    public void jitterOnlyShortensTheDelay() {
+        RetryPolicy policy = new RetryPolicy.Builder().setBackoff(100, 100, 1).setJitter(0.5).build();
+
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.computeDelayMillis(1, false);
+            assertTrue(delay >= 50 && delay <= 100);
+        }
+    }
+
+    @Test
+    public void mainThreadDelaysAreLimited() {
+        RetryPolicy policy = new RetryPolicy.Builder().setBackoff(100, 100, 1).setJitter(0)
+                .setMainThreadLimits(2, 10).build();
+
+        assertEquals(2, policy.computeDelayMillis(1, true));
+    }
+
+    @Test
+    public void mainThreadOperationsUseTheMainThreadLimits() {
+        RetryPolicy.Builder builder = new RetryPolicy.Builder().setBackoff(100, 100, 1).setJitter(0)
+                .setMainThreadLimits(2, 10);
+
+        assertEquals(2, policy(builder, true).begin().failed(new KeyStoreException()));
+        assertEquals(100, policy(builder, false).begin().failed(new KeyStoreException()));
+    }
+
+    @Test
+    public void deadlineStopsRetries() {
+        RetryPolicy policy = policy(new RetryPolicy.Builder().setMaxAttempts(10).setBackoff(100, 100, 1).setJitter(0)
+                .setDeadline(50), false);
+
+        assertEquals(-1, policy.begin().failed(new KeyStoreException()));
+    }
+
+    @Test
+    public void retryBudgetIsSharedAndRefilled() {
+        RetryPolicy policy = policy(new RetryPolicy.Builder().setMaxAttempts(10).setBackoff(0, 0, 1).setRetryBudget(2), false);
+
+        RetryPolicy.Attempt attempt = policy.begin();
+        assertEquals(0, attempt.failed(new KeyStoreException()));
+        assertEquals(0, policy.begin().failed(new KeyStoreException()));
+        assertEquals(-1, policy.begin().failed(new KeyStoreException()));
+        assertEquals(1, policy.getBudgetExhaustedCount());
+        assertEquals(0, policy.getRemainingRetryBudget());
+
+        //10 successful operations earn one retry back
+        for (int i = 0; i < 10; i++) {
+            policy.begin().succeeded();
+        }
+        assertEquals(1, policy.getRemainingRetryBudget());
+        assertFalse(policy.begin().failed(new KeyStoreException()) < 0);
+    }
+}
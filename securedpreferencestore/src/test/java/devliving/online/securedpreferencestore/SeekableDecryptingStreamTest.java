@@ -0,0 +1,157 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SeekableDecryptingStreamTest {
+    private static final int SEGMENT_SIZE = 1024;
+
+    private static SegmentedFileCipher gcm() throws Exception {
+        return new SegmentedFileCipher(Cipher.getInstance("AES/GCM/NoPadding"), new SecretKeySpec(new byte[16], "AES"),
+                null, NonceGenerator.getDefault());
+    }
+
+    private static SegmentedFileCipher cbc() throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(new byte[32], "HmacSHA256"));
+        return new SegmentedFileCipher(Cipher.getInstance("AES/CBC/PKCS5Padding"), new SecretKeySpec(new byte[16], "AES"),
+                mac, NonceGenerator.getDefault());
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static File encryptToFile(SegmentedFileCipher cipher, byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cipher.encrypt(new ByteArrayInputStream(data), out, SEGMENT_SIZE);
+
+        File file = File.createTempFile("encrypted", ".bin");
+        file.deleteOnExit();
+        FileOutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(out.toByteArray());
+        fileOut.close();
+        return file;
+    }
+
+    private static SeekableDecryptingStream open(File file, SegmentedFileCipher cipher, int cachedSegments) throws Exception {
+        return new SeekableDecryptingStream(new RandomAccessFile(file, "r").getChannel(), true, cipher, cachedSegments);
+    }
+
+    @Test
+    public void randomReadsMatchThePlainText() throws Exception {
+        for (boolean useGcm : new boolean[]{true, false}) {
+            for (int length : new int[]{0, 1, SEGMENT_SIZE, 5 * SEGMENT_SIZE + 17}) {
+                byte[] data = randomBytes(length);
+                File file = encryptToFile(useGcm ? gcm() : cbc(), data);
+                SeekableDecryptingStream stream = open(file, useGcm ? gcm() : cbc(), 2);
+                Random random = new Random(length);
+
+                assertEquals(length, stream.size());
+
+                for (int i = 0; i < 50 && length > 0; i++) {
+                    int position = random.nextInt(length);
+                    int count = Math.min(random.nextInt(3 * SEGMENT_SIZE) + 1, length - position);
+                    byte[] read = new byte[count];
+
+                    stream.seek(position);
+                    assertEquals(count, stream.read(read));
+                    assertArrayEquals(Arrays.copyOfRange(data, position, position + count), read);
+                    assertEquals(position + count, stream.position());
+                }
+
+                stream.seek(length);
+                assertEquals(-1, stream.read());
+                stream.close();
+            }
+        }
+    }
+
+    @Test
+    public void skipMarkAndResetMovePosition() throws Exception {
+        byte[] data = randomBytes(3 * SEGMENT_SIZE);
+        SeekableDecryptingStream stream = open(encryptToFile(gcm(), data), gcm(), 1);
+
+        assertEquals(SEGMENT_SIZE + 3, stream.skip(SEGMENT_SIZE + 3));
+        stream.mark(0);
+        assertEquals(data[SEGMENT_SIZE + 3] & 0xFF, stream.read());
+        stream.reset();
+        assertEquals(data[SEGMENT_SIZE + 3] & 0xFF, stream.read());
+        assertEquals(2 * SEGMENT_SIZE - 4, stream.skip(Long.MAX_VALUE));
+        assertEquals(-1, stream.read());
+        stream.close();
+    }
+
+    @Test
+    public void channelOwnedByTheCallerIsNotClosed() throws Exception {
+        FileChannel channel = new RandomAccessFile(encryptToFile(gcm(), randomBytes(10)), "r").getChannel();
+        new SeekableDecryptingStream(channel, false, gcm(), 1).close();
+
+        assertEquals(true, channel.isOpen());
+        assertEquals(0, channel.position());
+        channel.close();
+    }
+
+    @Test
+    public void tamperedSegmentFailsOnlyWhenRead() throws Exception {
+        byte[] data = randomBytes(3 * SEGMENT_SIZE);
+        File file = encryptToFile(gcm(), data);
+
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        int sealedSize = SegmentedFileCipher.sealedLength(EncryptedDataCodec.SUITE_AES_GCM, SEGMENT_SIZE);
+        raw.seek(SegmentedFileCipher.HEADER_LENGTH + sealedSize + 5);
+        raw.write(raw.read() ^ 1);
+        raw.close();
+
+        SeekableDecryptingStream stream = open(file, gcm(), 4);
+        byte[] read = new byte[10];
+        stream.seek(2 * SEGMENT_SIZE);
+        assertEquals(10, stream.read(read));
+        assertArrayEquals(Arrays.copyOfRange(data, 2 * SEGMENT_SIZE, 2 * SEGMENT_SIZE + 10), read);
+
+        stream.seek(SEGMENT_SIZE);
+        try {
+            stream.read(read);
+            fail("Tampered segment was read");
+        } catch (IOException expected) {
+        }
+
+        stream.close();
+    }
+
+    @Test
+    public void truncatedFileFailsVerification() throws Exception {
+        File file = encryptToFile(gcm(), randomBytes(3 * SEGMENT_SIZE));
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.setLength(SegmentedFileCipher.HEADER_LENGTH + 2 * SegmentedFileCipher.sealedLength(EncryptedDataCodec.SUITE_AES_GCM, SEGMENT_SIZE));
+        raw.close();
+
+        SeekableDecryptingStream stream = open(file, gcm(), 4);
+        try {
+            stream.size();
+            fail("Truncated file was accepted");
+        } catch (IOException expected) {
+        }
+
+        stream.close();
+    }
+}
@@ -0,0 +1,159 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentedFileCipherTest {
+    private static final int SEGMENT_SIZE = 1024;
+    private static final SecretKeySpec AES_KEY = new SecretKeySpec(new byte[16], "AES");
+    private static final SecretKeySpec MAC_KEY = new SecretKeySpec(new byte[32], "HmacSHA256");
+
+    private static SegmentedFileCipher gcm() throws Exception {
+        return new SegmentedFileCipher(Cipher.getInstance("AES/GCM/NoPadding"), AES_KEY, null, NonceGenerator.getDefault());
+    }
+
+    private static SegmentedFileCipher cbc() throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(MAC_KEY);
+        return new SegmentedFileCipher(Cipher.getInstance("AES/CBC/PKCS5Padding"), AES_KEY, mac, NonceGenerator.getDefault());
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] encrypt(SegmentedFileCipher cipher, byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cipher.encrypt(new ByteArrayInputStream(data), out, SEGMENT_SIZE);
+        return out.toByteArray();
+    }
+
+    private static byte[] decrypt(SegmentedFileCipher cipher, byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cipher.decrypt(new ByteArrayInputStream(data), out);
+        return out.toByteArray();
+    }
+
+    private static void assertRejected(SegmentedFileCipher cipher, byte[] data) throws Exception {
+        try {
+            decrypt(cipher, data);
+            fail("Tampered file was decrypted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void roundTripsAroundSegmentBoundaries() throws Exception {
+        for (SegmentedFileCipher cipher : new SegmentedFileCipher[]{gcm(), cbc()}) {
+            for (int length : new int[]{0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 3 * SEGMENT_SIZE, 10000}) {
+                byte[] data = randomBytes(length);
+                assertArrayEquals(data, decrypt(cipher, encrypt(cipher, data)));
+            }
+        }
+    }
+
+    @Test
+    public void encryptedLengthMatchesTheSegments() throws Exception {
+        int length = 2 * SEGMENT_SIZE + 10;
+        int expected = SegmentedFileCipher.HEADER_LENGTH
+                + 2 * SegmentedFileCipher.sealedLength(EncryptedDataCodec.SUITE_AES_GCM, SEGMENT_SIZE)
+                + SegmentedFileCipher.sealedLength(EncryptedDataCodec.SUITE_AES_GCM, 10);
+
+        assertEquals(expected, encrypt(gcm(), randomBytes(length)).length);
+    }
+
+    @Test
+    public void flippedBitIsDetected() throws Exception {
+        for (SegmentedFileCipher cipher : new SegmentedFileCipher[]{gcm(), cbc()}) {
+            byte[] encrypted = encrypt(cipher, randomBytes(3 * SEGMENT_SIZE));
+
+            for (int position : new int[]{5, SegmentedFileCipher.HEADER_LENGTH - 1, SegmentedFileCipher.HEADER_LENGTH + 1, encrypted.length - 1}) {
+                byte[] tampered = encrypted.clone();
+                tampered[position] ^= 1;
+                assertRejected(cipher, tampered);
+            }
+        }
+    }
+
+    @Test
+    public void verifyChecksEverySegmentWithoutOutput() throws Exception {
+        for (SegmentedFileCipher cipher : new SegmentedFileCipher[]{gcm(), cbc()}) {
+            byte[] encrypted = encrypt(cipher, randomBytes(3 * SEGMENT_SIZE + 7));
+            cipher.verify(new ByteArrayInputStream(encrypted));
+
+            int suite = encrypted[5];
+            int sealed = SegmentedFileCipher.sealedLength(suite, SEGMENT_SIZE);
+            for (int position : new int[]{SegmentedFileCipher.HEADER_LENGTH + 2 * sealed + 3, encrypted.length - 1}) {
+                byte[] tampered = encrypted.clone();
+                tampered[position] ^= 1;
+
+                try {
+                    cipher.verify(new ByteArrayInputStream(tampered));
+                    fail("Tampered file was verified");
+                } catch (IOException expected) {
+                }
+            }
+
+            try {
+                cipher.verify(new ByteArrayInputStream(Arrays.copyOf(encrypted, SegmentedFileCipher.HEADER_LENGTH + sealed)));
+                fail("Truncated file was verified");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void truncationAtASegmentBoundaryIsDetected() throws Exception {
+        for (SegmentedFileCipher cipher : new SegmentedFileCipher[]{gcm(), cbc()}) {
+            byte[] encrypted = encrypt(cipher, randomBytes(3 * SEGMENT_SIZE));
+            int suite = encrypted[5];
+            int sealed = SegmentedFileCipher.sealedLength(suite, SEGMENT_SIZE);
+
+            assertRejected(cipher, Arrays.copyOf(encrypted, SegmentedFileCipher.HEADER_LENGTH + 2 * sealed));
+            assertRejected(cipher, Arrays.copyOf(encrypted, SegmentedFileCipher.HEADER_LENGTH));
+        }
+    }
+
+    @Test
+    public void swappedSegmentsAreDetected() throws Exception {
+        for (SegmentedFileCipher cipher : new SegmentedFileCipher[]{gcm(), cbc()}) {
+            byte[] encrypted = encrypt(cipher, randomBytes(3 * SEGMENT_SIZE));
+            int sealed = SegmentedFileCipher.sealedLength(encrypted[5], SEGMENT_SIZE);
+            int first = SegmentedFileCipher.HEADER_LENGTH;
+
+            byte[] swapped = encrypted.clone();
+            System.arraycopy(encrypted, first, swapped, first + sealed, sealed);
+            System.arraycopy(encrypted, first + sealed, swapped, first, sealed);
+            assertRejected(cipher, swapped);
+        }
+    }
+
+    @Test
+    public void otherSuiteIsRejected() throws Exception {
+        assertRejected(cbc(), encrypt(gcm(), randomBytes(10)));
+    }
+
+    @Test
+    public void segmentedFilesAreRecognised() throws Exception {
+        assertTrue(SegmentedFileCipher.isSegmented(encrypt(gcm(), new byte[0])));
+        assertFalse(SegmentedFileCipher.isSegmented(new byte[]{'S', 'P', 'S'}));
+        assertFalse(SegmentedFileCipher.isSegmented(new byte[]{1, 2, 3, 4, 5}));
+    }
+}
@@ -0,0 +1,263 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedSharedPreferencesTest {
+    private static final int SHARDS = 4;
+
+    /**
+     * Just enough of a preference file to count commits
+     */
+    static final class MemoryPreferences implements SharedPreferences {
+        final Map<String, Object> mValues = new HashMap<>();
+        final List<OnSharedPreferenceChangeListener> mListeners = new ArrayList<>();
+        int mCommits = 0;
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<>(mValues);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return mValues.containsKey(key) ? (Set<String>) mValues.get(key) : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return mValues.containsKey(key) ? (Float) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new Editor() {
+                final Map<String, Object> mChanges = new HashMap<>();
+                boolean mClear = false;
+
+                private Editor put(String key, Object value) {
+                    mChanges.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putString(String key, String value) {
+                    return put(key, value);
+                }
+
+                @Override
+                public Editor putStringSet(String key, Set<String> values) {
+                    return put(key, values != null ? new HashSet<>(values) : null);
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    return put(key, value);
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    return put(key, value);
+                }
+
+                @Override
+                public Editor putFloat(String key, float value) {
+                    return put(key, value);
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value) {
+                    return put(key, value);
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    return put(key, null);
+                }
+
+                @Override
+                public Editor clear() {
+                    mClear = true;
+                    return this;
+                }
+
+                @Override
+                public boolean commit() {
+                    mCommits++;
+                    if (mClear) mValues.clear();
+
+                    for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                        if (change.getValue() != null) mValues.put(change.getKey(), change.getValue());
+                        else mValues.remove(change.getKey());
+
+                        for (OnSharedPreferenceChangeListener listener : mListeners) {
+                            listener.onSharedPreferenceChanged(MemoryPreferences.this, change.getKey());
+                        }
+                    }
+
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                    commit();
+                }
+            };
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+            mListeners.add(listener);
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+            mListeners.remove(listener);
+        }
+    }
+
+    private MemoryPreferences[] mShards;
+    private ShardedSharedPreferences mPrefs;
+
+    @Before
+    public void setUp() {
+        mShards = new MemoryPreferences[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            mShards[i] = new MemoryPreferences();
+        }
+
+        mPrefs = new ShardedSharedPreferences(mShards);
+    }
+
+    private static String hashed(String key) throws Exception {
+        return EncryptionManager.getHashed(key);
+    }
+
+    @Test
+    public void hashedKeysAreSpreadOverAllShards() throws Exception {
+        int[] counts = new int[SHARDS];
+
+        for (int i = 0; i < 400; i++) {
+            String key = hashed("key" + i);
+            int shard = ShardedSharedPreferences.shardOf(key, SHARDS);
+            assertEquals(shard, ShardedSharedPreferences.shardOf(key, SHARDS));
+            counts[shard]++;
+        }
+
+        for (int count : counts) {
+            assertTrue("unbalanced: " + count, count > 50);
+        }
+
+        //keys that aren't hashes still get a shard
+        int shard = ShardedSharedPreferences.shardOf("VERSION", SHARDS);
+        assertTrue(shard >= 0 && shard < SHARDS);
+        shard = ShardedSharedPreferences.shardOf("x", SHARDS);
+        assertTrue(shard >= 0 && shard < SHARDS);
+    }
+
+    @Test
+    public void commitWritesOnlyTheChangedShards() throws Exception {
+        String key = hashed("token");
+        int shard = ShardedSharedPreferences.shardOf(key, SHARDS);
+
+        assertTrue(mPrefs.edit().putString(key, "value").commit());
+
+        for (int i = 0; i < SHARDS; i++) {
+            assertEquals(i == shard ? 1 : 0, mShards[i].mCommits);
+        }
+        assertEquals("value", mShards[shard].getString(key, null));
+        assertEquals("value", mPrefs.getString(key, null));
+        assertTrue(mPrefs.contains(key));
+    }
+
+    @Test
+    public void getAllAndClearCoverEveryShard() throws Exception {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (int i = 0; i < 40; i++) {
+            editor.putInt(hashed("key" + i), i);
+        }
+        editor.commit();
+
+        Map<String, ?> all = mPrefs.getAll();
+        assertEquals(40, all.size());
+        assertEquals(7, all.get(hashed("key7")));
+
+        //cleared before the put, like a single file
+        String kept = hashed("kept");
+        mPrefs.edit().putBoolean(kept, true).clear().commit();
+        assertEquals(1, mPrefs.getAll().size());
+        assertTrue(mPrefs.getBoolean(kept, false));
+        assertFalse(mPrefs.contains(hashed("key7")));
+        assertNull(mPrefs.getStringSet(hashed("key7"), null));
+    }
+
+    @Test
+    public void listenersSeeTheShardedPreferences() throws Exception {
+        final List<String> changed = new ArrayList<>();
+        SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                assertSame(mPrefs, sharedPreferences);
+                changed.add(key);
+            }
+        };
+
+        mPrefs.registerOnSharedPreferenceChangeListener(listener);
+        mPrefs.edit().putString(hashed("a"), "1").putString(hashed("b"), "2").commit();
+        assertEquals(2, changed.size());
+
+        mPrefs.unregisterOnSharedPreferenceChangeListener(listener);
+        mPrefs.edit().putString(hashed("c"), "3").commit();
+        assertEquals(2, changed.size());
+
+        //the shards are no longer listened to once the last listener is gone
+        for (MemoryPreferences shard : mShards) {
+            assertTrue(shard.mListeners.isEmpty());
+        }
+
+        mPrefs.registerOnSharedPreferenceChangeListener(listener);
+        mPrefs.edit().putString(hashed("d"), "4").commit();
+        assertEquals(3, changed.size());
+    }
+}
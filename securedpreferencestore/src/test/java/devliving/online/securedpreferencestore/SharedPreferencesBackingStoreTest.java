@@ -0,0 +1,76 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import devliving.online.securedpreferencestore.ShardedSharedPreferencesTest.MemoryPreferences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SharedPreferencesBackingStoreTest {
+    private MemoryPreferences mPrefs;
+    private SharedPreferencesBackingStore mStore;
+
+    @Before
+    public void setUp() {
+        mPrefs = new MemoryPreferences();
+        mStore = new SharedPreferencesBackingStore(mPrefs);
+    }
+
+    @Test
+    public void valuesAreReadWithTheTypeTheyWereWrittenWith() {
+        mStore.edit().put("s", "text").put("set", new HashSet<>(Arrays.asList("x"))).put("i", 7).put("b", false).commit();
+
+        assertEquals("text", mPrefs.getString("s", null));
+        assertEquals("text", mStore.get("s"));
+        assertEquals(new HashSet<>(Arrays.asList("x")), mStore.get("set"));
+        assertEquals(7, mStore.get("i"));
+        assertEquals(false, mStore.get("b"));
+
+        mStore.edit().put("s", null).commit();
+        assertFalse(mStore.contains("s"));
+    }
+
+    @Test
+    public void preferencesViewIsThePreferencesThemselves() {
+        assertSame(mPrefs, BackingStorePreferences.of(mStore));
+
+        InMemoryBackingStore memory = new InMemoryBackingStore();
+        BackingStorePreferences.of(memory).edit().putString("a", "1").putInt("n", 2).commit();
+        assertEquals("1", memory.get("a"));
+        assertEquals(2, BackingStorePreferences.of(memory).getInt("n", 0));
+    }
+
+    @Test
+    public void listenersAreNotifiedOfChangedKeys() {
+        final List<String> changed = new ArrayList<>();
+        BackingStore.Listener listener = new BackingStore.Listener() {
+            @Override
+            public void onChanged(BackingStore store, String key) {
+                changed.add(key);
+            }
+        };
+        mStore.registerListener(listener);
+
+        mStore.edit().put("a", "1").commit();
+        mPrefs.edit().remove("a").commit();
+
+        assertEquals(Arrays.asList("a", "a"), changed);
+
+        //the preferences are no longer listened to once the last listener is gone
+        mStore.unregisterListener(listener);
+        assertTrue(mPrefs.mListeners.isEmpty());
+
+        mStore.registerListener(listener);
+        mStore.edit().put("b", "2").commit();
+        assertEquals(Arrays.asList("a", "a", "b"), changed);
+    }
+}
@@ -0,0 +1,146 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StripedLockTest {
+    private StripedLock mLock;
+    //keys of three different stripes, in stripe order
+    private final List<String> mKeys = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mLock = new StripedLock(16);
+
+        boolean[] used = new boolean[mLock.stripeCount()];
+        for (int i = 0; mKeys.size() < 3; i++) {
+            String key = "key_" + i;
+            if (!used[mLock.stripeOf(key)]) {
+                used[mLock.stripeOf(key)] = true;
+                mKeys.add(key);
+            }
+        }
+
+        Collections.sort(mKeys, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return mLock.stripeOf(a) - mLock.stripeOf(b);
+            }
+        });
+    }
+
+    /**
+     * @return true if another thread could acquire the lock right away
+     */
+    private static boolean availableToOtherThreads(final Lock lock) throws InterruptedException {
+        final AtomicBoolean acquired = new AtomicBoolean();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (lock.tryLock()) {
+                    acquired.set(true);
+                    lock.unlock();
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+
+        return acquired.get();
+    }
+
+    @Test
+    public void stripeCountIsRoundedUpToAPowerOfTwo() {
+        assertEquals(16, new StripedLock(9).stripeCount());
+        assertEquals(1, new StripedLock(1).stripeCount());
+    }
+
+    @Test
+    public void readersOfDifferentStripesDoNotBlockEachOther() throws Exception {
+        String first = mKeys.get(0);
+        String second = mKeys.get(1);
+        assertNotEquals(mLock.stripeOf(first), mLock.stripeOf(second));
+
+        List<Lock> locks = mLock.lockForRead(Collections.singleton(first));
+        try {
+            assertTrue(availableToOtherThreads(mLock.readLock(first)));
+            assertTrue(availableToOtherThreads(mLock.readLock(second)));
+            assertTrue(availableToOtherThreads(mLock.writeLock(second)));
+            assertFalse(availableToOtherThreads(mLock.writeLock(first)));
+        } finally {
+            mLock.unlock(locks);
+        }
+
+        assertTrue(availableToOtherThreads(mLock.writeLock(first)));
+    }
+
+    @Test
+    public void writersOnlyBlockTheirOwnStripes() throws Exception {
+        List<Lock> locks = mLock.lockForWrite(Collections.singleton(mKeys.get(0)), false);
+        try {
+            assertEquals(1, locks.size());
+            assertFalse(availableToOtherThreads(mLock.readLock(mKeys.get(0))));
+            assertTrue(availableToOtherThreads(mLock.readLock(mKeys.get(1))));
+        } finally {
+            mLock.unlock(locks);
+        }
+    }
+
+    @Test
+    public void lockingAllStripesTakesEveryStripe() throws Exception {
+        List<Lock> locks = mLock.lockForWrite(Collections.<String>emptyList(), true);
+        try {
+            assertEquals(mLock.stripeCount(), locks.size());
+            for (int i = 0; i < 100; i++) {
+                assertFalse(availableToOtherThreads(mLock.readLock("any_" + i)));
+            }
+        } finally {
+            mLock.unlock(locks);
+        }
+
+        assertTrue(availableToOtherThreads(mLock.writeLock(mKeys.get(0))));
+    }
+
+    @Test
+    public void stripesAreLockedInTheSameOrder() {
+        List<String> reversed = new ArrayList<>(mKeys);
+        Collections.reverse(reversed);
+
+        List<Lock> writeLocks = mLock.lockForWrite(reversed, false);
+        mLock.unlock(writeLocks);
+        List<Lock> readLocks = mLock.lockForRead(Arrays.asList(mKeys.get(1), mKeys.get(2), mKeys.get(0)));
+        mLock.unlock(readLocks);
+
+        assertEquals(mKeys.size(), writeLocks.size());
+        assertEquals(mKeys.size(), readLocks.size());
+        for (int i = 0; i < mKeys.size(); i++) {
+            assertSame(mLock.writeLock(mKeys.get(i)), writeLocks.get(i));
+            assertSame(mLock.readLock(mKeys.get(i)), readLocks.get(i));
+        }
+    }
+
+    @Test
+    public void keysOfTheSameStripeAreLockedOnce() {
+        String key = mKeys.get(0);
+
+        List<Lock> locks = mLock.lockForWrite(Arrays.asList(key, key), false);
+        mLock.unlock(locks);
+
+        assertEquals(1, locks.size());
+    }
+}
@@ -0,0 +1,61 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TypedValueCodecTest {
+
+    private static Object roundTrip(Object value) {
+        return TypedValueCodec.decode(TypedValueCodec.encode(value));
+    }
+
+    @Test
+    public void primitivesRoundTrip() {
+        for (int value : new int[]{0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+            assertEquals(value, roundTrip(value));
+        }
+
+        for (long value : new long[]{0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE, 1L << 40}) {
+            assertEquals(value, roundTrip(value));
+        }
+
+        for (float value : new float[]{0f, -0.5f, Float.MAX_VALUE, Float.MIN_VALUE, Float.NaN}) {
+            assertEquals(value, roundTrip(value));
+        }
+
+        assertEquals(true, roundTrip(true));
+        assertEquals(false, roundTrip(false));
+    }
+
+    @Test
+    public void stringsAndBytesRoundTrip() {
+        assertEquals("", roundTrip(""));
+        assertEquals("\u043a\u043b\u044e\u0447 \ud83d\udd11", roundTrip("\u043a\u043b\u044e\u0447 \ud83d\udd11"));
+        assertArrayEquals(new byte[0], (byte[]) roundTrip(new byte[0]));
+        assertArrayEquals(new byte[]{1, -2, 3}, (byte[]) roundTrip(new byte[]{1, -2, 3}));
+    }
+
+    @Test
+    public void primitivesAreFixedWidthBigEndian() {
+        assertArrayEquals(new byte[]{TypedValueCodec.TAG_INT, 0x01, 0x02, 0x03, 0x04}, TypedValueCodec.encode(0x01020304));
+        assertArrayEquals(new byte[]{TypedValueCodec.TAG_LONG, 0, 0, 0, 0, 0, 0, 0x01, 0x00}, TypedValueCodec.encode(256L));
+        assertArrayEquals(new byte[]{TypedValueCodec.TAG_BOOLEAN, 1}, TypedValueCodec.encode(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedTypeIsRejected() {
+        TypedValueCodec.encode(1.5d);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedValueIsRejected() {
+        TypedValueCodec.decode(new byte[]{TypedValueCodec.TAG_LONG, 0, 0, 0, 1});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownTagIsRejected() {
+        TypedValueCodec.decode(new byte[]{42, 0});
+    }
+}
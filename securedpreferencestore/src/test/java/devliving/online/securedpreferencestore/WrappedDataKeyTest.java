@@ -0,0 +1,158 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WrappedDataKeyTest {
+    private ScheduledExecutorService mScheduler;
+    private final List<byte[]> mUnwrapped = new ArrayList<>();
+
+    private final WrappedDataKey.Unwrapper mUnwrapper = new WrappedDataKey.Unwrapper() {
+        @Override
+        public synchronized byte[] unwrap() throws IOException {
+            byte[] key = new byte[32];
+            key[0] = 42;
+            mUnwrapped.add(key);
+            return key;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor(StoreExecutors.newThreadFactory("Test-Timer"));
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    private static byte[] roundTrip(WrappedDataKey key, byte[] data) throws Exception {
+        byte[] IV = new byte[12];
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        key.init(cipher, Cipher.ENCRYPT_MODE, new GCMParameterSpec(128, IV));
+        byte[] encrypted = cipher.doFinal(data);
+
+        key.init(cipher, Cipher.DECRYPT_MODE, new GCMParameterSpec(128, IV));
+        return cipher.doFinal(encrypted);
+    }
+
+    @Test
+    public void keyIsUnwrappedOnceAndOnlyWhenNeeded() throws Exception {
+        WrappedDataKey key = new WrappedDataKey(null, mUnwrapper, mScheduler);
+        assertFalse(key.isUnwrapped());
+
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(new byte[]{1, 2, 3}, roundTrip(key, new byte[]{1, 2, 3}));
+        }
+
+        assertEquals(1, key.unwrapCount());
+        assertTrue(key.isUnwrapped());
+    }
+
+    @Test
+    public void generatedKeyIsNotUnwrapped() throws Exception {
+        WrappedDataKey key = new WrappedDataKey(new byte[32], mUnwrapper, mScheduler);
+        roundTrip(key, new byte[]{1});
+
+        assertEquals(0, key.unwrapCount());
+    }
+
+    @Test
+    public void clearZeroesTheKey() throws Exception {
+        WrappedDataKey key = new WrappedDataKey(null, mUnwrapper, mScheduler);
+        roundTrip(key, new byte[]{1});
+
+        key.clear();
+        assertFalse(key.isUnwrapped());
+        assertArrayEquals(new byte[32], mUnwrapped.get(0));
+
+        assertArrayEquals(new byte[]{1}, roundTrip(key, new byte[]{1}));
+        assertEquals(2, key.unwrapCount());
+    }
+
+    @Test
+    public void idleKeyIsZeroed() throws Exception {
+        WrappedDataKey key = new WrappedDataKey(null, mUnwrapper, mScheduler);
+        key.setIdleTimeout(50);
+        roundTrip(key, new byte[]{1});
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (key.isUnwrapped() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertFalse(key.isUnwrapped());
+        assertArrayEquals(new byte[32], mUnwrapped.get(0));
+    }
+
+    @Test
+    public void keyInUseIsKept() throws Exception {
+        WrappedDataKey key = new WrappedDataKey(null, mUnwrapper, mScheduler);
+        key.setIdleTimeout(200);
+
+        //used more often than the timeout
+        long end = System.currentTimeMillis() + 600;
+        while (System.currentTimeMillis() < end) {
+            roundTrip(key, new byte[]{1});
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, key.unwrapCount());
+    }
+
+    @Test
+    public void unwrapFailureIsThrownAndTriedAgain() throws Exception {
+        final KeyStoreException failure = new KeyStoreException("keystore busy");
+        final int[] calls = new int[1];
+
+        final WrappedDataKey key = new WrappedDataKey(null, new WrappedDataKey.Unwrapper() {
+            @Override
+            public byte[] unwrap() throws GeneralSecurityException, IOException {
+                if (calls[0]++ == 0) throw failure;
+                return mUnwrapper.unwrap();
+            }
+        }, mScheduler);
+
+        try {
+            roundTrip(key, new byte[]{1});
+            fail("Used a key that couldn't be unwrapped");
+        } catch (KeyStoreException e) {
+            assertTrue(e == failure);
+        }
+
+        assertArrayEquals(new byte[]{1}, roundTrip(key, new byte[]{1}));
+        assertEquals(1, key.unwrapCount());
+
+        //no read lock was left behind, clearing needs the write lock
+        Thread clearing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                key.clear();
+            }
+        });
+        clearing.start();
+        clearing.join(5000);
+
+        assertFalse(clearing.isAlive());
+        assertFalse(key.isUnwrapped());
+    }
+}